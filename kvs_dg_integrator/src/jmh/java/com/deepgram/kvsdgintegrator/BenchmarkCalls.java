@@ -0,0 +1,33 @@
+package com.deepgram.kvsdgintegrator;
+
+/**
+ * Connect calls for the benchmarks to read, built with {@link ConnectMkvWriter}.
+ */
+final class BenchmarkCalls {
+    static final String CONTACT_ID = "4a573372-1f28-4e26-b97b-000000000000";
+    // 64ms frames, as Connect sends them
+    static final int FRAME_BYTES = 1024;
+    static final int FRAMES_PER_TRACK = 1000;
+    static final int FRAMES = 2 * FRAMES_PER_TRACK;
+    // About 2 seconds of audio per fragment
+    private static final int FRAMES_PER_FRAGMENT = 32;
+
+    private BenchmarkCalls() {
+    }
+
+    /**
+     * @return A 64-second call, with a frame of each track in turn
+     */
+    static byte[] connectCall() {
+        String fromCustomer = KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName();
+        String toCustomer = KvsUtils.TrackName.AUDIO_TO_CUSTOMER.getName();
+        ConnectMkvWriter writer = new ConnectMkvWriter();
+        for (int i = 0; i < FRAMES_PER_TRACK; i++) {
+            if (i % FRAMES_PER_FRAGMENT == 0) {
+                writer.fragment(CONTACT_ID, fromCustomer, toCustomer);
+            }
+            writer.frame(1, ConnectMkvWriter.audio(FRAME_BYTES, i)).frame(2, ConnectMkvWriter.audio(FRAME_BYTES, -i));
+        }
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,59 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads every frame of a recorded-shape Connect call with each MKV parser. Scores are frames per second on one thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MkvFrameReaderBenchmark {
+    @Param({"connect", "library"})
+    public String parser;
+
+    private byte[] call;
+    private long checksum;
+    // Touches each frame the way a consumer would, without copying it
+    private final MkvFrameReader.FrameConsumer consumer =
+            (trackName, timecodeMillis, source, offset, length) -> checksum += source.get(offset) + timecodeMillis;
+
+    @Setup
+    public void buildCall() {
+        call = BenchmarkCalls.connectCall();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkCalls.FRAMES)
+    public long readCall() throws Exception {
+        InputStream kvsInputStream = new ByteArrayInputStream(call);
+        KvsContactTagProcessor tagProcessor = new KvsContactTagProcessor(BenchmarkCalls.CONTACT_ID);
+        MkvFrameReader reader;
+        if (parser.equals("connect")) {
+            ConnectMkvFrameReader connectReader = new ConnectMkvFrameReader(kvsInputStream, tagProcessor);
+            if (!connectReader.recognizesStream()) {
+                throw new IllegalStateException("Connect parser did not recognise the call");
+            }
+            reader = connectReader;
+        } else {
+            reader = new LibraryMkvFrameReader(kvsInputStream, tagProcessor);
+        }
+
+        while (reader.readNextFrame(consumer)) {
+            // Keep reading
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,59 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-session setup work that isn't I/O: reading the start-session body, and building the Deepgram URL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StartSessionBenchmark {
+    private static final String START_SESSION_BODY = """
+            {
+                "contactId": "4a573372-1f28-4e26-b97b-000000000000",
+                "kvsStream": {
+                    "arn": "arn:aws:kinesisvideo:us-east-1:111111111111:stream/instance-alias-contact-ddddddd-bbbb-dddd-eeee-ffffffffffff/9999999999999",
+                    "startFragmentNumber": "91343852333181432392682062607743920146264440494"
+                },
+                "dgParams": {
+                    "model": "nova-2-phonecall",
+                    "smart_format": "true",
+                    "tag": ["queue-support", "region-us"],
+                    "callback": "https://example.com/4a573372-1f28-4e26-b97b-000000000000"
+                },
+                "enforceRealtime": true,
+                "audioChunking": { "chunkMs": 20, "maxChunkMs": 250 }
+            }""";
+
+    private Map<String, List<String>> dgParams;
+    private String audioParams;
+
+    @Setup
+    public void readArguments() throws Exception {
+        dgParams = IntegratorArguments.fromJson(START_SESSION_BODY).dgParams();
+        audioParams = new Linear16Encoder().deepgramParams();
+    }
+
+    @Benchmark
+    public IntegratorArguments parseArguments() throws Exception {
+        return IntegratorArguments.fromJson(START_SESSION_BODY);
+    }
+
+    @Benchmark
+    public URI buildDeepgramStreamingUrl() throws Exception {
+        return DeepgramStreamingClient.buildDeepgramStreamingUrl(
+                "wss://api.deepgram.com/v1/listen", dgParams, audioParams);
+    }
+}
@@ -0,0 +1,62 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The path from parsed frames to interleaved chunks: the whole read, merge and interleave of a call, and the
+ * interleaving kernel on its own. Scores are frames (or chunks) per second on one thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TrackMergerBenchmark {
+    private byte[] call;
+    private ByteBuffer chunk;
+    private final ByteBuffer first = ByteBuffer.allocate(BenchmarkCalls.FRAME_BYTES);
+    private final ByteBuffer second = ByteBuffer.allocate(BenchmarkCalls.FRAME_BYTES);
+    private final ByteBuffer interleaved = ByteBuffer.allocate(2 * BenchmarkCalls.FRAME_BYTES);
+
+    @Setup
+    public void buildCall() {
+        call = BenchmarkCalls.connectCall();
+        chunk = ByteBuffer.allocate(new TrackMerger(frameReader()).getChunkBytes());
+        first.put(0, ConnectMkvWriter.audio(BenchmarkCalls.FRAME_BYTES, 1));
+        second.put(0, ConnectMkvWriter.audio(BenchmarkCalls.FRAME_BYTES, -1));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkCalls.FRAMES)
+    public long mergeCall() throws Exception {
+        TrackMerger merger = new TrackMerger(frameReader());
+        long checksum = 0;
+        while (merger.nextChunk(chunk.clear())) {
+            checksum += chunk.get(0);
+        }
+        return checksum;
+    }
+
+    /**
+     * One 64ms frame of each track into a 2-channel chunk.
+     */
+    @Benchmark
+    public ByteBuffer interleaveFrame() {
+        AudioInterleaver.interleave(first.clear(), second.clear(), interleaved.clear());
+        return interleaved;
+    }
+
+    private MkvFrameReader frameReader() {
+        return new ConnectMkvFrameReader(
+                new ByteArrayInputStream(call), new KvsContactTagProcessor(BenchmarkCalls.CONTACT_ID));
+    }
+}
@@ -0,0 +1,125 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Stands in for Deepgram's {@code /v1/listen}: it takes 2-channel {@code linear16} audio, sends a final result for
+ * every second of it, and on {@code CloseStream} sends the Metadata message and closes the websocket, as Deepgram does
+ * once it has finished with the audio. KeepAlives are ignored.
+ *
+ * <p>Each websocket is matched to its call by the {@code tag} query parameter, which the harness sets to the contact
+ * id, and each 64ms frame pair of the call is timed as it arrives.
+ */
+final class FakeDeepgramServer extends WebSocketServer implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(FakeDeepgramServer.class);
+    private static final int FRAME_PAIR_BYTES = 2 * FakeKvsServer.FRAME_BYTES;
+    private static final int BYTES_PER_SECOND =
+            TrackMerger.SAMPLE_RATE * TrackMerger.CHANNELS * TrackMerger.BYTES_PER_SAMPLE;
+
+    private final FrameLatencies latencies;
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    FakeDeepgramServer(FrameLatencies latencies) throws InterruptedException {
+        super(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.latencies = latencies;
+        setReuseAddr(true);
+        start();
+        started.await();
+    }
+
+    String getUrl() {
+        return "ws://127.0.0.1:%s/v1/listen".formatted(getPort());
+    }
+
+    @Override
+    public void onStart() {
+        started.countDown();
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        conn.setAttachment(new Listener(tagOf(handshake.getResourceDescriptor())));
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        Listener listener = conn.getAttachment();
+        long previousBytes = listener.bytes;
+        listener.bytes += message.remaining();
+        for (long frame = previousBytes / FRAME_PAIR_BYTES; frame < listener.bytes / FRAME_PAIR_BYTES; frame++) {
+            latencies.frameReceived(listener.contactId, (int) frame);
+        }
+
+        while (listener.bytes >= (listener.resultsSent + 1L) * BYTES_PER_SECOND) {
+            conn.send("""
+                    {"type":"Results","channel_index":[0,2],"duration":1.0,"start":%s.0,"is_final":true,\
+                    "speech_final":true,"channel":{"alternatives":[{"transcript":"load test","confidence":1.0,\
+                    "words":[]}]}}""".formatted(listener.resultsSent));
+            listener.resultsSent++;
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        Listener listener = conn.getAttachment();
+        if (message.contains("\"CloseStream\"")) {
+            conn.send("""
+                    {"type":"Metadata","request_id":"%s","duration":%s,"channels":2}"""
+                    .formatted(listener.contactId, (double) listener.bytes / BYTES_PER_SECOND));
+            conn.close(CloseFrame.NORMAL);
+            latencies.callEnded(listener.contactId);
+        }
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        logger.error("Fake Deepgram websocket error", ex);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        stop();
+    }
+
+    private static String tagOf(String resourceDescriptor) {
+        String query = URI.create(resourceDescriptor).getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("tag=")) {
+                    return URLDecoder.decode(parameter.substring("tag=".length()), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return "";
+    }
+
+    /**
+     * How far into its call a websocket has got. Only its websocket's thread touches it.
+     */
+    private static final class Listener {
+        final String contactId;
+        long bytes = 0;
+        int resultsSent = 0;
+
+        Listener(String contactId) {
+            this.contactId = contactId;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for the two KVS APIs that the integrator calls: GetDataEndpoint, which points it back at this server, and
+ * GetMedia, which streams a Connect call of {@code callSeconds} for any stream named {@code harness-<contactId>}.
+ *
+ * <p>Calls are written with {@link ConnectMkvFixture}, two 64ms frames (one per track) at a time, each pair when it's
+ * due: in realtime at a speed of 1, or that many times faster. Any other stream, such as the one {@link Warmer} asks
+ * for, is not found.
+ */
+final class FakeKvsServer implements AutoCloseable {
+    static final String STREAM_PREFIX = "harness-";
+    // 64ms frames, as Connect sends them
+    static final int FRAME_BYTES = 1024;
+    static final int FRAME_MILLIS = FRAME_BYTES / TrackMerger.BYTES_PER_SAMPLE / TrackMerger.SAMPLES_PER_MILLISECOND;
+    private static final int FRAMES_PER_FRAGMENT = 32;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final HttpServer server;
+    private final FrameLatencies latencies;
+    private final int callSeconds;
+    private final double speed;
+
+    FakeKvsServer(FrameLatencies latencies, int callSeconds, double speed) throws IOException {
+        this.latencies = latencies;
+        this.callSeconds = callSeconds;
+        this.speed = speed;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/getDataEndpoint", this::getDataEndpoint);
+        server.createContext("/getMedia", this::getMedia);
+        // Each GetMedia holds its thread for the whole call
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    String getEndpoint() {
+        return "http://127.0.0.1:%s".formatted(server.getAddress().getPort());
+    }
+
+    static int framesPerTrack(int callSeconds) {
+        return callSeconds * 1000 / FRAME_MILLIS;
+    }
+
+    private void getDataEndpoint(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String streamName = readStreamName(exchange);
+            if (!streamName.startsWith(STREAM_PREFIX)) {
+                sendNotFound(exchange, streamName);
+                return;
+            }
+            byte[] body = OBJECT_MAPPER.writeValueAsBytes(
+                    OBJECT_MAPPER.createObjectNode().put("DataEndpoint", getEndpoint()));
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private void getMedia(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String streamName = readStreamName(exchange);
+            if (!streamName.startsWith(STREAM_PREFIX)) {
+                sendNotFound(exchange, streamName);
+                return;
+            }
+            String contactId = streamName.substring(STREAM_PREFIX.length());
+            int framesPerTrack = framesPerTrack(callSeconds);
+            latencies.startCall(contactId, framesPerTrack);
+
+            exchange.getResponseHeaders().set("Content-Type", "video/webm");
+            // Chunked, as GetMedia's payload is
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+
+            String fromCustomer = KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName();
+            String toCustomer = KvsUtils.TrackName.AUDIO_TO_CUSTOMER.getName();
+            ConnectMkvFixture fixture = new ConnectMkvFixture();
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < framesPerTrack; i++) {
+                long dueNanos = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos((long) i * FRAME_MILLIS) / speed);
+                long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+
+                if (i % FRAMES_PER_FRAGMENT == 0) {
+                    fixture.fragment(contactId, fromCustomer, toCustomer);
+                }
+                fixture.frame(1, ConnectMkvFixture.audio(FRAME_BYTES, i))
+                        .frame(2, ConnectMkvFixture.audio(FRAME_BYTES, -i));
+                latencies.frameSent(contactId, i);
+                out.write(fixture.drain());
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The integrator hung up, which it does when a session fails. The frames it didn't get go unmeasured.
+        }
+    }
+
+    private static String readStreamName(HttpExchange exchange) throws IOException {
+        JsonNode request = OBJECT_MAPPER.readTree(exchange.getRequestBody());
+        return request.path("StreamName").asText("");
+    }
+
+    private static void sendNotFound(HttpExchange exchange, String streamName) throws IOException {
+        byte[] body = OBJECT_MAPPER.writeValueAsBytes(OBJECT_MAPPER.createObjectNode()
+                .put("Message", "The requested stream %s is not found".formatted(streamName)));
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        // How the SDK tells which exception to throw
+        exchange.getResponseHeaders().set("x-amzn-ErrorType", "ResourceNotFoundException");
+        exchange.sendResponseHeaders(404, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
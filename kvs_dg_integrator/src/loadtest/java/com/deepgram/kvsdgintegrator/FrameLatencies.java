@@ -0,0 +1,89 @@
+package com.deepgram.kvsdgintegrator;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times each frame of each call from when the fake KVS server writes it to when its audio reaches the fake Deepgram
+ * server, which is the end-to-end latency the integrator adds.
+ */
+final class FrameLatencies {
+    private final Map<String, Call> calls = new ConcurrentHashMap<>();
+
+    void startCall(String contactId, int frames) {
+        calls.put(contactId, new Call(frames));
+    }
+
+    void frameSent(String contactId, int frame) {
+        calls.get(contactId).sentNanos.set(frame, System.nanoTime());
+    }
+
+    void frameReceived(String contactId, int frame) {
+        Call call = calls.get(contactId);
+        if (call == null || frame >= call.sentNanos.length()) {
+            return;
+        }
+        long sentNanos = call.sentNanos.get(frame);
+        if (sentNanos != 0) {
+            call.latencyNanos.set(frame, System.nanoTime() - sentNanos);
+        }
+    }
+
+    void callEnded(String contactId) {
+        Call call = calls.get(contactId);
+        if (call != null) {
+            call.ended = true;
+        }
+    }
+
+    boolean hasEnded(String contactId) {
+        Call call = calls.get(contactId);
+        return call != null && call.ended;
+    }
+
+    /**
+     * @return The latencies of the frames of these calls that got through, sorted
+     */
+    long[] sortedLatencyNanos(Collection<String> contactIds) {
+        long[] latencies = new long[0];
+        int count = 0;
+        for (String contactId : contactIds) {
+            Call call = calls.get(contactId);
+            if (call == null) {
+                continue;
+            }
+            latencies = Arrays.copyOf(latencies, count + call.latencyNanos.length());
+            for (int i = 0; i < call.latencyNanos.length(); i++) {
+                long latency = call.latencyNanos.get(i);
+                if (latency > 0) {
+                    latencies[count++] = latency;
+                }
+            }
+        }
+        latencies = Arrays.copyOf(latencies, count);
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static final class Call {
+        final AtomicLongArray sentNanos;
+        final AtomicLongArray latencyNanos;
+        volatile boolean ended = false;
+
+        Call(int frames) {
+            this.sentNanos = new AtomicLongArray(frames);
+            this.latencyNanos = new AtomicLongArray(frames);
+        }
+    }
+}
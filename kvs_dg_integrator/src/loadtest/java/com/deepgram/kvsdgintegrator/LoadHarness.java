@@ -0,0 +1,229 @@
+package com.deepgram.kvsdgintegrator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load tests the integrator on this machine, with no AWS or Deepgram account: starts a {@link FakeKvsServer} and a
+ * {@link FakeDeepgramServer}, launches {@link Launcher} in a child process pointed at them, and then runs steps of
+ * more and more concurrent sessions.
+ *
+ * <p>For each step it reports how many sessions finished, the end-to-end latency of their frames (from the fake KVS
+ * writing a frame to its audio reaching the fake Deepgram), and the integrator's CPU and heap. A step is sustainable if
+ * all of its sessions finished and their p99 latency was within {@code --max-p99-ms}. Stepping stops at the first step
+ * that isn't.
+ *
+ * <pre>
+ * ./gradlew loadTest --args="--sessions 10,50,100,200 --call-seconds 60 --speed 1 --max-p99-ms 500"
+ * </pre>
+ */
+public class LoadHarness {
+    private static final Duration HEALTH_CHECK_TIMEOUT = Duration.ofSeconds(60);
+    // Leeway for sessions to finish after their calls have been streamed
+    private static final Duration STEP_GRACE = Duration.ofSeconds(30);
+    private static final HttpClient HTTP_CLIENT = HttpClient.newHttpClient();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int[] steps = Arrays.stream(options.getOrDefault("sessions", "10,25,50,100,200").split(","))
+                .mapToInt(step -> Integer.parseInt(step.trim()))
+                .toArray();
+        int callSeconds = Integer.parseInt(options.getOrDefault("call-seconds", "60"));
+        double speed = Double.parseDouble(options.getOrDefault("speed", "1"));
+        long maxP99Millis = Long.parseLong(options.getOrDefault("max-p99-ms", "500"));
+        Path launcherLog = Path.of(options.getOrDefault("launcher-log", "build/loadtest/launcher.log"));
+
+        FrameLatencies latencies = new FrameLatencies();
+        try (FakeKvsServer kvs = new FakeKvsServer(latencies, callSeconds, speed);
+             FakeDeepgramServer deepgram = new FakeDeepgramServer(latencies)) {
+            int port = freePort();
+            Process launcher = startLauncher(kvs.getEndpoint(), deepgram.getUrl(), port, launcherLog);
+            try {
+                URI base = URI.create("http://127.0.0.1:%s".formatted(port));
+                awaitHealthy(base, launcher);
+
+                System.out.printf("%d-second calls at %sx realtime; launcher log in %s%n",
+                        callSeconds, speed, launcherLog);
+                System.out.printf("%8s %9s %8s %8s %8s %7s %12s  %s%n",
+                        "sessions", "completed", "p50 ms", "p99 ms", "max ms", "cpu %", "max heap MB", "");
+                int sustainable = 0;
+                for (int sessions : steps) {
+                    StepResult result = runStep(base, launcher, latencies, sessions, callSeconds, speed);
+                    boolean ok = result.completed == sessions && result.p99Millis <= maxP99Millis;
+                    System.out.printf("%8d %9d %8.1f %8.1f %8.1f %7.1f %12.1f  %s%n",
+                            sessions, result.completed, result.p50Millis, result.p99Millis, result.maxMillis,
+                            result.cpuPercent, result.maxHeapBytes / 1e6, ok ? "ok" : "NOT SUSTAINABLE");
+                    if (!ok) {
+                        break;
+                    }
+                    sustainable = sessions;
+                }
+                System.out.printf("Maximum sustainable sessions per task: %s%n",
+                        sustainable == 0 ? "none of the steps" : sustainable);
+            } finally {
+                launcher.destroy();
+                launcher.waitFor(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static StepResult runStep(URI base, Process launcher, FrameLatencies latencies, int sessions,
+                                      int callSeconds, double speed) throws Exception {
+        List<String> contactIds = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            contactIds.add(UUID.randomUUID().toString());
+        }
+
+        Duration cpuBefore = launcher.toHandle().info().totalCpuDuration().orElse(Duration.ZERO);
+        long startNanos = System.nanoTime();
+        List<CompletableFuture<HttpResponse<String>>> starts = new ArrayList<>(sessions);
+        for (String contactId : contactIds) {
+            starts.add(HTTP_CLIENT.sendAsync(HttpRequest.newBuilder(base.resolve("/start-session"))
+                    .POST(HttpRequest.BodyPublishers.ofString(startSessionBody(contactId, speed == 1)))
+                    .build(), HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> start : starts) {
+            int status = start.get().statusCode();
+            if (status != 200) {
+                System.out.printf("A /start-session request got %s%n", status);
+            }
+        }
+
+        // Samples the heap while the calls run, until they've all ended or should have
+        long deadlineNanos = startNanos
+                + (long) (TimeUnit.SECONDS.toNanos(callSeconds) / speed) + STEP_GRACE.toNanos();
+        long maxHeapBytes = 0;
+        while (System.nanoTime() < deadlineNanos
+                && !contactIds.stream().allMatch(latencies::hasEnded)) {
+            maxHeapBytes = Math.max(maxHeapBytes, (long) readMetric(base, "jvm_memory_heap_used_bytes"));
+            Thread.sleep(1000);
+        }
+        double wallSeconds = (System.nanoTime() - startNanos) / 1e9;
+        Duration cpu = launcher.toHandle().info().totalCpuDuration().orElse(Duration.ZERO).minus(cpuBefore);
+        int completed = (int) contactIds.stream().filter(latencies::hasEnded).count();
+
+        // Lets the sessions that did finish tidy up before the next step
+        long idleDeadlineNanos = System.nanoTime() + STEP_GRACE.toNanos();
+        while (readMetric(base, "kvs_dg_active_sessions") > 0 && System.nanoTime() < idleDeadlineNanos) {
+            Thread.sleep(500);
+        }
+
+        long[] sorted = latencies.sortedLatencyNanos(contactIds);
+        return new StepResult(
+                completed,
+                FrameLatencies.percentile(sorted, 50) / 1e6,
+                FrameLatencies.percentile(sorted, 99) / 1e6,
+                FrameLatencies.percentile(sorted, 100) / 1e6,
+                cpu.toNanos() / 1e9 / wallSeconds / Runtime.getRuntime().availableProcessors() * 100,
+                maxHeapBytes);
+    }
+
+    private static String startSessionBody(String contactId, boolean enforceRealtime) {
+        return """
+                {"contactId":"%1$s",\
+                "kvsStream":{"arn":"arn:aws:kinesisvideo:us-east-1:111111111111:stream/%2$s%1$s/1",\
+                "startFragmentNumber":"0"},\
+                "dgParams":{"model":["nova-2"],"tag":["%1$s"]},\
+                "enforceRealtime":%3$s}""".formatted(contactId, FakeKvsServer.STREAM_PREFIX, enforceRealtime);
+    }
+
+    private static Process startLauncher(String kvsEndpoint, String deepgramUrl, int port, Path log)
+            throws IOException {
+        log.toAbsolutePath().getParent().toFile().mkdirs();
+        ProcessBuilder builder = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                Launcher.class.getName());
+        Map<String, String> env = builder.environment();
+        env.put("PORT", Integer.toString(port));
+        env.put("DEEPGRAM_API", deepgramUrl);
+        env.put("DEEPGRAM_API_KEY", "load-test");
+        env.put("DEEPGRAM_AUDIO_ENCODING", "linear16");
+        env.put("KVS_ENDPOINT", kvsEndpoint);
+        env.put("APP_REGION", "us-east-1");
+        env.put("AWS_REGION", "us-east-1");
+        // The fake KVS doesn't check signatures, but the SDK wants something to sign with
+        env.put("AWS_ACCESS_KEY_ID", "load-test");
+        env.put("AWS_SECRET_ACCESS_KEY", "load-test");
+        env.put("METRICS_EMF_INTERVAL_SECONDS", "0");
+        File logFile = log.toFile();
+        return builder.redirectErrorStream(true).redirectOutput(logFile).start();
+    }
+
+    private static void awaitHealthy(URI base, Process launcher) throws Exception {
+        long deadlineNanos = System.nanoTime() + HEALTH_CHECK_TIMEOUT.toNanos();
+        while (System.nanoTime() < deadlineNanos) {
+            if (!launcher.isAlive()) {
+                throw new Exception("Launcher exited with %s before it was healthy".formatted(launcher.exitValue()));
+            }
+            try {
+                HttpResponse<Void> response = HTTP_CLIENT.send(
+                        HttpRequest.newBuilder(base.resolve("/health-check")).build(),
+                        HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(250);
+        }
+        throw new Exception("Launcher wasn't healthy within %s".formatted(HEALTH_CHECK_TIMEOUT));
+    }
+
+    /**
+     * @return The value of an unlabelled metric on the integrator's {@code /metrics}
+     */
+    private static double readMetric(URI base, String name) throws Exception {
+        String metrics = HTTP_CLIENT.send(HttpRequest.newBuilder(base.resolve("/metrics")).build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return Double.parseDouble(line.substring(name.length() + 1).trim());
+            }
+        }
+        throw new Exception("No %s in /metrics".formatted(name));
+    }
+
+    private static Map<String, String> parseOptions(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new Exception("Expected --option value pairs but got %s".formatted(String.join(" ", args)));
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private record StepResult(
+            int completed,
+            double p50Millis,
+            double p99Millis,
+            double maxMillis,
+            double cpuPercent,
+            long maxHeapBytes
+    ) {
+    }
+}
@@ -0,0 +1,205 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.sun.management.OperatingSystemMXBean;
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether the task can take on another session, so that a full task turns calls away rather than slowing down
+ * the calls it already has.
+ *
+ * <p>A session is admitted if the task has fewer sessions than its limit, and neither its CPU nor its heap is over
+ * their thresholds. The limit is {@code MAX_SESSIONS} if set, and otherwise derived from the task's CPUs and heap. CPU
+ * and heap are sampled every second: CPU as the JVM's share of the CPUs available to it, smoothed over a few seconds,
+ * and heap as the lowest heap use over the last 10 seconds, which follows the live heap rather than the garbage
+ * waiting to be collected.
+ *
+ * <p>Once the task starts shutting down, no more sessions are admitted.
+ */
+public final class AdmissionController {
+	private static final Logger logger = LogManager.getLogger(AdmissionController.class);
+	// 0 derives the limit from the task's CPUs and heap
+	private static final int MAX_SESSIONS = Integer.parseInt(System.getenv().getOrDefault("MAX_SESSIONS", "0"));
+	private static final int SESSIONS_PER_CPU = Integer.parseInt(
+			System.getenv().getOrDefault("ADMISSION_SESSIONS_PER_CPU", "50"));
+	private static final int HEAP_MB_PER_SESSION = Integer.parseInt(
+			System.getenv().getOrDefault("ADMISSION_HEAP_MB_PER_SESSION", "4"));
+	private static final double MAX_CPU_LOAD = Double.parseDouble(
+			System.getenv().getOrDefault("ADMISSION_MAX_CPU_LOAD", "0.9"));
+	private static final double MAX_HEAP_LOAD = Double.parseDouble(
+			System.getenv().getOrDefault("ADMISSION_MAX_HEAP_LOAD", "0.85"));
+	// What the task uses with no sessions: classes, the KVS and HTTP clients, and so on
+	private static final long BASELINE_HEAP_BYTES = 64L << 20;
+	private static final int HEAP_SAMPLES = 10;
+	// Weight of each new CPU sample, which smooths the load over about 3 seconds
+	private static final double CPU_SMOOTHING = 0.3;
+
+	private static final AdmissionController INSTANCE = new AdmissionController(
+			MAX_SESSIONS > 0
+					? MAX_SESSIONS
+					: deriveSessionLimit(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory(),
+							SESSIONS_PER_CPU, HEAP_MB_PER_SESSION),
+			MAX_CPU_LOAD,
+			MAX_HEAP_LOAD);
+
+	private final int sessionLimit;
+	private final double maxCpuLoad;
+	private final double maxHeapLoad;
+	private final AtomicInteger admittedSessions = new AtomicInteger();
+	private volatile double cpuLoad = 0;
+	private volatile double heapLoad = 0;
+	private volatile boolean draining = false;
+
+	AdmissionController(int sessionLimit, double maxCpuLoad, double maxHeapLoad) {
+		Validate.isTrue(sessionLimit > 0, "Session limit must be positive");
+		Validate.isTrue(maxCpuLoad > 0, "CPU threshold must be positive");
+		Validate.isTrue(maxHeapLoad > 0, "Heap threshold must be positive");
+		this.sessionLimit = sessionLimit;
+		this.maxCpuLoad = maxCpuLoad;
+		this.maxHeapLoad = maxHeapLoad;
+	}
+
+	public static AdmissionController getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * The task's load, as {@code /health-check} reports it.
+	 *
+	 * @param cpuLoad  The JVM's share of the CPUs available to it, from 0 to 1
+	 * @param heapLoad The live heap as a share of the maximum heap, from 0 to 1
+	 */
+	public record Load(
+			boolean acceptingSessions,
+			boolean draining,
+			int activeSessions,
+			int sessionLimit,
+			double utilization,
+			double cpuLoad,
+			double heapLoad
+	) {
+	}
+
+	/**
+	 * A session's place on the task, which it gives up when closed.
+	 */
+	public final class Slot implements AutoCloseable {
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Slot() {
+		}
+
+		@Override
+		public void close() {
+			if (released.compareAndSet(false, true)) {
+				admittedSessions.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return A slot for the new session, or null if the task is full
+	 */
+	public Slot tryAdmit() {
+		if (draining || cpuLoad > maxCpuLoad || heapLoad > maxHeapLoad) {
+			Metrics.SESSIONS_REJECTED.increment();
+			return null;
+		}
+		while (true) {
+			int admitted = admittedSessions.get();
+			if (admitted >= sessionLimit) {
+				Metrics.SESSIONS_REJECTED.increment();
+				return null;
+			}
+			if (admittedSessions.compareAndSet(admitted, admitted + 1)) {
+				return new Slot();
+			}
+		}
+	}
+
+	public Load getLoad() {
+		int admitted = admittedSessions.get();
+		return new Load(
+				!draining && admitted < sessionLimit && cpuLoad <= maxCpuLoad && heapLoad <= maxHeapLoad,
+				draining,
+				admitted,
+				sessionLimit,
+				(double) admitted / sessionLimit,
+				cpuLoad,
+				heapLoad);
+	}
+
+	/**
+	 * Stops admitting sessions, for good.
+	 */
+	public void startDraining() {
+		draining = true;
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	public int getSessionLimit() {
+		return sessionLimit;
+	}
+
+	/**
+	 * Starts sampling the task's CPU and heap on a daemon thread.
+	 */
+	public void startSampling() {
+		OperatingSystemMXBean operatingSystem = ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class);
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		int processors = Runtime.getRuntime().availableProcessors();
+		long maxHeapBytes = Runtime.getRuntime().maxMemory();
+		long[] heapSamples = new long[HEAP_SAMPLES];
+		Arrays.fill(heapSamples, Long.MAX_VALUE);
+		long[] previous = {System.nanoTime(), operatingSystem.getProcessCpuTime()};
+		int[] sampleIndex = {0};
+
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "admission-load-sampler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.scheduleAtFixedRate(() -> {
+			long nowNanos = System.nanoTime();
+			long cpuNanos = operatingSystem.getProcessCpuTime();
+			double sample = (double) (cpuNanos - previous[1]) / ((nowNanos - previous[0]) * (double) processors);
+			previous[0] = nowNanos;
+			previous[1] = cpuNanos;
+
+			heapSamples[sampleIndex[0]++ % HEAP_SAMPLES] = memory.getHeapMemoryUsage().getUsed();
+			updateLoad(cpuLoad + CPU_SMOOTHING * (sample - cpuLoad),
+					(double) Arrays.stream(heapSamples).min().orElseThrow() / maxHeapBytes);
+		}, 1, 1, TimeUnit.SECONDS);
+
+		logger.info("Admitting up to %s sessions, while CPU is under %s%% and heap under %s%%".formatted(
+				sessionLimit, Math.round(maxCpuLoad * 100), Math.round(maxHeapLoad * 100)));
+	}
+
+	void updateLoad(double cpuLoad, double heapLoad) {
+		this.cpuLoad = cpuLoad;
+		this.heapLoad = heapLoad;
+	}
+
+	/**
+	 * @return How many sessions a task with these CPUs and heap can run: {@code sessionsPerCpu} for each CPU, and
+	 * {@code heapMbPerSession} of heap for each session on top of the baseline, whichever allows fewer
+	 */
+	static int deriveSessionLimit(int processors, long maxHeapBytes, int sessionsPerCpu, int heapMbPerSession) {
+		long byCpu = (long) processors * sessionsPerCpu;
+		long byHeap = (maxHeapBytes - BASELINE_HEAP_BYTES) / ((long) heapMbPerSession << 20);
+		return (int) Math.max(1, Math.min(byCpu, byHeap));
+	}
+}
@@ -0,0 +1,334 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.regions.Regions;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes GetMedia calls with the JDK's non-blocking HTTP client rather than the AWS SDK's blocking one.
+ *
+ * <p>The client reads every call's GetMedia response on its one shared selector thread, and hands each chunk of a
+ * payload to that call's {@link MediaPayload} as it arrives. The frame reader then parses from the payload, so no
+ * thread sits in a socket read for a call; a session's thread only waits when it has caught up with the live call.
+ *
+ * <p>Requests are signed with the SDK's SigV4 signer, using the same credentials as the SDK's clients.
+ */
+public final class AsyncGetMediaClient {
+    private static final Logger logger = LogManager.getLogger(AsyncGetMediaClient.class);
+    private static final String SERVICE_NAME = "kinesisvideo";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    // How long a read waits for more of the payload, as the SDK's default socket timeout
+    private static final long READ_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(50);
+    // Payload waiting to be read, beyond which no more is asked for until the reader catches up
+    private static final int MAX_BUFFERED_BYTES = 256 * 1024;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final AsyncGetMediaClient INSTANCE = new AsyncGetMediaClient();
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT)
+            // Only completes responses and hands off chunks, so it never waits on anything
+            .executor(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("kvs-get-media-", 0).factory()))
+            .build();
+
+    private AsyncGetMediaClient() {
+    }
+
+    public static AsyncGetMediaClient getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Makes a GetMedia call to the data endpoint, for the stream's fragments after startFragmentNum.
+     *
+     * @return The payload, once GetMedia has responded
+     * @throws IOException If the call fails, or GetMedia responds with an error
+     */
+    public InputStream getMedia(String endpoint,
+                                Regions region,
+                                AWSCredentialsProvider awsCredentialsProvider,
+                                String streamName,
+                                String startFragmentNum) throws IOException {
+        Validate.notNull(endpoint);
+        Validate.notNull(region);
+        Validate.notNull(awsCredentialsProvider);
+        Validate.notNull(streamName);
+        Validate.notNull(startFragmentNum);
+
+        byte[] body = OBJECT_MAPPER.writeValueAsBytes(OBJECT_MAPPER.createObjectNode()
+                .put("StreamName", streamName)
+                .set("StartSelector", OBJECT_MAPPER.createObjectNode()
+                        .put("StartSelectorType", "FRAGMENT_NUMBER")
+                        .put("AfterFragmentNumber", startFragmentNum)));
+
+        DefaultRequest<Void> signable = new DefaultRequest<>(SERVICE_NAME);
+        signable.setHttpMethod(HttpMethodName.POST);
+        signable.setEndpoint(URI.create(endpoint));
+        signable.setResourcePath("/getMedia");
+        signable.addHeader("Content-Type", "application/json");
+        signable.setContent(new ByteArrayInputStream(body));
+        AWS4Signer signer = new AWS4Signer();
+        signer.setServiceName(SERVICE_NAME);
+        signer.setRegionName(region.getName());
+        signer.sign(signable, awsCredentialsProvider.getCredentials());
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(endpoint + "/getMedia"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        signable.getHeaders().forEach((name, value) -> {
+            // The HTTP client sets Host itself, to the same value that was signed
+            if (!"Host".equalsIgnoreCase(name)) {
+                request.header(name, value);
+            }
+        });
+
+        HttpResponse<InputStream> response;
+        try {
+            response = httpClient.send(request.build(), responseInfo -> responseInfo.statusCode() == 200
+                    ? new MediaPayload()
+                    : HttpResponse.BodySubscribers.mapping(
+                            HttpResponse.BodySubscribers.ofByteArray(), ByteArrayInputStream::new));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for GetMedia on stream " + streamName);
+        }
+
+        String requestId = response.headers().firstValue("x-amzn-RequestId").orElse("unknown");
+        if (response.statusCode() != 200) {
+            String message;
+            try (InputStream error = response.body()) {
+                message = new String(error.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            throw new IOException("GetMedia on stream %s failed with %s %s (requestId %s): %s".formatted(
+                    streamName,
+                    response.statusCode(),
+                    response.headers().firstValue("x-amzn-ErrorType").orElse(""),
+                    requestId,
+                    message));
+        }
+
+        logger.info("Async GetMedia called on stream %s response %s requestId %s".formatted(
+                streamName, response.statusCode(), requestId));
+        return response.body();
+    }
+
+    /**
+     * A GetMedia payload, which the HTTP client pushes chunks into as they arrive and the frame reader reads from.
+     *
+     * <p>Once {@link #MAX_BUFFERED_BYTES} are waiting to be read, no more is asked for until the reader catches up, so a
+     * session that falls behind leaves the rest of the call in KVS rather than in memory. Closing the payload cancels
+     * the response, which closes its connection.
+     */
+    static final class MediaPayload extends InputStream implements HttpResponse.BodySubscriber<InputStream> {
+        // Not synchronized, so that a virtual thread waiting to read isn't pinned to its carrier
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition readable = lock.newCondition();
+        private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+        private Flow.Subscription subscription;
+        private long bufferedBytes = 0;
+        private boolean requested = false;
+        private boolean complete = false;
+        private boolean closed = false;
+        private Throwable error;
+
+        @Override
+        public CompletionStage<InputStream> getBody() {
+            return CompletableFuture.completedStage(this);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            boolean alreadyClosed;
+            lock.lock();
+            try {
+                this.subscription = subscription;
+                alreadyClosed = closed;
+            } finally {
+                lock.unlock();
+            }
+            if (alreadyClosed) {
+                subscription.cancel();
+                return;
+            }
+            requestIfRoom();
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            lock.lock();
+            try {
+                requested = false;
+                if (closed) {
+                    return;
+                }
+                for (ByteBuffer item : items) {
+                    if (item.hasRemaining()) {
+                        chunks.add(item);
+                        bufferedBytes += item.remaining();
+                    }
+                }
+                readable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            requestIfRoom();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            lock.lock();
+            try {
+                error = throwable;
+                readable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            lock.lock();
+            try {
+                complete = true;
+                readable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+
+            int read = 0;
+            lock.lock();
+            try {
+                long waitNanos = READ_TIMEOUT_NANOS;
+                while (chunks.isEmpty()) {
+                    if (closed) {
+                        throw new IOException("GetMedia payload is closed");
+                    }
+                    if (error != null) {
+                        throw new IOException("GetMedia payload failed", error);
+                    }
+                    if (complete) {
+                        return -1;
+                    }
+                    if (waitNanos <= 0) {
+                        throw new SocketTimeoutException("No GetMedia payload for %ss".formatted(
+                                TimeUnit.NANOSECONDS.toSeconds(READ_TIMEOUT_NANOS)));
+                    }
+                    try {
+                        waitNanos = readable.awaitNanos(waitNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted reading the GetMedia payload");
+                    }
+                }
+
+                while (read < len && !chunks.isEmpty()) {
+                    ByteBuffer chunk = chunks.peek();
+                    int length = Math.min(len - read, chunk.remaining());
+                    chunk.get(b, off + read, length);
+                    read += length;
+                    if (!chunk.hasRemaining()) {
+                        chunks.poll();
+                    }
+                }
+                bufferedBytes -= read;
+            } finally {
+                lock.unlock();
+            }
+            requestIfRoom();
+            return read;
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return (int) Math.min(bufferedBytes, Integer.MAX_VALUE);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            Flow.Subscription toCancel;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                chunks.clear();
+                bufferedBytes = 0;
+                toCancel = subscription;
+                readable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (toCancel != null) {
+                toCancel.cancel();
+            }
+        }
+
+        /**
+         * Asks for the next chunk, unless one has been asked for already or the reader has enough to be getting on with.
+         * The request is made outside the lock, as the client may deliver the chunk straight away on this thread.
+         */
+        private void requestIfRoom() {
+            Flow.Subscription toRequest;
+            lock.lock();
+            try {
+                if (subscription == null || requested || complete || closed || error != null
+                        || bufferedBytes >= MAX_BUFFERED_BYTES) {
+                    return;
+                }
+                requested = true;
+                toRequest = subscription;
+            } finally {
+                lock.unlock();
+            }
+            toRequest.request(1);
+        }
+    }
+}
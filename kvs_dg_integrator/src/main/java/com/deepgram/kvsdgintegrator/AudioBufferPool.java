@@ -0,0 +1,108 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide arena of reusable audio buffers, with one bounded pool per buffer capacity.
+ *
+ * <p>Every 64ms frame of every call passes through a handful of buffers (the SimpleBlock read from KVS, the
+ * interleaved frame sent to Deepgram), so reusing them means a session in steady state doesn't allocate a new audio
+ * buffer per frame. Other allocation per frame remains, so this cuts the garbage per frame rather than ending it.
+ * Whoever ends up holding a buffer hands it back with {@link #recycle(ByteBuffer)} once it's done with the contents.
+ * Buffers that arrive when their pool is full are simply left for the garbage collector.
+ *
+ * <p>Buffers are heap buffers unless {@code AUDIO_BUFFER_POOL_DIRECT=true}. Java-WebSocket frames and masks each
+ * message through a heap buffer anyway, so direct buffers only pay off if the audio never reaches the websocket as-is.
+ * At most {@code AUDIO_BUFFER_POOL_MAX_BUFFERS} (default 4096) idle buffers are kept per capacity.
+ */
+public final class AudioBufferPool {
+    private static final Map<Integer, AudioBufferPool> pools = new ConcurrentHashMap<>();
+    private static final boolean DIRECT = Boolean.parseBoolean(System.getenv("AUDIO_BUFFER_POOL_DIRECT"));
+    private static final int MAX_IDLE_BUFFERS = getMaxIdleBuffers();
+
+    private final int capacity;
+    private final BlockingQueue<ByteBuffer> idleBuffers;
+    private final AtomicLong allocations = new AtomicLong();
+
+    private AudioBufferPool(int capacity, int maxIdleBuffers) {
+        this.capacity = capacity;
+        // ArrayBlockingQueue, because unlike the linked queues it doesn't allocate a node for every buffer returned
+        this.idleBuffers = new ArrayBlockingQueue<>(maxIdleBuffers);
+    }
+
+    /**
+     * @return The shared pool of buffers with the given capacity
+     */
+    public static AudioBufferPool forCapacity(int capacity) {
+        Validate.isTrue(capacity > 0, "Buffer capacity must be positive");
+        return pools.computeIfAbsent(capacity, c -> new AudioBufferPool(c, MAX_IDLE_BUFFERS));
+    }
+
+    /**
+     * Returns a buffer to the pool it was acquired from, to be handed to the next caller of {@link #acquire()}. Only
+     * call this with a buffer acquired from a pool, exactly once, and only once nothing else will read or write it. The
+     * pool can't tell where a buffer came from: any writable buffer with a pool's capacity is taken into that pool,
+     * even one that wraps an array still in use elsewhere, and a buffer recycled twice would be handed to two callers.
+     * With assertions on, recycling a buffer that is already idle in its pool fails. Null and read-only buffers are
+     * ignored.
+     */
+    public static void recycle(ByteBuffer buffer) {
+        if (buffer == null || buffer.isReadOnly()) {
+            return;
+        }
+        AudioBufferPool pool = pools.get(buffer.capacity());
+        if (pool != null) {
+            assert !pool.isIdle(buffer) : "A buffer of %s bytes was recycled twice".formatted(buffer.capacity());
+            pool.idleBuffers.offer(buffer);
+        }
+    }
+
+    /**
+     * @return A cleared, big-endian buffer with this pool's capacity
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idleBuffers.poll();
+        if (buffer == null) {
+            allocations.incrementAndGet();
+            buffer = DIRECT ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        return buffer.clear().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return How many buffers this pool has ever allocated. This stops growing once the task reaches steady state.
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * A linear search of the idle buffers, by identity, since ByteBuffer's equals compares contents. Only for
+     * assertions.
+     */
+    private boolean isIdle(ByteBuffer buffer) {
+        for (ByteBuffer idle : idleBuffers) {
+            if (idle == buffer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getMaxIdleBuffers() {
+        String maxIdleBuffers = System.getenv("AUDIO_BUFFER_POOL_MAX_BUFFERS");
+        return maxIdleBuffers == null ? 4096 : Integer.parseInt(maxIdleBuffers);
+    }
+}
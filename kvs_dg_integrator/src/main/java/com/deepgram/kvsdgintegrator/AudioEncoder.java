@@ -0,0 +1,68 @@
+package com.deepgram.kvsdgintegrator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a session's interleaved 2-channel linear16 audio (8000hz, little-endian samples, as it comes from KVS) into
+ * whatever we send to Deepgram. The {@link DeepgramAudioSender} runs each chunk of audio through the session's encoder
+ * just before it goes into the websocket, and the Deepgram URL takes its audio params from the encoder, so the two
+ * always agree.
+ *
+ * <p>An encoder may keep state from one chunk to the next (a stream header, say), so each session has its own, and
+ * chunks must be encoded in order.
+ */
+public interface AudioEncoder {
+	/**
+	 * @return The query params that tell Deepgram what the encoded audio is, e.g.
+	 * {@code encoding=linear16&sample_rate=8000&multichannel=true&channels=2}
+	 */
+	String deepgramParams();
+
+	/**
+	 * @return The most bytes that encoding {@code pcmBytes} of audio, in any number of chunks, could produce
+	 */
+	int maxEncodedBytes(int pcmBytes);
+
+	/**
+	 * Encodes the remaining audio of {@code pcm} into {@code out}, advancing both positions.
+	 */
+	void encode(ByteBuffer pcm, ByteBuffer out);
+
+	/**
+	 * @return true if the encoded audio is just the audio we were given, so it can be sent without encoding it
+	 */
+	default boolean isPassthrough() {
+		return false;
+	}
+
+	/**
+	 * The encodings that we can send to Deepgram.
+	 */
+	enum Codec {
+		/**
+		 * Uncompressed, 256 kbit/s.
+		 */
+		LINEAR16,
+		/**
+		 * G.711 mu-law, 128 kbit/s. This is the encoding that calls on the phone network use anyway, so for most calls
+		 * it loses very little.
+		 */
+		MULAW,
+		/**
+		 * Lossless, typically somewhere between linear16 and mu-law in size. Silence and hold music compress well.
+		 */
+		FLAC;
+
+		/**
+		 * @param chunkSamples How many samples per channel each chunk of audio has (except the last of the call, which
+		 *                     may have fewer)
+		 */
+		public AudioEncoder newEncoder(int chunkSamples) {
+			return switch (this) {
+				case LINEAR16 -> new Linear16Encoder();
+				case MULAW -> new MuLawEncoder();
+				case FLAC -> new FlacEncoder(chunkSamples);
+			};
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fans a session's audio out to several subscribers, one for each of its Deepgram streams, so that the call is read
+ * from KVS and merged once however many streams it's transcribed on. Each subscriber subscribes to a
+ * {@link #branch(int) branch} of its own.
+ *
+ * <p>Each branch gets its own copy of every buffer, from the {@link AudioBufferPool}, and owns it just as it would a
+ * buffer straight from the {@link KvsToDgStreamer.KvsStreamPublisher}. Each branch has its own demand too. Audio is
+ * requested from upstream as fast as the branch that asks for it fastest, and audio for a branch that hasn't asked for
+ * it yet waits in a backlog of its own. So a slow stream doesn't hold up the others, and we only stop reading from KVS
+ * when every stream is behind. A branch that has {@code FAN_OUT_MAX_BACKLOG} buffers waiting beyond what it has asked
+ * for has its oldest audio dropped to make room, as a full send queue does with
+ * {@code DEEPGRAM_SEND_QUEUE_OVERFLOW=drop_oldest}. A subscriber that is a {@link DroppedAudioListener} is told how
+ * much was dropped just before the buffer that follows it, so that it can keep its times in step with the call.
+ *
+ * <p>Upstream is only subscribed to once every branch has been subscribed to or {@link #abandon(int) abandoned}, so
+ * that a websocket which takes a little longer to open doesn't miss the start of the call.
+ *
+ * <p>Signals to the branches come from whichever thread drains the fan-out: the read loop with new audio, or a sender
+ * asking for more. Only one thread drains at a time, and a drain asked for while another is underway is left to that
+ * one, so each branch's signals are never concurrent, as the Reactive Streams spec requires.
+ */
+public class AudioFanOut implements Subscriber<ByteBuffer> {
+	private static final Logger logger = LogManager.getLogger(AudioFanOut.class);
+	private static final int BYTES_PER_FRAME = TrackMerger.CHANNELS * TrackMerger.BYTES_PER_SAMPLE;
+
+	// 64 buffers of 64ms (the default chunk size) is about 4 seconds of audio, on top of the send queue
+	private static final int MAX_BACKLOG = Integer.parseInt(
+			System.getenv().getOrDefault("FAN_OUT_MAX_BACKLOG", "64"));
+
+	private final Publisher<ByteBuffer> upstreamPublisher;
+	private final int maxBacklog;
+	private final List<Branch> branches;
+	// Not synchronized, so that a virtual thread waiting to drain isn't pinned to its carrier. Guards everything below,
+	// and each branch's state, but is never held while signalling.
+	private final ReentrantLock lock = new ReentrantLock();
+	private Subscription upstream = null;
+	private boolean upstreamSubscribed = false;
+	private boolean upstreamCancelled = false;
+	// How much audio we've asked upstream for and not received yet
+	private long upstreamDemand = 0;
+	// Branches that haven't been subscribed to or abandoned yet
+	private int branchesWaiting;
+	private boolean completed = false;
+	private Throwable error = null;
+	private boolean draining = false;
+	private boolean drainAgain = false;
+
+	/**
+	 * A subscriber to a branch that needs to know when audio meant for it is dropped.
+	 */
+	public interface DroppedAudioListener {
+		/**
+		 * Called just before the buffer that follows the dropped audio, on the thread that sends it.
+		 *
+		 * @param samples How much audio was dropped, in samples per channel
+		 */
+		void audioDropped(long samples);
+	}
+
+	/**
+	 * @param upstream The session's audio, which is subscribed to once every branch is ready
+	 * @param branches How many branches to fan the audio out to
+	 */
+	public AudioFanOut(Publisher<ByteBuffer> upstream, int branches) {
+		this(upstream, branches, MAX_BACKLOG);
+	}
+
+	AudioFanOut(Publisher<ByteBuffer> upstream, int branches, int maxBacklog) {
+		Validate.isTrue(branches > 0, "There must be at least one branch");
+		Validate.isTrue(maxBacklog > 0, "Maximum backlog must be positive");
+		this.upstreamPublisher = Validate.notNull(upstream);
+		this.maxBacklog = maxBacklog;
+		this.branches = new ArrayList<>(branches);
+		for (int i = 0; i < branches; i++) {
+			this.branches.add(new Branch(i));
+		}
+		this.branchesWaiting = branches;
+	}
+
+	/**
+	 * @return The publisher of one branch's copy of the audio, which can be subscribed to once
+	 */
+	public Publisher<ByteBuffer> branch(int index) {
+		return branches.get(index);
+	}
+
+	/**
+	 * Gives up on a branch, e.g. because its websocket failed. Its backlog is released, and it stops counting towards
+	 * whether upstream is subscribed to or how fast it's read. Once every branch is given up on or cancelled, so is
+	 * upstream.
+	 */
+	public void abandon(int index) {
+		Branch branch = branches.get(index);
+		lock.lock();
+		try {
+			branch.release();
+		} finally {
+			lock.unlock();
+		}
+		drain();
+	}
+
+	@Override
+	public void onSubscribe(Subscription subscription) {
+		Validate.notNull(subscription);
+		boolean duplicate;
+		lock.lock();
+		try {
+			duplicate = upstream != null;
+			if (!duplicate) {
+				upstream = subscription;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (duplicate) {
+			subscription.cancel();
+			return;
+		}
+		drain();
+	}
+
+	@Override
+	public void onNext(ByteBuffer audioBytes) {
+		Validate.notNull(audioBytes);
+		lock.lock();
+		try {
+			upstreamDemand = Math.max(0, upstreamDemand - 1);
+			// The first branch still going gets the buffer itself, and the rest get copies
+			boolean handedOver = false;
+			for (Branch branch : branches) {
+				if (branch.done) {
+					continue;
+				}
+				branch.enqueue(handedOver ? copyOf(audioBytes) : audioBytes);
+				handedOver = true;
+			}
+			if (!handedOver) {
+				AudioBufferPool.recycle(audioBytes);
+			}
+		} finally {
+			lock.unlock();
+		}
+		drain();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		lock.lock();
+		try {
+			error = Validate.notNull(throwable);
+			// Errors don't wait for the audio before them to be sent
+			for (Branch branch : branches) {
+				branch.releaseBacklog();
+			}
+		} finally {
+			lock.unlock();
+		}
+		drain();
+	}
+
+	@Override
+	public void onComplete() {
+		lock.lock();
+		try {
+			completed = true;
+		} finally {
+			lock.unlock();
+		}
+		drain();
+	}
+
+	/**
+	 * Signals each branch whatever it's waiting for that it has asked for, then asks upstream for as much audio as the
+	 * fastest branch wants. A drain asked for while another is underway makes that one go round again instead.
+	 */
+	private void drain() {
+		lock.lock();
+		try {
+			if (draining) {
+				drainAgain = true;
+				return;
+			}
+			draining = true;
+		} finally {
+			lock.unlock();
+		}
+
+		while (true) {
+			for (Branch branch : branches) {
+				branch.emit();
+			}
+
+			boolean subscribe = false;
+			Subscription toCancel = null;
+			Subscription toRequest = null;
+			long request = 0;
+			lock.lock();
+			try {
+				boolean anyLive = false;
+				long wanted = 0;
+				for (Branch branch : branches) {
+					if (!branch.done) {
+						anyLive = true;
+						wanted = Math.max(wanted, branch.demand - branch.backlog.size());
+					}
+				}
+
+				if (!anyLive) {
+					if (upstream != null && !upstreamCancelled && !completed && error == null) {
+						upstreamCancelled = true;
+						toCancel = upstream;
+					}
+				} else if (upstream == null) {
+					if (!upstreamSubscribed && branchesWaiting == 0) {
+						upstreamSubscribed = true;
+						subscribe = true;
+					}
+				} else if (wanted > upstreamDemand && !upstreamCancelled && !completed && error == null) {
+					request = wanted - upstreamDemand;
+					upstreamDemand = wanted;
+					toRequest = upstream;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (subscribe) {
+				upstreamPublisher.subscribe(this);
+			}
+			if (toCancel != null) {
+				toCancel.cancel();
+			}
+			if (toRequest != null) {
+				toRequest.request(request);
+			}
+
+			lock.lock();
+			try {
+				if (!drainAgain) {
+					draining = false;
+					return;
+				}
+				drainAgain = false;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static ByteBuffer copyOf(ByteBuffer audioBytes) {
+		ByteBuffer copy = AudioBufferPool.forCapacity(audioBytes.capacity()).acquire();
+		return copy.put(audioBytes.duplicate()).flip();
+	}
+
+	/**
+	 * One subscriber's share of the audio. Its state is guarded by the fan-out's lock.
+	 */
+	private final class Branch implements Publisher<ByteBuffer>, Subscription {
+		private final int index;
+		private final ArrayDeque<ByteBuffer> backlog = new ArrayDeque<>();
+		private Subscriber<? super ByteBuffer> subscriber = null;
+		private boolean waiting = true;
+		private long demand = 0;
+		// Once cancelled, abandoned or sent its last signal, the branch takes no more audio
+		private boolean done = false;
+		// Set by an invalid request, to be signalled by the next drain
+		private IllegalArgumentException invalidRequest = null;
+		private long droppedBuffers = 0;
+		// Dropped since the last buffer was sent, to be reported before the next, in samples per channel
+		private long droppedSamples = 0;
+
+		private Branch(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void subscribe(Subscriber<? super ByteBuffer> s) {
+			Validate.notNull(s);
+			boolean accepted;
+			lock.lock();
+			try {
+				accepted = subscriber == null && !done;
+				if (accepted) {
+					subscriber = s;
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (!accepted) {
+				s.onSubscribe(new Subscription() {
+					@Override
+					public void request(long n) {
+					}
+
+					@Override
+					public void cancel() {
+					}
+				});
+				s.onError(new IllegalStateException(
+						"Branch %s has already been subscribed to or abandoned".formatted(index)));
+				return;
+			}
+
+			s.onSubscribe(this);
+			lock.lock();
+			try {
+				if (waiting) {
+					waiting = false;
+					branchesWaiting--;
+				}
+			} finally {
+				lock.unlock();
+			}
+			drain();
+		}
+
+		@Override
+		public void request(long n) {
+			lock.lock();
+			try {
+				if (done) {
+					return;
+				}
+				if (n <= 0) {
+					invalidRequest = new IllegalArgumentException("Requested %s buffers; must be positive".formatted(n));
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+			} finally {
+				lock.unlock();
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			lock.lock();
+			try {
+				release();
+			} finally {
+				lock.unlock();
+			}
+			drain();
+		}
+
+		// Must hold the lock
+		private void enqueue(ByteBuffer audioBytes) {
+			backlog.addLast(audioBytes);
+			// Audio it has asked for only waits here until the next drain
+			if (backlog.size() > maxBacklog && backlog.size() - maxBacklog > demand) {
+				ByteBuffer oldest = backlog.removeFirst();
+				droppedSamples += oldest.remaining() / BYTES_PER_FRAME;
+				AudioBufferPool.recycle(oldest);
+				Metrics.CHUNKS_DROPPED.increment();
+				if (droppedBuffers++ % 100 == 0) {
+					logger.warn("Deepgram stream %s is falling behind the others; dropped %s buffers of audio so far"
+							.formatted(index, droppedBuffers));
+				}
+			}
+		}
+
+		// Must hold the lock
+		private void release() {
+			done = true;
+			if (waiting) {
+				waiting = false;
+				branchesWaiting--;
+			}
+			releaseBacklog();
+		}
+
+		// Must hold the lock
+		private void releaseBacklog() {
+			ByteBuffer queued;
+			while ((queued = backlog.poll()) != null) {
+				AudioBufferPool.recycle(queued);
+			}
+		}
+
+		/**
+		 * Sends the subscriber as much of its backlog as it has asked for, and then the end of the audio if that's
+		 * all that's left. Only called by the thread draining the fan-out.
+		 */
+		private void emit() {
+			while (true) {
+				Subscriber<? super ByteBuffer> s;
+				ByteBuffer next = null;
+				long dropped = 0;
+				Throwable failure = null;
+				lock.lock();
+				try {
+					s = subscriber;
+					if (done || s == null) {
+						return;
+					}
+					if (invalidRequest != null) {
+						failure = invalidRequest;
+						release();
+					} else if (error != null) {
+						failure = error;
+						release();
+					} else if (!backlog.isEmpty()) {
+						if (demand == 0) {
+							return;
+						}
+						next = backlog.removeFirst();
+						demand--;
+						dropped = droppedSamples;
+						droppedSamples = 0;
+					} else if (completed) {
+						done = true;
+					} else {
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+
+				if (next != null) {
+					if (dropped > 0 && s instanceof DroppedAudioListener listener) {
+						listener.audioDropped(dropped);
+					}
+					s.onNext(next);
+				} else if (failure != null) {
+					s.onError(failure);
+					return;
+				} else {
+					s.onComplete();
+					return;
+				}
+			}
+		}
+	}
+}
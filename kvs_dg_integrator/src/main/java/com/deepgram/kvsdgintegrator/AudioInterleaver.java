@@ -0,0 +1,59 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Interleaves two mono linear16 channels into one 2-channel buffer, with the first channel's sample first.
+ */
+public final class AudioInterleaver {
+	private AudioInterleaver() {
+	}
+
+	/**
+	 * Interleaves the remaining samples of {@code first} and {@code second} into {@code out}. The inputs must hold the
+	 * same whole number of 16-bit samples; their positions are advanced to their limits, and the position of
+	 * {@code out} is advanced past the interleaved audio.
+	 *
+	 * <p>Since we only move bytes around, the samples' endianness doesn't matter, as long as all three buffers use the
+	 * same byte order. The kernel reads two samples per channel as an int and writes the four interleaved samples as
+	 * one long, so a 64ms frame takes 256 iterations rather than 2048 single byte copies.
+	 */
+	public static void interleave(ByteBuffer first, ByteBuffer second, ByteBuffer out) {
+		int bytesPerChannel = first.remaining();
+		Validate.isTrue(bytesPerChannel == second.remaining(), "Channels differ in length: %s vs %s",
+				bytesPerChannel, second.remaining());
+		Validate.isTrue(bytesPerChannel % 2 == 0, "Channels must hold whole 16-bit samples");
+		Validate.isTrue(out.remaining() >= bytesPerChannel * 2, "Output buffer is too small");
+		Validate.isTrue(first.order() == ByteOrder.BIG_ENDIAN && second.order() == ByteOrder.BIG_ENDIAN
+				&& out.order() == ByteOrder.BIG_ENDIAN, "Buffers must be big-endian");
+
+		int in1 = first.position();
+		int in2 = second.position();
+		int o = out.position();
+		int end1 = in1 + bytesPerChannel;
+
+		// Two samples per channel at a time: [a0 a1] and [b0 b1] become [a0 b0 a1 b1]
+		for (; in1 + 4 <= end1; in1 += 4, in2 += 4, o += 8) {
+			long a = first.getInt(in1) & 0xFFFFFFFFL;
+			long b = second.getInt(in2) & 0xFFFFFFFFL;
+			out.putLong(o, ((a & 0xFFFF0000L) << 32)
+					| ((b & 0xFFFF0000L) << 16)
+					| ((a & 0x0000FFFFL) << 16)
+					| (b & 0x0000FFFFL));
+		}
+
+		// An odd sample left over
+		if (in1 < end1) {
+			out.putShort(o, first.getShort(in1));
+			out.putShort(o + 2, second.getShort(in2));
+			o += 4;
+		}
+
+		first.position(first.limit());
+		second.position(second.limit());
+		out.position(o);
+	}
+}
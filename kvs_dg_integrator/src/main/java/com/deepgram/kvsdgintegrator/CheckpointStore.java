@@ -0,0 +1,54 @@
+package com.deepgram.kvsdgintegrator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Where sessions keep their checkpoints: how far through its KVS stream each contact's transcript has got, so that a
+ * session started again for the contact resumes from there rather than from the start of the call. One store is shared
+ * by every session on the task, and it may be called from several sessions at once, though never concurrently for one
+ * contact.
+ */
+public interface CheckpointStore {
+	/**
+	 * @param streamArn        The KVS stream the call is on. Connect reuses streams across contacts, so a checkpoint is
+	 *                         only resumed from on the same stream.
+	 * @param fragmentNumber   The KVS fragment to resume from: the first that Deepgram hasn't given final results for
+	 *                         all of
+	 * @param callOffsetMillis Where that fragment starts, in milliseconds from the start of the call's audio
+	 * @param updatedAt        When the checkpoint was taken, in ISO-8601
+	 */
+	record Checkpoint(
+			String contactId,
+			String streamArn,
+			String fragmentNumber,
+			long callOffsetMillis,
+			String updatedAt
+	) {
+	}
+
+	/**
+	 * @return The contact's checkpoint, or null if it doesn't have one
+	 */
+	Checkpoint load(String contactId) throws IOException;
+
+	/**
+	 * Replaces the contact's checkpoint.
+	 */
+	void save(Checkpoint checkpoint) throws IOException;
+
+	/**
+	 * Forgets the contact's checkpoint, if it has one.
+	 */
+	void delete(String contactId) throws IOException;
+
+	/**
+	 * The store set by {@code SESSION_CHECKPOINT_DIR}: a directory to keep a file per contact in.
+	 *
+	 * @return The store, or null if there isn't one
+	 */
+	static CheckpointStore fromEnvironment() {
+		String directory = System.getenv().getOrDefault("SESSION_CHECKPOINT_DIR", "");
+		return directory.isEmpty() ? null : new FileCheckpointStore(Path.of(directory));
+	}
+}
@@ -0,0 +1,314 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A streaming MKV parser that only understands what we need from Connect's KVS streams: SimpleBlocks, the track
+ * entries that name them, the timecodes that place them, and tags (for the ContactId that
+ * {@link KvsContactTagProcessor} watches).
+ *
+ * <p>Compared to {@link LibraryMkvFrameReader}, it doesn't build an object for each element or copy element values.
+ * Elements are parsed in place in a single read buffer, and each frame is handed to the consumer as an offset into that
+ * buffer. Track names are resolved once per fragment, when its Tracks element is parsed, into a table indexed by track
+ * number.
+ *
+ * <p>It scans the stream flatly: it steps into every master element we care about without tracking where the master
+ * ends, and skips everything else by its size. That's enough for the layout KVS writes, and it copes with the
+ * unknown-size segments and clusters that KVS uses. Call {@link #recognizesStream()} before reading frames, and fall
+ * back to the library parser if the stream doesn't look like Connect audio.
+ */
+public class ConnectMkvFrameReader implements MkvFrameReader {
+    private static final Logger logger = LogManager.getLogger(ConnectMkvFrameReader.class);
+
+    // Element ids from the Matroska spec
+    private static final int SEGMENT = 0x18538067;
+    private static final int INFO = 0x1549A966;
+    private static final int TIMECODE_SCALE = 0x2AD7B1;
+    private static final int CLUSTER = 0x1F43B675;
+    private static final int TIMECODE = 0xE7;
+    private static final int SIMPLEBLOCK = 0xA3;
+    private static final int TRACKS = 0x1654AE6B;
+    private static final int TRACK_ENTRY = 0xAE;
+    private static final int TRACK_NUMBER = 0xD7;
+    private static final int TRACK_NAME = 0x536E;
+    private static final int TAGS = 0x1254C367;
+    private static final int TAG = 0x7373;
+    private static final int SIMPLE_TAG = 0x67C8;
+    private static final int TAG_NAME = 0x45A3;
+    private static final int TAG_STRING = 0x4487;
+
+    private static final Set<String> CONNECT_TRACK_NAMES = Set.of(
+            KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName(),
+            KvsUtils.TrackName.AUDIO_TO_CUSTOMER.getName(),
+            "Track_audio/L16");
+    private static final int MAX_TRACK_NUMBER = 15;
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_BUFFER_BYTES = 16 * 1024 * 1024;
+    // How far we'll read into the stream looking for its first cluster before giving up on recognising it
+    private static final int MAX_PROBE_BYTES = 1024 * 1024;
+
+    // Results of parseElement
+    private static final int NEED_MORE_BYTES = 0;
+    private static final int PARSED_ELEMENT = 1;
+    private static final int PARSED_FRAME = 2;
+
+    private final InputStream kvsInputStream;
+    private final KvsContactTagProcessor tagProcessor;
+    // Unparsed bytes are between the buffer's position and limit
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES).limit(0);
+    private boolean inputEnded = false;
+    private long bytesToSkip = 0;
+    private final String[] trackNames = new String[MAX_TRACK_NUMBER + 1];
+    private long pendingTrackNumber = 0;
+    private String pendingTrackName = null;
+    private String pendingTagName = null;
+    private long clusterTimecode = 0;
+    // Nanoseconds per timecode tick; KVS always uses the Matroska default of 1ms
+    private long timecodeScale = 1_000_000;
+
+    // Only used while probing the start of the stream
+    private boolean probing = false;
+    private boolean sawCluster = false;
+    private int tracksSeen = 0;
+    private boolean sawUnexpectedTrack = false;
+
+    public ConnectMkvFrameReader(InputStream kvsInputStream, KvsContactTagProcessor tagProcessor) {
+        this.kvsInputStream = Validate.notNull(kvsInputStream);
+        this.tagProcessor = Validate.notNull(tagProcessor);
+    }
+
+    /**
+     * Reads the start of the stream, up to its first cluster, to check that it has the layout we expect from Connect.
+     * Either way, the bytes read so far are kept: if this returns true, reading frames starts from the beginning of the
+     * stream, and if it returns false, {@link #getProbedBytes()} returns them for another parser.
+     */
+    public boolean recognizesStream() throws IOException {
+        probing = true;
+        try {
+            while (!sawCluster) {
+                if (parseElement(null) == NEED_MORE_BYTES && (buffer.limit() >= MAX_PROBE_BYTES || !fill())) {
+                    logger.debug("Did not find a cluster in the first %s bytes of the stream".formatted(buffer.limit()));
+                    return false;
+                }
+            }
+            return tracksSeen > 0 && !sawUnexpectedTrack;
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            logger.debug("Could not parse the start of the stream", e);
+            return false;
+        } finally {
+            probing = false;
+            buffer.position(0);
+            bytesToSkip = 0;
+            Arrays.fill(trackNames, null);
+            pendingTrackNumber = 0;
+            pendingTrackName = null;
+            pendingTagName = null;
+        }
+    }
+
+    /**
+     * @return The bytes read from KVS by {@link #recognizesStream()}
+     */
+    public InputStream getProbedBytes() {
+        return new ByteArrayInputStream(buffer.array(), 0, buffer.limit());
+    }
+
+    @Override
+    public boolean readNextFrame(FrameConsumer consumer) throws IOException {
+        Validate.notNull(consumer);
+
+        while (!tagProcessor.shouldStopProcessing()) {
+            int result = parseElement(consumer);
+            if (result == PARSED_FRAME) {
+                return true;
+            }
+            if (result == NEED_MORE_BYTES && !fill()) {
+                if (buffer.hasRemaining() || bytesToSkip > 0) {
+                    logger.warn("KVS stream ended part way through an element");
+                }
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses one element header, plus its data if it's an element we care about. If the buffer doesn't hold enough
+     * bytes for that, nothing is consumed.
+     */
+    private int parseElement(FrameConsumer consumer) {
+        if (bytesToSkip > 0) {
+            int skipped = (int) Math.min(bytesToSkip, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            bytesToSkip -= skipped;
+            return bytesToSkip > 0 ? NEED_MORE_BYTES : PARSED_ELEMENT;
+        }
+
+        int elementStart = buffer.position();
+        if (buffer.remaining() < 1) {
+            return NEED_MORE_BYTES;
+        }
+        int idLength = EbmlUtils.vintLength(buffer.get(elementStart));
+        if (buffer.remaining() < idLength + 1) {
+            return NEED_MORE_BYTES;
+        }
+        int sizeLength = EbmlUtils.vintLength(buffer.get(elementStart + idLength));
+        if (buffer.remaining() < idLength + sizeLength) {
+            return NEED_MORE_BYTES;
+        }
+
+        int id = EbmlUtils.readId(buffer);
+        long size = EbmlUtils.readSize(buffer);
+
+        switch (id) {
+            case SEGMENT, INFO, TAGS, TAG, SIMPLE_TAG -> {
+                return PARSED_ELEMENT;
+            }
+            case CLUSTER -> {
+                sawCluster = true;
+                return PARSED_ELEMENT;
+            }
+            case TRACKS -> {
+                // Each fragment repeats its track entries, so start the table afresh
+                Arrays.fill(trackNames, null);
+                return PARSED_ELEMENT;
+            }
+            case TRACK_ENTRY -> {
+                pendingTrackNumber = 0;
+                pendingTrackName = null;
+                return PARSED_ELEMENT;
+            }
+            case TIMECODE_SCALE, TIMECODE, TRACK_NUMBER, TRACK_NAME, TAG_NAME, TAG_STRING, SIMPLEBLOCK -> {
+                Validate.validState(size != EbmlUtils.UNKNOWN_SIZE, "Element 0x%X has unknown size", id);
+                Validate.validState(size <= MAX_BUFFER_BYTES, "Element 0x%X is too large: %s bytes", id, size);
+                if (buffer.remaining() < size) {
+                    buffer.position(elementStart);
+                    return NEED_MORE_BYTES;
+                }
+                int dataStart = buffer.position();
+                buffer.position(dataStart + (int) size);
+                return parseLeaf(id, dataStart, (int) size, consumer);
+            }
+            default -> {
+                Validate.validState(size != EbmlUtils.UNKNOWN_SIZE, "Element 0x%X has unknown size", id);
+                int skipped = (int) Math.min(size, buffer.remaining());
+                buffer.position(buffer.position() + skipped);
+                bytesToSkip = size - skipped;
+                return PARSED_ELEMENT;
+            }
+        }
+    }
+
+    private int parseLeaf(int id, int dataStart, int size, FrameConsumer consumer) {
+        switch (id) {
+            case TIMECODE_SCALE -> timecodeScale = readUnsigned(dataStart, size);
+            case TIMECODE -> clusterTimecode = readUnsigned(dataStart, size);
+            case TRACK_NUMBER -> {
+                pendingTrackNumber = readUnsigned(dataStart, size);
+                registerPendingTrack();
+            }
+            case TRACK_NAME -> {
+                pendingTrackName = readString(dataStart, size);
+                registerPendingTrack();
+            }
+            case TAG_NAME -> pendingTagName = readString(dataStart, size);
+            case TAG_STRING -> {
+                if (pendingTagName != null) {
+                    tagProcessor.process(pendingTagName, readString(dataStart, size));
+                    pendingTagName = null;
+                }
+            }
+            case SIMPLEBLOCK -> {
+                if (consumer == null) {
+                    return PARSED_ELEMENT;
+                }
+                buffer.position(dataStart);
+                long trackNumber = EbmlUtils.readVint(buffer);
+                short relativeTimecode = buffer.getShort();
+                int frameStart = buffer.position() + 1; // skip the flags
+                buffer.position(dataStart + size);
+                String trackName = trackNumber <= MAX_TRACK_NUMBER ? trackNames[(int) trackNumber] : null;
+                if (trackName != null) {
+                    long timecodeMillis = (clusterTimecode + relativeTimecode) * timecodeScale / 1_000_000;
+                    consumer.onFrame(trackName, timecodeMillis, buffer, frameStart, dataStart + size - frameStart);
+                    return PARSED_FRAME;
+                }
+            }
+            default -> throw new IllegalStateException("Unexpected element 0x%X".formatted(id));
+        }
+        return PARSED_ELEMENT;
+    }
+
+    private void registerPendingTrack() {
+        if (pendingTrackNumber == 0 || pendingTrackName == null) {
+            return;
+        }
+        if (probing) {
+            tracksSeen++;
+            sawUnexpectedTrack |= pendingTrackNumber > MAX_TRACK_NUMBER || !CONNECT_TRACK_NAMES.contains(pendingTrackName);
+        }
+        if (pendingTrackNumber <= MAX_TRACK_NUMBER) {
+            // backwards compatibility
+            trackNames[(int) pendingTrackNumber] = "Track_audio/L16".equals(pendingTrackName)
+                    ? KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName()
+                    : pendingTrackName;
+        }
+    }
+
+    private long readUnsigned(int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+        }
+        return value;
+    }
+
+    private String readString(int offset, int length) {
+        // Strings may be padded with trailing null bytes
+        int end = offset + length;
+        while (end > offset && buffer.get(end - 1) == 0) {
+            end--;
+        }
+        return new String(buffer.array(), offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads more bytes from KVS into the buffer, first discarding the bytes we've parsed (unless we're probing, in which
+     * case they're kept so they can be parsed again), and growing the buffer if it's full.
+     *
+     * @return false if the stream has ended
+     */
+    private boolean fill() throws IOException {
+        if (inputEnded) {
+            return false;
+        }
+
+        if (!probing && buffer.position() > 0) {
+            buffer.compact().flip();
+        }
+        if (buffer.limit() == buffer.capacity()) {
+            Validate.validState(buffer.capacity() < MAX_BUFFER_BYTES, "MKV element too large to buffer");
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            larger.put(0, buffer, 0, buffer.limit());
+            buffer = larger.limit(buffer.limit()).position(buffer.position());
+        }
+
+        int bytesRead = kvsInputStream.read(buffer.array(), buffer.limit(), buffer.capacity() - buffer.limit());
+        if (bytesRead < 0) {
+            inputEnded = true;
+            return false;
+        }
+        buffer.limit(buffer.limit() + bytesRead);
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+package com.deepgram.kvsdgintegrator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes MKV shaped like a Connect GetMedia payload: each fragment is an EBML header and an unknown-size segment holding
+ * the segment info, the track entries, the fragment's tags and one unknown-size cluster of SimpleBlocks.
+ *
+ * <p>Each frame's timecode follows on from the previous frame of its track.
+ *
+ * <p>The {@link Warmer} streams a call written with this when the task starts, and the benchmarks read calls written
+ * with it. The tests' {@code ConnectMkvFixture} adds what they need to write calls that are out of the ordinary.
+ */
+class ConnectMkvWriter {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // Where each track has got to, in samples at 8kHz
+    final Map<String, Long> trackSamples = new HashMap<>();
+    String[] fragmentTrackNames = new String[0];
+    private long clusterTimecodeMillis = 0;
+
+    /**
+     * Starts a fragment whose tracks are numbered from 1 in the order given.
+     */
+    ConnectMkvWriter fragment(String contactId, String... trackNames) {
+        fragmentTrackNames = trackNames;
+        clusterTimecodeMillis = trackSamples.values().stream().mapToLong(samples -> samples / 8).max().orElse(0);
+
+        element(0x1A45DFA3, elementBytes(0x4282, ascii("matroska")));
+        writeId(out, 0x18538067);
+        out.write(0x01); // unknown size, as an 8-byte vint
+        out.writeBytes(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+
+        element(0x1549A966, elementBytes(0x2AD7B1, new byte[] {0x0F, 0x42, 0x40}));
+
+        ByteArrayOutputStream tracks = new ByteArrayOutputStream();
+        for (int i = 0; i < trackNames.length; i++) {
+            ByteArrayOutputStream trackEntry = new ByteArrayOutputStream();
+            element(trackEntry, 0xD7, new byte[] {(byte) (i + 1)});
+            element(trackEntry, 0x536E, ascii(trackNames[i]));
+            element(trackEntry, 0x86, ascii("A_PCM/INT/LIT"));
+            element(tracks, 0xAE, trackEntry.toByteArray());
+        }
+        element(0x1654AE6B, tracks.toByteArray());
+
+        ByteArrayOutputStream simpleTag = new ByteArrayOutputStream();
+        element(simpleTag, 0x45A3, ascii("ContactId"));
+        element(simpleTag, 0x4487, ascii(contactId));
+        ByteArrayOutputStream tag = new ByteArrayOutputStream();
+        element(tag, 0x63C0, new byte[0]);
+        element(tag, 0x67C8, simpleTag.toByteArray());
+        element(0x1254C367, elementBytes(0x7373, tag.toByteArray()));
+
+        writeId(out, 0x1F43B675);
+        out.write(0xFF); // unknown size, as a 1-byte vint
+        element(0xE7, new byte[] {(byte) (clusterTimecodeMillis >>> 24), (byte) (clusterTimecodeMillis >>> 16),
+                (byte) (clusterTimecodeMillis >>> 8), (byte) clusterTimecodeMillis});
+        return this;
+    }
+
+    ConnectMkvWriter frame(int trackNumber, byte[] audio) {
+        String trackName = fragmentTrackNames[trackNumber - 1];
+        long samples = trackSamples.getOrDefault(trackName, 0L);
+        int relativeTimecode = (int) (samples / 8 - clusterTimecodeMillis);
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(0x80 | trackNumber);
+        block.writeBytes(new byte[] {(byte) (relativeTimecode >>> 8), (byte) relativeTimecode});
+        block.write(0x80); // flags (keyframe)
+        block.writeBytes(audio);
+        element(0xA3, block.toByteArray());
+
+        trackSamples.put(trackName, samples + audio.length / 2);
+        return this;
+    }
+
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    static byte[] audio(int length, int seed) {
+        byte[] audio = new byte[length];
+        for (int i = 0; i < length; i++) {
+            audio[i] = (byte) (seed + i);
+        }
+        return audio;
+    }
+
+    void element(int id, byte[] data) {
+        element(out, id, data);
+    }
+
+    private static ByteArrayOutputStream element(ByteArrayOutputStream target, int id, byte[] data) {
+        writeId(target, id);
+        // Sizes are always written as 4-byte vints, to exercise multi-byte sizes
+        target.writeBytes(new byte[] {
+                (byte) (0x10 | (data.length >>> 24)), (byte) (data.length >>> 16), (byte) (data.length >>> 8), (byte) data.length});
+        target.writeBytes(data);
+        return target;
+    }
+
+    private static void writeId(ByteArrayOutputStream target, int id) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            if ((id >>> shift) != 0) {
+                target.write(id >>> shift);
+            }
+        }
+    }
+
+    private static byte[] elementBytes(int id, byte[] data) {
+        return element(new ByteArrayOutputStream(), id, data).toByteArray();
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
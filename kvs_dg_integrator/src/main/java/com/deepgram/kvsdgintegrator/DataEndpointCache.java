@@ -0,0 +1,88 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches KVS data endpoints by stream name for a bounded amount of time.
+ *
+ * <p>Concurrent lookups for the same stream are coalesced: the first caller performs the lookup and every other caller
+ * waits on its result, so a burst of calls on one stream only costs one GetDataEndpoint request. Failed lookups are
+ * not cached.
+ */
+class DataEndpointCache {
+    private record Entry(CompletableFuture<String> endpoint, long expiresAtNanos) {
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Function<String, String> loader;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param loader    Looks up the data endpoint for a stream name
+     * @param ttlNanos  How long a looked up endpoint is reused for
+     * @param nanoClock A monotonic clock, normally {@link System#nanoTime()}
+     */
+    DataEndpointCache(Function<String, String> loader, long ttlNanos, LongSupplier nanoClock) {
+        this.loader = Validate.notNull(loader);
+        Validate.isTrue(ttlNanos >= 0, "TTL must not be negative");
+        this.ttlNanos = ttlNanos;
+        this.nanoClock = Validate.notNull(nanoClock);
+    }
+
+    String get(String streamName) {
+        Validate.notNull(streamName);
+
+        long now = nanoClock.getAsLong();
+        Entry ourEntry = new Entry(new CompletableFuture<>(), now + ttlNanos);
+        Entry entry = entries.compute(streamName, (key, existing) ->
+                existing != null && existing.expiresAtNanos() - now > 0 ? existing : ourEntry);
+
+        if (entry == ourEntry) {
+            misses.incrementAndGet();
+            // Connect streams come and go, so sweep out expired entries rather than letting the map grow forever
+            entries.values().removeIf(e -> e.expiresAtNanos() - now <= 0 && e.endpoint().isDone());
+            try {
+                entry.endpoint().complete(loader.apply(streamName));
+            } catch (RuntimeException e) {
+                entries.remove(streamName, entry);
+                entry.endpoint().completeExceptionally(e);
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+
+        try {
+            return entry.endpoint().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Drops the cached endpoint for the stream, e.g. after a request against it failed.
+     */
+    void invalidate(String streamName) {
+        entries.remove(streamName);
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,599 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Subscribes to a session's audio and sends it to Deepgram, only asking for more audio as fast as the websocket takes
+ * it.
+ *
+ * <p>Audio is queued in a bounded per-session queue, and a sender task on the session's executor moves it from the
+ * queue to the websocket. Before each send, the sender waits until the websocket has fewer than
+ * {@code DEEPGRAM_SOCKET_MAX_BUFFERED_BYTES} waiting to be written. Java-WebSocket doesn't tell us when a write
+ * completes, so we watch the bytes in its outgoing queue instead.
+ *
+ * <p>What happens when Deepgram or the network can't keep up depends on the {@link OverflowPolicy}. By default, we only
+ * request as much audio as the queue has room for, so a slow websocket stops us reading from KVS (which keeps the rest
+ * of the stream for us) and memory per session stays flat.
+ *
+ * <p>Every buffer taken from the queue is recorded in the stream's {@link StreamTimeline}, as sent or skipped. Audio
+ * dropped from the head of the queue under {@link OverflowPolicy#DROP_OLDEST} is recorded as skipped by the send loop,
+ * when it next takes from the queue, since that's where it was in the stream. Audio dropped upstream, by an
+ * {@link AudioFanOut} whose branch we're subscribed to, is recorded once the send loop has taken the audio queued
+ * before it. So Deepgram's times still map back to times in the call after audio has been dropped.
+ *
+ * <p>While audio is queued up behind a busy websocket, the sender can send several queued buffers together as one
+ * message of up to {@code maxMessageBytes}, which saves the framing and the write of each extra message. Once the queue
+ * is empty again (at the live edge of the call), each buffer goes out as soon as it arrives, on its own.
+ *
+ * <p>With silence suppression on, each buffer is first checked by the session's {@link SilenceSuppressor}, and a long
+ * stretch of silence is replaced with the odd KeepAlive. Each buffer that is sent goes through the session's
+ * {@link AudioEncoder} as it's put into a message. The time spent encoding is
+ * logged when the session ends, along with how much the encoding saved.
+ *
+ * <p>The websocket can change under the sender. While there isn't one, audio waits in the queue (and, by default, we
+ * stop reading from KVS). When a new one opens, the sender starts it with a new encoder and first replays, from its
+ * {@link ReplayBuffer}, the audio that Deepgram hadn't given final results for on the last one.
+ */
+public class DeepgramAudioSender implements Subscriber<ByteBuffer>, AudioFanOut.DroppedAudioListener {
+	private static final Logger logger = LogManager.getLogger(DeepgramAudioSender.class);
+
+	// 32 buffers of 64ms (the default chunk size) is about 2 seconds of audio
+	private static final int QUEUE_CAPACITY = Integer.parseInt(
+			System.getenv().getOrDefault("DEEPGRAM_SEND_QUEUE_CAPACITY", "32"));
+	private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.valueOf(
+			System.getenv().getOrDefault("DEEPGRAM_SEND_QUEUE_OVERFLOW", "block").toUpperCase(Locale.ROOT));
+	private static final long MAX_SOCKET_BUFFERED_BYTES = Long.parseLong(
+			System.getenv().getOrDefault("DEEPGRAM_SOCKET_MAX_BUFFERED_BYTES", "65536"));
+	private static final long SOCKET_POLL_INTERVAL_MS = 5;
+	private static final long CONNECTION_POLL_INTERVAL_MS = 50;
+	private static final String CLOSE_STREAM = "{ \"type\": \"CloseStream\" }";
+	// Deepgram closes a websocket that has had neither audio nor a KeepAlive for 10 seconds
+	private static final long KEEP_ALIVE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(4);
+	// Queued after the last of the audio, to tell the sender to close the stream
+	private static final ByteBuffer END_OF_AUDIO = ByteBuffer.allocate(0).asReadOnlyBuffer();
+	private static final int BYTES_PER_FRAME = TrackMerger.CHANNELS * TrackMerger.BYTES_PER_SAMPLE;
+
+	/**
+	 * What to do with audio that arrives when the queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Stop requesting audio until the queue has room, which pauses reading from KVS. The queue never overflows.
+		 */
+		BLOCK,
+		/**
+		 * Keep reading from KVS, discarding the oldest queued audio to make room. This keeps the transcript close to
+		 * live at the cost of gaps in it.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Keep reading from KVS, and end the session with an error if the queue fills up.
+		 */
+		FAIL
+	}
+
+	/**
+	 * The parts of the websocket that the sender uses.
+	 */
+	public interface Transport {
+		void send(ByteBuffer audio);
+
+		void send(String message);
+
+		/**
+		 * @return The number of bytes handed to the websocket that haven't been written to the network yet
+		 */
+		long bufferedBytes();
+	}
+
+	// The open websocket, or null while there isn't one
+	private volatile Transport transport = null;
+	// A websocket that has just opened, for the send loop to start using
+	private volatile Connection pendingConnection = null;
+	private final CompletableFuture<Void> future;
+	private final Executor executor;
+	private final OverflowPolicy overflowPolicy;
+	// Not synchronized, so that a virtual thread waiting for audio isn't pinned to its carrier. Guards the queue and
+	// what's been dropped around it.
+	private final ReentrantLock queueLock = new ReentrantLock();
+	private final Condition audioQueued = queueLock.newCondition();
+	private final ArrayDeque<ByteBuffer> queue;
+	private final int queueCapacity;
+	// Audio dropped from the head of the queue and not yet recorded in the timeline, in samples per channel
+	private long droppedSamples = 0;
+	// Audio dropped upstream and not yet recorded in the timeline, oldest first
+	private final ArrayDeque<Gap> upstreamGaps = new ArrayDeque<>();
+	// How many buffers have ever been added to and removed from the queue, which numbers each buffer in it
+	private long buffersQueued = 0;
+	private long buffersRemoved = 0;
+	private final Supplier<AudioEncoder> encoderFactory;
+	private final StreamTimeline timeline;
+	private final SilenceSuppressor silenceSuppressor;
+	private final ReplayBuffer replayBuffer;
+	private final int maxMessageBytes;
+	// A new one for each connection
+	private AudioEncoder encoder;
+	// Set once we've asked Deepgram to close the stream
+	private boolean audioEnded = false;
+	// Where buffers are encoded and gathered into one message. Only allocated if a session ever needs it.
+	private ByteBuffer messageBuffer = null;
+	// Where replayed audio is read back into, one chunk at a time. Only allocated if a session ever reconnects.
+	private ByteBuffer replayChunk = null;
+	// A buffer taken from the queue that didn't fit in the last message, to be handled first next time
+	private ByteBuffer carriedOver = null;
+	private Subscription subscription;
+	private long droppedBuffers = 0;
+	// Only the send loop writes this
+	private volatile long pcmBytesSent = 0;
+	private long encodedBytesSent = 0;
+	private long encodingNanos = 0;
+	private long pcmBytesReplayed = 0;
+	private long lastMessageNanos = System.nanoTime();
+
+	/**
+	 * @param encoderFactory    Makes an encoder for the audio of each connection to Deepgram
+	 * @param timeline          Where to record the audio sent and skipped, which the silence suppressor records to too
+	 * @param silenceSuppressor Decides which audio to skip, or null to send all of it
+	 * @param replayBuffer      Keeps the most recent audio, to send again after reconnecting
+	 * @param maxMessageBytes   The most audio (before encoding) to send in one message. If this is no larger than the
+	 *                          buffers of audio we receive, each buffer is sent as its own message.
+	 */
+	public DeepgramAudioSender(
+			CompletableFuture<Void> future, Executor executor, Supplier<AudioEncoder> encoderFactory,
+			StreamTimeline timeline, SilenceSuppressor silenceSuppressor, ReplayBuffer replayBuffer,
+			int maxMessageBytes) {
+		this(future, executor, OVERFLOW_POLICY, QUEUE_CAPACITY, encoderFactory, timeline, silenceSuppressor,
+				replayBuffer, maxMessageBytes);
+	}
+
+	DeepgramAudioSender(
+			CompletableFuture<Void> future, Executor executor, OverflowPolicy overflowPolicy, int queueCapacity,
+			Supplier<AudioEncoder> encoderFactory, StreamTimeline timeline, SilenceSuppressor silenceSuppressor,
+			ReplayBuffer replayBuffer, int maxMessageBytes) {
+		this.future = Validate.notNull(future);
+		this.executor = Validate.notNull(executor);
+		this.overflowPolicy = Validate.notNull(overflowPolicy);
+		Validate.isTrue(queueCapacity > 0, "Queue capacity must be positive");
+		Validate.isTrue(maxMessageBytes > 0, "Maximum message size must be positive");
+		// One extra slot so that END_OF_AUDIO always fits
+		this.queue = new ArrayDeque<>(queueCapacity + 1);
+		this.queueCapacity = queueCapacity;
+		this.encoderFactory = Validate.notNull(encoderFactory);
+		this.timeline = Validate.notNull(timeline);
+		this.silenceSuppressor = silenceSuppressor;
+		this.replayBuffer = Validate.notNull(replayBuffer);
+		this.maxMessageBytes = maxMessageBytes;
+	}
+
+	/**
+	 * @return How much of the session's audio has been sent to Deepgram, before encoding, not counting replays
+	 */
+	public long audioBytesSent() {
+		return pcmBytesSent;
+	}
+
+	/**
+	 * Called when a websocket to Deepgram opens. The send loop starts sending on it with a new encoder, first replaying
+	 * whatever audio Deepgram may not have finished with on the last websocket.
+	 *
+	 * @param finalizedPosition Where in the sent audio (in samples per channel) Deepgram's final results have reached
+	 * @return Where in the sent audio the new websocket's audio starts
+	 */
+	public long connected(Transport transport, long finalizedPosition) {
+		long replayStart = replayBuffer.replayStart(finalizedPosition);
+		pendingConnection = new Connection(Validate.notNull(transport), replayStart);
+		return replayStart;
+	}
+
+	/**
+	 * @return How many buffers of audio are waiting to be sent
+	 */
+	public int queueDepth() {
+		queueLock.lock();
+		try {
+			return queue.size();
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Called when the websocket closes unexpectedly. The send loop waits for the next one.
+	 */
+	public void disconnected() {
+		pendingConnection = null;
+		transport = null;
+	}
+
+	@Override
+	public void onSubscribe(Subscription subscription) {
+		Validate.notNull(subscription);
+		if (this.subscription != null) {
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+
+		executor.execute(this::sendLoop);
+		subscription.request(queueCapacity);
+	}
+
+	@Override
+	public void onNext(ByteBuffer audioBytes) {
+		Validate.notNull(audioBytes);
+
+		ByteBuffer oldest = null;
+		boolean queued;
+		queueLock.lock();
+		try {
+			// The last slot is kept free for END_OF_AUDIO
+			if (queue.size() >= queueCapacity && overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+				oldest = queue.pollFirst();
+				buffersRemoved++;
+				droppedSamples += oldest.remaining() / BYTES_PER_FRAME;
+			}
+			queued = queue.size() < queueCapacity;
+			if (queued) {
+				queue.addLast(audioBytes);
+				buffersQueued++;
+				audioQueued.signal();
+			}
+		} finally {
+			queueLock.unlock();
+		}
+
+		if (oldest != null) {
+			AudioBufferPool.recycle(oldest);
+			Metrics.CHUNKS_DROPPED.increment();
+			if (droppedBuffers++ % 100 == 0) {
+				logger.warn("Deepgram is not keeping up; dropped %s buffers of audio so far"
+						.formatted(droppedBuffers));
+			}
+		}
+		if (queued) {
+			if (overflowPolicy != OverflowPolicy.BLOCK) {
+				subscription.request(1);
+			}
+			return;
+		}
+
+		AudioBufferPool.recycle(audioBytes);
+		subscription.cancel();
+		if (overflowPolicy == OverflowPolicy.FAIL) {
+			future.completeExceptionally(new Exception("Deepgram is not keeping up; send queue is full"));
+		} else {
+			// We never request more than the queue can hold, so the publisher sent more than we asked for
+			future.completeExceptionally(new IllegalStateException("Received more audio than was requested"));
+		}
+	}
+
+	/**
+	 * Called between buffers, on the thread that calls onNext, when audio between the last buffer and the next was
+	 * dropped upstream.
+	 */
+	@Override
+	public void audioDropped(long samples) {
+		queueLock.lock();
+		try {
+			upstreamGaps.addLast(new Gap(buffersQueued, samples));
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		future.completeExceptionally(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		queueLock.lock();
+		try {
+			queue.addLast(END_OF_AUDIO);
+			buffersQueued++;
+			audioQueued.signal();
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	private void sendLoop() {
+		try {
+			while (!future.isDone()) {
+				Connection connection = pendingConnection;
+				if (connection != null) {
+					pendingConnection = null;
+					startSending(connection);
+					continue;
+				}
+				Transport current = transport;
+				if (current == null || audioEnded) {
+					// Waiting for a websocket, or for Deepgram to finish up and close this one
+					Thread.sleep(CONNECTION_POLL_INTERVAL_MS);
+					continue;
+				}
+
+				// Poll rather than take, so that we notice a new websocket even when no audio is coming
+				ByteBuffer audioBytes = carriedOver != null
+						? carriedOver : takeQueued(CONNECTION_POLL_INTERVAL_MS);
+				carriedOver = null;
+				if (audioBytes == null) {
+					continue;
+				}
+				if (transport != current) {
+					// The websocket dropped while we were waiting, so keep this for the next one
+					carriedOver = audioBytes;
+					continue;
+				}
+				if (audioBytes == END_OF_AUDIO) {
+					audioEnded = true;
+					current.send(CLOSE_STREAM);
+					logEncodingStats();
+					continue;
+				}
+				if (skip(current, audioBytes)) {
+					continue;
+				}
+
+				int buffersSent;
+				try {
+					while (current.bufferedBytes() > MAX_SOCKET_BUFFERED_BYTES && !future.isDone()
+							&& transport == current) {
+						Thread.sleep(SOCKET_POLL_INTERVAL_MS);
+					}
+					// If the websocket has just dropped, this audio is replayed on the next one
+					buffersSent = sendMessage(current, audioBytes);
+				} finally {
+					// Java-WebSocket copies the audio into its own frame before send returns
+					AudioBufferPool.recycle(audioBytes);
+				}
+
+				if (overflowPolicy == OverflowPolicy.BLOCK) {
+					subscription.request(buffersSent);
+				}
+			}
+		} catch (InterruptedException e) {
+			// The session is being torn down
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			subscription.cancel();
+			future.completeExceptionally(e);
+		} finally {
+			if (carriedOver != null) {
+				AudioBufferPool.recycle(carriedOver);
+				carriedOver = null;
+			}
+			ByteBuffer queued;
+			while ((queued = pollQueued()) != null) {
+				AudioBufferPool.recycle(queued);
+			}
+		}
+	}
+
+	/**
+	 * Waits for audio, then takes it as {@link #pollQueued()} does.
+	 *
+	 * @param timeoutMs How long to wait for audio if the queue is empty
+	 * @return The buffer, or null if there wasn't one in time
+	 */
+	private ByteBuffer takeQueued(long timeoutMs) throws InterruptedException {
+		queueLock.lock();
+		try {
+			long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+			while (queue.isEmpty() && remainingNanos > 0) {
+				remainingNanos = audioQueued.awaitNanos(remainingNanos);
+			}
+			return pollQueued();
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the buffer at the head of the queue, first recording any audio dropped from ahead of it in the timeline.
+	 *
+	 * @return The buffer, or null if the queue is empty
+	 */
+	private ByteBuffer pollQueued() {
+		queueLock.lock();
+		try {
+			// Audio dropped from the queue was at its head, so it came after whatever we took before and before this
+			long skipped = droppedSamples;
+			droppedSamples = 0;
+			while (!upstreamGaps.isEmpty() && upstreamGaps.peekFirst().beforeBuffer() <= buffersRemoved) {
+				skipped += upstreamGaps.removeFirst().samples();
+			}
+			if (skipped > 0) {
+				timeline.recordSkipped(skipped);
+			}
+			ByteBuffer next = queue.pollFirst();
+			if (next != null) {
+				buffersRemoved++;
+			}
+			return next;
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Starts sending on a new websocket, with a new encoder, by replaying the buffered audio from where the connection
+	 * starts. If the audio had already ended, Deepgram is asked to close the stream again after the replay.
+	 */
+	private void startSending(Connection connection) {
+		Transport current = connection.transport();
+		encoder = encoderFactory.get();
+		transport = current;
+		lastMessageNanos = System.nanoTime();
+
+		long position = connection.replayStart();
+		long end = replayBuffer.getEndPosition();
+		if (position < end) {
+			logger.info("Replaying %sms of audio to Deepgram".formatted((end - position) / 8));
+			if (replayChunk == null) {
+				replayChunk = ByteBuffer.allocate(maxMessageBytes);
+			}
+			ensureMessageBuffer();
+			messageBuffer.clear();
+			int pcmBytes = 0;
+			while (position < end) {
+				int samples = replayBuffer.read(position, replayChunk.clear());
+				replayChunk.flip();
+				if (pcmBytes + replayChunk.remaining() > maxMessageBytes) {
+					current.send(messageBuffer.flip());
+					messageBuffer.clear();
+					pcmBytes = 0;
+				}
+				pcmBytes += replayChunk.remaining();
+				pcmBytesReplayed += replayChunk.remaining();
+				encoder.encode(replayChunk, messageBuffer);
+				position += samples;
+			}
+			current.send(messageBuffer.flip());
+		}
+
+		if (audioEnded) {
+			current.send(CLOSE_STREAM);
+		}
+	}
+
+	/**
+	 * Sends the first buffer in a message, along with as many of the queued buffers after it as fit. The caller recycles
+	 * the first buffer, and this recycles the rest.
+	 *
+	 * @return How many buffers were sent
+	 */
+	private int sendMessage(Transport current, ByteBuffer first) {
+		ByteBuffer next = pollNextThatFits(current, first.remaining());
+		replayBuffer.append(first);
+		if (next == null && encoder.isPassthrough()) {
+			pcmBytesSent += first.remaining();
+			encodedBytesSent += first.remaining();
+			Metrics.AUDIO_BYTES_SENT.add(first.remaining());
+			Metrics.ENCODED_BYTES_SENT.add(first.remaining());
+			send(current, first);
+			return 1;
+		}
+
+		ensureMessageBuffer();
+		messageBuffer.clear();
+		int pcmBytes = first.remaining();
+		long encodingStart = System.nanoTime();
+		encoder.encode(first, messageBuffer);
+
+		int buffersSent = 1;
+		while (next != null) {
+			pcmBytes += next.remaining();
+			replayBuffer.append(next);
+			encoder.encode(next, messageBuffer);
+			AudioBufferPool.recycle(next);
+			buffersSent++;
+			next = pollNextThatFits(current, pcmBytes);
+		}
+		encodingNanos += System.nanoTime() - encodingStart;
+
+		pcmBytesSent += pcmBytes;
+		encodedBytesSent += messageBuffer.position();
+		Metrics.AUDIO_BYTES_SENT.add(pcmBytes);
+		Metrics.ENCODED_BYTES_SENT.add(messageBuffer.position());
+		send(current, messageBuffer.flip());
+		return buffersSent;
+	}
+
+	private void ensureMessageBuffer() {
+		if (messageBuffer == null) {
+			messageBuffer = ByteBuffer.allocate(encoder.maxEncodedBytes(maxMessageBytes));
+		}
+	}
+
+	/**
+	 * Takes the next queued buffer of audio to send, if it fits in a message that already has {@code pcmBytes} of audio.
+	 * A queued buffer that doesn't fit is carried over to the next message. We take rather than peek at the queue, since
+	 * under {@link OverflowPolicy#DROP_OLDEST} onNext may take the head of the queue at any time.
+	 *
+	 * @return The buffer, or null if there's nothing more to add to this message
+	 */
+	private ByteBuffer pollNextThatFits(Transport current, int pcmBytes) {
+		ByteBuffer next;
+		while ((next = pollQueued()) != null) {
+			if (next == END_OF_AUDIO || pcmBytes + next.remaining() > maxMessageBytes) {
+				carriedOver = next;
+				return null;
+			}
+			if (!skip(current, next)) {
+				return next;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks a buffer with the silence suppressor, which records it in the timeline (or records it as sent, without
+	 * one). A skipped buffer is recycled, and counts as sent for demand. While we're skipping audio, Deepgram is sent a
+	 * KeepAlive every so often, so that it doesn't close the websocket for lack of audio.
+	 *
+	 * @return true if the buffer was skipped
+	 */
+	private boolean skip(Transport current, ByteBuffer audioBytes) {
+		if (silenceSuppressor == null) {
+			timeline.recordSent(audioBytes.remaining() / BYTES_PER_FRAME);
+			return false;
+		}
+		if (!silenceSuppressor.shouldSkip(audioBytes)) {
+			return false;
+		}
+		AudioBufferPool.recycle(audioBytes);
+		if (System.nanoTime() - lastMessageNanos >= KEEP_ALIVE_INTERVAL_NANOS) {
+			current.send("{ \"type\": \"KeepAlive\" }");
+			lastMessageNanos = System.nanoTime();
+		}
+		if (overflowPolicy == OverflowPolicy.BLOCK) {
+			subscription.request(1);
+		}
+		return true;
+	}
+
+	private void send(Transport current, ByteBuffer message) {
+		current.send(message);
+		Metrics.MESSAGES_SENT.increment();
+		lastMessageNanos = System.nanoTime();
+	}
+
+	private void logEncodingStats() {
+		if (pcmBytesSent == 0) {
+			return;
+		}
+		logger.info("Sent %s bytes of audio to Deepgram as %s bytes (%s%%), spending %sms encoding it".formatted(
+				pcmBytesSent, encodedBytesSent, encodedBytesSent * 100 / pcmBytesSent,
+				TimeUnit.NANOSECONDS.toMillis(encodingNanos)));
+		if (pcmBytesReplayed > 0) {
+			logger.info("Replayed %s bytes of audio after reconnecting".formatted(pcmBytesReplayed));
+		}
+	}
+
+	private record Connection(Transport transport, long replayStart) {
+	}
+
+	/**
+	 * Audio dropped upstream, which came just before the given buffer.
+	 *
+	 * @param beforeBuffer The number of the buffer that followed it, counting from the first ever queued
+	 */
+	private record Gap(long beforeBuffer, long samples) {
+	}
+}
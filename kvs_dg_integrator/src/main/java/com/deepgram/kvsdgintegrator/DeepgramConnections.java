@@ -0,0 +1,156 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.client.DnsResolver;
+import org.java_websocket.client.WebSocketClient;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * What the task's websockets to Deepgram share, so that a session's websocket doesn't connect from scratch.
+ *
+ * <p>Left to itself, Java-WebSocket makes a new {@link SSLContext} for every connection, so every connection does a full
+ * TLS handshake. Our websockets all use one, whose session cache lets them resume an earlier TLS session instead. The
+ * Deepgram host's address is cached as well, and refreshed in the background once it's older than
+ * {@code DEEPGRAM_DNS_TTL_SECONDS}, so that a session never waits on DNS once the task has connected to Deepgram. If a
+ * refresh fails, the address we have is kept.
+ *
+ * <p>{@link #warmUp(URI)} resolves the host and does a TLS handshake when the task starts, so that the first session
+ * gets these too.
+ */
+public final class DeepgramConnections {
+	private static final Logger logger = LogManager.getLogger(DeepgramConnections.class);
+	private static final long DNS_TTL_SECONDS = Long.parseLong(
+			System.getenv().getOrDefault("DEEPGRAM_DNS_TTL_SECONDS", "30"));
+	private static final int WARM_UP_TIMEOUT_MS = 5000;
+
+	private static final SSLContext SSL_CONTEXT = createSslContext();
+	private static final CachingDnsResolver DNS_RESOLVER = new CachingDnsResolver(
+			TimeUnit.SECONDS.toNanos(DNS_TTL_SECONDS), InetAddress::getByName);
+
+	private DeepgramConnections() {
+	}
+
+	/**
+	 * Has the client connect through the shared DNS cache and, for {@code wss}, the shared TLS context.
+	 */
+	public static void configure(WebSocketClient client, URI uri) {
+		client.setDnsResolver(DNS_RESOLVER);
+		if ("wss".equals(uri.getScheme())) {
+			// The client then connects an SSLSocket from this factory rather than layering one of its own over a plain
+			// socket. The socket takes the host name (for SNI and the session cache) from the resolved address, and the
+			// client still turns on host name verification.
+			client.setSocketFactory(SSL_CONTEXT.getSocketFactory());
+		}
+	}
+
+	/**
+	 * Resolves the Deepgram host, and for {@code wss} does a TLS handshake with it to fill the TLS session cache. Failing
+	 * only costs the first session the time it would have saved.
+	 */
+	public static void warmUp(URI uri) {
+		Validate.notNull(uri);
+		long startNanos = System.nanoTime();
+		try {
+			InetAddress address = DNS_RESOLVER.resolve(uri);
+			if ("wss".equals(uri.getScheme())) {
+				try (SSLSocket socket = (SSLSocket) SSL_CONTEXT.getSocketFactory().createSocket()) {
+					SSLParameters sslParameters = socket.getSSLParameters();
+					sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+					socket.setSSLParameters(sslParameters);
+					socket.connect(new InetSocketAddress(address, port(uri)), WARM_UP_TIMEOUT_MS);
+					socket.setSoTimeout(WARM_UP_TIMEOUT_MS);
+					socket.startHandshake();
+				}
+			}
+			logger.info("Warmed up the connection to %s in %sms".formatted(
+					uri.getHost(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+		} catch (IOException e) {
+			logger.warn("Could not warm up the connection to %s: %s".formatted(uri.getHost(), e));
+		}
+	}
+
+	private static int port(URI uri) {
+		if (uri.getPort() != -1) {
+			return uri.getPort();
+		}
+		return "wss".equals(uri.getScheme()) ? 443 : 80;
+	}
+
+	private static SSLContext createSslContext() {
+		try {
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(null, null, null);
+			return sslContext;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Looks up a host's address.
+	 */
+	@FunctionalInterface
+	interface Lookup {
+		InetAddress lookup(String host) throws UnknownHostException;
+	}
+
+	/**
+	 * Resolves each host once, and then serves its cached address, refreshing it on a virtual thread once it's older
+	 * than the TTL.
+	 */
+	static final class CachingDnsResolver implements DnsResolver {
+		private final long ttlNanos;
+		private final Lookup lookup;
+		private final Map<String, CachedAddress> cache = new ConcurrentHashMap<>();
+
+		private record CachedAddress(InetAddress address, long resolvedNanos, AtomicBoolean refreshing) {
+		}
+
+		CachingDnsResolver(long ttlNanos, Lookup lookup) {
+			this.ttlNanos = ttlNanos;
+			this.lookup = Validate.notNull(lookup);
+		}
+
+		@Override
+		public InetAddress resolve(URI uri) throws UnknownHostException {
+			String host = uri.getHost();
+			CachedAddress cached = cache.get(host);
+			if (cached == null) {
+				return lookupAndCache(host);
+			}
+			if (System.nanoTime() - cached.resolvedNanos() > ttlNanos && cached.refreshing().compareAndSet(false, true)) {
+				Thread.ofVirtual().name("dns-refresh").start(() -> {
+					try {
+						lookupAndCache(host);
+					} catch (UnknownHostException e) {
+						logger.warn("Could not refresh the address of %s, keeping %s: %s".formatted(
+								host, cached.address(), e));
+						cached.refreshing().set(false);
+					}
+				});
+			}
+			return cached.address();
+		}
+
+		private InetAddress lookupAndCache(String host) throws UnknownHostException {
+			InetAddress address = lookup.lookup(host);
+			cache.put(host, new CachedAddress(address, System.nanoTime(), new AtomicBoolean()));
+			return address;
+		}
+	}
+}
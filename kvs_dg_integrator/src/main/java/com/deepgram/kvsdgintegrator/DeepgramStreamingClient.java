@@ -1,38 +1,67 @@
 package com.deepgram.kvsdgintegrator;
 
-import com.deepgram.kvsdgintegrator.KvsToDgStreamer.KvsStreamPublisher;
 import org.apache.commons.lang3.Validate;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
+import org.java_websocket.WebSocketImpl;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ServerHandshake;
-import org.reactivestreams.Subscriber;
-import org.reactivestreams.Subscription;
+import org.reactivestreams.Publisher;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 
 public class DeepgramStreamingClient {
 
 	private final URI deepgramStreamingUrl;
 	private final Map<String, String> deepgramHeaders;
+	private final int maxMessageBytes;
+	private final AudioEncoder encoder;
+	private final int chunkSamples;
+	private final StreamTimeline timeline = new StreamTimeline();
 	private static final Logger logger = LogManager.getLogger(DeepgramStreamingClient.class);
+	private static final AudioEncoder.Codec AUDIO_ENCODING = AudioEncoder.Codec.valueOf(
+			System.getenv().getOrDefault("DEEPGRAM_AUDIO_ENCODING", "linear16").toUpperCase(Locale.ROOT));
+	private static final int RECONNECT_MAX_ATTEMPTS = Integer.parseInt(
+			System.getenv().getOrDefault("DEEPGRAM_RECONNECT_MAX_ATTEMPTS", "5"));
+	// About 160KB of audio per session
+	private static final int REPLAY_BUFFER_SECONDS = Integer.parseInt(
+			System.getenv().getOrDefault("DEEPGRAM_REPLAY_BUFFER_SECONDS", "5"));
+	private static final long RECONNECT_INITIAL_BACKOFF_MS = 250;
+	private static final long RECONNECT_MAX_BACKOFF_MS = 8000;
 
 
-	public DeepgramStreamingClient(String deepgramApi, String deepgramApiKey, Map<String, List<String>> dgParams) throws Exception {
+	public DeepgramStreamingClient(
+			String deepgramApi,
+			String deepgramApiKey,
+			Map<String, List<String>> dgParams,
+			IntegratorArguments.AudioChunking audioChunking
+	) throws Exception {
 		Validate.notNull(deepgramApi);
 		Validate.notNull(deepgramApiKey);
 		Validate.notNull(dgParams);
+		Validate.notNull(audioChunking);
 
-		this.deepgramStreamingUrl = buildDeepgramStreamingUrl(deepgramApi, dgParams);
+		this.chunkSamples = audioChunking.chunkMs() * TrackMerger.SAMPLES_PER_MILLISECOND;
+		this.encoder = AUDIO_ENCODING.newEncoder(chunkSamples);
+		this.deepgramStreamingUrl = buildDeepgramStreamingUrl(deepgramApi, dgParams, encoder.deepgramParams());
 		this.deepgramHeaders = buildDeepgramHeaders(deepgramApiKey);
+		this.maxMessageBytes = audioChunking.maxChunkMs() * TrackMerger.SAMPLES_PER_MILLISECOND
+				* TrackMerger.CHANNELS * TrackMerger.BYTES_PER_SAMPLE;
 	}
 
 	/**
@@ -48,10 +77,11 @@ public class DeepgramStreamingClient {
 	 * <pre><code>
 	 * model=nova&callback=https%3A%2F%2Fwww.example.com&tag=someTag1&tag=someTag2</code></pre>
 	 * <p>
-	 * Also, there are some default query params like `encoding` and `sample_rate` that are the same regardless of
-	 * the `dgParams`.
+	 * Also, there are some query params like `encoding` and `sample_rate` that describe the audio, which come from the
+	 * {@link AudioEncoder} we use rather than from the `dgParams`.
 	 */
-	private URI buildDeepgramStreamingUrl(String deepgramApi, Map<String, List<String>> dgParams) throws Exception {
+	static URI buildDeepgramStreamingUrl(
+			String deepgramApi, Map<String, List<String>> dgParams, String audioParams) throws Exception {
 		if (dgParams.containsKey("encoding")
 			|| dgParams.containsKey("sample_rate")
 			|| dgParams.containsKey("multichannel")
@@ -63,7 +93,7 @@ public class DeepgramStreamingClient {
 		}
 
 		StringBuilder queryString = new StringBuilder();
-		queryString.append("encoding=linear16&sample_rate=8000&multichannel=true&channels=2");
+		queryString.append(audioParams);
 
 		for (Map.Entry<String, List<String>> entry : dgParams.entrySet()) {
 			for (String value : entry.getValue()) {
@@ -81,24 +111,120 @@ public class DeepgramStreamingClient {
 		return Map.of("Authorization", "Token " + deepgramApiKey);
 	}
 
-	public CompletableFuture<Void> startStreamingToDeepgram(final KvsStreamPublisher kvsStreamPublisher) {
+	/**
+	 * Opens the websocket to Deepgram and streams the publisher's audio into it through a {@link DeepgramAudioSender},
+	 * which runs on the session scope. The websocket is registered with the session scope, so it is closed when the
+	 * session ends even if Deepgram never closes it.
+	 *
+	 * <p>The websocket starts connecting straight away, while the caller is still opening the KVS stream, and the audio
+	 * is subscribed to once both are ready. If the publisher fails, so does the returned future.
+	 *
+	 * <p>If the websocket drops with a code that might not happen again, we reconnect after an exponential backoff, up
+	 * to {@code DEEPGRAM_RECONNECT_MAX_ATTEMPTS} times in a row. The sender replays the audio after the last final
+	 * result on the new websocket, and the times in its results are shifted by where its audio starts, so the session's
+	 * results stay on one timeline.
+	 *
+	 * <p>A session resumed from a checkpoint has the times in its results shifted by where its audio starts in the
+	 * call, and the checkpointer is told how far each channel's final results have reached.
+	 *
+	 * <p>Each result's latency behind the call is recorded in the session's {@link TranscriptLatency}, from where its
+	 * audio ends in the session's audio.
+	 *
+	 * @param kvsStreamPublisher The session's audio: the {@link KvsToDgStreamer.KvsStreamPublisher}, or this stream's
+	 *                           branch of an {@link AudioFanOut} of it
+	 * @param transcripts        Where to send the stream's transcript results, or null to only log them
+	 * @param checkpoint         The stream's part in the session's checkpoint, or null if sessions aren't checkpointed
+	 */
+	public CompletableFuture<Void> startStreamingToDeepgram(
+			final CompletableFuture<? extends Publisher<ByteBuffer>> kvsStreamPublisher,
+			final SessionScope scope,
+			final TranscriptPipeline transcripts,
+			final SessionCheckpointer.Stream checkpoint
+	) {
 		Validate.notNull(kvsStreamPublisher);
+		Validate.notNull(scope);
 
 		CompletableFuture<Void> future = new CompletableFuture<>();
+		DeepgramAudioSender sender = new DeepgramAudioSender(
+				future, scope, () -> AUDIO_ENCODING.newEncoder(chunkSamples), timeline,
+				SilenceSuppressor.fromEnvironment(timeline),
+				new ReplayBuffer(REPLAY_BUFFER_SECONDS * 1000 * TrackMerger.SAMPLES_PER_MILLISECOND, chunkSamples),
+				maxMessageBytes);
+		scope.metrics().addSendQueueDepth(sender::queueDepth);
+		scope.metrics().addAudioBytesSent(sender::audioBytesSent);
+		StartupTrace startupTrace = scope.metrics().getStartupTrace();
+		TranscriptLatency latency = scope.metrics().getTranscriptLatency();
+		double callOffsetSeconds = checkpoint == null ? 0 : checkpoint.getCallOffsetMillis() / 1000.0;
+		kvsStreamPublisher.whenComplete((publisher, e) -> {
+			if (e != null) {
+				future.completeExceptionally(e);
+			}
+		});
 
 		String requestId = ThreadContext.get("requestId");
 		final WebSocketClient wsClient = new WebSocketClient(deepgramStreamingUrl, deepgramHeaders) {
+			// These are only touched on the websocket's own thread, one connection after another
+			private boolean subscribed = false;
+			private int failedAttempts = 0;
+			// Where this connection's audio starts in the audio sent in the session, in samples per channel
+			private long connectionStart = 0;
+			// How far into the audio sent in the session Deepgram has given final results for
+			private long finalizedUntil = 0;
+
 			@Override
 			public void onOpen(ServerHandshake serverHandshake) {
 				// Propagate request id into the websocket thread so that it appears in logs
 				ThreadContext.put("requestId", requestId);
-
-				registerSubscriber(this, kvsStreamPublisher, future);
+				startupTrace.mark(StartupTrace.Phase.DEEPGRAM_CONNECTED);
+				try {
+					connectionStart = sender.connected(transport(this, startupTrace), finalizedUntil);
+					if (subscribed) {
+						logger.info("Reconnected to Deepgram, replaying from %ss into the sent audio".formatted(
+								connectionStart / (double) TrackMerger.SAMPLE_RATE));
+					} else {
+						subscribed = true;
+						// Straight away if the KVS stream is already open, and otherwise on the session's thread once it is
+						kvsStreamPublisher.thenAccept(publisher -> publisher.subscribe(sender));
+					}
+				} catch (Exception e) {
+					future.completeExceptionally(e);
+				}
 			}
 
 			@Override
 			public void onMessage(String message) {
-				logger.debug("Deepgram result: " + message);
+				TranscriptResult result;
+				try {
+					result = TranscriptResult.parse(message);
+				} catch (IOException e) {
+					logger.warn("Could not read a Deepgram message: " + e.getMessage());
+					return;
+				}
+				if (result == null) {
+					logger.debug("Deepgram message: " + message);
+					return;
+				}
+
+				if (result.isFinal()) {
+					// A final result means this connection is doing fine
+					failedAttempts = 0;
+					finalizedUntil = Math.max(finalizedUntil, connectionStart
+							+ Math.round((result.start() + result.duration()) * TrackMerger.SAMPLE_RATE));
+				}
+				double connectionStartSeconds = connectionStart / (double) TrackMerger.SAMPLE_RATE;
+				latency.resultReceived(result.isFinal(), toCallSeconds(
+						result.start() + result.duration(), connectionStartSeconds, timeline));
+				if (connectionStart > 0 || timeline.hasSkips() || callOffsetSeconds > 0) {
+					result = result.withTimes(
+							seconds -> toCallSeconds(seconds, connectionStartSeconds, callOffsetSeconds, timeline));
+				}
+				if (result.isFinal() && checkpoint != null) {
+					checkpoint.finalized(result.channel(), result.start() + result.duration());
+				}
+				logger.debug("Deepgram result: " + result);
+				if (transcripts != null) {
+					transcripts.accept(result);
+				}
 			}
 
 			@Override
@@ -107,6 +233,21 @@ public class DeepgramStreamingClient {
 
 				if (i == 1000) {
 					future.complete(null);
+				} else if (isRetryable(i) && failedAttempts < RECONNECT_MAX_ATTEMPTS && !future.isDone()) {
+					sender.disconnected();
+					long backoffMs = reconnectBackoffMs(failedAttempts++);
+					logger.warn("Websocket closed with code %s (%s). Reconnecting in %sms, attempt %s of %s".formatted(
+							i, s, backoffMs, failedAttempts, RECONNECT_MAX_ATTEMPTS));
+					try {
+						// Java-WebSocket doesn't allow reconnecting from its own threads
+						CompletableFuture.delayedExecutor(backoffMs, TimeUnit.MILLISECONDS, scope).execute(() -> {
+							if (!future.isDone()) {
+								reconnect();
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						// The session is already over
+					}
 				} else {
 					future.completeExceptionally(
 							new Exception(
@@ -117,9 +258,12 @@ public class DeepgramStreamingClient {
 
 			@Override
 			public void onError(Exception e) {
-				future.completeExceptionally(e);
+				// The websocket closes after an error, and onClose decides whether to reconnect
+				logger.warn("Websocket error: " + e);
 			}
 		};
+		DeepgramConnections.configure(wsClient, deepgramStreamingUrl);
+		scope.register(wsClient::close);
 		wsClient.connect();
 
 		logger.info("Connecting to Deepgram at URL: " + deepgramStreamingUrl);
@@ -127,30 +271,76 @@ public class DeepgramStreamingClient {
 		return future;
 	}
 
-	private void registerSubscriber(
-			final WebSocketClient client,
-			final KvsStreamPublisher kvsStreamPublisher,
-			final CompletableFuture<Void> future) {
-		kvsStreamPublisher.subscribe(new Subscriber<>() {
-			@Override
-			public void onSubscribe(Subscription subscription) {
-				subscription.request(Long.MAX_VALUE);
-			}
+	/**
+	 * A websocket closed with one of these codes would be closed the same way again: our request or our audio is bad.
+	 * Java-WebSocket also uses 1002 when the handshake is refused, e.g. for a bad API key.
+	 */
+	private static boolean isRetryable(int closeCode) {
+		return switch (closeCode) {
+			case CloseFrame.PROTOCOL_ERROR, CloseFrame.REFUSE, CloseFrame.NO_UTF8, CloseFrame.POLICY_VALIDATION -> false;
+			default -> true;
+		};
+	}
+
+	/**
+	 * Doubles with each attempt, with up to half again added at random so that sessions dropped together don't all
+	 * reconnect together.
+	 */
+	static long reconnectBackoffMs(int attempt) {
+		long backoffMs = Math.min(RECONNECT_INITIAL_BACKOFF_MS << Math.min(attempt, 16), RECONNECT_MAX_BACKOFF_MS);
+		return backoffMs + ThreadLocalRandom.current().nextLong(backoffMs / 2 + 1);
+	}
+
+	static double toCallSeconds(double seconds, double connectionStartSeconds, StreamTimeline timeline) {
+		return toCallSeconds(seconds, connectionStartSeconds, 0, timeline);
+	}
 
+	/**
+	 * Maps a time in one connection's audio to a time in the call: first to a time in all the audio sent in the session,
+	 * by adding where the connection's audio starts, then past any audio the session skipped, and then by where the
+	 * session's audio starts in the call.
+	 */
+	static double toCallSeconds(
+			double seconds, double connectionStartSeconds, double callOffsetSeconds, StreamTimeline timeline) {
+		double callSeconds = callOffsetSeconds + timeline.toCallSeconds(connectionStartSeconds + seconds);
+		// Adding the offsets can leave float noise in the last digits
+		return Math.round(callSeconds * 1_000_000) / 1_000_000.0;
+	}
+
+	/**
+	 * The transport for the client's current connection. It stays tied to that connection, so that anything sent after it
+	 * drops is not sent on the next one ahead of the replay.
+	 */
+	private static DeepgramAudioSender.Transport transport(WebSocketClient client, StartupTrace startupTrace) {
+		WebSocketImpl connection = (WebSocketImpl) client.getConnection();
+		return new DeepgramAudioSender.Transport() {
 			@Override
-			public void onNext(ByteBuffer audioBytes) {
-				client.send(audioBytes);
+			public void send(ByteBuffer audio) {
+				try {
+					connection.send(audio);
+					startupTrace.mark(StartupTrace.Phase.FIRST_AUDIO_SENT);
+				} catch (WebsocketNotConnectedException e) {
+					// The audio is in the replay buffer, to be sent again on the next connection
+				}
 			}
 
 			@Override
-			public void onError(Throwable throwable) {
-				future.completeExceptionally(throwable);
+			public void send(String message) {
+				try {
+					connection.send(message);
+				} catch (WebsocketNotConnectedException e) {
+					// Not needed on a connection that has gone
+				}
 			}
 
 			@Override
-			public void onComplete() {
-				client.send("{ \"type\": \"CloseStream\" }");
+			public long bufferedBytes() {
+				long bufferedBytes = 0;
+				for (ByteBuffer frame : connection.outQueue) {
+					bufferedBytes += frame.remaining();
+				}
+				return bufferedBytes;
 			}
-		});
+		};
 	}
 }
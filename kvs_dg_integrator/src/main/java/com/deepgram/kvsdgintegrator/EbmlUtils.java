@@ -0,0 +1,71 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Utility methods for reading EBML, the binary format that MKV is built on. Every element is an id, a size and then
+ * {@code size} bytes of data, where the id and size are variable length integers ("vints") whose length is given by
+ * the number of leading zero bits in their first byte.
+ *
+ * <p>All of these read at the buffer's position and advance it, and assume the bytes are available.
+ */
+final class EbmlUtils {
+    /**
+     * Returned by {@link #readSize(ByteBuffer)} for master elements whose size wasn't known when they were written.
+     * KVS uses these for segments and clusters.
+     */
+    static final long UNKNOWN_SIZE = -1;
+
+    private EbmlUtils() {
+    }
+
+    /**
+     * @return The length in bytes (1 to 8) of the vint that starts with this byte
+     */
+    static int vintLength(byte firstByte) {
+        int length = Integer.numberOfLeadingZeros(firstByte & 0xFF) - 23;
+        Validate.isTrue(length <= 8, "Invalid EBML variable length integer");
+        return length;
+    }
+
+    /**
+     * Reads an element id. Unlike other vints, ids keep their length marker bits, which is how the Matroska spec writes
+     * them (e.g. 0xA3 for SimpleBlock).
+     */
+    static int readId(ByteBuffer buffer) {
+        int length = vintLength(buffer.get(buffer.position()));
+        Validate.isTrue(length <= 4, "EBML ids are at most 4 bytes long");
+        return (int) readUnsigned(buffer, length);
+    }
+
+    /**
+     * Reads a vint, without its length marker bits.
+     */
+    static long readVint(ByteBuffer buffer) {
+        int length = vintLength(buffer.get(buffer.position()));
+        return readUnsigned(buffer, length) & (0xFFFFFFFFFFFFFFFFL >>> (64 - 7 * length));
+    }
+
+    /**
+     * Reads an element size, which is a vint where all ones means {@link #UNKNOWN_SIZE}.
+     */
+    static long readSize(ByteBuffer buffer) {
+        int length = vintLength(buffer.get(buffer.position()));
+        long valueMask = 0xFFFFFFFFFFFFFFFFL >>> (64 - 7 * length);
+        long size = readUnsigned(buffer, length) & valueMask;
+        return size == valueMask ? UNKNOWN_SIZE : size;
+    }
+
+    /**
+     * Reads a big-endian unsigned integer of up to 8 bytes, as used by EBML's uint elements.
+     */
+    static long readUnsigned(ByteBuffer buffer, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (buffer.get() & 0xFF);
+        }
+        return value;
+    }
+}
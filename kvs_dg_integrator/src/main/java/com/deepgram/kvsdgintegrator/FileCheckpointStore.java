@@ -0,0 +1,64 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps each contact's checkpoint in a JSON file of its own, named after the contact id, in a local directory. A
+ * checkpoint is written to a temporary file and then moved over the old one, so a task that dies mid-write leaves the
+ * previous checkpoint intact.
+ *
+ * <p>Checkpoints in a directory on the task's own disk only help sessions retried on the same task. For them to survive
+ * the task, the directory needs to be on a volume the tasks share, such as EFS.
+ */
+public class FileCheckpointStore implements CheckpointStore {
+	// Connect's contact ids are UUIDs; anything else mustn't be able to name a file outside the directory
+	private static final Pattern CONTACT_ID = Pattern.compile("[A-Za-z0-9_-]+");
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final Path directory;
+
+	public FileCheckpointStore(Path directory) {
+		this.directory = Validate.notNull(directory);
+	}
+
+	@Override
+	public Checkpoint load(String contactId) throws IOException {
+		try {
+			return OBJECT_MAPPER.readValue(Files.readAllBytes(path(contactId)), Checkpoint.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void save(Checkpoint checkpoint) throws IOException {
+		Validate.notNull(checkpoint);
+		Path path = path(checkpoint.contactId());
+		Files.createDirectories(directory);
+		Path temporary = Files.createTempFile(directory, checkpoint.contactId(), ".tmp");
+		try {
+			Files.write(temporary, OBJECT_MAPPER.writeValueAsBytes(checkpoint));
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	@Override
+	public void delete(String contactId) throws IOException {
+		Files.deleteIfExists(path(contactId));
+	}
+
+	private Path path(String contactId) {
+		Validate.isTrue(CONTACT_ID.matcher(contactId).matches(), "Contact id %s can't be used as a file name", contactId);
+		return directory.resolve(contactId + ".json");
+	}
+}
@@ -0,0 +1,359 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes audio as a FLAC stream, losslessly. The first chunk starts with the stream header, and every chunk after that
+ * is one FLAC frame, so the frames can be sent in separate messages or coalesced, and Deepgram reads them as one
+ * stream.
+ *
+ * <p>This is a small subset of what FLAC can do, chosen to be cheap enough to run on every chunk of every call:
+ * <ul>
+ * 	<li>The two channels are coded independently, since the customer and the agent rarely say the same thing.</li>
+ * 	<li>A channel of all the same sample (digital silence) is a constant subframe of 3 bytes.</li>
+ * 	<li>Otherwise each channel uses whichever of FLAC's fixed polynomial predictors (orders 0 to 4) leaves the smallest
+ * 	residuals, Rice-coded in a single partition. If that would be bigger than the raw samples, they're sent raw.</li>
+ * </ul>
+ * No linear prediction and no partitioned Rice parameters, which would compress speech a little better for a lot more
+ * CPU.
+ *
+ * <p>Frame and subframe layouts are as in the FLAC format spec (RFC 9639).
+ */
+public final class FlacEncoder implements AudioEncoder {
+	private static final int CHANNELS = 2;
+	private static final int SAMPLE_RATE = 8000;
+	private static final int BITS_PER_SAMPLE = 16;
+	private static final int MAX_FIXED_ORDER = 4;
+	// "fLaC", a metadata block header, and STREAMINFO
+	private static final int STREAM_HEADER_BYTES = 4 + 4 + 34;
+	// Sync code to frame number (at most 6 bytes) and block size, header CRC, 2 subframe headers, padding, frame CRC
+	private static final int MAX_FRAME_OVERHEAD_BYTES = 4 + 6 + 2 + 1 + 2 + 1 + 2;
+	private static final int MAX_RICE_PARAMETER = 14;
+	private static final int[] CRC8_TABLE = crcTable(0x07, 8);
+	private static final int[] CRC16_TABLE = crcTable(0x8005, 16);
+
+	private final int blockSamples;
+	private final int[][] samples;
+	private final int[] residuals;
+	private long frameNumber = 0;
+	private boolean streamHeaderWritten = false;
+	private ByteBuffer out;
+	private long bitBuffer = 0;
+	private int bitCount = 0;
+
+	/**
+	 * @param blockSamples How many samples per channel each chunk has, except that the last of the stream may have
+	 *                     fewer
+	 */
+	public FlacEncoder(int blockSamples) {
+		Validate.inclusiveBetween(16, 65535, blockSamples, "FLAC block size must be between 16 and 65535 samples");
+		this.blockSamples = blockSamples;
+		this.samples = new int[CHANNELS][blockSamples];
+		this.residuals = new int[blockSamples];
+	}
+
+	@Override
+	public String deepgramParams() {
+		// Deepgram reads the encoding, sample rate and channels from the stream header
+		return "multichannel=true";
+	}
+
+	@Override
+	public int maxEncodedBytes(int pcmBytes) {
+		int blockBytes = blockSamples * CHANNELS * 2;
+		// A raw subframe is the samples plus a header byte, which is in the frame overhead
+		return STREAM_HEADER_BYTES + pcmBytes + (pcmBytes / blockBytes + 1) * MAX_FRAME_OVERHEAD_BYTES;
+	}
+
+	@Override
+	public void encode(ByteBuffer pcm, ByteBuffer out) {
+		int frameSamples = pcm.remaining() / (CHANNELS * 2);
+		Validate.isTrue(pcm.remaining() % (CHANNELS * 2) == 0, "Audio must hold whole 2-channel samples");
+		Validate.isTrue(frameSamples <= blockSamples, "Chunk of %s samples is larger than the block size of %s",
+				frameSamples, blockSamples);
+		if (frameSamples == 0) {
+			return;
+		}
+
+		this.out = out;
+		if (!streamHeaderWritten) {
+			writeStreamHeader();
+			streamHeaderWritten = true;
+		}
+
+		for (int i = 0, p = pcm.position(); i < frameSamples; i++, p += 4) {
+			// Little-endian, as the samples come from KVS
+			samples[0][i] = (short) ((pcm.get(p) & 0xFF) | pcm.get(p + 1) << 8);
+			samples[1][i] = (short) ((pcm.get(p + 2) & 0xFF) | pcm.get(p + 3) << 8);
+		}
+		pcm.position(pcm.limit());
+
+		writeFrame(frameSamples);
+		this.out = null;
+	}
+
+	private void writeStreamHeader() {
+		out.put((byte) 'f').put((byte) 'L').put((byte) 'a').put((byte) 'C');
+		// The last metadata block, of type STREAMINFO, 34 bytes long
+		writeBits(1, 1);
+		writeBits(0, 7);
+		writeBits(34, 24);
+		writeBits(blockSamples, 16);
+		writeBits(blockSamples, 16);
+		// Minimum and maximum frame sizes aren't known
+		writeBits(0, 24);
+		writeBits(0, 24);
+		writeBits(SAMPLE_RATE, 20);
+		writeBits(CHANNELS - 1, 3);
+		writeBits(BITS_PER_SAMPLE - 1, 5);
+		// Total samples aren't known, and neither is the MD5 of the audio
+		writeBits(0, 4);
+		writeBits(0, 32);
+		for (int i = 0; i < 16; i++) {
+			writeBits(0, 8);
+		}
+		flushBits();
+	}
+
+	private void writeFrame(int frameSamples) {
+		int frameStart = out.position();
+
+		// Sync code, and a fixed block size
+		writeBits(0xFFF8, 16);
+		// Block size is in 16 bits at the end of the header, and the sample rate is 8kHz
+		writeBits(0b0111, 4);
+		writeBits(0b0100, 4);
+		// Independent left and right channels, 16 bits per sample
+		writeBits(0b0001, 4);
+		writeBits(0b100, 3);
+		writeBits(0, 1);
+		writeFrameNumber(frameNumber++);
+		writeBits(frameSamples - 1, 16);
+		flushBits();
+		writeBits(crc(CRC8_TABLE, 8, frameStart, out.position()), 8);
+
+		for (int channel = 0; channel < CHANNELS; channel++) {
+			writeSubframe(samples[channel], frameSamples);
+		}
+
+		// Subframes are bit-aligned, and the frame is padded to a whole byte
+		if (bitCount % 8 != 0) {
+			writeBits(0, 8 - bitCount % 8);
+		}
+		flushBits();
+		writeBits(crc(CRC16_TABLE, 16, frameStart, out.position()), 16);
+		flushBits();
+	}
+
+	/**
+	 * Frame numbers are coded like UTF-8 characters: a leading byte with a 1 for each byte of the number, then 6 bits of
+	 * the number in each byte after it.
+	 */
+	private void writeFrameNumber(long number) {
+		Validate.validState(number < 1L << 31, "Frame number %s is too large", number);
+		if (number < 0x80) {
+			writeBits(number, 8);
+			return;
+		}
+		int bytes = 2;
+		while (number >= 1L << (5 * bytes + 1)) {
+			bytes++;
+		}
+		int continuationBytes = bytes - 1;
+		writeBits((0xFF << (8 - bytes)) & 0xFF | number >>> (6 * continuationBytes), 8);
+		for (int i = continuationBytes - 1; i >= 0; i--) {
+			writeBits(0x80 | (number >>> (6 * i)) & 0x3F, 8);
+		}
+	}
+
+	private void writeSubframe(int[] channel, int n) {
+		if (isConstant(channel, n)) {
+			writeBits(0b0000000, 8);
+			writeBits(channel[0], BITS_PER_SAMPLE);
+			return;
+		}
+
+		int order = bestFixedOrder(channel, n);
+		computeResiduals(channel, n, order);
+		int residualCount = n - order;
+
+		long magnitudeSum = 0;
+		for (int i = 0; i < residualCount; i++) {
+			magnitudeSum += zigzag(residuals[i]);
+		}
+		int riceParameter = bestRiceParameter(residualCount, magnitudeSum);
+		long riceBits = riceBits(residualCount, riceParameter);
+
+		long fixedBits = (long) order * BITS_PER_SAMPLE + 2 + 4 + 4 + riceBits;
+		long verbatimBits = (long) n * BITS_PER_SAMPLE;
+		if (fixedBits >= verbatimBits) {
+			writeBits(0b00000010, 8);
+			for (int i = 0; i < n; i++) {
+				writeBits(channel[i], BITS_PER_SAMPLE);
+			}
+			return;
+		}
+
+		writeBits((0b001000 | order) << 1, 8);
+		for (int i = 0; i < order; i++) {
+			writeBits(channel[i], BITS_PER_SAMPLE);
+		}
+		// Rice coding with 4-bit parameters, in a single partition
+		writeBits(0b00, 2);
+		writeBits(0, 4);
+		writeBits(riceParameter, 4);
+		for (int i = 0; i < residualCount; i++) {
+			writeRice(zigzag(residuals[i]), riceParameter);
+		}
+	}
+
+	private static boolean isConstant(int[] channel, int n) {
+		for (int i = 1; i < n; i++) {
+			if (channel[i] != channel[0]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Picks the fixed predictor order that leaves the smallest sum of absolute residuals, working out all five orders
+	 * in one pass.
+	 */
+	private static int bestFixedOrder(int[] x, int n) {
+		if (n <= MAX_FIXED_ORDER) {
+			return 0;
+		}
+		long[] errors = new long[MAX_FIXED_ORDER + 1];
+		for (int i = MAX_FIXED_ORDER; i < n; i++) {
+			int e0 = x[i];
+			int e1 = e0 - x[i - 1];
+			int e2 = e1 - (x[i - 1] - x[i - 2]);
+			int e3 = e2 - (x[i - 1] - 2 * x[i - 2] + x[i - 3]);
+			int e4 = e3 - (x[i - 1] - 3 * x[i - 2] + 3 * x[i - 3] - x[i - 4]);
+			errors[0] += Math.abs(e0);
+			errors[1] += Math.abs(e1);
+			errors[2] += Math.abs(e2);
+			errors[3] += Math.abs(e3);
+			errors[4] += Math.abs(e4);
+		}
+		int best = 0;
+		for (int order = 1; order <= MAX_FIXED_ORDER; order++) {
+			if (errors[order] < errors[best]) {
+				best = order;
+			}
+		}
+		return best;
+	}
+
+	private void computeResiduals(int[] x, int n, int order) {
+		for (int i = order; i < n; i++) {
+			residuals[i - order] = switch (order) {
+				case 0 -> x[i];
+				case 1 -> x[i] - x[i - 1];
+				case 2 -> x[i] - 2 * x[i - 1] + x[i - 2];
+				case 3 -> x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+				default -> x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+			};
+		}
+	}
+
+	/**
+	 * Estimates the best Rice parameter from the mean residual, then checks its neighbours exactly.
+	 */
+	private int bestRiceParameter(int count, long magnitudeSum) {
+		if (count == 0) {
+			return 0;
+		}
+		long mean = magnitudeSum / count;
+		int estimate = mean == 0 ? 0 : Math.min(MAX_RICE_PARAMETER, 63 - Long.numberOfLeadingZeros(mean));
+
+		int best = estimate;
+		long bestBits = riceBits(count, estimate);
+		int highest = Math.min(MAX_RICE_PARAMETER, estimate + 1);
+		for (int parameter = Math.max(0, estimate - 1); parameter <= highest; parameter++) {
+			long bits = riceBits(count, parameter);
+			if (bits < bestBits) {
+				best = parameter;
+				bestBits = bits;
+			}
+		}
+		return best;
+	}
+
+	private long riceBits(int count, int parameter) {
+		long bits = (long) count * (parameter + 1);
+		for (int i = 0; i < count; i++) {
+			bits += zigzag(residuals[i]) >>> parameter;
+		}
+		return bits;
+	}
+
+	private static int zigzag(int residual) {
+		return (residual << 1) ^ (residual >> 31);
+	}
+
+	private void writeRice(int value, int parameter) {
+		// The quotient in unary, as that many zeros and then a one
+		int quotient = value >>> parameter;
+		while (quotient >= 32) {
+			writeBits(0, 32);
+			quotient -= 32;
+		}
+		writeBits(1, quotient + 1);
+		if (parameter > 0) {
+			writeBits(value & ((1 << parameter) - 1), parameter);
+		}
+	}
+
+	/**
+	 * Appends the low {@code bits} bits of {@code value} (at most 32), most significant first.
+	 */
+	private void writeBits(long value, int bits) {
+		if (bitCount + bits > 64) {
+			flushWholeBytes();
+		}
+		bitBuffer = (bitBuffer << bits) | (value & ((1L << bits) - 1));
+		bitCount += bits;
+	}
+
+	private void flushWholeBytes() {
+		while (bitCount >= 8) {
+			bitCount -= 8;
+			out.put((byte) (bitBuffer >>> bitCount));
+		}
+	}
+
+	/**
+	 * Writes out everything so far, which must end on a byte boundary.
+	 */
+	private void flushBits() {
+		Validate.validState(bitCount % 8 == 0, "FLAC structures must end on a byte boundary");
+		flushWholeBytes();
+	}
+
+	private int crc(int[] table, int width, int start, int end) {
+		int crc = 0;
+		int mask = (1 << width) - 1;
+		for (int i = start; i < end; i++) {
+			crc = ((crc << 8) ^ table[((crc >>> (width - 8)) ^ out.get(i)) & 0xFF]) & mask;
+		}
+		return crc;
+	}
+
+	private static int[] crcTable(int polynomial, int width) {
+		int[] table = new int[256];
+		int topBit = 1 << (width - 1);
+		int mask = (1 << width) - 1;
+		for (int i = 0; i < 256; i++) {
+			int crc = i << (width - 8);
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & topBit) != 0 ? (crc << 1) ^ polynomial : crc << 1;
+			}
+			table[i] = crc & mask;
+		}
+		return table;
+	}
+}
@@ -0,0 +1,92 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the task when it's told to stop (ECS sends SIGTERM on scale-in and deployments), rather than dropping the
+ * calls on it.
+ *
+ * <p>The task stops admitting sessions and fails its health checks, so that the load balancer stops sending it calls,
+ * and the sessions it has are left to finish for up to {@code SHUTDOWN_DRAIN_SECONDS}. Sessions still running then are
+ * ended early, as if their calls had ended: the audio merged so far is sent, followed by {@code CloseStream}, and
+ * Deepgram's last results are delivered before the websocket closes.
+ */
+public final class GracefulShutdown {
+	private static final Logger logger = LogManager.getLogger(GracefulShutdown.class);
+	// ECS kills the task 120 seconds after SIGTERM at most (the container's stopTimeout), which leaves time to close
+	private static final long DRAIN_SECONDS = Long.parseLong(
+			System.getenv().getOrDefault("SHUTDOWN_DRAIN_SECONDS", "100"));
+	// How long sessions ended early get to send CloseStream and receive Deepgram's last results
+	private static final long CLOSE_SECONDS = 15;
+	private static final long POLL_INTERVAL_MS = 250;
+
+	private GracefulShutdown() {
+	}
+
+	/**
+	 * Drains the task in a shutdown hook, once the JVM is told to exit.
+	 */
+	public static void install(HttpServer server, AdmissionController admissionController) {
+		Validate.notNull(server);
+		Validate.notNull(admissionController);
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				drain(admissionController, DRAIN_SECONDS, CLOSE_SECONDS);
+				server.stop(0);
+			} finally {
+				// Log4j's own shutdown hook is off, so that the drain can log until it's done
+				LogManager.shutdown();
+			}
+		}, "shutdown-drain"));
+	}
+
+	/**
+	 * Stops admitting sessions, waits up to {@code drainSeconds} for the active sessions to finish, and then ends the
+	 * rest early and waits up to {@code closeSeconds} for them to close.
+	 *
+	 * @return true if every session finished
+	 */
+	static boolean drain(AdmissionController admissionController, long drainSeconds, long closeSeconds) {
+		admissionController.startDraining();
+		logger.info("Shutting down; waiting up to %ss for %s sessions to finish".formatted(
+				drainSeconds, admissionController.getLoad().activeSessions()));
+		if (awaitNoSessions(admissionController, drainSeconds)) {
+			logger.info("All sessions finished; shutting down");
+			return true;
+		}
+
+		logger.info("%s sessions still running after %ss; ending their audio early".formatted(
+				admissionController.getLoad().activeSessions(), drainSeconds));
+		SessionScope.stopAll();
+		if (awaitNoSessions(admissionController, closeSeconds)) {
+			logger.info("All sessions closed; shutting down");
+			return true;
+		}
+
+		logger.warn("%s sessions still running %ss after ending their audio; shutting down anyway".formatted(
+				admissionController.getLoad().activeSessions(), closeSeconds));
+		return false;
+	}
+
+	private static boolean awaitNoSessions(AdmissionController admissionController, long seconds) {
+		long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		while (admissionController.getLoad().activeSessions() > 0) {
+			if (System.nanoTime() >= deadlineNanos) {
+				return false;
+			}
+			try {
+				Thread.sleep(POLL_INTERVAL_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,50 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * POSTs each batch of results as gzipped NDJSON. All sessions share one {@link HttpClient}, which keeps connections to
+ * the endpoint alive between batches.
+ */
+public class HttpTranscriptSink implements TranscriptSink {
+	private static final Duration REQUEST_TIMEOUT = Duration.ofMillis(Long.parseLong(
+			System.getenv().getOrDefault("TRANSCRIPT_SINK_TIMEOUT_MS", "5000")));
+
+	private final URI uri;
+	private final HttpClient httpClient;
+
+	public HttpTranscriptSink(URI uri) {
+		this.uri = Validate.notNull(uri);
+		this.httpClient = HttpClient.newBuilder()
+				.connectTimeout(REQUEST_TIMEOUT)
+				.build();
+	}
+
+	@Override
+	public void deliver(String contactId, int stream, List<TranscriptResult> results) throws Exception {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(body)) {
+			TranscriptResult.writeNdjson(contactId, stream, results, gzip);
+		}
+
+		HttpRequest request = HttpRequest.newBuilder(uri)
+				.timeout(REQUEST_TIMEOUT)
+				.header("Content-Type", "application/x-ndjson")
+				.header("Content-Encoding", "gzip")
+				.POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+				.build();
+		HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+		if (response.statusCode() / 100 != 2) {
+			throw new Exception("Transcript sink returned HTTP %s".formatted(response.statusCode()));
+		}
+	}
+}
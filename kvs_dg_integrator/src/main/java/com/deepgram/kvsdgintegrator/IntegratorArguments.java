@@ -13,29 +13,80 @@ import java.util.*;
 
 /**
  * Arguments passed in the POST body of the `/start-session` endpoint for each new integrator session
+ *
+ * <p>`dgParams` is either one set of Deepgram query params, or an array of up to {@link #MAX_DG_PARAMS_SETS} of them
+ * to transcribe the call on several Deepgram streams at once (e.g. with two models or languages). The call is still
+ * read from KVS once; see {@link AudioFanOut}.
  */
 public record IntegratorArguments(
         String contactId,
         KvsStream kvsStream,
-        @JsonDeserialize(using = DgParamsDeserializer.class) Map<String, List<String>> dgParams,
-        boolean enforceRealtime) {
+        List<Map<String, List<String>>> dgParamsSets,
+        boolean enforceRealtime,
+        AudioChunking audioChunking) {
+    // Each set is a websocket (and a sender) of its own for the session
+    public static final int MAX_DG_PARAMS_SETS = 4;
+
     @JsonCreator
     public IntegratorArguments(
             @JsonProperty(required = true, value = "contactId") String contactId,
             @JsonProperty(required = true, value = "kvsStream") KvsStream kvsStream,
-            @JsonProperty(required = true, value = "dgParams") Map<String, List<String>> dgParams,
-            @JsonProperty(required = true, value = "enforceRealtime") boolean enforceRealtime
+            @JsonProperty(required = true, value = "dgParams") @JsonDeserialize(using = DgParamsSetsDeserializer.class)
+            List<Map<String, List<String>>> dgParamsSets,
+            @JsonProperty(required = true, value = "enforceRealtime") boolean enforceRealtime,
+            @JsonProperty(value = "audioChunking") AudioChunking audioChunking
     ) {
         this.contactId = Validate.notNull(contactId);
         this.kvsStream = Validate.notNull(kvsStream);
-        this.dgParams = Validate.notNull(dgParams);
+        Validate.notNull(dgParamsSets);
+        Validate.inclusiveBetween(1, MAX_DG_PARAMS_SETS, dgParamsSets.size(),
+                "dgParams must have between 1 and %s sets".formatted(MAX_DG_PARAMS_SETS));
+        Validate.noNullElements(dgParamsSets);
+        this.dgParamsSets = List.copyOf(dgParamsSets);
         this.enforceRealtime = enforceRealtime;
+        this.audioChunking = audioChunking == null ? AudioChunking.DEFAULT : audioChunking;
+    }
+
+    public IntegratorArguments(String contactId, KvsStream kvsStream, Map<String, List<String>> dgParams,
+                               boolean enforceRealtime, AudioChunking audioChunking) {
+        this(contactId, kvsStream, List.of(Validate.notNull(dgParams)), enforceRealtime, audioChunking);
+    }
+
+    public IntegratorArguments(
+            String contactId, KvsStream kvsStream, Map<String, List<String>> dgParams, boolean enforceRealtime) {
+        this(contactId, kvsStream, dgParams, enforceRealtime, null);
     }
 
-    private static class DgParamsDeserializer extends JsonDeserializer<Map<String, List<String>>> {
+    /**
+     * @return The first (usually the only) set of Deepgram query params
+     */
+    public Map<String, List<String>> dgParams() {
+        return dgParamsSets.get(0);
+    }
+
+    /**
+     * Reads `dgParams` as either one set of params or an array of them.
+     */
+    private static class DgParamsSetsDeserializer extends JsonDeserializer<List<Map<String, List<String>>>> {
         @Override
-        public Map<String, List<String>> deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        public List<Map<String, List<String>>> deserialize(JsonParser p, DeserializationContext ctxt)
+                throws IOException {
             JsonNode node = p.readValueAsTree();
+            if (!node.isArray()) {
+                return List.of(toDgParams(p, node));
+            }
+
+            List<Map<String, List<String>>> sets = new ArrayList<>();
+            for (JsonNode element : node) {
+                sets.add(toDgParams(p, element));
+            }
+            return sets;
+        }
+
+        private static Map<String, List<String>> toDgParams(JsonParser p, JsonNode node) throws IOException {
+            if (!node.isObject()) {
+                throw JsonMappingException.from(p, "dgParams must be an object, or an array of objects");
+            }
             Map<String, List<String>> map = new HashMap<>();
             Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
 
@@ -88,5 +139,42 @@ public record IntegratorArguments(
                 this.startFragmentNumber = Validate.notNull(startFragmentNumber);
             }
         }
-}
 
+    /**
+     * How much audio to send to Deepgram per websocket message. Each message holds {@code chunkMs} of audio, unless
+     * {@code maxChunkMs} is larger: then, while audio is queued up waiting for the websocket (catching up on the start
+     * of a call, or a slow network), queued chunks are sent together in messages of up to {@code maxChunkMs}. At the
+     * live edge of the call nothing is queued, so messages go back to {@code chunkMs}.
+     *
+     * <p>Larger messages mean fewer messages and less CPU per call, but each chunk waits for its audio to arrive before
+     * it's sent, so {@code chunkMs} adds to the latency of the transcript.
+     */
+    public record AudioChunking(int chunkMs, int maxChunkMs) {
+        public static final int MIN_CHUNK_MS = 20;
+        public static final int MAX_CHUNK_MS = 500;
+        // 64ms, the length of one of Connect's usual frames
+        public static final AudioChunking DEFAULT = new AudioChunking(64, 64);
+
+        @JsonCreator
+        public AudioChunking(
+                @JsonProperty(required = true, value = "chunkMs") int chunkMs,
+                @JsonProperty(value = "maxChunkMs") Integer maxChunkMs
+        ) {
+            this(chunkMs, maxChunkMs == null ? chunkMs : maxChunkMs.intValue());
+        }
+
+        public AudioChunking {
+            Validate.inclusiveBetween(MIN_CHUNK_MS, MAX_CHUNK_MS, chunkMs,
+                    "chunkMs must be between %s and %s".formatted(MIN_CHUNK_MS, MAX_CHUNK_MS));
+            Validate.inclusiveBetween(chunkMs, MAX_CHUNK_MS, maxChunkMs,
+                    "maxChunkMs must be between chunkMs and %s".formatted(MAX_CHUNK_MS));
+        }
+
+        /**
+         * @return true if queued chunks may be sent together in larger messages
+         */
+        public boolean isAdaptive() {
+            return maxChunkMs > chunkMs;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoClientBuilder;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
+import com.amazonaws.services.kinesisvideo.model.APIName;
+import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide KVS clients, shared by every session on this task.
+ *
+ * <p>The AWS SDK clients are thread safe and hold their own connection pools, so building them once (rather than once
+ * per call) saves client construction and TLS setup at the start of each call. Data endpoints are cached per stream for
+ * {@code KVS_ENDPOINT_CACHE_TTL_SECONDS} (default 300) so that we don't make a GetDataEndpoint request for every call.
+ *
+ * <p>A GetMedia response holds its connection for the whole call, so the shared media clients need a pool of at least
+ * one connection per concurrent call. It's sized by {@code KVS_MAX_CONNECTIONS} (default 1000), well above the SDK's
+ * default of 50.
+ */
+public final class KvsClientRegistry {
+    private static final Logger logger = LogManager.getLogger(KvsClientRegistry.class);
+    private static final long DEFAULT_ENDPOINT_CACHE_TTL_SECONDS = 300;
+    private static final int DEFAULT_MAX_CONNECTIONS = 1000;
+    private static final KvsClientRegistry INSTANCE = new KvsClientRegistry();
+
+    private record MediaClientKey(String endpoint, Regions region, AWSCredentialsProvider credentialsProvider) {
+    }
+
+    private final AmazonKinesisVideo amazonKinesisVideo;
+    private final DataEndpointCache dataEndpointCache;
+    private final Map<MediaClientKey, AmazonKinesisVideoMedia> mediaClients = new ConcurrentHashMap<>();
+
+    private KvsClientRegistry() {
+        AmazonKinesisVideoClientBuilder builder = AmazonKinesisVideoClientBuilder.standard();
+        // For pointing the integrator at a stand-in for KVS, such as the load harness's
+        String endpoint = System.getenv("KVS_ENDPOINT");
+        if (endpoint != null) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, System.getenv("APP_REGION")));
+        }
+        this.amazonKinesisVideo = builder.build();
+        this.dataEndpointCache = new DataEndpointCache(
+                this::lookUpDataEndpoint,
+                TimeUnit.SECONDS.toNanos(getEndpointCacheTtlSeconds()),
+                System::nanoTime);
+    }
+
+    public static KvsClientRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return The GetMedia data endpoint for the stream, from the cache if possible
+     */
+    public String getDataEndpoint(String streamName) {
+        return dataEndpointCache.get(streamName);
+    }
+
+    /**
+     * Forgets the cached data endpoint for the stream, so that the next call looks it up again.
+     */
+    public void invalidateDataEndpoint(String streamName) {
+        dataEndpointCache.invalidate(streamName);
+    }
+
+    /**
+     * @return A media client for the data endpoint, created the first time the endpoint is used
+     */
+    public AmazonKinesisVideoMedia getMediaClient(String endpoint, Regions region,
+                                                  AWSCredentialsProvider awsCredentialsProvider) {
+        Validate.notNull(endpoint);
+        Validate.notNull(region);
+        Validate.notNull(awsCredentialsProvider);
+
+        return mediaClients.computeIfAbsent(new MediaClientKey(endpoint, region, awsCredentialsProvider), key -> {
+            logger.info("Creating KVS media client for endpoint " + key.endpoint());
+            return AmazonKinesisVideoMediaClientBuilder.standard()
+                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(key.endpoint(), key.region().getName()))
+                    .withCredentials(key.credentialsProvider())
+                    .withClientConfiguration(new ClientConfiguration().withMaxConnections(getMaxConnections()))
+                    .build();
+        });
+    }
+
+    public long getDataEndpointCacheHits() {
+        return dataEndpointCache.hits();
+    }
+
+    public long getDataEndpointCacheMisses() {
+        return dataEndpointCache.misses();
+    }
+
+    private String lookUpDataEndpoint(String streamName) {
+        logger.debug("Looking up KVS data endpoint for stream " + streamName);
+        return amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest()
+                .withAPIName(APIName.GET_MEDIA)
+                .withStreamName(streamName)).getDataEndpoint();
+    }
+
+    private static long getEndpointCacheTtlSeconds() {
+        String ttl = System.getenv("KVS_ENDPOINT_CACHE_TTL_SECONDS");
+        return ttl == null ? DEFAULT_ENDPOINT_CACHE_TTL_SECONDS : Long.parseLong(ttl);
+    }
+
+    private static int getMaxConnections() {
+        String maxConnections = System.getenv("KVS_MAX_CONNECTIONS");
+        return maxConnections == null ? DEFAULT_MAX_CONNECTIONS : Integer.parseInt(maxConnections);
+    }
+}
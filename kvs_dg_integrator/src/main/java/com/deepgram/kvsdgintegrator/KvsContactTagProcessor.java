@@ -13,24 +13,67 @@ import java.util.Optional;
  */
 public class KvsContactTagProcessor implements FragmentMetadataVisitor.MkvTagProcessor {
     private static final Logger logger = LogManager.getLogger(KvsContactTagProcessor.class);
+    private static final String PRODUCER_TIMESTAMP = "AWS_KINESISVIDEO_PRODUCER_TIMESTAMP";
+    private static final String FRAGMENT_NUMBER = "AWS_KINESISVIDEO_FRAGMENT_NUMBER";
     private final String contactId;
+    private final Metrics.SessionMetrics sessionMetrics;
+    private final SessionCheckpointer checkpointer;
     private boolean sameContact = true;
 
     public KvsContactTagProcessor(String contactId) {
+        this(contactId, null);
+    }
+
+    /**
+     * @param sessionMetrics Where to record each fragment's number and how far behind the live call it is, or null
+     */
+    public KvsContactTagProcessor(String contactId, Metrics.SessionMetrics sessionMetrics) {
+        this(contactId, sessionMetrics, null);
+    }
+
+    /**
+     * @param checkpointer What to tell of the start of each fragment, or null
+     */
+    public KvsContactTagProcessor(String contactId, Metrics.SessionMetrics sessionMetrics,
+                                  SessionCheckpointer checkpointer) {
         this.contactId = contactId;
+        this.sessionMetrics = sessionMetrics;
+        this.checkpointer = checkpointer;
     }
 
     public void process(MkvTag mkvTag, Optional<FragmentMetadata> currentFragmentMetadata) {
-        if ("ContactId".equals(mkvTag.getTagName())) {
-            if (contactId.equals(mkvTag.getTagValue())) {
+        process(mkvTag.getTagName(), mkvTag.getTagValue());
+    }
+
+    /**
+     * Same as {@link #process(MkvTag, Optional)}, for parsers that don't produce {@link MkvTag}s.
+     */
+    public void process(String tagName, String tagValue) {
+        if ("ContactId".equals(tagName)) {
+            if (contactId.equals(tagValue)) {
                 sameContact = true;
             }
             else {
                 logger.info(String.format("Contact Id in tag does not match expected, will stop streaming. "
                                 + "contact id: %s, expected: %s",
-                        mkvTag.getTagValue(), contactId));
+                        tagValue, contactId));
                 sameContact = false;
             }
+        } else if (FRAGMENT_NUMBER.equals(tagName)) {
+            // KVS tags each fragment with its number at its start, ahead of its frames
+            if (sessionMetrics != null) {
+                sessionMetrics.recordFragmentNumber(tagValue);
+            }
+            if (checkpointer != null) {
+                checkpointer.fragmentStarted(tagValue);
+            }
+        } else if (PRODUCER_TIMESTAMP.equals(tagName) && sessionMetrics != null) {
+            // Seconds since the epoch, with a fractional part
+            try {
+                sessionMetrics.recordProducerTimestamp(Math.round(Double.parseDouble(tagValue) * 1000));
+            } catch (NumberFormatException e) {
+                logger.debug("Could not parse producer timestamp: " + tagValue);
+            }
         }
     }
 
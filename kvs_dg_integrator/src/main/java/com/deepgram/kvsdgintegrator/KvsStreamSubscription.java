@@ -8,120 +8,203 @@ import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * <p>This Subscription reads the FROM_CUSTOMER and TO_CUSTOMER audio tracks from KVS. It interleaves them into
- * 2-channel audio (with FROM_CUSTOMER on the first channel) and publishes them to the Subscriber as a series of
- * {@link ByteBuffer}s.
+ * <p>This Subscription reads the FROM_CUSTOMER and TO_CUSTOMER audio tracks from KVS. A {@link TrackMerger} lines
+ * them up and interleaves them into 2-channel audio (with FROM_CUSTOMER on the first channel), which is published to
+ * the Subscriber as a series of {@link ByteBuffer}s.
  *
- * <p>The audio remains in linear16 format with a sample rate of 8000hz, just as it is received from KVS. The emitted
- * {@link ByteBuffer}s are 2048 bytes each. That is:
+ * <p>The audio remains in linear16 format with a sample rate of 8000hz, just as it is received from KVS. Each emitted
+ * {@link ByteBuffer} holds the session's {@link IntegratorArguments.AudioChunking#chunkMs() chunkMs} of audio, except
+ * that the last may be shorter. By default that's 64ms, which is:
  * <ul>
- * 	<li>1024 bytes per channel</li>
+ * 	<li>2048 bytes</li>
+ *	<li>1024 bytes per channel</li>
  *	<li>512 samples per channel</li>
- *	<li>64ms of audio</li>
  * </ul>
+ *
+ * <p>The emitted buffers come from the {@link AudioBufferPool}. The subscriber owns each buffer it receives, and should
+ * {@link AudioBufferPool#recycle(ByteBuffer) recycle} it once the audio has been sent.
+ *
+ * <p>Audio is read on the given {@link Executor}, which is normally the session's {@link SessionScope}. At most one
+ * read loop runs at a time: it is started when demand goes from zero to positive, and exits when demand is used up.
+ * Every signal to the subscriber comes from the read loop, so signals are never concurrent, as the Reactive Streams
+ * spec requires. We only read from KVS while there is demand, so a subscriber that stops requesting audio stops us
+ * reading it.
+ *
+ * <p>With {@code enforceRealtime}, frames are paced by the shared {@link RealtimePacer}. A frame that isn't due yet is
+ * parked in {@link #pacedFrame}, and the read loop exits without using up the demand, so no other loop can start. The
+ * pacer's timer restarts the loop on the executor when the frame is due, and the loop sends it before reading on.
  */
 public class KvsStreamSubscription implements Subscription {
-	private final ExecutorService executor = Executors.newSingleThreadExecutor();
-	private final AtomicLong demand = new AtomicLong(0); // state container
+	private final Executor executor;
+	private final AudioBufferPool interleavedBufferPool;
+	// Starts at one so that a request from inside onSubscribe can't start the read loop before onSubscribe has returned;
+	// see start()
+	private final AtomicLong demand = new AtomicLong(1);
 	private final Subscriber<? super ByteBuffer> subscriber;
-	private final KvsStreamTrack fromCustomerTrack;
-	private final KvsStreamTrack toCustomerTrack;
-	private final boolean enforceRealtime;
+	private final TrackMerger trackMerger;
+	private final RealtimePacer.Schedule pacingSchedule;
+	private volatile boolean cancelled = false;
+	// Set by an invalid request, for the read loop to signal
+	private volatile IllegalArgumentException invalidRequest = null;
+	// A frame waiting for its slot on the pacing schedule. Only the active read loop touches this.
+	private ByteBuffer pacedFrame = null;
 	private static final Logger logger = LogManager.getLogger(KvsStreamSubscription.class);
+	private static final long NANOS_PER_SAMPLE = TimeUnit.SECONDS.toNanos(1) / 8000;
 
 	/**
 	 * @param s                 The subscriber who will receive audio from this subscription
-	 * @param fromCustomerTrack The KVS track containing everything the customer says
-	 * @param toCustomerTrack   The KVS track containing everything the customer hears
-	 * @param enforceRealtime   If this is true we publish audio at its real resolution, waiting 64ms between each 64ms
-	 *                          audio buffer. If it's false we publish audio as quickly as we can read it, which means
-	 *                          we rapidly catch up to the current point in the call.
+	 * @param trackMerger       Reads the FROM_CUSTOMER track (everything the customer says) and the TO_CUSTOMER track
+	 *                          (everything the customer hears) from KVS, and merges them
+	 * @param enforceRealtime   If this is true we publish audio at its real resolution, e.g. one 64ms buffer every 64ms
+	 *                          (after catching up to the live call, if {@link RealtimePacer} is configured to). If it's
+	 *                          false we publish audio as quickly as we can read it, which means we rapidly catch up to
+	 *                          the current point in the call.
+	 * @param executor          Runs the loop that reads audio from KVS
 	 */
 	public KvsStreamSubscription(
-			Subscriber<? super ByteBuffer> s, KvsStreamTrack fromCustomerTrack, KvsStreamTrack toCustomerTrack, boolean enforceRealtime) {
+			Subscriber<? super ByteBuffer> s, TrackMerger trackMerger, boolean enforceRealtime, Executor executor) {
+		this.executor = Validate.notNull(executor);
 		this.subscriber = Validate.notNull(s);
-		this.fromCustomerTrack = Validate.notNull(fromCustomerTrack);
-		this.toCustomerTrack = Validate.notNull(toCustomerTrack);
-		this.enforceRealtime = enforceRealtime;
+		this.trackMerger = Validate.notNull(trackMerger);
+		this.interleavedBufferPool = AudioBufferPool.forCapacity(trackMerger.getChunkBytes());
+		this.pacingSchedule = enforceRealtime ? RealtimePacer.getInstance().newSchedule() : null;
+	}
+
+	/**
+	 * Called once the subscriber's onSubscribe has returned, to let the read loop start on the demand requested so far.
+	 */
+	void start() {
+		if (demand.decrementAndGet() > 0) {
+			executor.execute(this::readLoop);
+		}
 	}
 
 	@Override
 	public void request(long n) {
+		if (cancelled) {
+			return;
+		}
 		if (n <= 0) {
-			subscriber.onError(new IllegalArgumentException("Demand must be positive"));
+			// Rule 3.9: signal the error, from the read loop like every other signal
+			invalidRequest = new IllegalArgumentException("Rule 3.9: demand must be positive, but was %s".formatted(n));
 		}
 
-		demand.getAndAdd(n);
-
-		String requestId = ThreadContext.get("requestId");
-		executor.submit(() -> {
-			// Propagate request ID to the newly created thread so it appears in log messages
-			ThreadContext.put("requestId", requestId);
-
-			try {
-				// If enforceRealtime=true, we have to track the last published audio time so we can ensure a delay of at
-				// least 64ms between publishing each 64ms buffer
-				long lastPublishedAudioInUnixTime = -1;
-
-				while (demand.get() > 0) {
-					ByteBuffer fromCustomerBytes = KvsUtils.getByteBufferFromStream(fromCustomerTrack);
-					ByteBuffer toCustomerBytes = KvsUtils.getByteBufferFromStream(toCustomerTrack);
-
-					if (fromCustomerBytes.remaining() == 0 || toCustomerBytes.remaining() == 0) {
-						logger.info("One or both KVS tracks ended; now closing session");
-
-						if (fromCustomerBytes.remaining() != 0) {
-							logger.warn("FROM_CUSTOMER track still had some audio left; discarding it");
-						} else if (toCustomerBytes.remaining() != 0) {
-							logger.warn("TO_CUSTOMER track still had some audio left; discarding it");
-						} else {
-							logger.info("FROM_CUSTOMER and TO_CUSTOMER tracks ended at the same time");
-						}
-
-						subscriber.onComplete();
-						break;
-					} else if (fromCustomerBytes.remaining() == 1024 && toCustomerBytes.remaining() == 1024) {
-						logger.trace("Both tracks had valid frame sizes");
-						ByteBuffer interleavedBytes = ByteBuffer.allocate(2048);
-						for (int i = 0; i < 512; i++) {
-							interleavedBytes.put(fromCustomerBytes.get());
-							interleavedBytes.put(fromCustomerBytes.get());
-							interleavedBytes.put(toCustomerBytes.get());
-							interleavedBytes.put(toCustomerBytes.get());
-						}
-						interleavedBytes.flip();
-
-						if (this.enforceRealtime) {
-							long msSinceLastAudio = System.currentTimeMillis() - lastPublishedAudioInUnixTime;
-							if (msSinceLastAudio < 64) {
-								Thread.sleep(64 - msSinceLastAudio);
-							}
-							lastPublishedAudioInUnixTime = System.currentTimeMillis();
-						}
-
-						subscriber.onNext(interleavedBytes);
-					} else {
-						// In my experience this occurs once per call, very close to the end of the call, regardless of
-						// the call's length.
-						logger.warn("Unusual frame size in KVS stream. FROM_CUSTOMER = %s, TO_CUSTOMER = %s"
-								.formatted(fromCustomerBytes.remaining(), toCustomerBytes.remaining()));
+		// Saturate at Long.MAX_VALUE rather than overflowing
+		long increment = Math.max(n, 1);
+		long previousDemand = demand.getAndUpdate(
+				current -> current + increment < 0 ? Long.MAX_VALUE : current + increment);
+		if (previousDemand == 0) {
+			executor.execute(this::readLoop);
+		}
+	}
+
+	private void readLoop() {
+		try {
+			while (!cancelled) {
+				if (invalidRequest != null) {
+					cancelled = true;
+					subscriber.onError(invalidRequest);
+					break;
+				}
+
+				if (pacedFrame != null) {
+					ByteBuffer frame = pacedFrame;
+					pacedFrame = null;
+					if (!publish(frame)) {
+						return;
+					}
+					continue;
+				}
+
+				ByteBuffer interleavedBytes = interleavedBufferPool.acquire();
+				if (!readChunk(interleavedBytes)) {
+					logger.info("KVS stream ended; now closing session");
+					logger.debug("Interleaved audio buffers allocated by this task so far: %s"
+							.formatted(interleavedBufferPool.getAllocationCount()));
+
+					cancelled = true;
+					subscriber.onComplete();
+					return;
+				}
+
+				if (pacingSchedule != null) {
+					long delayNanos = pacingSchedule.reserveNextFrame(durationNanos(interleavedBytes));
+					if (delayNanos > 0) {
+						pacedFrame = interleavedBytes;
+						RealtimePacer.getInstance().schedule(delayNanos, this::resumeReadLoop);
+						return;
 					}
+				}
 
-					demand.getAndDecrement();
+				if (!publish(interleavedBytes)) {
+					return;
 				}
-			} catch (Exception e) {
-				subscriber.onError(e);
 			}
-		});
+		} catch (InterruptedException e) {
+			// The session is being torn down
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			cancelled = true;
+			subscriber.onError(e);
+		}
+
+		if (cancelled && pacedFrame != null) {
+			AudioBufferPool.recycle(pacedFrame);
+			pacedFrame = null;
+		}
+	}
+
+	/**
+	 * Reads the next chunk of merged audio into the buffer, ready to send, or recycles the buffer if the stream has
+	 * ended.
+	 */
+	private boolean readChunk(ByteBuffer interleavedBytes) throws Exception {
+		boolean gotChunk = false;
+		try {
+			gotChunk = trackMerger.nextChunk(interleavedBytes);
+			interleavedBytes.flip();
+			return gotChunk;
+		} finally {
+			if (!gotChunk) {
+				AudioBufferPool.recycle(interleavedBytes);
+			}
+		}
+	}
+
+	private static long durationNanos(ByteBuffer interleavedBytes) {
+		return interleavedBytes.remaining() / (TrackMerger.CHANNELS * TrackMerger.BYTES_PER_SAMPLE) * NANOS_PER_SAMPLE;
+	}
+
+	/**
+	 * Sends a frame to the subscriber.
+	 *
+	 * @return false if that used up the demand, so the read loop must exit
+	 */
+	private boolean publish(ByteBuffer frame) {
+		subscriber.onNext(frame);
+		return demand.decrementAndGet() > 0;
+	}
+
+	/**
+	 * Runs on the pacer's timer thread when a paced frame is due.
+	 */
+	private void resumeReadLoop() {
+		try {
+			executor.execute(this::readLoop);
+		} catch (RejectedExecutionException e) {
+			// The session is over. The paced frame is left to the garbage collector, since only the read loop may
+			// recycle it.
+		}
 	}
 
 	@Override
 	public void cancel() {
-		executor.shutdown();
+		cancelled = true;
 	}
 }
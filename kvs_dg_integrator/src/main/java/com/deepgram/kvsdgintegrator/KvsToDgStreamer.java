@@ -2,18 +2,20 @@ package com.deepgram.kvsdgintegrator;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
-import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
-import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
-import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
 import com.amazonaws.regions.Regions;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.reactivestreams.Publisher;
 import org.reactivestreams.Subscriber;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * Streams Amazon Connect calls to Deepgram for transcription. The data flow is:
@@ -26,47 +28,112 @@ public class KvsToDgStreamer {
 	private static final Logger logger = LogManager.getLogger(KvsToDgStreamer.class);
 
 	/**
-	 * Streams a call from KVS to Deepgram, blocking until the streaming session is finished.
+	 * Streams a call from KVS to Deepgram, blocking until the streaming session is finished. Everything the session
+	 * opens is registered with its {@link SessionScope}, which the caller owns and closes, so it is released however the
+	 * session ends.
+	 *
+	 * <p>The websocket to Deepgram connects while the KVS stream is opened, rather than after, since each takes a few
+	 * hundred milliseconds that would otherwise be lost from the start of the transcript. How long each step took is
+	 * recorded in the session's {@link StartupTrace}.
+	 *
+	 * <p>With {@code SESSION_CHECKPOINT_DIR} set, a contact that has a checkpoint is resumed from it rather than from
+	 * the start fragment in the arguments; see {@link SessionCheckpointer}.
+	 *
+	 * <p>With several sets of `dgParams`, the call is streamed to a websocket for each, and the session lasts until
+	 * all of them are finished. The call is still only read from KVS and merged once, and an {@link AudioFanOut} gives
+	 * each websocket its own copy of the audio. A websocket that fails is given up on without holding up the others,
+	 * though the session still fails once they're done.
 	 */
 	public static void doStreamingSession(
 			IntegratorArguments integratorArguments,
 			String deepgramApi,
-			String deepgramApiKey
+			String deepgramApiKey,
+			SessionScope scope
 	) throws Exception {
 		String streamARN = integratorArguments.kvsStream().arn();
-		String startFragmentNum = integratorArguments.kvsStream().startFragmentNumber();
 		String contactId = integratorArguments.contactId();
+		SessionCheckpointer checkpointer = SessionCheckpointer.forSession(contactId, integratorArguments.kvsStream());
+		if (checkpointer != null) {
+			// Closed after the websockets, so that the checkpoint saved reflects the last results
+			scope.register(checkpointer);
+		}
+		String startFragmentNum = checkpointer == null
+				? integratorArguments.kvsStream().startFragmentNumber()
+				: checkpointer.getStartFragmentNumber();
 		boolean enforceRealtime = integratorArguments.enforceRealtime();
+		IntegratorArguments.AudioChunking audioChunking = integratorArguments.audioChunking();
 
 		String streamName = streamARN.substring(streamARN.indexOf("/") + 1, streamARN.lastIndexOf("/"));
 
-		KvsStreamTrack fromCustomerTrack = getKvsStreamTrack(
-				streamName, startFragmentNum, KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName(), contactId);
-		KvsStreamTrack toCustomerTrack = getKvsStreamTrack(
-				streamName, startFragmentNum, KvsUtils.TrackName.AUDIO_TO_CUSTOMER.getName(), contactId);
+		List<Map<String, List<String>>> dgParamsSets = integratorArguments.dgParamsSets();
+		CompletableFuture<KvsStreamPublisher> publisher = new CompletableFuture<>();
+		// With one websocket, it subscribes to the publisher itself
+		CompletableFuture<AudioFanOut> fanOut = dgParamsSets.size() == 1
+				? null : publisher.thenApply(audio -> new AudioFanOut(audio, dgParamsSets.size()));
+		List<CompletableFuture<Void>> streams = new ArrayList<>(dgParamsSets.size());
+		for (int i = 0; i < dgParamsSets.size(); i++) {
+			int stream = i;
+			DeepgramStreamingClient client = new DeepgramStreamingClient(
+					deepgramApi, deepgramApiKey, dgParamsSets.get(stream), audioChunking);
+			TranscriptPipeline transcripts = TranscriptPipeline.forSession(contactId, stream);
+			if (transcripts != null) {
+				// Closed after the websocket, so that the last results are in the final batch
+				scope.register(transcripts);
+			}
+			CompletableFuture<? extends Publisher<ByteBuffer>> audio = fanOut == null
+					? publisher : fanOut.thenApply(audioFanOut -> audioFanOut.branch(stream));
+			CompletableFuture<Void> streaming = client.startStreamingToDeepgram(
+					audio, scope, transcripts, checkpointer == null ? null : checkpointer.newStream());
+			if (fanOut != null) {
+				// However the websocket ends, its branch doesn't need any more audio
+				streaming.whenComplete((v, e) -> fanOut.thenAccept(audioFanOut -> audioFanOut.abandon(stream)));
+			}
+			streams.add(streaming);
+		}
 
-		DeepgramStreamingClient client = new DeepgramStreamingClient(
-				deepgramApi, deepgramApiKey, integratorArguments.dgParams());
-		KvsStreamPublisher publisher = new KvsStreamPublisher(fromCustomerTrack, toCustomerTrack, enforceRealtime);
+		TrackMerger trackMerger;
+		try {
+			// Both tracks are read from a single GetMedia payload
+			trackMerger = getTrackMerger(
+					scope, streamName, startFragmentNum, contactId, audioChunking.chunkMs(), checkpointer);
+		} catch (Exception e) {
+			publisher.completeExceptionally(e);
+			throw e;
+		}
+		// When the session is asked to stop (the task is shutting down, or it was stopped through /sessions), it ends as
+		// it would at the end of the call: the audio merged so far is sent, followed by CloseStream, and Deepgram's last
+		// results are delivered
+		scope.onStop(trackMerger::endEarly);
+		publisher.complete(new KvsStreamPublisher(trackMerger, enforceRealtime, scope));
 
-		client.startStreamingToDeepgram(publisher).get();
+		// Waits for every websocket, and fails if any of them did
+		CompletableFuture.allOf(streams.toArray(new CompletableFuture<?>[0])).get();
+		if (checkpointer != null && !trackMerger.endedEarly()) {
+			checkpointer.callEnded();
+		}
 	}
 
-	private static KvsStreamTrack getKvsStreamTrack(
+	private static TrackMerger getTrackMerger(
+			SessionScope scope,
 			String streamName,
 			String startFragmentNum,
-			String trackName,
-			String contactId
-	) {
-		logger.trace("Creating KVS track object for track %s".formatted(trackName));
-
-		InputStream kvsInputStream = KvsUtils.getInputStreamFromKVS(streamName, REGION, startFragmentNum, getAWSCredentials());
-		StreamingMkvReader streamingMkvReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(kvsInputStream));
+			String contactId,
+			int chunkMs,
+			SessionCheckpointer checkpointer
+	) throws IOException {
+		logger.trace("Creating KVS track merger for stream %s".formatted(streamName));
 
-		KvsContactTagProcessor tagProcessor = new KvsContactTagProcessor(contactId);
-		FragmentMetadataVisitor fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+		InputStream kvsInputStream = KvsUtils.getInputStreamFromKVS(
+				streamName, REGION, startFragmentNum, getAWSCredentials(), scope.metrics().getStartupTrace());
+		scope.register(() -> KvsUtils.releaseInputStreamFromKVS(kvsInputStream));
 
-		return new KvsStreamTrack(streamingMkvReader, tagProcessor, fragmentVisitor, trackName);
+		KvsContactTagProcessor tagProcessor = new KvsContactTagProcessor(contactId, scope.metrics(), checkpointer);
+		TrackMerger trackMerger = new TrackMerger(KvsUtils.createFrameReader(kvsInputStream, tagProcessor), chunkMs);
+		scope.metrics().getTranscriptLatency().readFrom(trackMerger::getReadPosition);
+		if (checkpointer != null) {
+			checkpointer.readFrom(trackMerger::getReadPosition);
+		}
+		return trackMerger;
 	}
 
 	/**
@@ -80,13 +147,16 @@ public class KvsToDgStreamer {
 	 * Publishes {@link ByteBuffer}s containing merged multichannel audio of the two tracks.
 	 */
 	public record KvsStreamPublisher(
-			KvsStreamTrack fromCustomerTrack,
-			KvsStreamTrack toCustomerTrack,
-			boolean enforceRealtime
+			TrackMerger trackMerger,
+			boolean enforceRealtime,
+			Executor executor
 	) implements Publisher<ByteBuffer> {
 		@Override
 		public void subscribe(Subscriber<? super ByteBuffer> s) {
-			s.onSubscribe(new KvsStreamSubscription(s, fromCustomerTrack, toCustomerTrack, enforceRealtime));
+			KvsStreamSubscription subscription = new KvsStreamSubscription(
+					s, trackMerger, enforceRealtime, executor);
+			s.onSubscribe(subscription);
+			subscription.start();
 		}
 	}
 }
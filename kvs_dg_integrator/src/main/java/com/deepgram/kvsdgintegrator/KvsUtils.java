@@ -1,34 +1,21 @@
 package com.deepgram.kvsdgintegrator;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.client.builder.AwsClientBuilder;
-import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
-import com.amazonaws.kinesisvideo.parser.mkv.Frame;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvValue;
-import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
-import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
-import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+import com.amazonaws.internal.SdkFilterInputStream;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoClientBuilder;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
-import com.amazonaws.services.kinesisvideo.model.APIName;
-import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaResult;
 import com.amazonaws.services.kinesisvideo.model.StartSelector;
 import com.amazonaws.services.kinesisvideo.model.StartSelectorType;
 import org.apache.commons.lang3.Validate;
+import org.apache.http.conn.ConnectionReleaseTrigger;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.util.*;
+import java.io.SequenceInputStream;
 
 /**
  * Utility class to interact with KVS streams
@@ -51,92 +38,113 @@ public final class KvsUtils {
     }
 
     private static final Logger logger = LogManager.getLogger(KvsUtils.class);
+    // "connect" to use ConnectMkvFrameReader where it recognises the stream, or "library" to always use the KVS parser
+    private static final String MKV_PARSER = System.getenv().getOrDefault("KVS_MKV_PARSER", "connect");
+    // "sdk" to call GetMedia with the AWS SDK's blocking client, or "async" to call it with AsyncGetMediaClient
+    private static final String GET_MEDIA_CLIENT = System.getenv().getOrDefault("KVS_GET_MEDIA_CLIENT", "sdk");
 
     /**
-     * Fetches the next ByteBuffer of size 1024 bytes from the KVS stream by parsing the frame from the MkvElement.
-     * Each frame has a ByteBuffer of size 1024.
-     *
-     * <p>Actually, the above is the comment from Amazon Connect, but in reality some ByteBuffers returned by this function
-     * have a nonzero size less than 1024.
-     *
-     * <p>In my experience, each Connect call will have exactly one FROM_CUSTOMER buffer with an unusual number of bytes,
-     * and exactly one TO_CUSTOMER buffer with an unusual number of bytes. These will occur together right before the
-     * end of the call. After these unusual buffers, each track will yield ~5 more 1024-byte buffers and then the stream
-     * will end.
-     */
-    public static ByteBuffer getByteBufferFromStream(KvsStreamTrack kvsStreamTrack) throws MkvElementVisitException {
-        StreamingMkvReader streamingMkvReader = kvsStreamTrack.streamingMkvReader();
-        KvsContactTagProcessor tagProcessor = kvsStreamTrack.tagProcessor();
-        FragmentMetadataVisitor fragmentVisitor = kvsStreamTrack.fragmentVisitor();
-        String trackName = kvsStreamTrack.trackName();
-
-        while (streamingMkvReader.mightHaveNext()) {
-            Optional<MkvElement> mkvElementOptional = streamingMkvReader.nextIfAvailable();
-            if (mkvElementOptional.isPresent()) {
-                if (tagProcessor.shouldStopProcessing()) {
-                    return ByteBuffer.allocate(0);
-                }
-                MkvElement mkvElement = mkvElementOptional.get();
-                mkvElement.accept(fragmentVisitor);
-                if (MkvTypeInfos.SIMPLEBLOCK.equals(mkvElement.getElementMetaData().getTypeInfo())) {
-                    MkvDataElement dataElement = (MkvDataElement) mkvElement;
-                    @SuppressWarnings("unchecked")
-                    Frame frame = ((MkvValue<Frame>) dataElement.getValueCopy()).getVal();
-                    ByteBuffer audioBuffer = frame.getFrameData();
-
-                    long trackNumber = frame.getTrackNumber();
-                    MkvTrackMetadata metadata = fragmentVisitor.getMkvTrackMetadata(trackNumber);
-                    if (trackName.equals(metadata.getTrackName())) {
-                        return audioBuffer;
-                    } else if ("Track_audio/L16".equals(metadata.getTrackName()) && TrackName.AUDIO_FROM_CUSTOMER.getName().equals(trackName)) {
-                        // backwards compatibility
-                        return audioBuffer;
-                    }
-
-                    // do nothing
-                }
-            }
-        }
-
-        return ByteBuffer.allocate(0);
-    }
-
-    /**
-     * Makes a GetMedia call to KVS and retrieves the InputStream corresponding to the given streamName and startFragmentNum
+     * Makes a GetMedia call to KVS and retrieves the InputStream corresponding to the given streamName and startFragmentNum.
+     * The KVS clients and data endpoint come from the process-wide {@link KvsClientRegistry}, and the call is made with
+     * the client that {@code KVS_GET_MEDIA_CLIENT} chooses. Each step is marked in the session's startup trace.
      */
     public static InputStream getInputStreamFromKVS(String streamName,
                                                     Regions region,
                                                     String startFragmentNum,
-                                                    AWSCredentialsProvider awsCredentialsProvider) {
+                                                    AWSCredentialsProvider awsCredentialsProvider,
+                                                    StartupTrace startupTrace) throws IOException {
         Validate.notNull(streamName);
         Validate.notNull(region);
         Validate.notNull(startFragmentNum);
         Validate.notNull(awsCredentialsProvider);
+        Validate.notNull(startupTrace);
 
-        AmazonKinesisVideo amazonKinesisVideo = AmazonKinesisVideoClientBuilder.standard().build();
+        KvsClientRegistry kvsClientRegistry = KvsClientRegistry.getInstance();
+        String endPoint = kvsClientRegistry.getDataEndpoint(streamName);
+        startupTrace.mark(StartupTrace.Phase.DATA_ENDPOINT);
+        logger.info("StartSelector set to FRAGMENT_NUMBER: " + startFragmentNum);
 
-        String endPoint = amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest()
-                .withAPIName(APIName.GET_MEDIA)
-                .withStreamName(streamName)).getDataEndpoint();
+        InputStream payload;
+        try {
+            if ("async".equals(GET_MEDIA_CLIENT)) {
+                payload = AsyncGetMediaClient.getInstance().getMedia(
+                        endPoint, region, awsCredentialsProvider, streamName, startFragmentNum);
+            } else {
+                payload = getMediaWithSdk(endPoint, region, awsCredentialsProvider, streamName, startFragmentNum);
+            }
+        } catch (IOException | RuntimeException e) {
+            // The cached endpoint may be the problem, so look it up again next time
+            kvsClientRegistry.invalidateDataEndpoint(streamName);
+            throw e;
+        }
+        startupTrace.mark(StartupTrace.Phase.GET_MEDIA);
+        return payload;
+    }
 
-        AmazonKinesisVideoMediaClientBuilder amazonKinesisVideoMediaClientBuilder = AmazonKinesisVideoMediaClientBuilder.standard()
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endPoint, region.getName()))
-                .withCredentials(awsCredentialsProvider);
-        AmazonKinesisVideoMedia amazonKinesisVideoMedia = amazonKinesisVideoMediaClientBuilder.build();
+    private static InputStream getMediaWithSdk(String endPoint,
+                                               Regions region,
+                                               AWSCredentialsProvider awsCredentialsProvider,
+                                               String streamName,
+                                               String startFragmentNum) {
+        KvsClientRegistry kvsClientRegistry = KvsClientRegistry.getInstance();
+        AmazonKinesisVideoMedia amazonKinesisVideoMedia = kvsClientRegistry.getMediaClient(
+                endPoint, region, awsCredentialsProvider);
 
         StartSelector startSelector = new StartSelector()
                 .withStartSelectorType(StartSelectorType.FRAGMENT_NUMBER)
                 .withAfterFragmentNumber(startFragmentNum);
-        logger.info("StartSelector set to FRAGMENT_NUMBER: " + startFragmentNum);
-
         GetMediaResult getMediaResult = amazonKinesisVideoMedia.getMedia(new GetMediaRequest()
                 .withStreamName(streamName)
                 .withStartSelector(startSelector));
 
-        logger.info("GetMedia called on stream {} response {} requestId {}", streamName,
+        logger.info("GetMedia called on stream {} response {} requestId {} (endpoint cache hits {} misses {})",
+                streamName,
                 getMediaResult.getSdkHttpMetadata().getHttpStatusCode(),
-                getMediaResult.getSdkResponseMetadata().getRequestId());
+                getMediaResult.getSdkResponseMetadata().getRequestId(),
+                kvsClientRegistry.getDataEndpointCacheHits(),
+                kvsClientRegistry.getDataEndpointCacheMisses());
 
         return getMediaResult.getPayload();
     }
+
+    /**
+     * Creates the reader for a GetMedia payload. Unless configured otherwise, this is a {@link ConnectMkvFrameReader} if
+     * it recognises the start of the stream, and a {@link LibraryMkvFrameReader} over the same bytes if it doesn't.
+     */
+    public static MkvFrameReader createFrameReader(InputStream kvsInputStream, KvsContactTagProcessor tagProcessor)
+            throws IOException {
+        if ("library".equals(MKV_PARSER)) {
+            return new LibraryMkvFrameReader(kvsInputStream, tagProcessor);
+        }
+
+        ConnectMkvFrameReader connectFrameReader = new ConnectMkvFrameReader(kvsInputStream, tagProcessor);
+        if (connectFrameReader.recognizesStream()) {
+            return connectFrameReader;
+        }
+
+        logger.info("KVS stream does not have the expected Connect layout; falling back to the KVS parser library");
+        return new LibraryMkvFrameReader(
+                new SequenceInputStream(connectFrameReader.getProbedBytes(), kvsInputStream), tagProcessor);
+    }
+
+    /**
+     * Releases the HTTP connection behind a GetMedia payload.
+     *
+     * <p>Closing the payload normally would read the rest of the response so that the connection can be reused. That's
+     * fine once the stream has ended, but Connect reuses KVS streams across contacts, so a stream we stop reading early
+     * may never end. Instead we abort the underlying connection if we can reach it. An {@link AsyncGetMediaClient}
+     * payload is closed, which cancels its response and so closes its connection.
+     */
+    public static void releaseInputStreamFromKVS(InputStream kvsInputStream) throws IOException {
+        InputStream stream = kvsInputStream;
+        while (stream instanceof SdkFilterInputStream filterInputStream) {
+            stream = filterInputStream.getDelegateStream();
+        }
+
+        if (stream instanceof ConnectionReleaseTrigger connectionReleaseTrigger) {
+            connectionReleaseTrigger.abortConnection();
+        } else {
+            kvsInputStream.close();
+        }
+    }
 }
@@ -0,0 +1,143 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in milliseconds, in the manner of HdrHistogram: values are counted in buckets that widen
+ * with the value, 32 to each power of two, so every value is kept to within about 3% in a fixed 4KB, with nothing
+ * allocated as values are recorded. Values under 64ms are kept exactly, and anything over about 35 minutes is counted
+ * as 35 minutes.
+ *
+ * <p>Recording doesn't lock, so one histogram can be shared by every session on the task. Percentiles are read from a
+ * {@link Snapshot}, and the difference between two snapshots gives the distribution of the values recorded between
+ * them.
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 20;
+	static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+	private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sumMillis = new LongAdder();
+
+	public void record(long millis) {
+		long value = Math.min(Math.max(millis, 0), MAX_VALUE);
+		counts.incrementAndGet(bucketOf(value));
+		sumMillis.add(value);
+	}
+
+	/**
+	 * Forgets everything recorded so far. Values recorded at the same time may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		sumMillis.reset();
+	}
+
+	public Snapshot snapshot() {
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+		}
+		return new Snapshot(snapshot, sumMillis.sum());
+	}
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return The largest value counted in the bucket
+	 */
+	static long highestValueIn(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		int widthBits = exponent - SUB_BUCKET_BITS;
+		return (1L << exponent) + (subBucket << widthBits) + (1L << widthBits) - 1;
+	}
+
+	/**
+	 * The counts of a histogram at one moment.
+	 */
+	public static final class Snapshot {
+		public static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0);
+
+		private final long[] counts;
+		private final long sumMillis;
+		private final long count;
+
+		private Snapshot(long[] counts, long sumMillis) {
+			this.counts = counts;
+			this.sumMillis = sumMillis;
+			long total = 0;
+			for (long bucketCount : counts) {
+				total += bucketCount;
+			}
+			this.count = total;
+		}
+
+		/**
+		 * @return The values recorded since the earlier snapshot of the same histogram
+		 */
+		public Snapshot minus(Snapshot earlier) {
+			long[] difference = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				// A reset in between leaves counts lower than before
+				difference[i] = Math.max(0, counts[i] - earlier.counts[i]);
+			}
+			return new Snapshot(difference, Math.max(0, sumMillis - earlier.sumMillis));
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMeanMillis() {
+			return count == 0 ? 0 : (double) sumMillis / count;
+		}
+
+		public long getSumMillis() {
+			return sumMillis;
+		}
+
+		/**
+		 * @param percentile From 0 to 100
+		 * @return The value that the given percentage of values are at or below, rounded up to the top of its bucket,
+		 * or 0 if there are no values
+		 */
+		public long getValueAtPercentile(double percentile) {
+			Validate.inclusiveBetween(0.0, 100.0, percentile, "Percentile must be between 0 and 100");
+			if (count == 0) {
+				return 0;
+			}
+			long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= target) {
+					return highestValueIn(i);
+				}
+			}
+			return MAX_VALUE;
+		}
+
+		public long getMaxMillis() {
+			return getValueAtPercentile(100);
+		}
+	}
+}
@@ -13,14 +13,30 @@ import org.apache.logging.log4j.ThreadContext;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 
 public class Launcher {
 	private static final Logger logger = LogManager.getLogger(Launcher.class);
+	// Only streams the warmup sessions and exits, for the image build to record the classes they load in an AppCDS
+	// archive (see the Dockerfile)
+	private static final String CDS_TRAINING_ARG = "--cds-training";
 
 	public static void main(String[] args) throws IOException {
+		if (List.of(args).contains(CDS_TRAINING_ARG)) {
+			logger.info("Streaming warmup sessions for the AppCDS archive");
+			Warmer.warmUpSessions();
+			return;
+		}
+
 		logger.info("Launching integrator task");
 
 		String deepgramApi = System.getenv("DEEPGRAM_API");
@@ -37,30 +53,63 @@ public class Launcher {
 			return;
 		}
 
-		Warmer.warmUpApplication();
-		logger.info("Application warmup complete");
+		long warmUpStartMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+		Warmer.warmUpApplication(deepgramApi);
+		long warmUpMillis = ManagementFactory.getRuntimeMXBean().getUptime() - warmUpStartMillis;
+		logger.info("Application warmup complete in %sms".formatted(warmUpMillis));
+
+		int port = Integer.parseInt(System.getenv().getOrDefault("PORT", "80"));
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		AdmissionController admissionController = AdmissionController.getInstance();
+		admissionController.startSampling();
 
-		HttpServer server = HttpServer.create(new InetSocketAddress(80), 0);
+		ObjectMapper objectMapper = new ObjectMapper();
+		// Healthy even when full: the target group would have ECS replace a task that failed its health checks, ending
+		// every call on it. A full task turns away new sessions instead, and reports its load here for monitoring. Only
+		// a task that's shutting down fails, so that the load balancer stops sending it calls.
 		server.createContext("/health-check", httpExchange -> {
 			try (httpExchange) {
-				httpExchange.sendResponseHeaders(200, 0);
+				AdmissionController.Load load = admissionController.getLoad();
+				byte[] body = objectMapper.writeValueAsBytes(load);
+				httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+				httpExchange.sendResponseHeaders(load.draining() ? 503 : 200, body.length);
+				httpExchange.getResponseBody().write(body);
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
 		});
-		server.createContext("/start-session", new StartSessionHandler(deepgramApi, deepgramApiKey));
-		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/metrics", httpExchange -> {
+			try (httpExchange) {
+				byte[] body = Metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+				httpExchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				httpExchange.sendResponseHeaders(200, body.length);
+				httpExchange.getResponseBody().write(body);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		SessionManager sessionManager = new SessionManager(deepgramApi, deepgramApiKey);
+		server.createContext("/start-session", new StartSessionHandler(sessionManager, admissionController));
+		server.createContext("/sessions", new SessionsHandler(sessionManager));
+		// Each request runs on its own virtual thread, as does each session (see SessionManager)
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
 		server.start();
+		GracefulShutdown.install(server, admissionController);
+		Metrics.startEmfPublishing();
+		// From the JVM starting, so that this includes loading classes, which the AppCDS archive cuts
+		logger.info("Ready for sessions %sms after the JVM started, %sms of it warming up".formatted(
+				ManagementFactory.getRuntimeMXBean().getUptime(), warmUpMillis));
 	}
 
 	static class StartSessionHandler implements HttpHandler {
-		private final String deepgramApi;
-		private final String deepgramApiKey;
+		private final SessionManager sessionManager;
+		private final AdmissionController admissionController;
+		private final ObjectMapper objectMapper = new ObjectMapper();
 		private static final Logger logger = LogManager.getLogger(StartSessionHandler.class);
 
-		public StartSessionHandler(String deepgramApi, String deepgramApiKey) {
-			this.deepgramApi = Validate.notNull(deepgramApi);
-			this.deepgramApiKey = Validate.notNull(deepgramApiKey);
+		public StartSessionHandler(SessionManager sessionManager, AdmissionController admissionController) {
+			this.sessionManager = Validate.notNull(sessionManager);
+			this.admissionController = Validate.notNull(admissionController);
 		}
 
 		@Override
@@ -69,53 +118,69 @@ public class Launcher {
 			ThreadContext.put("requestId", requestId);
 
 			try {
-				handleInner(httpExchange);
+				handleInner(requestId, httpExchange);
 			} finally {
 				ThreadContext.clearAll();
 			}
 		}
 
-		private void handleInner(HttpExchange httpExchange) {
+		private void handleInner(String requestId, HttpExchange httpExchange) {
 			logger.info("Received start-session request");
 
-			IntegratorArguments integratorArguments;
+			// Checked before reading the body, so that a full task answers as quickly as it can
+			AdmissionController.Slot slot = admissionController.tryAdmit();
+			if (slot == null) {
+				AdmissionController.Load load = admissionController.getLoad();
+				String reason = load.draining() ? "Task is shutting down" : "Task is at capacity";
+				logger.warn("Turning away start-session request: %s (%s)".formatted(reason, load));
+				try (httpExchange) {
+					sendServiceUnavailable(reason, httpExchange);
+				} catch (IOException e) {
+					logger.error("IOException while turning away start-session request", e);
+				}
+				return;
+			}
+
+			boolean started = false;
+			try {
+				started = handleAdmitted(requestId, slot, httpExchange);
+			} finally {
+				// Once started, the session gives up the slot when it ends
+				if (!started) {
+					slot.close();
+				}
+			}
+		}
+
+		/**
+		 * @return true if the session was started
+		 */
+		private boolean handleAdmitted(String requestId, AdmissionController.Slot slot, HttpExchange httpExchange) {
 			try (httpExchange) {
 				InputStream requestBody = httpExchange.getRequestBody();
 
+				IntegratorArguments integratorArguments;
 				try {
-					ObjectMapper objectMapper = new ObjectMapper();
 					integratorArguments = objectMapper.readValue(requestBody, IntegratorArguments.class);
 				} catch (JsonProcessingException e) {
 					logger.error("Error parsing JSON for start-session request", e);
 					sendBadRequest("Error parsing JSON body for start-session request", httpExchange);
-					return;
+					return false;
 				}
 
-				sendSuccess(httpExchange);
+				Validate.notNull(integratorArguments);
+				logger.info("Integrator Arguments: %s".formatted(integratorArguments));
+				sendSuccess(objectMapper.writeValueAsString(Map.of("requestId", requestId)), httpExchange);
+				sessionManager.start(integratorArguments, requestId, slot);
+				return true;
 			} catch (IOException e) {
 				logger.error("IOException while handling start-session request", e);
-				return;
+				return false;
 			}
-
-			Validate.notNull(integratorArguments);
-			logger.info("Integrator Arguments: %s".formatted(integratorArguments));
-
-			try {
-				KvsToDgStreamer.doStreamingSession(
-						integratorArguments, this.deepgramApi, this.deepgramApiKey);
-			} catch (Exception e) {
-				logger.error("Exception during integrator session", e);
-				return;
-			}
-
-			logger.info("Session completed successfully");
-		}
-
-		private void sendSuccess(HttpExchange httpExchange) throws IOException {
-			sendSuccess("", httpExchange);
 		}
 
 		private void sendSuccess(String body, HttpExchange httpExchange) throws IOException {
+			httpExchange.getResponseHeaders().set("Content-Type", "application/json");
 			sendResponse(200, body, httpExchange);
 		}
 
@@ -123,6 +188,12 @@ public class Launcher {
 			sendResponse(400, body, httpExchange);
 		}
 
+		private void sendServiceUnavailable(String body, HttpExchange httpExchange) throws IOException {
+			// The load balancer will most likely send the retry to another task
+			httpExchange.getResponseHeaders().set("Retry-After", "1");
+			sendResponse(503, body, httpExchange);
+		}
+
 		private void sendResponse(int statusCode, String body, HttpExchange httpExchange) throws IOException {
 			httpExchange.sendResponseHeaders(statusCode, body.getBytes().length);
 			OutputStream os = httpExchange.getResponseBody();
@@ -130,4 +201,105 @@ public class Launcher {
 			os.close();
 		}
 	}
+
+	/**
+	 * Lists, inspects and stops the task's running sessions:
+	 * <ul>
+	 *     <li>{@code GET /sessions} lists them</li>
+	 *     <li>{@code GET /sessions/{id}} lists those with that request id or contact id</li>
+	 *     <li>{@code DELETE /sessions/{id}} stops them, and {@code DELETE /sessions/{id}?force=true} forces them</li>
+	 * </ul>
+	 * Query parameter names and the force value are case-insensitive, and force may also be {@code 1} or {@code 0}. A
+	 * force value that isn't one of those is answered with 400, rather than the sessions being stopped without it.
+	 */
+	static class SessionsHandler implements HttpHandler {
+		private static final String PATH = "/sessions";
+		private final SessionManager sessionManager;
+		private final ObjectMapper objectMapper = new ObjectMapper();
+		private static final Logger logger = LogManager.getLogger(SessionsHandler.class);
+
+		public SessionsHandler(SessionManager sessionManager) {
+			this.sessionManager = Validate.notNull(sessionManager);
+		}
+
+		@Override
+		public void handle(HttpExchange httpExchange) {
+			try (httpExchange) {
+				String path = httpExchange.getRequestURI().getPath();
+				String id = path.startsWith(PATH + "/") && path.length() > PATH.length() + 1
+						? path.substring(PATH.length() + 1)
+						: null;
+				String method = httpExchange.getRequestMethod();
+
+				if (id == null && !path.equals(PATH) && !path.equals(PATH + "/")) {
+					httpExchange.sendResponseHeaders(404, -1);
+				} else if (method.equals("GET") && id == null) {
+					sendJson(200, sessionManager.list(), httpExchange);
+				} else if (method.equals("GET")) {
+					List<SessionManager.SessionInfo> sessions = sessionManager.find(id);
+					sendJson(sessions.isEmpty() ? 404 : 200, sessions, httpExchange);
+				} else if (method.equals("DELETE") && id != null) {
+					Map<String, String> params;
+					try {
+						params = parseQuery(httpExchange.getRequestURI().getRawQuery());
+					} catch (IllegalArgumentException e) {
+						sendJson(400, Map.of("error", "Malformed query: %s".formatted(e.getMessage())), httpExchange);
+						return;
+					}
+					String forceParam = params.get("force");
+					Boolean force = forceParam == null ? Boolean.FALSE : parseBoolean(forceParam);
+					if (force == null) {
+						sendJson(400, Map.of("error", "force must be true or false, not '%s'".formatted(forceParam)),
+								httpExchange);
+						return;
+					}
+					List<SessionManager.SessionInfo> sessions = sessionManager.stop(id, force);
+					sendJson(sessions.isEmpty() ? 404 : 202, sessions, httpExchange);
+				} else {
+					httpExchange.getResponseHeaders().set("Allow", id == null ? "GET" : "GET, DELETE");
+					httpExchange.sendResponseHeaders(405, -1);
+				}
+			} catch (IOException e) {
+				logger.error("IOException while handling sessions request", e);
+			}
+		}
+
+		/**
+		 * @return The query's parameters by lower-case name, decoded, with the last value of any given more than once
+		 * @throws IllegalArgumentException If the query has a malformed escape
+		 */
+		static Map<String, String> parseQuery(String rawQuery) {
+			Map<String, String> params = new HashMap<>();
+			if (rawQuery == null || rawQuery.isEmpty()) {
+				return params;
+			}
+			for (String param : rawQuery.split("&")) {
+				int equals = param.indexOf('=');
+				String name = equals < 0 ? param : param.substring(0, equals);
+				String value = equals < 0 ? "" : param.substring(equals + 1);
+				params.put(URLDecoder.decode(name, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT),
+						URLDecoder.decode(value, StandardCharsets.UTF_8));
+			}
+			return params;
+		}
+
+		/**
+		 * @return The value as a boolean, or null if it isn't true, false, 1 or 0
+		 */
+		static Boolean parseBoolean(String value) {
+			if (value.equalsIgnoreCase("true") || value.equals("1")) {
+				return true;
+			} else if (value.equalsIgnoreCase("false") || value.equals("0")) {
+				return false;
+			}
+			return null;
+		}
+
+		private void sendJson(int statusCode, Object value, HttpExchange httpExchange) throws IOException {
+			byte[] body = objectMapper.writeValueAsBytes(value);
+			httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+			httpExchange.sendResponseHeaders(statusCode, body.length);
+			httpExchange.getResponseBody().write(body);
+		}
+	}
 }
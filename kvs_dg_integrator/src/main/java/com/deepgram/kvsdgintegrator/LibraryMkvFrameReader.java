@@ -0,0 +1,121 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+import org.apache.commons.lang3.Validate;
+
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Optional;
+
+/**
+ * Reads frames with the general-purpose KVS parser library. This handles any MKV layout, so we fall back to it for
+ * streams that {@link ConnectMkvFrameReader} doesn't recognise.
+ */
+public class LibraryMkvFrameReader implements MkvFrameReader {
+    private final StreamingMkvReader streamingMkvReader;
+    private final KvsContactTagProcessor tagProcessor;
+    private final FragmentMetadataVisitor fragmentVisitor;
+    private final SimpleBlockChannel simpleBlockChannel = new SimpleBlockChannel();
+    // KVS always uses the Matroska default timecode scale of 1ms, so we don't look at the segment's
+    private long clusterTimecode = 0;
+
+    public LibraryMkvFrameReader(InputStream kvsInputStream, KvsContactTagProcessor tagProcessor) {
+        Validate.notNull(kvsInputStream);
+        this.tagProcessor = Validate.notNull(tagProcessor);
+        this.streamingMkvReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(kvsInputStream));
+        this.fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+    }
+
+    @Override
+    public boolean readNextFrame(FrameConsumer consumer) throws MkvElementVisitException {
+        while (streamingMkvReader.mightHaveNext()) {
+            Optional<MkvElement> mkvElementOptional = streamingMkvReader.nextIfAvailable();
+            if (mkvElementOptional.isPresent()) {
+                if (tagProcessor.shouldStopProcessing()) {
+                    return false;
+                }
+                MkvElement mkvElement = mkvElementOptional.get();
+                mkvElement.accept(fragmentVisitor);
+                if (MkvTypeInfos.TIMECODE.equals(mkvElement.getElementMetaData().getTypeInfo())) {
+                    clusterTimecode = ((BigInteger) ((MkvDataElement) mkvElement).getValueCopy().getVal()).longValue();
+                } else if (MkvTypeInfos.SIMPLEBLOCK.equals(mkvElement.getElementMetaData().getTypeInfo())) {
+                    ByteBuffer block = copySimpleBlock((MkvDataElement) mkvElement);
+                    long trackNumber = EbmlUtils.readVint(block);
+                    short relativeTimecode = block.getShort();
+                    int frameStart = block.position() + 1; // skip the flags
+
+                    String trackName = resolveTrackName(trackNumber);
+                    if (trackName != null) {
+                        consumer.onFrame(trackName, clusterTimecode + relativeTimecode, block, frameStart,
+                                block.limit() - frameStart);
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the SimpleBlock's data (without its EBML id and size) into a reusable buffer, rather than allocating a
+     * copy with {@link MkvDataElement#getValueCopy()}.
+     */
+    private ByteBuffer copySimpleBlock(MkvDataElement dataElement) throws MkvElementVisitException {
+        simpleBlockChannel.target.clear();
+        dataElement.writeToChannel(simpleBlockChannel);
+
+        ByteBuffer block = simpleBlockChannel.target.flip();
+        EbmlUtils.readId(block);
+        EbmlUtils.readVint(block); // element size
+        return block;
+    }
+
+    private String resolveTrackName(long trackNumber) {
+        MkvTrackMetadata metadata = fragmentVisitor.getMkvTrackMetadata(trackNumber);
+        if (metadata == null) {
+            return null;
+        }
+        if ("Track_audio/L16".equals(metadata.getTrackName())) {
+            // backwards compatibility
+            return KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName();
+        }
+        return metadata.getTrackName();
+    }
+
+    /**
+     * Receives an element written by the parser, growing its buffer if the element doesn't fit.
+     */
+    private static final class SimpleBlockChannel implements WritableByteChannel {
+        // Connect's SimpleBlocks are 1024 bytes of audio plus a few bytes of EBML and block headers
+        private ByteBuffer target = ByteBuffer.allocate(2048);
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            if (length > target.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(target.capacity() * 2, target.position() + length));
+                target = larger.put(target.flip());
+            }
+            target.put(src);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.deepgram.kvsdgintegrator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the audio just as it comes from KVS.
+ */
+public final class Linear16Encoder implements AudioEncoder {
+	@Override
+	public String deepgramParams() {
+		return "encoding=linear16&sample_rate=8000&multichannel=true&channels=2";
+	}
+
+	@Override
+	public int maxEncodedBytes(int pcmBytes) {
+		return pcmBytes;
+	}
+
+	@Override
+	public void encode(ByteBuffer pcm, ByteBuffer out) {
+		out.put(pcm);
+	}
+
+	@Override
+	public boolean isPassthrough() {
+		return true;
+	}
+}
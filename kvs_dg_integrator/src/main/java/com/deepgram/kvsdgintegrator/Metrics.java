@@ -0,0 +1,465 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.management.OperatingSystemMXBean;
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The task's metrics, for sizing tasks and setting autoscaling policy.
+ *
+ * <p>Counters are task-wide and only ever go up. Each session also has a {@link SessionMetrics}, opened and closed with
+ * its {@link SessionScope}, for what is only meaningful per session (how much audio is queued for Deepgram, and how far
+ * behind the live call we're reading).
+ *
+ * <p>The metrics are served in the Prometheus text format on {@code /metrics}, and, every
+ * {@code METRICS_EMF_INTERVAL_SECONDS}, written as one line of CloudWatch Embedded Metric Format to the {@code EmfMetrics}
+ * logger, which CloudWatch Logs turns into metrics without any API calls. EMF lines have task-wide totals only: the
+ * counters' increase since the last line, the number of sessions and how full the task is, their total queued audio and
+ * the largest lag, and the percentiles of the transcript latency since the last line (see {@link TranscriptLatency}).
+ */
+public final class Metrics {
+	private static final Logger logger = LogManager.getLogger(Metrics.class);
+	private static final Logger emfLogger = LogManager.getLogger("EmfMetrics");
+	private static final long EMF_INTERVAL_SECONDS = Long.parseLong(
+			System.getenv().getOrDefault("METRICS_EMF_INTERVAL_SECONDS", "60"));
+	private static final String EMF_NAMESPACE = System.getenv().getOrDefault("METRICS_EMF_NAMESPACE", "KvsDgIntegrator");
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final OperatingSystemMXBean OPERATING_SYSTEM =
+			ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class);
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	public static final Counter FRAMES_READ_FROM_CUSTOMER = new Counter(
+			"kvs_dg_frames_read_total", "track=\"AUDIO_FROM_CUSTOMER\"", "FramesReadFromCustomer", "Count", 1,
+			"Audio frames read from KVS, per track");
+	public static final Counter FRAMES_READ_TO_CUSTOMER = new Counter(
+			"kvs_dg_frames_read_total", "track=\"AUDIO_TO_CUSTOMER\"", "FramesReadToCustomer", "Count", 1,
+			"Audio frames read from KVS, per track");
+	public static final Counter FRAMES_DROPPED = new Counter(
+			"kvs_dg_frames_dropped_total", null, "FramesDropped", "Count", 1,
+			"Frames whose audio was dropped, wholly or partly, for overlapping audio already merged");
+	public static final Counter CHUNKS_DROPPED = new Counter(
+			"kvs_dg_audio_chunks_dropped_total", null, "AudioChunksDropped", "Count", 1,
+			"Chunks of audio dropped from full send queues under the drop_oldest policy");
+	public static final Counter AUDIO_BYTES_SENT = new Counter(
+			"kvs_dg_audio_bytes_sent_total", null, "AudioBytesSent", "Bytes", 1,
+			"Bytes of linear16 audio sent to Deepgram, before encoding");
+	public static final Counter ENCODED_BYTES_SENT = new Counter(
+			"kvs_dg_encoded_bytes_sent_total", null, "EncodedBytesSent", "Bytes", 1,
+			"Bytes of encoded audio sent to Deepgram");
+	public static final Counter MESSAGES_SENT = new Counter(
+			"kvs_dg_messages_sent_total", null, "MessagesSent", "Count", 1,
+			"Websocket messages of audio sent to Deepgram");
+	public static final Counter PACING_SLEEP_NANOS = new Counter(
+			"kvs_dg_pacing_sleep_seconds_total", null, "PacingSleepSeconds", "Seconds", 1e-9,
+			"Time that realtime sessions spent waiting for their audio to be due");
+	public static final Counter SESSIONS_REJECTED = new Counter(
+			"kvs_dg_sessions_rejected_total", null, "SessionsRejected", "Count", 1,
+			"Start-session requests turned away because the task was full or shutting down");
+
+	public static final Counter SESSIONS_STARTED = new Counter(
+			"kvs_dg_sessions_started_total", null, "SessionsStarted", "Count", 1,
+			"Sessions that have sent their first audio to Deepgram");
+	public static final Counter TIME_TO_FIRST_AUDIO_NANOS = new Counter(
+			"kvs_dg_time_to_first_audio_seconds_total", null, "TimeToFirstAudioSeconds", "Seconds", 1e-9,
+			"Time from the start of each session to its first audio reaching Deepgram, summed over sessions");
+
+	/**
+	 * How long after its audio was produced each interim result arrived, over every session
+	 */
+	public static final LatencyHistogram INTERIM_RESULT_LATENCY = new LatencyHistogram();
+	/**
+	 * How long after its audio was produced each final result arrived, over every session
+	 */
+	public static final LatencyHistogram FINAL_RESULT_LATENCY = new LatencyHistogram();
+	private static final double[] LATENCY_QUANTILES = {0.5, 0.9, 0.99};
+
+	private static final List<Counter> COUNTERS = List.of(
+			FRAMES_READ_FROM_CUSTOMER, FRAMES_READ_TO_CUSTOMER, FRAMES_DROPPED, CHUNKS_DROPPED, AUDIO_BYTES_SENT,
+			ENCODED_BYTES_SENT, MESSAGES_SENT, PACING_SLEEP_NANOS, SESSIONS_REJECTED, SESSIONS_STARTED,
+			TIME_TO_FIRST_AUDIO_NANOS);
+	private static final Set<SessionMetrics> SESSIONS = ConcurrentHashMap.newKeySet();
+	// The latencies at the last EMF line
+	private static LatencyHistogram.Snapshot emfInterimLatencyReported = LatencyHistogram.Snapshot.EMPTY;
+	private static LatencyHistogram.Snapshot emfFinalLatencyReported = LatencyHistogram.Snapshot.EMPTY;
+
+	private Metrics() {
+	}
+
+	/**
+	 * A task-wide count.
+	 */
+	public static final class Counter {
+		private final String name;
+		private final String labels;
+		private final String emfName;
+		private final String emfUnit;
+		private final double scale;
+		private final String help;
+		private final LongAdder count = new LongAdder();
+		// The count at the last EMF line
+		private long emfReported = 0;
+
+		/**
+		 * @param labels Prometheus labels, e.g. {@code track="AUDIO_FROM_CUSTOMER"}, or null
+		 * @param scale  What one unit of the count is in the metric's unit, e.g. 1e-9 for nanoseconds counted as seconds
+		 */
+		private Counter(String name, String labels, String emfName, String emfUnit, double scale, String help) {
+			this.name = name;
+			this.labels = labels;
+			this.emfName = emfName;
+			this.emfUnit = emfUnit;
+			this.scale = scale;
+			this.help = help;
+		}
+
+		public void increment() {
+			count.increment();
+		}
+
+		public void add(long amount) {
+			count.add(amount);
+		}
+
+		public long get() {
+			return count.sum();
+		}
+	}
+
+	/**
+	 * The metrics of one session, labelled with its contact id.
+	 */
+	public static final class SessionMetrics implements AutoCloseable {
+		private final String contactId;
+		private final StartupTrace startupTrace = new StartupTrace(System.nanoTime());
+		private final TranscriptLatency transcriptLatency = new TranscriptLatency(
+				INTERIM_RESULT_LATENCY, FINAL_RESULT_LATENCY, System::currentTimeMillis);
+		// One of each for each of the session's Deepgram streams
+		private final List<IntSupplier> sendQueueDepths = new CopyOnWriteArrayList<>();
+		private final List<LongSupplier> audioBytesSent = new CopyOnWriteArrayList<>();
+		// Negative until the first producer timestamp is read
+		private volatile long lagBehindLiveMillis = -1;
+		// Null until the first fragment number is read
+		private volatile String fragmentNumber = null;
+
+		private SessionMetrics(String contactId) {
+			this.contactId = contactId;
+		}
+
+		/**
+		 * @param sendQueueDepth How many chunks of the session's audio are waiting to be sent on one of its Deepgram
+		 *                       streams
+		 */
+		public void addSendQueueDepth(IntSupplier sendQueueDepth) {
+			sendQueueDepths.add(Validate.notNull(sendQueueDepth));
+		}
+
+		/**
+		 * @param audioBytesSent How much of the session's audio has been sent on one of its Deepgram streams, before
+		 *                       encoding
+		 */
+		public void addAudioBytesSent(LongSupplier audioBytesSent) {
+			this.audioBytesSent.add(Validate.notNull(audioBytesSent));
+		}
+
+		/**
+		 * Records the number of the KVS fragment being read.
+		 */
+		public void recordFragmentNumber(String fragmentNumber) {
+			this.fragmentNumber = fragmentNumber;
+			startupTrace.mark(StartupTrace.Phase.FIRST_FRAGMENT);
+		}
+
+		/**
+		 * Records how far behind the live call we're reading, from the producer timestamp (in epoch milliseconds) of
+		 * the KVS fragment just read.
+		 */
+		public void recordProducerTimestamp(long producerTimestampMillis) {
+			lagBehindLiveMillis = Math.max(0, System.currentTimeMillis() - producerTimestampMillis);
+			transcriptLatency.fragmentProduced(producerTimestampMillis);
+		}
+
+		/**
+		 * @return How far behind the call the session's transcript results arrive
+		 */
+		public TranscriptLatency getTranscriptLatency() {
+			return transcriptLatency;
+		}
+
+		/**
+		 * @return How long each step of the session's setup took, which the session records as it starts
+		 */
+		public StartupTrace getStartupTrace() {
+			return startupTrace;
+		}
+
+		/**
+		 * @return How many chunks are waiting to be sent on the session's Deepgram stream furthest behind
+		 */
+		public int getSendQueueDepth() {
+			int depth = 0;
+			for (IntSupplier sendQueueDepth : sendQueueDepths) {
+				depth = Math.max(depth, sendQueueDepth.getAsInt());
+			}
+			return depth;
+		}
+
+		/**
+		 * @return How much of the session's audio has been sent to Deepgram, on the stream that has sent the most. Every
+		 * stream is sent the same audio, so it isn't counted again for each.
+		 */
+		public long getAudioBytesSent() {
+			long sent = 0;
+			for (LongSupplier streamBytesSent : audioBytesSent) {
+				sent = Math.max(sent, streamBytesSent.getAsLong());
+			}
+			return sent;
+		}
+
+		/**
+		 * @return How far behind the live call we're reading, or a negative number if we don't know yet
+		 */
+		public long getLagBehindLiveMillis() {
+			return lagBehindLiveMillis;
+		}
+
+		/**
+		 * @return The number of the KVS fragment being read, or null if we don't know yet
+		 */
+		public String getFragmentNumber() {
+			return fragmentNumber;
+		}
+
+		/**
+		 * Called once the session has ended, and with it its results.
+		 */
+		@Override
+		public void close() {
+			SESSIONS.remove(this);
+			transcriptLatency.logSummary();
+		}
+	}
+
+	/**
+	 * Sets the counters back to zero, so that the warmup sessions the task streams before it's ready don't count.
+	 */
+	static synchronized void resetCounters() {
+		for (Counter counter : COUNTERS) {
+			counter.count.reset();
+			counter.emfReported = 0;
+		}
+		INTERIM_RESULT_LATENCY.reset();
+		FINAL_RESULT_LATENCY.reset();
+		emfInterimLatencyReported = LatencyHistogram.Snapshot.EMPTY;
+		emfFinalLatencyReported = LatencyHistogram.Snapshot.EMPTY;
+	}
+
+	public static SessionMetrics openSession(String contactId) {
+		SessionMetrics session = new SessionMetrics(Validate.notNull(contactId));
+		SESSIONS.add(session);
+		return session;
+	}
+
+	/**
+	 * Starts writing EMF lines, unless {@code METRICS_EMF_INTERVAL_SECONDS} is 0.
+	 */
+	public static void startEmfPublishing() {
+		if (EMF_INTERVAL_SECONDS <= 0) {
+			return;
+		}
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "emf-metrics");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.scheduleAtFixedRate(() -> {
+			try {
+				emfLogger.info(toEmf(System.currentTimeMillis()));
+			} catch (Exception e) {
+				logger.warn("Could not write EMF metrics", e);
+			}
+		}, EMF_INTERVAL_SECONDS, EMF_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return All the metrics in the Prometheus text exposition format
+	 */
+	public static String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+		String lastName = null;
+		for (Counter counter : COUNTERS) {
+			if (!counter.name.equals(lastName)) {
+				writeHeader(out, counter.name, "counter", counter.help);
+				lastName = counter.name;
+			}
+			writeSample(out, counter.name, counter.labels, counter.get() * counter.scale);
+		}
+
+		writeHeader(out, "process_cpu_seconds_total", "counter", "CPU time used by the task's JVM");
+		writeSample(out, "process_cpu_seconds_total", null, OPERATING_SYSTEM.getProcessCpuTime() / 1e9);
+		writeHeader(out, "jvm_memory_heap_used_bytes", "gauge", "Heap in use");
+		writeSample(out, "jvm_memory_heap_used_bytes", null, MEMORY.getHeapMemoryUsage().getUsed());
+
+		writeHeader(out, "kvs_dg_transcript_latency_seconds", "summary",
+				"Time from when the audio of each transcript result was produced to when the result arrived");
+		writeLatency(out, "interim", INTERIM_RESULT_LATENCY.snapshot());
+		writeLatency(out, "final", FINAL_RESULT_LATENCY.snapshot());
+
+		writeHeader(out, "kvs_dg_active_sessions", "gauge", "Sessions running on this task");
+		writeSample(out, "kvs_dg_active_sessions", null, SessionScope.getActiveSessionCount());
+		writeHeader(out, "kvs_dg_session_limit", "gauge", "Sessions this task admits before turning calls away");
+		writeSample(out, "kvs_dg_session_limit", null, AdmissionController.getInstance().getSessionLimit());
+
+		List<SessionMetrics> sessions = List.copyOf(SESSIONS);
+		writeHeader(out, "kvs_dg_send_queue_depth", "gauge", "Chunks of audio waiting to be sent to Deepgram");
+		for (SessionMetrics session : sessions) {
+			writeSample(out, "kvs_dg_send_queue_depth", contactLabel(session),
+					session.getSendQueueDepth());
+		}
+		writeHeader(out, "kvs_dg_lag_behind_live_seconds", "gauge",
+				"How long ago the KVS fragment being read was produced");
+		for (SessionMetrics session : sessions) {
+			if (session.lagBehindLiveMillis >= 0) {
+				writeSample(out, "kvs_dg_lag_behind_live_seconds", contactLabel(session),
+						session.lagBehindLiveMillis / 1000.0);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return One EMF log line, with the counters' increase since the last one
+	 */
+	static synchronized String toEmf(long timestampMillis) throws IOException {
+		int sendQueueDepth = 0;
+		long maxLagMillis = 0;
+		LatencyHistogram.Snapshot interimLatency = INTERIM_RESULT_LATENCY.snapshot();
+		LatencyHistogram.Snapshot finalLatency = FINAL_RESULT_LATENCY.snapshot();
+		LatencyHistogram.Snapshot interimLatencySinceReported = interimLatency.minus(emfInterimLatencyReported);
+		LatencyHistogram.Snapshot finalLatencySinceReported = finalLatency.minus(emfFinalLatencyReported);
+		emfInterimLatencyReported = interimLatency;
+		emfFinalLatencyReported = finalLatency;
+		for (SessionMetrics session : SESSIONS) {
+			sendQueueDepth += session.getSendQueueDepth();
+			maxLagMillis = Math.max(maxLagMillis, session.lagBehindLiveMillis);
+		}
+
+		StringWriter out = new StringWriter();
+		try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+			generator.writeStartObject();
+			generator.writeObjectFieldStart("_aws");
+			generator.writeNumberField("Timestamp", timestampMillis);
+			generator.writeArrayFieldStart("CloudWatchMetrics");
+			generator.writeStartObject();
+			generator.writeStringField("Namespace", EMF_NAMESPACE);
+			generator.writeArrayFieldStart("Dimensions");
+			generator.writeStartArray();
+			generator.writeEndArray();
+			generator.writeEndArray();
+			generator.writeArrayFieldStart("Metrics");
+			for (Counter counter : COUNTERS) {
+				writeEmfDefinition(generator, counter.emfName, counter.emfUnit);
+			}
+			writeEmfDefinition(generator, "ActiveSessions", "Count");
+			writeEmfDefinition(generator, "SessionUtilization", "Percent");
+			writeEmfDefinition(generator, "SendQueueDepth", "Count");
+			writeEmfDefinition(generator, "MaxLagBehindLiveSeconds", "Seconds");
+			// Only with results to measure, since there's no latency to report without them
+			if (interimLatencySinceReported.getCount() > 0) {
+				writeEmfDefinition(generator, "InterimResultLatencyP50Seconds", "Seconds");
+				writeEmfDefinition(generator, "InterimResultLatencyP99Seconds", "Seconds");
+			}
+			if (finalLatencySinceReported.getCount() > 0) {
+				writeEmfDefinition(generator, "FinalResultLatencyP50Seconds", "Seconds");
+				writeEmfDefinition(generator, "FinalResultLatencyP99Seconds", "Seconds");
+			}
+			generator.writeEndArray();
+			generator.writeEndObject();
+			generator.writeEndArray();
+			generator.writeEndObject();
+
+			for (Counter counter : COUNTERS) {
+				long count = counter.get();
+				generator.writeNumberField(counter.emfName, (count - counter.emfReported) * counter.scale);
+				counter.emfReported = count;
+			}
+			generator.writeNumberField("ActiveSessions", SessionScope.getActiveSessionCount());
+			generator.writeNumberField("SessionUtilization", AdmissionController.getInstance().getLoad().utilization() * 100);
+			generator.writeNumberField("SendQueueDepth", sendQueueDepth);
+			generator.writeNumberField("MaxLagBehindLiveSeconds", maxLagMillis / 1000.0);
+			if (interimLatencySinceReported.getCount() > 0) {
+				generator.writeNumberField("InterimResultLatencyP50Seconds",
+						interimLatencySinceReported.getValueAtPercentile(50) / 1000.0);
+				generator.writeNumberField("InterimResultLatencyP99Seconds",
+						interimLatencySinceReported.getValueAtPercentile(99) / 1000.0);
+			}
+			if (finalLatencySinceReported.getCount() > 0) {
+				generator.writeNumberField("FinalResultLatencyP50Seconds",
+						finalLatencySinceReported.getValueAtPercentile(50) / 1000.0);
+				generator.writeNumberField("FinalResultLatencyP99Seconds",
+						finalLatencySinceReported.getValueAtPercentile(99) / 1000.0);
+			}
+			generator.writeEndObject();
+		}
+		return out.toString();
+	}
+
+	private static void writeEmfDefinition(JsonGenerator generator, String name, String unit) throws IOException {
+		generator.writeStartObject();
+		generator.writeStringField("Name", name);
+		generator.writeStringField("Unit", unit);
+		generator.writeEndObject();
+	}
+
+	private static void writeHeader(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void writeSample(StringBuilder out, String name, String labels, double value) {
+		out.append(name);
+		if (labels != null) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			out.append((long) value);
+		} else {
+			out.append(value);
+		}
+		out.append('\n');
+	}
+
+	private static void writeLatency(StringBuilder out, String result, LatencyHistogram.Snapshot latency) {
+		String name = "kvs_dg_transcript_latency_seconds";
+		String labels = "result=\"" + result + "\"";
+		for (double quantile : LATENCY_QUANTILES) {
+			writeSample(out, name, labels + ",quantile=\"" + quantile + "\"",
+					latency.getValueAtPercentile(quantile * 100) / 1000.0);
+		}
+		writeSample(out, name + "_sum", labels, latency.getSumMillis() / 1000.0);
+		writeSample(out, name + "_count", labels, latency.getCount());
+	}
+
+	private static String contactLabel(SessionMetrics session) {
+		String escaped = session.contactId.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		return "contact_id=\"" + escaped + "\"";
+	}
+}
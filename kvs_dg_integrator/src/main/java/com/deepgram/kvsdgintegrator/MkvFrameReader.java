@@ -0,0 +1,32 @@
+package com.deepgram.kvsdgintegrator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the audio frames (SimpleBlocks) out of a KVS GetMedia payload, one at a time.
+ */
+public interface MkvFrameReader {
+
+    /**
+     * Receives a frame. The frame's bytes are only valid until the callback returns, so the consumer must copy anything
+     * it wants to keep.
+     */
+    @FunctionalInterface
+    interface FrameConsumer {
+        /**
+         * @param trackName      The name of the frame's track, e.g. {@link KvsUtils.TrackName#AUDIO_FROM_CUSTOMER}
+         * @param timecodeMillis When the frame starts: its cluster's timecode plus its own relative timecode
+         * @param source         A buffer holding the frame's audio. Its position and limit are meaningless.
+         * @param offset         Where the audio starts in {@code source}
+         * @param length         The number of bytes of audio
+         */
+        void onFrame(String trackName, long timecodeMillis, ByteBuffer source, int offset, int length);
+    }
+
+    /**
+     * Reads until one frame has been passed to the consumer, or until the stream ends.
+     *
+     * @return false if the stream ended (or the contact id in the stream no longer matches) before another frame
+     */
+    boolean readNextFrame(FrameConsumer consumer) throws Exception;
+}
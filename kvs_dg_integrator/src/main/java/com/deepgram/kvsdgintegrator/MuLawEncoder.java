@@ -0,0 +1,60 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes audio as G.711 mu-law, one byte per sample, which halves the bytes we send to Deepgram.
+ *
+ * <p>Every possible 16-bit sample is encoded up front into a 64KB table, so encoding a sample is one lookup.
+ */
+public final class MuLawEncoder implements AudioEncoder {
+	private static final int BIAS = 0x84;
+	private static final int CLIP = 32635;
+	private static final byte[] ENCODED = new byte[1 << 16];
+
+	static {
+		for (int sample = Short.MIN_VALUE; sample <= Short.MAX_VALUE; sample++) {
+			ENCODED[sample & 0xFFFF] = encodeSample(sample);
+		}
+	}
+
+	@Override
+	public String deepgramParams() {
+		return "encoding=mulaw&sample_rate=8000&multichannel=true&channels=2";
+	}
+
+	@Override
+	public int maxEncodedBytes(int pcmBytes) {
+		return pcmBytes / 2;
+	}
+
+	@Override
+	public void encode(ByteBuffer pcm, ByteBuffer out) {
+		int start = pcm.position();
+		int end = pcm.limit();
+		Validate.isTrue((end - start) % 2 == 0, "Audio must hold whole 16-bit samples");
+		Validate.isTrue(out.remaining() >= (end - start) / 2, "Output buffer is too small");
+
+		int o = out.position();
+		for (int i = start; i < end; i += 2) {
+			// Little-endian, as the samples come from KVS
+			out.put(o++, ENCODED[(pcm.get(i) & 0xFF) | (pcm.get(i + 1) & 0xFF) << 8]);
+		}
+		pcm.position(end);
+		out.position(o);
+	}
+
+	/**
+	 * The standard G.711 mu-law encoding of one sample.
+	 */
+	static byte encodeSample(int sample) {
+		int sign = sample < 0 ? 0x80 : 0;
+		int magnitude = Math.min(Math.abs(sample), CLIP) + BIAS;
+		// The exponent is the position of the highest set bit above the bottom 7
+		int exponent = 31 - Integer.numberOfLeadingZeros(magnitude >> 7);
+		int mantissa = (magnitude >> (exponent + 3)) & 0x0F;
+		return (byte) ~(sign | exponent << 4 | mantissa);
+	}
+}
@@ -0,0 +1,39 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends each batch of results to a local NDJSON file, one line per result. Each batch is written in one go, so
+ * batches from different sessions don't interleave.
+ */
+public class NdjsonFileTranscriptSink implements TranscriptSink {
+	private final Path path;
+
+	public NdjsonFileTranscriptSink(Path path) {
+		this.path = Validate.notNull(path);
+	}
+
+	@Override
+	public void deliver(String contactId, int stream, List<TranscriptResult> results) throws IOException {
+		ByteArrayOutputStream lines = new ByteArrayOutputStream();
+		TranscriptResult.writeNdjson(contactId, stream, results, lines);
+
+		synchronized (this) {
+			try (FileChannel file = FileChannel.open(
+					path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				ByteBuffer buffer = ByteBuffer.wrap(lines.toByteArray());
+				while (buffer.hasRemaining()) {
+					file.write(buffer);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Paces the audio of every {@code enforceRealtime} session on the task from a single timer thread.
+ *
+ * <p>Each session gets a {@link Schedule}: an absolute timeline on {@link System#nanoTime()}, where each frame is due
+ * one frame duration after the previous one was due (not after it was sent). Being a little late for one frame
+ * therefore makes the next one a little early, so the session doesn't drift behind realtime the way it would by
+ * sleeping for a frame duration after each send. If a session falls more than a frame behind its schedule (say KVS
+ * stalled), the schedule restarts from now rather than sending a burst of audio to catch up.
+ *
+ * <p>While a session has a backlog, it's sent {@code REALTIME_CATCH_UP_MULTIPLIER} times faster than realtime. Once
+ * reading from KVS can't keep up with that rate for a few frames in a row, the session has reached the live edge of
+ * the call, and it's locked to realtime from then on.
+ *
+ * <p>A session with a frame that isn't due yet hands it to {@link #schedule(long, Runnable)} instead of parking its
+ * thread, and the timer thread only hands the task on to the session's executor, so it's never busy for long.
+ */
+public final class RealtimePacer {
+	private static final Logger logger = LogManager.getLogger(RealtimePacer.class);
+	private static final double CATCH_UP_MULTIPLIER = Double.parseDouble(
+			System.getenv().getOrDefault("REALTIME_CATCH_UP_MULTIPLIER", "1"));
+	// How many frames in a row must be late at the catch-up rate before we decide the session is live
+	private static final int LATE_FRAMES_TO_GO_LIVE = 3;
+	private static final RealtimePacer INSTANCE = new RealtimePacer(
+			CATCH_UP_MULTIPLIER, System::nanoTime, newTimer());
+
+	private final double catchUpMultiplier;
+	private final LongSupplier nanoClock;
+	private final ScheduledExecutorService timer;
+
+	RealtimePacer(double catchUpMultiplier, LongSupplier nanoClock, ScheduledExecutorService timer) {
+		Validate.isTrue(catchUpMultiplier >= 1, "Catch-up multiplier must be at least 1, but was %s", catchUpMultiplier);
+		this.catchUpMultiplier = catchUpMultiplier;
+		this.nanoClock = Validate.notNull(nanoClock);
+		this.timer = Validate.notNull(timer);
+	}
+
+	public static RealtimePacer getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return A new schedule for one session, whose first frame is due as soon as it's ready
+	 */
+	public Schedule newSchedule() {
+		return new Schedule();
+	}
+
+	/**
+	 * Runs the task on the timer thread after the delay. The task should only hand work on to another executor.
+	 */
+	public void schedule(long delayNanos, Runnable task) {
+		timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private static ScheduledExecutorService newTimer() {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "realtime-pacer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
+
+	/**
+	 * The pacing timeline of one session. Only one thread at a time should use a schedule.
+	 */
+	public final class Schedule {
+		private boolean started = false;
+		private long nextDueNanos;
+		private boolean live = catchUpMultiplier == 1;
+		private int lateFrames = 0;
+
+		private Schedule() {
+		}
+
+		/**
+		 * Claims the next slot on the schedule for a frame that is ready to send.
+		 *
+		 * @param frameDurationNanos How much audio the frame holds
+		 * @return How many nanoseconds to wait before sending the frame, or 0 to send it now
+		 */
+		public long reserveNextFrame(long frameDurationNanos) {
+			long now = nanoClock.getAsLong();
+			long interval = live ? frameDurationNanos : (long) (frameDurationNanos / catchUpMultiplier);
+
+			if (!started) {
+				started = true;
+				nextDueNanos = now;
+			}
+
+			long lateByNanos = now - nextDueNanos;
+			if (lateByNanos > 0) {
+				if (!live && ++lateFrames >= LATE_FRAMES_TO_GO_LIVE) {
+					logger.debug("Caught up to the live edge of the call; pacing at realtime from now on");
+					live = true;
+					interval = frameDurationNanos;
+				}
+				if (lateByNanos > interval) {
+					nextDueNanos = now;
+				}
+			} else {
+				lateFrames = 0;
+			}
+
+			long dueNanos = nextDueNanos;
+			nextDueNanos += interval;
+			long waitNanos = Math.max(0, dueNanos - now);
+			Metrics.PACING_SLEEP_NANOS.add(waitNanos);
+			return waitNanos;
+		}
+
+		/**
+		 * @return true once the session is paced at realtime
+		 */
+		public boolean isLive() {
+			return live;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the last few seconds of the audio a session has sent to Deepgram, so that it can be sent again on a new
+ * websocket if the old one drops. The audio is kept as interleaved linear16, before encoding, since a new connection
+ * needs a fresh encoder (a new FLAC stream header, say).
+ *
+ * <p>Positions are in samples per channel of the sent audio, counted from the start of the session. Audio is always
+ * appended in whole chunks, and every chunk but the last of the call is {@code chunkSamples} long, so chunk boundaries
+ * are at multiples of it. Replays start on a chunk boundary, so that an encoder only ever sees whole chunks.
+ *
+ * <p>The sender appends from its own thread while reconnections are handled on the websocket's thread, so access is
+ * synchronized.
+ */
+public class ReplayBuffer {
+    private static final int BYTES_PER_SAMPLE = TrackMerger.CHANNELS * TrackMerger.BYTES_PER_SAMPLE;
+
+    private final byte[] ring;
+    private final long capacitySamples;
+    private final int chunkSamples;
+    private long endPosition = 0;
+
+    public ReplayBuffer(int capacitySamples, int chunkSamples) {
+        Validate.isTrue(chunkSamples > 0, "Chunk size must be positive");
+        Validate.isTrue(capacitySamples >= chunkSamples, "Replay buffer must hold at least one chunk");
+        this.capacitySamples = capacitySamples;
+        this.chunkSamples = chunkSamples;
+        this.ring = new byte[capacitySamples * BYTES_PER_SAMPLE];
+    }
+
+    /**
+     * Appends the remaining audio of {@code pcm}, without changing its position.
+     */
+    public synchronized void append(ByteBuffer pcm) {
+        int length = pcm.remaining();
+        Validate.isTrue(length % BYTES_PER_SAMPLE == 0, "Audio must hold whole 2-channel samples");
+        // Only the end of audio longer than the ring would survive
+        int skip = Math.max(0, length - ring.length);
+        int offset = pcm.position() + skip;
+        long position = endPosition + skip / BYTES_PER_SAMPLE;
+        int bytesLeft = length - skip;
+        while (bytesLeft > 0) {
+            int ringIndex = ringIndex(position);
+            int bytes = Math.min(bytesLeft, ring.length - ringIndex);
+            pcm.get(offset, ring, ringIndex, bytes);
+            offset += bytes;
+            bytesLeft -= bytes;
+            position += bytes / BYTES_PER_SAMPLE;
+        }
+        endPosition += length / BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * @param wantedPosition Where we'd like a replay to start
+     * @return Where the replay can start: the start of the chunk holding the wanted position, or the oldest whole chunk
+     * we still have if that's later
+     */
+    public synchronized long replayStart(long wantedPosition) {
+        long oldest = Math.max(0, endPosition - capacitySamples);
+        long oldestChunk = (oldest + chunkSamples - 1) / chunkSamples * chunkSamples;
+        long wantedChunk = Math.min(wantedPosition, endPosition) / chunkSamples * chunkSamples;
+        return Math.min(Math.max(wantedChunk, oldestChunk), endPosition);
+    }
+
+    /**
+     * Copies the audio from {@code position} into {@code out}, up to the end of the chunk it's in, the end of the audio,
+     * or the space left in {@code out}, whichever comes first.
+     *
+     * @return How many samples were copied
+     */
+    public synchronized int read(long position, ByteBuffer out) {
+        Validate.isTrue(position >= endPosition - capacitySamples, "Position %s is no longer buffered", position);
+        long chunkEnd = (position / chunkSamples + 1) * chunkSamples;
+        long samples = Math.min(Math.min(chunkEnd, endPosition) - position, out.remaining() / BYTES_PER_SAMPLE);
+        int bytesLeft = (int) samples * BYTES_PER_SAMPLE;
+        while (bytesLeft > 0) {
+            int ringIndex = ringIndex(position);
+            int bytes = Math.min(bytesLeft, ring.length - ringIndex);
+            out.put(ring, ringIndex, bytes);
+            bytesLeft -= bytes;
+            position += bytes / BYTES_PER_SAMPLE;
+        }
+        return (int) samples;
+    }
+
+    public synchronized long getEndPosition() {
+        return endPosition;
+    }
+
+    private int ringIndex(long position) {
+        return (int) (position % capacitySamples) * BYTES_PER_SAMPLE;
+    }
+}
@@ -0,0 +1,282 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Checkpoints a session's progress through its KVS stream in the task's {@link CheckpointStore}, and resumes a contact
+ * from its checkpoint when a session is started for it again (after its task died, or when {@code /start-session} is
+ * retried), instead of replaying and transcribing the whole call again.
+ *
+ * <p>The read loop reports each KVS fragment as it starts, along with where it starts in the call's audio, and each
+ * websocket's thread reports how far into the call Deepgram's final results have reached on each channel, through its
+ * {@link Stream}. The checkpoint is the first fragment whose audio hasn't all been finalized on both channels of every
+ * stream. Resuming from it loses none of the call, and Deepgram is only sent again the audio it never gave final
+ * results for. Audio that was merely sent isn't enough to move the checkpoint on, as it's lost if the websocket goes
+ * down with the task.
+ *
+ * <p>A checkpoint is saved at most every {@code SESSION_CHECKPOINT_INTERVAL_SECONDS}, and once more when the session
+ * closes. When the call itself ends, the checkpoint is deleted instead, as there is nothing left to resume.
+ *
+ * <p>A resumed session's audio starts partway through the call, so the times in its results are shifted by
+ * {@link #getCallOffsetMillis()} to keep them on the call's timeline.
+ */
+public final class SessionCheckpointer implements AutoCloseable {
+	private static final Logger logger = LogManager.getLogger(SessionCheckpointer.class);
+	private static final CheckpointStore STORE = CheckpointStore.fromEnvironment();
+	private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(Long.parseLong(
+			System.getenv().getOrDefault("SESSION_CHECKPOINT_INTERVAL_SECONDS", "5")));
+
+	private final CheckpointStore store;
+	private final String contactId;
+	private final String streamArn;
+	private final String startFragmentNumber;
+	private final long callOffsetMillis;
+	private final long intervalNanos;
+	// Not synchronized, so that a virtual thread saving a checkpoint isn't pinned to its carrier
+	private final ReentrantLock lock = new ReentrantLock();
+	// Fragments that haven't all been finalized, oldest first
+	private final ArrayDeque<Fragment> fragments = new ArrayDeque<>();
+	// One for each of the session's Deepgram streams
+	private final List<Stream> streams = new ArrayList<>();
+	// How far the session has read, in samples per channel. Nothing has been read until the merger is attached.
+	private LongSupplier readPosition = () -> 0;
+	private CheckpointStore.Checkpoint latest = null;
+	private boolean latestSaved = true;
+	private long lastSaveNanos;
+	private boolean callEnded = false;
+
+	private record Fragment(String fragmentNumber, long startMillis) {
+	}
+
+	/**
+	 * @return The session's checkpointer, resuming from the contact's checkpoint if it has one on this stream, or null if
+	 * {@code SESSION_CHECKPOINT_DIR} isn't set
+	 */
+	public static SessionCheckpointer forSession(String contactId, IntegratorArguments.KvsStream kvsStream) {
+		return STORE == null ? null : resume(STORE, contactId, kvsStream, INTERVAL_NANOS);
+	}
+
+	static SessionCheckpointer resume(
+			CheckpointStore store, String contactId, IntegratorArguments.KvsStream kvsStream, long intervalNanos) {
+		Validate.notNull(store);
+		Validate.notNull(contactId);
+		Validate.notNull(kvsStream);
+
+		CheckpointStore.Checkpoint checkpoint = null;
+		try {
+			checkpoint = store.load(contactId);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Could not load the checkpoint for contact %s; starting from the start: %s".formatted(contactId, e));
+		}
+		if (checkpoint != null && !kvsStream.arn().equals(checkpoint.streamArn())) {
+			logger.info("Ignoring the checkpoint for contact %s, which is for stream %s".formatted(
+					contactId, checkpoint.streamArn()));
+			checkpoint = null;
+		}
+		if (checkpoint == null) {
+			return new SessionCheckpointer(
+					store, contactId, kvsStream.arn(), kvsStream.startFragmentNumber(), 0, intervalNanos);
+		}
+
+		logger.info("Resuming contact %s from fragment %s, %ss into the call, as checkpointed at %s".formatted(
+				contactId, checkpoint.fragmentNumber(), checkpoint.callOffsetMillis() / 1000.0, checkpoint.updatedAt()));
+		return new SessionCheckpointer(store, contactId, kvsStream.arn(), checkpoint.fragmentNumber(),
+				checkpoint.callOffsetMillis(), intervalNanos);
+	}
+
+	private SessionCheckpointer(CheckpointStore store, String contactId, String streamArn, String startFragmentNumber,
+								long callOffsetMillis, long intervalNanos) {
+		this.store = store;
+		this.contactId = contactId;
+		this.streamArn = streamArn;
+		this.startFragmentNumber = startFragmentNumber;
+		this.callOffsetMillis = callOffsetMillis;
+		this.intervalNanos = intervalNanos;
+		this.lastSaveNanos = System.nanoTime() - intervalNanos;
+	}
+
+	/**
+	 * Adds one of the session's Deepgram streams, before it's sent any audio. The checkpoint only moves on as far as
+	 * the stream furthest behind has finalized.
+	 */
+	public Stream newStream() {
+		lock.lock();
+		try {
+			Stream stream = new Stream();
+			streams.add(stream);
+			return stream;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The fragment to start reading the stream from
+	 */
+	public String getStartFragmentNumber() {
+		return startFragmentNumber;
+	}
+
+	/**
+	 * @return Where the session's audio starts in the call, in milliseconds: 0 unless it resumed from a checkpoint
+	 */
+	public long getCallOffsetMillis() {
+		return callOffsetMillis;
+	}
+
+	/**
+	 * Takes where the session has read to, in samples per channel, from {@link TrackMerger#getReadPosition()} from now
+	 * on. Fragments that start before then start at the beginning of the session's audio.
+	 */
+	public void readFrom(LongSupplier readPosition) {
+		Validate.notNull(readPosition);
+		lock.lock();
+		try {
+			this.readPosition = readPosition;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called from the read loop when it reaches the start of a fragment, before any of its audio has been merged.
+	 */
+	public void fragmentStarted(String fragmentNumber) {
+		Validate.notNull(fragmentNumber);
+		lock.lock();
+		try {
+			Fragment last = fragments.peekLast();
+			if (last != null && last.fragmentNumber().equals(fragmentNumber)) {
+				return;
+			}
+			long startMillis = callOffsetMillis + readPosition.getAsLong() / TrackMerger.SAMPLES_PER_MILLISECOND;
+			fragments.addLast(new Fragment(fragmentNumber, startMillis));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called when the call has ended, rather than the session being stopped or failing, to delete the checkpoint.
+	 */
+	public void callEnded() {
+		lock.lock();
+		try {
+			callEnded = true;
+			store.delete(contactId);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Could not delete the checkpoint for contact %s: %s".formatted(contactId, e));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Saves the latest checkpoint, if it hasn't been already and the call hasn't ended.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if (!callEnded && !latestSaved) {
+				saveLatest();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Must hold the lock
+	private void finalizedChanged() {
+		long allFinalizedMillis = Long.MAX_VALUE;
+		for (Stream stream : streams) {
+			for (long channelMillis : stream.finalizedMillis) {
+				allFinalizedMillis = Math.min(allFinalizedMillis, channelMillis);
+			}
+		}
+
+		Fragment oldest = fragments.peekFirst();
+		while (fragments.size() > 1 && allFinalizedMillis >= secondOldestStartMillis()) {
+			fragments.removeFirst();
+		}
+		Fragment resumeFrom = fragments.peekFirst();
+		if (resumeFrom == null || resumeFrom == oldest) {
+			return;
+		}
+		latest = new CheckpointStore.Checkpoint(contactId, streamArn, resumeFrom.fragmentNumber(),
+				resumeFrom.startMillis(), Instant.now().toString());
+		latestSaved = false;
+		if (System.nanoTime() - lastSaveNanos >= intervalNanos) {
+			saveLatest();
+		}
+	}
+
+	// Must hold the lock
+	private long secondOldestStartMillis() {
+		Iterator<Fragment> iterator = fragments.iterator();
+		iterator.next();
+		return iterator.next().startMillis();
+	}
+
+	// Must hold the lock
+	private void saveLatest() {
+		lastSaveNanos = System.nanoTime();
+		try {
+			store.save(latest);
+			latestSaved = true;
+			logger.debug("Checkpointed contact %s at fragment %s, %ss into the call".formatted(
+					contactId, latest.fragmentNumber(), latest.callOffsetMillis() / 1000.0));
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Could not save the checkpoint for contact %s: %s".formatted(contactId, e));
+		}
+	}
+
+	/**
+	 * One of the session's Deepgram streams, which reports its final results from its websocket's thread.
+	 */
+	public final class Stream {
+		// How far into the call each channel's final results have reached
+		private final long[] finalizedMillis = new long[TrackMerger.CHANNELS];
+
+		private Stream() {
+			Arrays.fill(finalizedMillis, callOffsetMillis);
+		}
+
+		/**
+		 * @return Where the session's audio starts in the call, in milliseconds: 0 unless it resumed from a checkpoint
+		 */
+		public long getCallOffsetMillis() {
+			return callOffsetMillis;
+		}
+
+		/**
+		 * Called for each final result, with where it ends in the call. Saves a checkpoint if that has moved the
+		 * checkpoint on and the last one was saved long enough ago.
+		 */
+		public void finalized(int channel, double callSeconds) {
+			if (channel < 0 || channel >= TrackMerger.CHANNELS) {
+				return;
+			}
+			lock.lock();
+			try {
+				finalizedMillis[channel] = Math.max(finalizedMillis[channel], Math.round(callSeconds * 1000));
+				finalizedChanged();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
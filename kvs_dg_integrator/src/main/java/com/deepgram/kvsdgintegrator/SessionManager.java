@@ -0,0 +1,232 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the task's sessions, and keeps track of them so that they can be listed, inspected and stopped through
+ * {@code /sessions}.
+ *
+ * <p>Each session runs on its own virtual thread, so the {@code /start-session} request that started it returns as
+ * soon as it's running. Sessions are known by their request id, which {@code /start-session} returns, and by their
+ * contact id. A session is forgotten once it has ended.
+ *
+ * <p>A session can be stopped in two ways. Stopping it ends its audio early, as when the task shuts down, so that
+ * Deepgram still finalizes the transcript of the audio sent so far. Forcing it interrupts the session and closes
+ * everything it has open straight away, for sessions that are stuck (on a KVS read that never returns, say) and don't
+ * respond to being stopped.
+ */
+public final class SessionManager {
+	private static final Logger logger = LogManager.getLogger(SessionManager.class);
+
+	private final SessionRunner runner;
+	private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+			Thread.ofVirtual().name("session-runner-", 0).factory());
+	// By request id
+	private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+	private final AtomicLong sessionsStarted = new AtomicLong();
+
+	/**
+	 * Streams a session's call, blocking until it's finished.
+	 */
+	@FunctionalInterface
+	interface SessionRunner {
+		void run(IntegratorArguments integratorArguments, SessionScope scope) throws Exception;
+	}
+
+	public enum State {
+		/**
+		 * Opening the KVS stream and the websocket to Deepgram
+		 */
+		STARTING,
+		/**
+		 * Sending audio to Deepgram
+		 */
+		STREAMING,
+		/**
+		 * Asked to stop, and finishing up
+		 */
+		STOPPING
+	}
+
+	/**
+	 * What {@code /sessions} reports about a session.
+	 *
+	 * @param startTime            When the session started, in ISO-8601
+	 * @param framesSent           Chunks of audio sent to Deepgram, each of the session's {@code chunkMs}
+	 * @param lagBehindLiveSeconds How far behind the live call we're reading, or null if we don't know yet
+	 * @param fragmentNumber       The KVS fragment being read, or null if we don't know yet
+	 * @param startupMillis        When each step of the session's setup finished, in milliseconds from its start
+	 */
+	public record SessionInfo(
+			String requestId,
+			String contactId,
+			State state,
+			String startTime,
+			double runningSeconds,
+			long framesSent,
+			double audioSecondsSent,
+			Double lagBehindLiveSeconds,
+			String fragmentNumber,
+			int sendQueueDepth,
+			Map<String, Long> startupMillis
+	) {
+	}
+
+	public SessionManager(String deepgramApi, String deepgramApiKey) {
+		this((integratorArguments, scope) -> KvsToDgStreamer.doStreamingSession(
+				integratorArguments, deepgramApi, deepgramApiKey, scope));
+		Validate.notNull(deepgramApi);
+		Validate.notNull(deepgramApiKey);
+	}
+
+	SessionManager(SessionRunner runner) {
+		this.runner = Validate.notNull(runner);
+	}
+
+	/**
+	 * Starts running a session. The slot is given up when the session ends.
+	 */
+	public void start(IntegratorArguments integratorArguments, String requestId, AdmissionController.Slot slot) {
+		Validate.notNull(integratorArguments);
+		Validate.notNull(requestId);
+		Validate.notNull(slot);
+
+		Session session = new Session(requestId, integratorArguments, sessionsStarted.getAndIncrement());
+		Validate.validState(sessions.putIfAbsent(requestId, session) == null, "Session %s already exists", requestId);
+		session.future = executor.submit(() -> run(session, slot));
+	}
+
+	private void run(Session session, AdmissionController.Slot slot) {
+		ThreadContext.put("requestId", session.requestId);
+		try (slot; SessionScope scope = new SessionScope(session.integratorArguments.contactId())) {
+			session.scope = scope;
+			if (session.stopRequested) {
+				scope.stop();
+			}
+			runner.run(session.integratorArguments, scope);
+			logger.info("Session completed successfully; %s active sessions".formatted(
+					SessionScope.getActiveSessionCount() - 1));
+		} catch (InterruptedException e) {
+			logger.info("Session was forced to stop");
+		} catch (Exception e) {
+			logger.error("Exception during integrator session", e);
+		} finally {
+			sessions.remove(session.requestId);
+			ThreadContext.clearAll();
+		}
+	}
+
+	/**
+	 * @return The running sessions, oldest first
+	 */
+	public List<SessionInfo> list() {
+		return sessions.values().stream()
+				.sorted(Comparator.comparingLong(session -> session.startOrder))
+				.map(Session::info)
+				.toList();
+	}
+
+	/**
+	 * @param id A request id or a contact id
+	 * @return The sessions with that request id or contact id, oldest first
+	 */
+	public List<SessionInfo> find(String id) {
+		return matching(id).stream().map(Session::info).toList();
+	}
+
+	/**
+	 * Stops the sessions with this request id or contact id.
+	 *
+	 * @param force Interrupt the sessions and close what they have open, rather than ending their audio
+	 * @return The sessions being stopped
+	 */
+	public List<SessionInfo> stop(String id, boolean force) {
+		List<Session> matches = matching(id);
+		for (Session session : matches) {
+			logger.info("%s session %s for contact %s".formatted(
+					force ? "Forcing" : "Stopping", session.requestId, session.integratorArguments.contactId()));
+			session.stopRequested = true;
+			SessionScope scope = session.scope;
+			if (scope != null) {
+				scope.stop();
+			}
+			// Only missing while start() is still submitting the session, which is then stopped rather than forced
+			Future<?> future = session.future;
+			if (force && future != null) {
+				future.cancel(true);
+			}
+		}
+		return matches.stream().map(Session::info).toList();
+	}
+
+	private List<Session> matching(String id) {
+		Validate.notNull(id);
+		return sessions.values().stream()
+				.filter(session -> session.requestId.equals(id) || session.integratorArguments.contactId().equals(id))
+				.sorted(Comparator.comparingLong(session -> session.startOrder))
+				.toList();
+	}
+
+	private static final class Session {
+		final String requestId;
+		final IntegratorArguments integratorArguments;
+		// Orders sessions that started within the same clock tick
+		final long startOrder;
+		final Instant startTime = Instant.now();
+		volatile Future<?> future;
+		// Set once the session's thread has opened its scope
+		volatile SessionScope scope;
+		volatile boolean stopRequested = false;
+
+		Session(String requestId, IntegratorArguments integratorArguments, long startOrder) {
+			this.requestId = requestId;
+			this.integratorArguments = integratorArguments;
+			this.startOrder = startOrder;
+		}
+
+		SessionInfo info() {
+			SessionScope currentScope = scope;
+			Metrics.SessionMetrics metrics = currentScope == null ? null : currentScope.metrics();
+			long audioBytesSent = metrics == null ? 0 : metrics.getAudioBytesSent();
+			long lagMillis = metrics == null ? -1 : metrics.getLagBehindLiveMillis();
+			int chunkBytes = integratorArguments.audioChunking().chunkMs() * TrackMerger.SAMPLES_PER_MILLISECOND
+					* TrackMerger.CHANNELS * TrackMerger.BYTES_PER_SAMPLE;
+
+			State state;
+			if (stopRequested) {
+				state = State.STOPPING;
+			} else if (audioBytesSent == 0) {
+				state = State.STARTING;
+			} else {
+				state = State.STREAMING;
+			}
+
+			return new SessionInfo(
+					requestId,
+					integratorArguments.contactId(),
+					state,
+					startTime.toString(),
+					Duration.between(startTime, Instant.now()).toMillis() / 1000.0,
+					audioBytesSent / chunkBytes,
+					(double) audioBytesSent / (TrackMerger.SAMPLE_RATE * TrackMerger.CHANNELS * TrackMerger.BYTES_PER_SAMPLE),
+					lagMillis < 0 ? null : lagMillis / 1000.0,
+					metrics == null ? null : metrics.getFragmentNumber(),
+					metrics == null ? 0 : metrics.getSendQueueDepth(),
+					metrics == null ? Map.of() : metrics.getStartupTrace().toMillis());
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns everything a single streaming session starts or opens, so that all of it is released when the session ends,
+ * however it ends.
+ *
+ * <p>Work forked by the session runs on virtual threads, so a call parked on KVS or Deepgram I/O doesn't hold a
+ * platform thread. Closing the scope interrupts any forked work that is still running, closes the registered resources
+ * in reverse order of registration, and then waits briefly for the forked work to finish.
+ *
+ * <p>A session can also be asked to stop, when the task is shutting down. That runs the session's stop handlers, which
+ * end its audio early so that the session finishes the way it does at the end of a call.
+ */
+public class SessionScope implements Executor, AutoCloseable {
+	private static final Logger logger = LogManager.getLogger(SessionScope.class);
+	private static final AtomicInteger activeSessions = new AtomicInteger();
+	private static final Set<SessionScope> openScopes = ConcurrentHashMap.newKeySet();
+	// Set once every session has been asked to stop, so that any session starting after that is stopped as well
+	private static volatile boolean stoppingAll = false;
+	private static final long TERMINATION_TIMEOUT_SECONDS = 5;
+
+	private final ExecutorService executor;
+	private final Deque<AutoCloseable> resources = new ArrayDeque<>();
+	private final Metrics.SessionMetrics metrics;
+	private final List<Runnable> stopHandlers = new ArrayList<>();
+	private boolean closed = false;
+	private boolean stopped = false;
+
+	public SessionScope(String name) {
+		Validate.notNull(name);
+		this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("session-" + name + "-", 0).factory());
+		this.metrics = Metrics.openSession(name);
+		openScopes.add(this);
+		if (stoppingAll) {
+			synchronized (this) {
+				stopped = true;
+			}
+		}
+
+		logger.info("Session scope opened; %s active sessions".formatted(activeSessions.incrementAndGet()));
+	}
+
+	/**
+	 * Runs the task on a new virtual thread owned by this scope. The request id of the calling thread is propagated to
+	 * the new thread so that it appears in log messages.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		Validate.notNull(task);
+
+		String requestId = ThreadContext.get("requestId");
+		executor.execute(() -> {
+			ThreadContext.put("requestId", requestId);
+			try {
+				task.run();
+			} finally {
+				ThreadContext.clearAll();
+			}
+		});
+	}
+
+	/**
+	 * @return The session's metrics, which are removed when the scope closes
+	 */
+	public Metrics.SessionMetrics metrics() {
+		return metrics;
+	}
+
+	/**
+	 * Registers a resource to be closed when the scope closes. Returns the resource for convenience.
+	 */
+	public synchronized <T extends AutoCloseable> T register(T resource) {
+		Validate.notNull(resource);
+		Validate.validState(!closed, "Session scope is already closed");
+
+		resources.push(resource);
+		return resource;
+	}
+
+	/**
+	 * Registers a handler to run if the session is asked to stop. It runs straight away if it already has been.
+	 */
+	public void onStop(Runnable handler) {
+		Validate.notNull(handler);
+		synchronized (this) {
+			if (!stopped) {
+				stopHandlers.add(handler);
+				return;
+			}
+		}
+		handler.run();
+	}
+
+	/**
+	 * Asks the session to stop, by running its stop handlers. Does nothing if it has already been asked, or has closed.
+	 */
+	public void stop() {
+		List<Runnable> handlers;
+		synchronized (this) {
+			if (stopped || closed) {
+				return;
+			}
+			stopped = true;
+			handlers = List.copyOf(stopHandlers);
+		}
+		for (Runnable handler : handlers) {
+			try {
+				handler.run();
+			} catch (RuntimeException e) {
+				logger.warn("Error stopping session", e);
+			}
+		}
+	}
+
+	/**
+	 * Asks every session on this task to stop.
+	 */
+	public static void stopAll() {
+		stoppingAll = true;
+		for (SessionScope scope : openScopes) {
+			scope.stop();
+		}
+	}
+
+	@Override
+	public void close() {
+		Deque<AutoCloseable> toClose;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			toClose = new ArrayDeque<>(resources);
+			stopHandlers.clear();
+			resources.clear();
+		}
+
+		executor.shutdownNow();
+
+		for (AutoCloseable resource : toClose) {
+			try {
+				resource.close();
+			} catch (Exception e) {
+				logger.warn("Error closing session resource", e);
+			}
+		}
+
+		metrics.close();
+		openScopes.remove(this);
+
+		try {
+			if (!executor.awaitTermination(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				logger.warn("Session tasks still running %ss after the session closed".formatted(TERMINATION_TIMEOUT_SECONDS));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		logger.info("Session scope closed; %s active sessions".formatted(activeSessions.decrementAndGet()));
+	}
+
+	/**
+	 * @return The number of sessions currently running on this task
+	 */
+	public static int getActiveSessionCount() {
+		return activeSessions.get();
+	}
+}
@@ -0,0 +1,88 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides which chunks of a session's audio are worth sending to Deepgram, skipping long stretches of silence on both
+ * channels. Dead air and quiet stretches of a call cost as much to send and transcribe as speech does, and hold up
+ * nothing if they're left out.
+ *
+ * <p>A chunk is silent if the energy of each channel is below {@code SILENCE_SUPPRESSION_THRESHOLD_DBFS}. Once the
+ * call has been silent for {@code SILENCE_SUPPRESSION_MIN_MS}, the silent chunks after that are skipped until either
+ * channel has sound again. Since the audio before a skip is itself silence, Deepgram has already finished transcribing
+ * what was said before it. This is a simple energy detector, so quiet dead air is skipped but hold music and IVR
+ * prompts are not.
+ *
+ * <p>What's sent and skipped is recorded in the session's {@link StreamTimeline}, so that Deepgram's timestamps can be
+ * mapped back to times in the call.
+ */
+public class SilenceSuppressor {
+	private static final int MIN_SILENCE_MS = Integer.parseInt(
+			System.getenv().getOrDefault("SILENCE_SUPPRESSION_MIN_MS", "0"));
+	private static final double THRESHOLD_DBFS = Double.parseDouble(
+			System.getenv().getOrDefault("SILENCE_SUPPRESSION_THRESHOLD_DBFS", "-45"));
+	private static final int CHANNELS = 2;
+	private static final int BYTES_PER_FRAME = CHANNELS * 2;
+
+	private final StreamTimeline timeline;
+	private final long minSilenceSamples;
+	// The threshold as a mean of squared samples, to save a square root per chunk
+	private final double thresholdMeanSquare;
+	private long silentSamples = 0;
+
+	SilenceSuppressor(StreamTimeline timeline, int minSilenceMs, double thresholdDbfs) {
+		this.timeline = Validate.notNull(timeline);
+		Validate.isTrue(minSilenceMs > 0, "Minimum silence must be positive");
+		this.minSilenceSamples = minSilenceMs * 8L;
+		double thresholdAmplitude = Short.MAX_VALUE * Math.pow(10, thresholdDbfs / 20);
+		this.thresholdMeanSquare = thresholdAmplitude * thresholdAmplitude;
+	}
+
+	/**
+	 * @return A suppressor configured by the environment, or null if silence suppression is off
+	 */
+	public static SilenceSuppressor fromEnvironment(StreamTimeline timeline) {
+		return MIN_SILENCE_MS > 0 ? new SilenceSuppressor(timeline, MIN_SILENCE_MS, THRESHOLD_DBFS) : null;
+	}
+
+	/**
+	 * Checks a chunk of interleaved 2-channel audio (little-endian samples, as from KVS), and records it in the
+	 * timeline as sent or skipped. Doesn't change the buffer.
+	 *
+	 * @return true if the chunk should be skipped
+	 */
+	public boolean shouldSkip(ByteBuffer interleaved) {
+		int samples = interleaved.remaining() / BYTES_PER_FRAME;
+		if (samples == 0) {
+			return false;
+		}
+
+		if (isSilent(interleaved, samples)) {
+			silentSamples += samples;
+		} else {
+			silentSamples = 0;
+		}
+
+		if (silentSamples > minSilenceSamples) {
+			timeline.recordSkipped(samples);
+			return true;
+		}
+		timeline.recordSent(samples);
+		return false;
+	}
+
+	private boolean isSilent(ByteBuffer interleaved, int samples) {
+		long firstEnergy = 0;
+		long secondEnergy = 0;
+		int end = interleaved.position() + samples * BYTES_PER_FRAME;
+		for (int i = interleaved.position(); i < end; i += BYTES_PER_FRAME) {
+			long first = (short) ((interleaved.get(i) & 0xFF) | interleaved.get(i + 1) << 8);
+			long second = (short) ((interleaved.get(i + 2) & 0xFF) | interleaved.get(i + 3) << 8);
+			firstEnergy += first * first;
+			secondEnergy += second * second;
+		}
+		return firstEnergy <= thresholdMeanSquare * samples && secondEnergy <= thresholdMeanSquare * samples;
+	}
+}
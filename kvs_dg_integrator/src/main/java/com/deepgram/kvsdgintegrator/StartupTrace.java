@@ -0,0 +1,101 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When each step of a session's setup finished, measured from when the session started, to show where the time before
+ * its first audio reaches Deepgram goes. The KVS steps and the websocket to Deepgram run at the same time, so the first
+ * audio is sent once the later of the first fragment and the websocket is ready.
+ *
+ * <p>Once the first audio is sent, the trace is logged and added to the task's metrics.
+ */
+public final class StartupTrace {
+	private static final Logger logger = LogManager.getLogger(StartupTrace.class);
+
+	public enum Phase {
+		/**
+		 * The stream's KVS data endpoint was known, from the cache or from GetDataEndpoint
+		 */
+		DATA_ENDPOINT("dataEndpoint"),
+		/**
+		 * GetMedia responded
+		 */
+		GET_MEDIA("getMedia"),
+		/**
+		 * The first fragment of the stream was read
+		 */
+		FIRST_FRAGMENT("firstFragment"),
+		/**
+		 * The websocket to Deepgram was open
+		 */
+		DEEPGRAM_CONNECTED("deepgramConnected"),
+		/**
+		 * The first audio was sent to Deepgram
+		 */
+		FIRST_AUDIO_SENT("firstAudioSent");
+
+		private final String label;
+
+		Phase(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	private final long startNanos;
+	// Nanoseconds since the start at which each phase finished, or -1 until it has
+	private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+
+	StartupTrace(long startNanos) {
+		this.startNanos = startNanos;
+		for (int i = 0; i < phaseNanos.length(); i++) {
+			phaseNanos.set(i, -1);
+		}
+	}
+
+	/**
+	 * Records that a phase has finished. Only the first time counts, so this can be called on every frame or message.
+	 */
+	public void mark(Phase phase) {
+		if (phaseNanos.get(phase.ordinal()) >= 0) {
+			return;
+		}
+		long elapsedNanos = System.nanoTime() - startNanos;
+		if (phaseNanos.compareAndSet(phase.ordinal(), -1, elapsedNanos) && phase == Phase.FIRST_AUDIO_SENT) {
+			logger.info("Session startup: %s".formatted(this));
+			Metrics.TIME_TO_FIRST_AUDIO_NANOS.add(elapsedNanos);
+			Metrics.SESSIONS_STARTED.increment();
+		}
+	}
+
+	/**
+	 * @return Milliseconds from the start to the end of each phase that has finished, in the order of the phases
+	 */
+	public Map<String, Long> toMillis() {
+		Map<String, Long> millis = new LinkedHashMap<>();
+		for (Phase phase : Phase.values()) {
+			long nanos = phaseNanos.get(phase.ordinal());
+			if (nanos >= 0) {
+				millis.put(phase.getLabel(), TimeUnit.NANOSECONDS.toMillis(nanos));
+			}
+		}
+		return millis;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		toMillis().forEach((phase, millis) -> out.append(out.isEmpty() ? "" : ", ")
+				.append(phase).append(' ').append(millis).append("ms"));
+		return out.toString();
+	}
+}
@@ -0,0 +1,65 @@
+package com.deepgram.kvsdgintegrator;
+
+import java.util.Arrays;
+
+/**
+ * Maps times in the audio we sent to Deepgram back to times in the call, for sessions that skip some of the call's
+ * audio: stretches of silence, or audio dropped because Deepgram wasn't keeping up. Deepgram's timestamps count only
+ * the audio it received, so after a skipped stretch they run behind the call by however much we skipped.
+ *
+ * <p>The sender records how much audio it sends and skips, in samples per channel, as it goes. Each stretch of skipped
+ * audio starts a new span of the timeline, from the point in the sent audio where the skip happened, with the total
+ * skipped so far as its offset. Mapping a time is a binary search for its span.
+ *
+ * <p>The sender records from its own thread while results are mapped on the websocket's thread, so access is
+ * synchronized.
+ */
+public class StreamTimeline {
+	private static final double SAMPLES_PER_SECOND = 8000;
+
+	// Where each span starts in the sent audio, and the total skipped before it, in samples
+	private long[] spanStarts = new long[8];
+	private long[] spanOffsets = new long[8];
+	private int spans = 0;
+	private long sentSamples = 0;
+	private long skippedSamples = 0;
+
+	public synchronized void recordSent(long samples) {
+		sentSamples += samples;
+	}
+
+	public synchronized void recordSkipped(long samples) {
+		skippedSamples += samples;
+		if (spans > 0 && spanStarts[spans - 1] == sentSamples) {
+			// Still in the same skipped stretch
+			spanOffsets[spans - 1] = skippedSamples;
+			return;
+		}
+		if (spans == spanStarts.length) {
+			spanStarts = Arrays.copyOf(spanStarts, spans * 2);
+			spanOffsets = Arrays.copyOf(spanOffsets, spans * 2);
+		}
+		spanStarts[spans] = sentSamples;
+		spanOffsets[spans] = skippedSamples;
+		spans++;
+	}
+
+	/**
+	 * @return true if any audio has been skipped, so that Deepgram's times need mapping
+	 */
+	public synchronized boolean hasSkips() {
+		return spans > 0;
+	}
+
+	/**
+	 * @param audioSeconds A time in the audio Deepgram received
+	 * @return The same moment as a time in the call
+	 */
+	public synchronized double toCallSeconds(double audioSeconds) {
+		long position = Math.round(audioSeconds * SAMPLES_PER_SECOND);
+		int index = Arrays.binarySearch(spanStarts, 0, spans, position);
+		// The last span starting at or before the position
+		int span = index >= 0 ? index : -index - 2;
+		return span < 0 ? audioSeconds : audioSeconds + spanOffsets[span] / SAMPLES_PER_SECOND;
+	}
+}
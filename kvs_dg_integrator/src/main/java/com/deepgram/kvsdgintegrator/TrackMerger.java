@@ -0,0 +1,266 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Merges the FROM_CUSTOMER and TO_CUSTOMER tracks of a Connect call into 2-channel audio (with FROM_CUSTOMER on the
+ * first channel), lining the channels up by the timecodes of their frames rather than by the order the frames arrive
+ * in.
+ *
+ * <p>Each frame is written into its channel's ring buffer at the sample position given by its fragment and block
+ * timecodes, relative to the first frame of the call. A frame usually follows on from the previous frame of its track
+ * to within a sample or two, which is just timecodes being rounded to whole milliseconds. If it starts later than that,
+ * the gap is filled with silence, and if it starts earlier, its overlap with the audio we already have is dropped.
+ *
+ * <p>Audio is handed out in chunks of a fixed number of samples (set per session by
+ * {@link IntegratorArguments.AudioChunking}), whatever the size of the frames. Connect's frames are normally 512
+ * samples, but each track ends with a frame of some other size, so those are simply re-chunked with the rest.
+ *
+ * <p>A chunk is ready once both channels have reached its end. If one track falls more than the jitter window behind
+ * the other, we stop waiting for it: its channel is padded with silence to the jitter window, and any of its frames
+ * that turn up later for that span are dropped. So a stalled track holds up the other by the jitter window at most.
+ *
+ * <p>A timecode jump too big to fill with silence (both tracks jumping together, say) is treated as a discontinuity:
+ * the timeline is shifted so that the audio carries on from where it was. A track jumping forward is enough for that,
+ * but a track jumping back is taken for a stalled track's late frames, which are dropped, unless the other track then
+ * jumps back too.
+ *
+ * <p>A merger is not thread-safe. The session's read loop is its only caller, apart from {@link #endEarly()}.
+ */
+public class TrackMerger {
+    private static final Logger logger = LogManager.getLogger(TrackMerger.class);
+
+    static final int SAMPLE_RATE = 8000;
+    static final int SAMPLES_PER_MILLISECOND = SAMPLE_RATE / 1000;
+    static final int BYTES_PER_SAMPLE = 2;
+    static final int CHANNELS = 2;
+    private static final int JITTER_WINDOW_MS = Integer.parseInt(
+            System.getenv().getOrDefault("TRACK_MERGE_JITTER_WINDOW_MS", "500"));
+    // A frame within this many samples of the end of its channel follows on from it
+    private static final int CONTIGUOUS_TOLERANCE_SAMPLES = 2 * SAMPLES_PER_MILLISECOND;
+    // 2 seconds per channel
+    private static final int RING_CAPACITY_SAMPLES = 16384;
+    private static final int MAX_FRAME_SAMPLES = 4096;
+
+    private final MkvFrameReader frameReader;
+    private final int chunkSamples;
+    private final int jitterWindowSamples;
+    private final long maxGapSamples;
+    private final byte[][] rings = new byte[CHANNELS][RING_CAPACITY_SAMPLES * BYTES_PER_SAMPLE];
+    private final ByteBuffer[] ringViews = new ByteBuffer[CHANNELS];
+    // The end of each channel's audio so far, as a sample position on the merged timeline
+    private final long[] writePositions = new long[CHANNELS];
+    // Everything before this sample position has been handed out
+    private long emittedPosition = 0;
+    private boolean started = false;
+    private long baseTimecodeMillis;
+    // Added to every frame's position, to carry on across discontinuities
+    private long offsetSamples = 0;
+    // Whether each track's last frame was too far behind the end of its channel to be a late frame we could still use
+    private final boolean[] farBehind = new boolean[CHANNELS];
+    private boolean streamEnded = false;
+    // Set from another thread to end the audio at the next chunk, as if the stream had ended there
+    private volatile boolean endRequested = false;
+    private long silenceSamples = 0;
+    private long droppedSamples = 0;
+    // Kept in a field so that reading a frame doesn't allocate a new consumer each time
+    private final MkvFrameReader.FrameConsumer frameWriter = this::writeFrame;
+
+    public TrackMerger(MkvFrameReader frameReader) {
+        this(frameReader, IntegratorArguments.AudioChunking.DEFAULT.chunkMs());
+    }
+
+    /**
+     * @param chunkMs How much audio each chunk holds
+     */
+    public TrackMerger(MkvFrameReader frameReader, int chunkMs) {
+        this(frameReader, chunkMs * SAMPLES_PER_MILLISECOND, JITTER_WINDOW_MS * SAMPLES_PER_MILLISECOND);
+    }
+
+    TrackMerger(MkvFrameReader frameReader, int chunkSamples, int jitterWindowSamples) {
+        this.frameReader = Validate.notNull(frameReader);
+        Validate.isTrue(chunkSamples > 0, "Chunk size must be positive");
+        Validate.isTrue(jitterWindowSamples >= 0, "Jitter window must not be negative");
+        this.chunkSamples = chunkSamples;
+        this.jitterWindowSamples = jitterWindowSamples;
+        // Whatever is left of the ring once a channel is a jitter window and a chunk ahead, and has a frame to write
+        this.maxGapSamples = RING_CAPACITY_SAMPLES - jitterWindowSamples - chunkSamples - MAX_FRAME_SAMPLES;
+        Validate.isTrue(maxGapSamples > 0, "Chunk size and jitter window are too large to buffer");
+
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            ringViews[channel] = ByteBuffer.wrap(rings[channel]);
+        }
+    }
+
+    /**
+     * @return The size of the interleaved buffers that {@link #nextChunk(ByteBuffer)} fills
+     */
+    public int getChunkBytes() {
+        return chunkSamples * CHANNELS * BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * Reads frames until the next chunk of both channels is ready, and interleaves it into {@code out}. The chunk has
+     * {@link #getChunkBytes()} bytes, except that the last one of the call may be shorter.
+     *
+     * @return false once the stream has ended (or the contact id in the stream no longer matches) and all of its audio
+     * has been handed out
+     */
+    public boolean nextChunk(ByteBuffer out) throws Exception {
+        while (true) {
+            long readySamples = Math.min(writePositions[0], writePositions[1]) - emittedPosition;
+            if (readySamples >= chunkSamples) {
+                interleave(chunkSamples, out);
+                return true;
+            }
+            if (streamEnded) {
+                if (readySamples > 0) {
+                    interleave((int) readySamples, out);
+                    return true;
+                }
+                return false;
+            }
+
+            if (endRequested) {
+                logger.info("Ending the audio early, without reading the rest of the KVS stream");
+            }
+            if (endRequested || !frameReader.readNextFrame(frameWriter)) {
+                streamEnded = true;
+                // Whichever track ended first is padded to the end of the other
+                long end = Math.max(writePositions[0], writePositions[1]);
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    fillSilence(channel, end);
+                }
+                logger.debug("KVS stream ended after %sms of audio; filled %sms of gaps with silence and dropped %sms"
+                        .formatted(end / SAMPLES_PER_MILLISECOND, silenceSamples / SAMPLES_PER_MILLISECOND,
+                                droppedSamples / SAMPLES_PER_MILLISECOND));
+            }
+        }
+    }
+
+    /**
+     * Ends the audio once the chunks already merged have been handed out, without reading any more of the stream. The
+     * frame being read when this is called, if any, is still merged. Safe to call from any thread.
+     */
+    public void endEarly() {
+        endRequested = true;
+    }
+
+    /**
+     * @return true if the audio was ended by {@link #endEarly()}, rather than by the stream ending
+     */
+    public boolean endedEarly() {
+        return endRequested;
+    }
+
+    /**
+     * @return How far into the call the merger has read, in samples per channel: the end of whichever track is ahead
+     */
+    public long getReadPosition() {
+        return Math.max(writePositions[0], writePositions[1]);
+    }
+
+    private void writeFrame(String trackName, long timecodeMillis, ByteBuffer source, int offset, int length) {
+        int channel = channelOf(trackName);
+        if (channel < 0) {
+            return;
+        }
+        (channel == 0 ? Metrics.FRAMES_READ_FROM_CUSTOMER : Metrics.FRAMES_READ_TO_CUSTOMER).increment();
+        int samples = length / BYTES_PER_SAMPLE;
+        Validate.validState(samples <= MAX_FRAME_SAMPLES, "Frame of %s samples is too large", samples);
+
+        if (!started) {
+            started = true;
+            baseTimecodeMillis = timecodeMillis;
+        }
+        long position = (timecodeMillis - baseTimecodeMillis) * SAMPLES_PER_MILLISECOND + offsetSamples;
+        long channelEnd = writePositions[channel];
+        int otherChannel = 1 - channel;
+        long jumpSamples = position - channelEnd;
+        boolean behind = jumpSamples < -maxGapSamples;
+
+        if (Math.abs(jumpSamples) <= CONTIGUOUS_TOLERANCE_SAMPLES) {
+            position = channelEnd;
+        } else if (jumpSamples > maxGapSamples || behind && farBehind[otherChannel]) {
+            // Otherwise a frame far behind is most likely late, and is dropped below like any other late frame
+            long newestPosition = Math.max(writePositions[0], writePositions[1]);
+            logger.info("Timecode of %s jumped by %sms; carrying on from the latest audio".formatted(
+                    trackName, jumpSamples / SAMPLES_PER_MILLISECOND));
+            offsetSamples += newestPosition - position;
+            position = newestPosition;
+            behind = false;
+            farBehind[otherChannel] = false;
+        }
+        farBehind[channel] = behind;
+
+        silenceSamples += Math.max(0, position - channelEnd);
+        fillSilence(channel, position);
+
+        int overlapSamples = (int) Math.min(samples, Math.max(0, channelEnd - position));
+        droppedSamples += overlapSamples;
+        if (overlapSamples > 0) {
+            Metrics.FRAMES_DROPPED.increment();
+        }
+        copyIntoRing(channel, source, offset + overlapSamples * BYTES_PER_SAMPLE, samples - overlapSamples);
+
+        // Stop waiting for a track that has fallen too far behind
+        long lagLimit = writePositions[channel] - jitterWindowSamples;
+        silenceSamples += Math.max(0, lagLimit - writePositions[otherChannel]);
+        fillSilence(otherChannel, lagLimit);
+    }
+
+    private static int channelOf(String trackName) {
+        if (KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName().equals(trackName)) {
+            return 0;
+        }
+        if (KvsUtils.TrackName.AUDIO_TO_CUSTOMER.getName().equals(trackName)) {
+            return 1;
+        }
+        return -1;
+    }
+
+    private void fillSilence(int channel, long untilPosition) {
+        while (writePositions[channel] < untilPosition) {
+            int ringIndex = ringIndex(writePositions[channel]);
+            int bytes = (int) Math.min((untilPosition - writePositions[channel]) * BYTES_PER_SAMPLE,
+                    rings[channel].length - ringIndex);
+            Arrays.fill(rings[channel], ringIndex, ringIndex + bytes, (byte) 0);
+            writePositions[channel] += bytes / BYTES_PER_SAMPLE;
+        }
+    }
+
+    private void copyIntoRing(int channel, ByteBuffer source, int offset, int samples) {
+        int bytesLeft = samples * BYTES_PER_SAMPLE;
+        while (bytesLeft > 0) {
+            int ringIndex = ringIndex(writePositions[channel]);
+            int bytes = Math.min(bytesLeft, rings[channel].length - ringIndex);
+            source.get(offset, rings[channel], ringIndex, bytes);
+            offset += bytes;
+            bytesLeft -= bytes;
+            writePositions[channel] += bytes / BYTES_PER_SAMPLE;
+        }
+    }
+
+    private void interleave(int samples, ByteBuffer out) {
+        int bytesLeft = samples * BYTES_PER_SAMPLE;
+        while (bytesLeft > 0) {
+            int ringIndex = ringIndex(emittedPosition);
+            int bytes = Math.min(bytesLeft, rings[0].length - ringIndex);
+            for (ByteBuffer ringView : ringViews) {
+                ringView.clear().position(ringIndex).limit(ringIndex + bytes);
+            }
+            AudioInterleaver.interleave(ringViews[0], ringViews[1], out);
+            bytesLeft -= bytes;
+            emittedPosition += bytes / BYTES_PER_SAMPLE;
+        }
+    }
+
+    private static int ringIndex(long position) {
+        return (int) ((position % RING_CAPACITY_SAMPLES) * BYTES_PER_SAMPLE);
+    }
+}
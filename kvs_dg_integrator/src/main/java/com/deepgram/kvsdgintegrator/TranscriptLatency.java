@@ -0,0 +1,168 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures how far a session's transcript is behind the live call: for each result from Deepgram, the time from when
+ * the end of its audio was produced by Connect to when the result arrived. Interim and final results are measured
+ * separately, each into a {@link LatencyHistogram} of the session's and one shared by the task, and the session's are
+ * logged when it ends.
+ *
+ * <p>KVS stamps each fragment with when its producer started it, and the fragment's audio follows on from that time.
+ * So the timestamp is recorded when the read loop reaches a fragment, along with where the fragment starts in the
+ * session's audio, and each audio frame's producer time is the fragment's plus how far into it the frame is. A result's
+ * time in the session's audio is traced back through the fragment it falls in.
+ *
+ * <p>A session that is catching up (on the start of the call, or after a reconnect) has latencies that include how far
+ * behind it is, as that's how late its transcript is.
+ */
+public final class TranscriptLatency {
+	private static final Logger logger = LogManager.getLogger(TranscriptLatency.class);
+	// A few minutes of Connect's fragments, which is as far back as any result reaches
+	private static final int MAX_FRAGMENTS = 256;
+
+	private final LatencyHistogram taskInterims;
+	private final LatencyHistogram taskFinals;
+	private final LatencyHistogram interims = new LatencyHistogram();
+	private final LatencyHistogram finals = new LatencyHistogram();
+	private final LongSupplier clockMillis;
+	// Not synchronized, so that a virtual thread waiting for it isn't pinned to its carrier
+	private final ReentrantLock lock = new ReentrantLock();
+	// The most recent fragments, oldest first
+	private final ArrayDeque<Fragment> fragments = new ArrayDeque<>();
+	// How far the session has read, in samples per channel, or null until the merger is attached
+	private LongSupplier readPosition = null;
+
+	private record Fragment(long startPosition, long producerMillis) {
+	}
+
+	/**
+	 * @param taskInterims Where the task's interim result latencies are recorded, along with the session's
+	 * @param taskFinals   Where the task's final result latencies are recorded, along with the session's
+	 */
+	TranscriptLatency(LatencyHistogram taskInterims, LatencyHistogram taskFinals, LongSupplier clockMillis) {
+		this.taskInterims = Validate.notNull(taskInterims);
+		this.taskFinals = Validate.notNull(taskFinals);
+		this.clockMillis = Validate.notNull(clockMillis);
+	}
+
+	/**
+	 * Takes where the session has read to, in samples per channel, from {@link TrackMerger#getReadPosition()} from now
+	 * on. Until then, fragments aren't recorded and results aren't measured.
+	 */
+	public void readFrom(LongSupplier readPosition) {
+		Validate.notNull(readPosition);
+		lock.lock();
+		try {
+			this.readPosition = readPosition;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called from the read loop with a fragment's producer timestamp, before any of its audio has been merged.
+	 */
+	public void fragmentProduced(long producerMillis) {
+		lock.lock();
+		try {
+			if (readPosition == null) {
+				return;
+			}
+			if (fragments.size() == MAX_FRAGMENTS) {
+				fragments.removeFirst();
+			}
+			fragments.addLast(new Fragment(readPosition.getAsLong(), producerMillis));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called from the websocket's thread as each result arrives.
+	 *
+	 * @param sessionSeconds Where the result's audio ends, in seconds from the start of the session's audio
+	 */
+	public void resultReceived(boolean isFinal, double sessionSeconds) {
+		long position = Math.round(sessionSeconds * TrackMerger.SAMPLE_RATE);
+		long producerMillis;
+		lock.lock();
+		try {
+			Fragment fragment = fragmentAt(position);
+			if (fragment == null) {
+				return;
+			}
+			producerMillis = fragment.producerMillis()
+					+ (position - fragment.startPosition()) / TrackMerger.SAMPLES_PER_MILLISECOND;
+		} finally {
+			lock.unlock();
+		}
+
+		long latencyMillis = clockMillis.getAsLong() - producerMillis;
+		if (isFinal) {
+			finals.record(latencyMillis);
+			taskFinals.record(latencyMillis);
+		} else {
+			interims.record(latencyMillis);
+			taskInterims.record(latencyMillis);
+		}
+	}
+
+	/**
+	 * @return The latencies of the session's interim results so far
+	 */
+	public LatencyHistogram.Snapshot getInterimLatency() {
+		return interims.snapshot();
+	}
+
+	/**
+	 * @return The latencies of the session's final results so far
+	 */
+	public LatencyHistogram.Snapshot getFinalLatency() {
+		return finals.snapshot();
+	}
+
+	/**
+	 * Logs the session's latencies, if it had any results to measure.
+	 */
+	public void logSummary() {
+		LatencyHistogram.Snapshot finalLatency = finals.snapshot();
+		LatencyHistogram.Snapshot interimLatency = interims.snapshot();
+		if (finalLatency.getCount() == 0 && interimLatency.getCount() == 0) {
+			return;
+		}
+		logger.info("Transcript latency behind the call: final results %s; interim results %s".formatted(
+				summarize(finalLatency), summarize(interimLatency)));
+	}
+
+	static String summarize(LatencyHistogram.Snapshot latency) {
+		if (latency.getCount() == 0) {
+			return "none";
+		}
+		return "p50 %sms, p90 %sms, p99 %sms, max %sms over %s results".formatted(
+				latency.getValueAtPercentile(50), latency.getValueAtPercentile(90), latency.getValueAtPercentile(99),
+				latency.getMaxMillis(), latency.getCount());
+	}
+
+	// Must hold the lock
+	private Fragment fragmentAt(long position) {
+		// Results are mostly for the latest audio, so search from the newest fragment
+		Iterator<Fragment> newestFirst = fragments.descendingIterator();
+		Fragment fragment = null;
+		while (newestFirst.hasNext()) {
+			fragment = newestFirst.next();
+			if (fragment.startPosition() <= position) {
+				return fragment;
+			}
+		}
+		// Before the oldest fragment kept, which is as close as we can get
+		return fragment;
+	}
+}
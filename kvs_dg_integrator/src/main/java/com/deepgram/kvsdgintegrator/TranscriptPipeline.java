@@ -0,0 +1,223 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gathers a session's transcript results into batches and delivers them to a {@link TranscriptSink}, off the
+ * websocket's thread.
+ *
+ * <p>Results wait in a bounded pending batch. Final results are kept in order, while an interim result only replaces
+ * the last interim for its channel (and a final drops it), since each interim supersedes the one before. A batch is
+ * delivered {@code TRANSCRIPT_BATCH_MS} after its first result arrives, on a shared pool of virtual threads, with at
+ * most one delivery in flight (and one waiting behind it) per session. If the sink falls so far behind that
+ * {@code TRANSCRIPT_MAX_PENDING_RESULTS} final results are waiting, the oldest are dropped, so a slow sink costs memory
+ * up to that bound but never holds up the session.
+ *
+ * <p>If a delivery fails, its final results go back at the head of the pending batch, ahead of any that arrived since,
+ * and are delivered again after an exponential backoff, so that a sink that is briefly down loses nothing. Its interim
+ * results aren't, since the next result supersedes them. While the session runs, a failed batch is retried until it's
+ * delivered or the bound drops it; once it has ended, we give up after {@code TRANSCRIPT_SINK_MAX_RETRIES} failures in
+ * a row.
+ *
+ * <p>Closing the pipeline, when the session ends, delivers whatever is still pending without waiting for the batch
+ * interval.
+ */
+public class TranscriptPipeline implements AutoCloseable {
+	private static final Logger logger = LogManager.getLogger(TranscriptPipeline.class);
+
+	private static final long BATCH_MS = Long.parseLong(
+			System.getenv().getOrDefault("TRANSCRIPT_BATCH_MS", "250"));
+	private static final int MAX_PENDING_RESULTS = Integer.parseInt(
+			System.getenv().getOrDefault("TRANSCRIPT_MAX_PENDING_RESULTS", "1000"));
+	private static final int MAX_RETRIES_AFTER_CLOSE = Integer.parseInt(
+			System.getenv().getOrDefault("TRANSCRIPT_SINK_MAX_RETRIES", "5"));
+	private static final long RETRY_INITIAL_BACKOFF_MS = 250;
+	// The backoff doubles up to this many times the initial backoff
+	private static final int RETRY_MAX_BACKOFF_DOUBLINGS = 5;
+	private static final TranscriptSink SINK = TranscriptSink.fromEnvironment();
+	// Deliveries aren't owned by a session scope, so that the last batch still goes out as the session closes
+	private static final Executor DELIVERY_EXECUTOR = Executors.newThreadPerTaskExecutor(
+			Thread.ofVirtual().name("transcript-delivery-", 0).factory());
+
+	private final String contactId;
+	private final int stream;
+	private final TranscriptSink sink;
+	private final long batchMs;
+	private final int maxPendingResults;
+	private final long retryBackoffMs;
+	private final String requestId = ThreadContext.get("requestId");
+
+	// Held while delivering, so that a session's batches reach the sink one at a time and in order
+	private final Lock deliveryLock = new ReentrantLock();
+	private final Deque<TranscriptResult> pendingFinals = new ArrayDeque<>();
+	private final Map<Integer, TranscriptResult> pendingInterims = new TreeMap<>();
+	private boolean deliveryScheduled = false;
+	private boolean closed = false;
+	private long droppedResults = 0;
+	// Deliveries that have failed in a row, and when the next may be tried
+	private int failedDeliveries = 0;
+	private long retryAtNanos = 0;
+
+	/**
+	 * @param stream Which of the session's Deepgram streams the pipeline is for, in the order of its `dgParams`
+	 * @return A pipeline to the sink set by {@code TRANSCRIPT_SINK_URL}, or null if there isn't one
+	 */
+	public static TranscriptPipeline forSession(String contactId, int stream) {
+		return SINK == null ? null : new TranscriptPipeline(contactId, stream, SINK, BATCH_MS, MAX_PENDING_RESULTS);
+	}
+
+	TranscriptPipeline(String contactId, int stream, TranscriptSink sink, long batchMs, int maxPendingResults) {
+		this(contactId, stream, sink, batchMs, maxPendingResults, RETRY_INITIAL_BACKOFF_MS);
+	}
+
+	TranscriptPipeline(
+			String contactId, int stream, TranscriptSink sink, long batchMs, int maxPendingResults,
+			long retryBackoffMs) {
+		Validate.isTrue(stream >= 0, "Stream must not be negative");
+		Validate.isTrue(batchMs >= 0, "Batch interval must not be negative");
+		Validate.isTrue(maxPendingResults > 0, "Maximum pending results must be positive");
+		Validate.isTrue(retryBackoffMs > 0, "Retry backoff must be positive");
+		this.contactId = Validate.notNull(contactId);
+		this.stream = stream;
+		this.sink = Validate.notNull(sink);
+		this.batchMs = batchMs;
+		this.maxPendingResults = maxPendingResults;
+		this.retryBackoffMs = retryBackoffMs;
+	}
+
+	/**
+	 * Adds a result to the pending batch. This never blocks on the sink.
+	 */
+	public synchronized void accept(TranscriptResult result) {
+		Validate.notNull(result);
+		if (closed) {
+			return;
+		}
+
+		if (result.isFinal()) {
+			pendingInterims.remove(result.channel());
+			if (pendingFinals.size() == maxPendingResults) {
+				pendingFinals.removeFirst();
+				droppedResults++;
+			}
+			pendingFinals.addLast(result);
+		} else {
+			pendingInterims.put(result.channel(), result);
+		}
+		scheduleDelivery(batchMs);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (!pendingFinals.isEmpty() || !pendingInterims.isEmpty()) {
+			// Without waiting for any delivery already scheduled
+			DELIVERY_EXECUTOR.execute(this::deliver);
+		}
+	}
+
+	// Must hold the lock
+	private void scheduleDelivery(long delayMs) {
+		if (deliveryScheduled) {
+			return;
+		}
+		deliveryScheduled = true;
+		Executor executor = delayMs > 0
+				? CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS, DELIVERY_EXECUTOR)
+				: DELIVERY_EXECUTOR;
+		executor.execute(this::deliver);
+	}
+
+	private void deliver() {
+		ThreadContext.put("requestId", requestId);
+		deliveryLock.lock();
+		try {
+			List<TranscriptResult> batch;
+			int finals;
+			long dropped;
+			synchronized (this) {
+				deliveryScheduled = false;
+				if (pendingFinals.isEmpty() && pendingInterims.isEmpty()) {
+					return;
+				}
+				long backoffMs = TimeUnit.NANOSECONDS.toMillis(retryAtNanos - System.nanoTime());
+				if (failedDeliveries > 0 && backoffMs > 0) {
+					// Results arrived, or the session ended, while we were backing off
+					scheduleDelivery(backoffMs);
+					return;
+				}
+				finals = pendingFinals.size();
+				batch = new ArrayList<>(pendingFinals);
+				batch.addAll(pendingInterims.values());
+				pendingFinals.clear();
+				pendingInterims.clear();
+				dropped = droppedResults;
+				droppedResults = 0;
+			}
+
+			if (dropped > 0) {
+				logger.warn("Dropped %s transcript results while the sink was behind".formatted(dropped));
+			}
+			try {
+				sink.deliver(contactId, stream, batch);
+				synchronized (this) {
+					failedDeliveries = 0;
+				}
+			} catch (Exception e) {
+				retryLater(batch.subList(0, finals), e);
+			}
+		} finally {
+			deliveryLock.unlock();
+			ThreadContext.clearAll();
+		}
+	}
+
+	/**
+	 * Puts the final results of a failed delivery back at the head of the pending batch, and schedules another
+	 * delivery after a backoff.
+	 */
+	private synchronized void retryLater(List<TranscriptResult> failedFinals, Exception e) {
+		failedDeliveries++;
+		if (closed && failedDeliveries > MAX_RETRIES_AFTER_CLOSE) {
+			logger.warn("Gave up delivering %s transcript results after %s failures in a row: %s".formatted(
+					failedFinals.size() + pendingFinals.size(), failedDeliveries, e));
+			pendingFinals.clear();
+			pendingInterims.clear();
+			return;
+		}
+
+		for (int i = failedFinals.size() - 1; i >= 0; i--) {
+			pendingFinals.addFirst(failedFinals.get(i));
+		}
+		while (pendingFinals.size() > maxPendingResults) {
+			pendingFinals.removeFirst();
+			droppedResults++;
+		}
+		long backoffMs = retryBackoffMs << Math.min(failedDeliveries - 1, RETRY_MAX_BACKOFF_DOUBLINGS);
+		retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs);
+		logger.warn("Could not deliver %s transcript results, retrying in %sms: %s".formatted(
+				failedFinals.size(), backoffMs, e));
+		if (!pendingFinals.isEmpty()) {
+			scheduleDelivery(backoffMs);
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * The parts of a Deepgram {@code Results} message that we act on: which channel it's for, where it is in the audio,
+ * whether it's final, and the transcript and words of its best alternative.
+ *
+ * <p>Messages are read with Jackson's streaming parser, which skips everything else in them (other alternatives,
+ * metadata, and so on) without building a tree.
+ */
+public record TranscriptResult(
+		int channel,
+		double start,
+		double duration,
+		boolean isFinal,
+		boolean speechFinal,
+		String transcript,
+		double confidence,
+		List<Word> words
+) {
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	public record Word(String word, double start, double end, double confidence) {
+	}
+
+	/**
+	 * @return The result in the message, or null if it's another kind of message (Metadata, UtteranceEnd, and so on)
+	 */
+	public static TranscriptResult parse(String message) throws IOException {
+		try (JsonParser parser = JSON_FACTORY.createParser(message)) {
+			expect(parser.nextToken(), JsonToken.START_OBJECT);
+			String type = null;
+			int channel = 0;
+			double start = 0;
+			double duration = 0;
+			boolean isFinal = false;
+			boolean speechFinal = false;
+			Alternative alternative = null;
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				JsonToken value = parser.nextToken();
+				switch (field) {
+					case "type" -> type = parser.getValueAsString();
+					case "start" -> start = parser.getValueAsDouble();
+					case "duration" -> duration = parser.getValueAsDouble();
+					case "is_final" -> isFinal = parser.getValueAsBoolean();
+					case "speech_final" -> speechFinal = parser.getValueAsBoolean();
+					case "channel_index" -> channel = readChannelIndex(parser, value);
+					case "channel" -> alternative = readFirstAlternative(parser, value);
+					default -> parser.skipChildren();
+				}
+			}
+
+			if (!"Results".equals(type)) {
+				return null;
+			}
+			if (alternative == null) {
+				alternative = new Alternative("", 0, List.of());
+			}
+			return new TranscriptResult(channel, start, duration, isFinal, speechFinal, alternative.transcript,
+					alternative.confidence, alternative.words);
+		}
+	}
+
+	/**
+	 * @return This result with its start and the times of its words mapped through {@code mapping}
+	 */
+	public TranscriptResult withTimes(DoubleUnaryOperator mapping) {
+		List<Word> mappedWords = new ArrayList<>(words.size());
+		for (Word word : words) {
+			mappedWords.add(new Word(word.word(), mapping.applyAsDouble(word.start()), mapping.applyAsDouble(word.end()),
+					word.confidence()));
+		}
+		return new TranscriptResult(channel, mapping.applyAsDouble(start), duration, isFinal, speechFinal, transcript,
+				confidence, mappedWords);
+	}
+
+	/**
+	 * Writes the results as newline-delimited JSON, one object per result, each tagged with the contact and the Deepgram
+	 * stream it's from.
+	 */
+	public static void writeNdjson(String contactId, int stream, List<TranscriptResult> results, OutputStream out)
+			throws IOException {
+		try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+			// The caller owns the stream
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			for (TranscriptResult result : results) {
+				generator.writeStartObject();
+				generator.writeStringField("contactId", contactId);
+				generator.writeNumberField("stream", stream);
+				generator.writeNumberField("channel", result.channel);
+				generator.writeNumberField("start", result.start);
+				generator.writeNumberField("duration", result.duration);
+				generator.writeBooleanField("isFinal", result.isFinal);
+				generator.writeBooleanField("speechFinal", result.speechFinal);
+				generator.writeStringField("transcript", result.transcript);
+				generator.writeNumberField("confidence", result.confidence);
+				generator.writeArrayFieldStart("words");
+				for (Word word : result.words) {
+					generator.writeStartObject();
+					generator.writeStringField("word", word.word());
+					generator.writeNumberField("start", word.start());
+					generator.writeNumberField("end", word.end());
+					generator.writeNumberField("confidence", word.confidence());
+					generator.writeEndObject();
+				}
+				generator.writeEndArray();
+				generator.writeEndObject();
+				generator.writeRaw('\n');
+			}
+		}
+	}
+
+	/**
+	 * Deepgram gives the channel as {@code [index, channelCount]}.
+	 */
+	private static int readChannelIndex(JsonParser parser, JsonToken value) throws IOException {
+		if (value != JsonToken.START_ARRAY) {
+			parser.skipChildren();
+			return 0;
+		}
+		JsonToken first = parser.nextToken();
+		int index = first == JsonToken.VALUE_NUMBER_INT ? parser.getIntValue() : 0;
+		if (first != JsonToken.END_ARRAY) {
+			// Skips the rest of the array
+			parser.skipChildren();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				parser.skipChildren();
+			}
+		}
+		return index;
+	}
+
+	private static Alternative readFirstAlternative(JsonParser parser, JsonToken value) throws IOException {
+		if (value != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return null;
+		}
+		Alternative alternative = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			JsonToken fieldValue = parser.nextToken();
+			if (field.equals("alternatives") && fieldValue == JsonToken.START_ARRAY) {
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					if (alternative == null) {
+						alternative = readAlternative(parser);
+					} else {
+						parser.skipChildren();
+					}
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return alternative;
+	}
+
+	private static Alternative readAlternative(JsonParser parser) throws IOException {
+		String transcript = "";
+		double confidence = 0;
+		List<Word> words = List.of();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			JsonToken value = parser.nextToken();
+			switch (field) {
+				case "transcript" -> transcript = parser.getValueAsString("");
+				case "confidence" -> confidence = parser.getValueAsDouble();
+				case "words" -> words = value == JsonToken.START_ARRAY ? readWords(parser) : skip(parser);
+				default -> parser.skipChildren();
+			}
+		}
+		return new Alternative(transcript, confidence, words);
+	}
+
+	private static List<Word> readWords(JsonParser parser) throws IOException {
+		List<Word> words = new ArrayList<>();
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			String word = "";
+			double start = 0;
+			double end = 0;
+			double confidence = 0;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				parser.nextToken();
+				switch (field) {
+					case "word" -> word = parser.getValueAsString("");
+					case "start" -> start = parser.getValueAsDouble();
+					case "end" -> end = parser.getValueAsDouble();
+					case "confidence" -> confidence = parser.getValueAsDouble();
+					default -> parser.skipChildren();
+				}
+			}
+			words.add(new Word(word, start, end, confidence));
+		}
+		return words;
+	}
+
+	private static List<Word> skip(JsonParser parser) throws IOException {
+		parser.skipChildren();
+		return List.of();
+	}
+
+	private static void expect(JsonToken token, JsonToken expected) throws IOException {
+		if (token != expected) {
+			throw new IOException("Expected %s but found %s".formatted(expected, token));
+		}
+	}
+
+	private record Alternative(String transcript, double confidence, List<Word> words) {
+	}
+}
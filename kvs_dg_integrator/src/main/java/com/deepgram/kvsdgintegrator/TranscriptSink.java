@@ -0,0 +1,41 @@
+package com.deepgram.kvsdgintegrator;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Where the {@link TranscriptPipeline} delivers batches of transcript results. One sink is shared by every session on
+ * the task, and it may be called from several sessions at once, though never concurrently for one session.
+ */
+public interface TranscriptSink {
+	/**
+	 * Delivers a batch of one session's results, in order. If this throws, the pipeline delivers the batch's final
+	 * results again, ahead of any later ones, so a sink may receive the same final results more than once and should
+	 * treat a repeat as a no-op. The batch's interim results aren't delivered again.
+	 *
+	 * @param stream Which of the session's Deepgram streams the results are from, in the order of its `dgParams`
+	 */
+	void deliver(String contactId, int stream, List<TranscriptResult> results) throws Exception;
+
+	/**
+	 * The sink set by {@code TRANSCRIPT_SINK_URL}: an {@code http(s)} URL to POST batches to, or a {@code file} URL of
+	 * an NDJSON file to append them to.
+	 *
+	 * @return The sink, or null if there isn't one
+	 */
+	static TranscriptSink fromEnvironment() {
+		String url = System.getenv().getOrDefault("TRANSCRIPT_SINK_URL", "");
+		if (url.isEmpty()) {
+			return null;
+		}
+		URI uri = URI.create(url);
+		String scheme = String.valueOf(uri.getScheme());
+		return switch (scheme) {
+			case "http", "https" -> new HttpTranscriptSink(uri);
+			case "file" -> new NdjsonFileTranscriptSink(Path.of(uri));
+			default -> throw new IllegalArgumentException(
+					"TRANSCRIPT_SINK_URL must be an http, https or file URL, not " + url);
+		};
+	}
+}
@@ -1,25 +1,210 @@
 package com.deepgram.kvsdgintegrator;
 
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoClientBuilder;
-import com.amazonaws.services.kinesisvideo.model.APIName;
-import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
 import com.amazonaws.services.kinesisvideo.model.ResourceNotFoundException;
+import com.deepgram.kvsdgintegrator.KvsToDgStreamer.KvsStreamPublisher;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Warmer {
+	private static final Logger logger = LogManager.getLogger(Warmer.class);
+	// Synthetic sessions streamed at startup, at the same time, each of WARMUP_CALL_SECONDS of audio
+	private static final int WARMUP_SESSIONS = Integer.parseInt(System.getenv().getOrDefault("WARMUP_SESSIONS", "4"));
+	private static final int WARMUP_CALL_SECONDS = Integer.parseInt(
+			System.getenv().getOrDefault("WARMUP_CALL_SECONDS", "10"));
+	private static final long WARMUP_TIMEOUT_SECONDS = 60;
+	// As Connect writes them: 64ms of 8kHz linear16 per frame, and about 2 seconds per fragment
+	private static final int FRAME_BYTES = 1024;
+	private static final int FRAMES_PER_FRAGMENT = 32;
+	private static final int FRAMES_PER_SECOND = 1000 / 64;
+
 	/**
 	 * Calls the major libraries used in this integration with dummy data in order to trigger classloading. If we don't
 	 * do this, the first call through the system will experience high latency because the JVM must load all of these
-	 * classes.
+	 * classes. Going through {@link KvsClientRegistry} also builds the shared KVS client that real sessions use, and
+	 * {@link DeepgramConnections} caches Deepgram's address and a TLS session with it. Then synthetic sessions are
+	 * streamed, so that the rest of a session's path is loaded and compiled too.
 	 */
-	public static void warmUpApplication() {
-		AmazonKinesisVideo amazonKinesisVideo = AmazonKinesisVideoClientBuilder.standard().build();
+	public static void warmUpApplication(String deepgramApi) {
 		try {
-			amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest()
-					.withAPIName(APIName.GET_MEDIA)
-					.withStreamName("dummy")).getDataEndpoint();
+			KvsClientRegistry.getInstance().getDataEndpoint("dummy");
 		} catch(ResourceNotFoundException e) {
 			// Do nothing as this is the expected result
 		}
+		DeepgramConnections.warmUp(URI.create(deepgramApi));
+		warmUpSessions();
+	}
+
+	/**
+	 * Streams synthetic sessions through the same classes as a real session, from the MKV parser to the websocket, with a
+	 * call written by {@link ConnectMkvWriter} in place of GetMedia and a websocket server on the loopback interface in
+	 * place of Deepgram. Nothing leaves the task, so this is also what the AppCDS archive is trained on when the image is
+	 * built.
+	 *
+	 * <p>The sessions don't show in the task's metrics. A session that fails is logged, and doesn't stop the task
+	 * starting.
+	 */
+	public static void warmUpSessions() {
+		warmUpSessions(WARMUP_SESSIONS, WARMUP_CALL_SECONDS);
+	}
+
+	/**
+	 * @return How many of the sessions completed
+	 */
+	static int warmUpSessions(int sessions, int callSeconds) {
+		if (sessions <= 0) {
+			return 0;
+		}
+		long startNanos = System.nanoTime();
+		AtomicInteger completed = new AtomicInteger();
+		try (LoopbackDeepgram deepgram = new LoopbackDeepgram()) {
+			List<Thread> threads = new ArrayList<>();
+			for (int i = 0; i < sessions; i++) {
+				String contactId = "warmup-%s".formatted(i);
+				threads.add(Thread.ofVirtual().name(contactId).start(
+						() -> runSession(contactId, callSeconds, deepgram.getUrl(), completed)));
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (Exception e) {
+			logger.warn("Could not run the warmup sessions", e);
+		} finally {
+			Metrics.resetCounters();
+		}
+		logger.info("Streamed %s of %s warmup sessions of %ss in %sms".formatted(completed.get(), sessions, callSeconds,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+		return completed.get();
+	}
+
+	private static void runSession(String contactId, int callSeconds, String deepgramApi, AtomicInteger completed) {
+		ThreadContext.put("requestId", contactId);
+		try (SessionScope scope = new SessionScope(contactId)) {
+			// Parsed as a start-session request body is
+			IntegratorArguments integratorArguments = IntegratorArguments.fromJson("""
+					{
+					    "contactId": "%s",
+					    "kvsStream": {
+					        "arn": "arn:aws:kinesisvideo:us-east-1:000000000000:stream/warmup/1",
+					        "startFragmentNumber": "0"
+					    },
+					    "dgParams": {"model": ["nova"], "tag": ["%s"]},
+					    "enforceRealtime": false
+					}""".formatted(contactId, contactId));
+
+			KvsContactTagProcessor tagProcessor = new KvsContactTagProcessor(contactId, scope.metrics());
+			MkvFrameReader frameReader = KvsUtils.createFrameReader(
+					new ByteArrayInputStream(syntheticCall(contactId, callSeconds)), tagProcessor);
+			TrackMerger trackMerger = new TrackMerger(frameReader, integratorArguments.audioChunking().chunkMs());
+			KvsStreamPublisher publisher = new KvsStreamPublisher(
+					trackMerger, integratorArguments.enforceRealtime(), scope);
+			DeepgramStreamingClient client = new DeepgramStreamingClient(
+					deepgramApi, "warmup", integratorArguments.dgParams(), integratorArguments.audioChunking());
+			client.startStreamingToDeepgram(CompletableFuture.completedFuture(publisher), scope, null, null)
+					.get(WARMUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			completed.incrementAndGet();
+		} catch (Exception e) {
+			logger.warn("Warmup session failed", e);
+		} finally {
+			ThreadContext.clearAll();
+		}
+	}
+
+	/**
+	 * @return A Connect call of both tracks, as GetMedia would return it
+	 */
+	static byte[] syntheticCall(String contactId, int seconds) {
+		ConnectMkvWriter call = new ConnectMkvWriter();
+		String fromCustomer = KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName();
+		String toCustomer = KvsUtils.TrackName.AUDIO_TO_CUSTOMER.getName();
+		for (int i = 0; i < seconds * FRAMES_PER_SECOND; i++) {
+			if (i % FRAMES_PER_FRAGMENT == 0) {
+				call.fragment(contactId, fromCustomer, toCustomer);
+			}
+			call.frame(1, ConnectMkvWriter.audio(FRAME_BYTES, i)).frame(2, ConnectMkvWriter.audio(FRAME_BYTES, -i));
+		}
+		return call.toByteArray();
+	}
+
+	/**
+	 * Stands in for Deepgram: it sends a final result for about every second of audio, and on {@code CloseStream} sends
+	 * the Metadata message and closes the websocket.
+	 */
+	private static final class LoopbackDeepgram extends WebSocketServer implements AutoCloseable {
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		LoopbackDeepgram() throws InterruptedException {
+			super(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			setReuseAddr(true);
+			start();
+			if (!started.await(WARMUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("Loopback websocket server didn't start");
+			}
+		}
+
+		String getUrl() {
+			return "ws://127.0.0.1:%s/v1/listen".formatted(getPort());
+		}
+
+		@Override
+		public void onStart() {
+			started.countDown();
+		}
+
+		@Override
+		public void onOpen(WebSocket conn, ClientHandshake handshake) {
+			conn.setAttachment(0);
+		}
+
+		@Override
+		public void onMessage(WebSocket conn, ByteBuffer message) {
+			int messages = conn.<Integer>getAttachment() + 1;
+			conn.setAttachment(messages);
+			if (messages % FRAMES_PER_SECOND == 0) {
+				conn.send("""
+						{"type":"Results","channel_index":[0,2],"duration":1.0,"start":%s.0,"is_final":true,\
+						"speech_final":true,"channel":{"alternatives":[{"transcript":"warmup","confidence":1.0,\
+						"words":[]}]}}""".formatted(messages / FRAMES_PER_SECOND - 1));
+			}
+		}
+
+		@Override
+		public void onMessage(WebSocket conn, String message) {
+			if (message.contains("\"CloseStream\"")) {
+				conn.send("""
+						{"type":"Metadata","request_id":"warmup","channels":2}""");
+				conn.close(CloseFrame.NORMAL);
+			}
+		}
+
+		@Override
+		public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+		}
+
+		@Override
+		public void onError(WebSocket conn, Exception e) {
+			logger.debug("Loopback websocket error: " + e);
+		}
+
+		@Override
+		public void close() throws InterruptedException {
+			stop();
+		}
 	}
 }
@@ -0,0 +1,68 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionControllerTests {
+    @Test
+    void admitsUpToTheLimitAndAgainOnceASlotIsReleased() {
+        AdmissionController controller = new AdmissionController(2, 0.9, 0.85);
+
+        AdmissionController.Slot first = controller.tryAdmit();
+        AdmissionController.Slot second = controller.tryAdmit();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(controller.tryAdmit());
+        assertFalse(controller.getLoad().acceptingSessions());
+        assertEquals(1.0, controller.getLoad().utilization());
+
+        first.close();
+        // Releasing twice doesn't free a second slot
+        first.close();
+        assertEquals(1, controller.getLoad().activeSessions());
+        assertNotNull(controller.tryAdmit());
+        assertNull(controller.tryAdmit());
+    }
+
+    @Test
+    void turnsSessionsAwayWhileCpuOrHeapIsOverItsThreshold() {
+        AdmissionController controller = new AdmissionController(100, 0.9, 0.85);
+
+        controller.updateLoad(0.95, 0.5);
+        assertNull(controller.tryAdmit());
+        controller.updateLoad(0.5, 0.9);
+        assertNull(controller.tryAdmit());
+        assertFalse(controller.getLoad().acceptingSessions());
+
+        controller.updateLoad(0.5, 0.5);
+        assertTrue(controller.getLoad().acceptingSessions());
+        assertNotNull(controller.tryAdmit());
+    }
+
+    @Test
+    void drainingTurnsEverySessionAway() {
+        AdmissionController controller = new AdmissionController(100, 0.9, 0.85);
+
+        controller.startDraining();
+
+        assertNull(controller.tryAdmit());
+        assertTrue(controller.getLoad().draining());
+        assertFalse(controller.getLoad().acceptingSessions());
+    }
+
+    @Test
+    void derivedLimitIsWhicheverOfCpuAndHeapAllowsFewer() {
+        long mb = 1 << 20;
+        // CPU allows 100, and (1088 - 64) / 4 = 256 by heap
+        assertEquals(100, AdmissionController.deriveSessionLimit(2, 1088 * mb, 50, 4));
+        // CPU allows 400, but heap only 256
+        assertEquals(256, AdmissionController.deriveSessionLimit(8, 1088 * mb, 50, 4));
+        // A heap smaller than the baseline still allows one session
+        assertEquals(1, AdmissionController.deriveSessionLimit(2, 32 * mb, 50, 4));
+    }
+}
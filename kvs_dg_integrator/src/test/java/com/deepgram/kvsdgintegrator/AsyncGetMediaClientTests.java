@@ -0,0 +1,137 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.regions.Regions;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncGetMediaClientTests {
+
+    private static final AWSStaticCredentialsProvider CREDENTIALS = new AWSStaticCredentialsProvider(
+            new BasicSessionCredentials("AKIDEXAMPLE", "secret", "session-token"));
+
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private String endpoint() {
+        return "http://127.0.0.1:%s".formatted(server.getAddress().getPort());
+    }
+
+    @Test
+    void streamsTheSignedRequestsPayload() throws IOException {
+        // Bigger than the payload's buffer, so that it has to wait for the reader before asking for the rest
+        byte[] call = Warmer.syntheticCall("contact-1", 30);
+        AtomicReference<String> authorization = new AtomicReference<>();
+        AtomicReference<String> securityToken = new AtomicReference<>();
+        AtomicReference<String> requestBody = new AtomicReference<>();
+        server.createContext("/getMedia", exchange -> {
+            try (exchange) {
+                authorization.set(exchange.getRequestHeaders().getFirst("Authorization"));
+                securityToken.set(exchange.getRequestHeaders().getFirst("X-Amz-Security-Token"));
+                requestBody.set(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                // Chunked, in pieces, as GetMedia's payload is
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                for (int offset = 0; offset < call.length; offset += 10_000) {
+                    out.write(call, offset, Math.min(10_000, call.length - offset));
+                    out.flush();
+                }
+            }
+        });
+
+        byte[] received;
+        try (InputStream payload = AsyncGetMediaClient.getInstance().getMedia(
+                endpoint(), Regions.US_EAST_1, CREDENTIALS, "stream-1", "100")) {
+            received = payload.readAllBytes();
+        }
+
+        assertArrayEquals(call, received);
+        assertTrue(authorization.get().startsWith("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/"), authorization.get());
+        assertTrue(authorization.get().contains("/us-east-1/kinesisvideo/aws4_request"), authorization.get());
+        assertEquals("session-token", securityToken.get());
+        assertEquals("""
+                {"StreamName":"stream-1","StartSelector":{"StartSelectorType":"FRAGMENT_NUMBER",\
+                "AfterFragmentNumber":"100"}}""", requestBody.get());
+    }
+
+    @Test
+    void getMediaErrorsAreThrown() {
+        server.createContext("/getMedia", exchange -> {
+            try (exchange) {
+                byte[] body = "{\"Message\":\"The requested stream stream-1 is not found\"}".getBytes();
+                exchange.getResponseHeaders().set("x-amzn-ErrorType", "ResourceNotFoundException");
+                exchange.sendResponseHeaders(404, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+
+        IOException e = assertThrows(IOException.class, () -> AsyncGetMediaClient.getInstance().getMedia(
+                endpoint(), Regions.US_EAST_1, CREDENTIALS, "stream-1", "100"));
+        assertTrue(e.getMessage().contains("404 ResourceNotFoundException"), e.getMessage());
+        assertTrue(e.getMessage().contains("stream-1 is not found"), e.getMessage());
+    }
+
+    @Test
+    void closingThePayloadEndsItsRead() throws Exception {
+        server.createContext("/getMedia", exchange -> {
+            try (exchange) {
+                // A live call that never ends
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                out.write(new byte[100]);
+                out.flush();
+                Thread.sleep(60_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        InputStream payload = AsyncGetMediaClient.getInstance().getMedia(
+                endpoint(), Regions.US_EAST_1, CREDENTIALS, "stream-1", "100");
+        assertEquals(100, payload.readNBytes(100).length);
+
+        // Waits for more of the call until the session releases the payload
+        AtomicReference<IOException> readFailure = new AtomicReference<>();
+        Thread reader = Thread.ofVirtual().start(() -> {
+            try {
+                payload.read(new byte[1000]);
+            } catch (IOException e) {
+                readFailure.set(e);
+            }
+        });
+        Thread.sleep(100);
+        KvsUtils.releaseInputStreamFromKVS(payload);
+        reader.join(5_000);
+        assertFalse(reader.isAlive());
+        assertEquals("GetMedia payload is closed", readFailure.get().getMessage());
+    }
+}
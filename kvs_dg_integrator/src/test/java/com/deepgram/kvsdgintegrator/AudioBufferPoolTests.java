@@ -0,0 +1,27 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AudioBufferPoolTests {
+    // A capacity no other test uses, so that the pool is this test's alone
+    private static final int CAPACITY = 12_345;
+
+    @Test
+    void recycledBuffersAreReusedAndRecyclingOneTwiceFails() {
+        AudioBufferPool pool = AudioBufferPool.forCapacity(CAPACITY);
+        ByteBuffer buffer = pool.acquire();
+        AudioBufferPool.recycle(buffer);
+
+        // Gradle runs the tests with assertions on
+        assertThrows(AssertionError.class, () -> AudioBufferPool.recycle(buffer));
+
+        assertSame(buffer, pool.acquire());
+        assertNotSame(buffer, pool.acquire());
+    }
+}
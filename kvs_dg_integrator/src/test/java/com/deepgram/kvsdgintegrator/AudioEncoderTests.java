@@ -0,0 +1,121 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.jflac.FLACDecoder;
+import org.jflac.PCMProcessor;
+import org.jflac.metadata.StreamInfo;
+import org.jflac.util.ByteData;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AudioEncoderTests {
+    private static final int CHUNK_SAMPLES = 512;
+
+    @Test
+    void muLawEncodesG711ReferenceValues() {
+        assertEquals((byte) 0xFF, MuLawEncoder.encodeSample(0));
+        assertEquals((byte) 0x7F, MuLawEncoder.encodeSample(-1));
+        assertEquals((byte) 0x80, MuLawEncoder.encodeSample(Short.MAX_VALUE));
+        assertEquals((byte) 0x00, MuLawEncoder.encodeSample(Short.MIN_VALUE));
+        // 1000 falls in the third segment: 1000 + 132 = 0b100_0110_1100
+        assertEquals((byte) ~0x31, MuLawEncoder.encodeSample(1000));
+    }
+
+    @Test
+    void muLawHalvesTheAudio() {
+        ByteBuffer pcm = chunk(CHUNK_SAMPLES, i -> (short) (i * 64), i -> (short) -i);
+        ByteBuffer out = ByteBuffer.allocate(new MuLawEncoder().maxEncodedBytes(pcm.remaining()));
+
+        new MuLawEncoder().encode(pcm, out);
+
+        assertEquals(CHUNK_SAMPLES * 2, out.position());
+        assertEquals(MuLawEncoder.encodeSample(64), out.get(2));
+        assertEquals(MuLawEncoder.encodeSample(-1), out.get(3));
+        assertEquals(0, pcm.remaining());
+    }
+
+    @Test
+    void flacRoundTripsLosslessly() throws Exception {
+        Random random = new Random(42);
+        ByteBuffer[] chunks = {
+                // Digital silence on one channel, a tone on the other
+                chunk(CHUNK_SAMPLES, i -> (short) 0, i -> (short) (8000 * Math.sin(i / 5.0))),
+                // Noise, which can't be compressed
+                chunk(CHUNK_SAMPLES, i -> (short) random.nextInt(), i -> (short) random.nextInt()),
+                // Full-scale square waves, whose residuals are as large as they get
+                chunk(CHUNK_SAMPLES, i -> i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE,
+                        i -> (short) (i % 8 < 4 ? -30000 : 30000)),
+                // The last chunk of a call is usually short
+                chunk(100, i -> (short) (i * 300), i -> (short) (-i * 7)),
+        };
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (ByteBuffer chunk : chunks) {
+            expected.write(chunk.array(), 0, chunk.remaining());
+        }
+
+        FlacEncoder encoder = new FlacEncoder(CHUNK_SAMPLES);
+        int pcmBytes = expected.size();
+        ByteBuffer encoded = ByteBuffer.allocate(encoder.maxEncodedBytes(pcmBytes));
+        for (ByteBuffer chunk : chunks) {
+            encoder.encode(chunk, encoded);
+        }
+
+        FLACDecoder decoder = new FLACDecoder(new ByteArrayInputStream(encoded.array(), 0, encoded.position()));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        decoder.addPCMProcessor(new PCMProcessor() {
+            @Override
+            public void processStreamInfo(StreamInfo streamInfo) {
+                assertEquals(8000, streamInfo.getSampleRate());
+                assertEquals(2, streamInfo.getChannels());
+                assertEquals(16, streamInfo.getBitsPerSample());
+            }
+
+            @Override
+            public void processPCM(ByteData pcm) {
+                decoded.write(pcm.getData(), 0, pcm.getLen());
+            }
+        });
+        decoder.decode();
+
+        assertEquals(0, decoder.getBadFrames());
+        assertArrayEquals(expected.toByteArray(), decoded.toByteArray());
+        assertTrue(encoded.position() < pcmBytes, "Encoded %s bytes as %s".formatted(pcmBytes, encoded.position()));
+    }
+
+    @Test
+    void flacSilenceIsTiny() {
+        FlacEncoder encoder = new FlacEncoder(CHUNK_SAMPLES);
+        ByteBuffer out = ByteBuffer.allocate(encoder.maxEncodedBytes(CHUNK_SAMPLES * 4 * 2));
+        encoder.encode(chunk(CHUNK_SAMPLES, i -> (short) 0, i -> (short) 0), out);
+        int afterFirst = out.position();
+        encoder.encode(chunk(CHUNK_SAMPLES, i -> (short) 0, i -> (short) 0), out);
+
+        // A frame header, two constant subframes, and a CRC
+        assertTrue(out.position() - afterFirst < 20, "Silent frame took %s bytes".formatted(out.position() - afterFirst));
+        assertEquals("fLaC", new String(Arrays.copyOf(out.array(), 4)));
+    }
+
+    /**
+     * A chunk of interleaved little-endian audio, as it comes from KVS.
+     */
+    private static ByteBuffer chunk(int samples, Sample first, Sample second) {
+        ByteBuffer chunk = ByteBuffer.allocate(samples * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < samples; i++) {
+            chunk.putShort(first.at(i)).putShort(second.at(i));
+        }
+        return chunk.flip().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private interface Sample {
+        short at(int index);
+    }
+}
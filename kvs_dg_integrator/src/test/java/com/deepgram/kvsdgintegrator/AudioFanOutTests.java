@@ -0,0 +1,235 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AudioFanOutTests {
+
+    /**
+     * Sends a buffer numbered in order each time the test calls {@link #emit()}, as the read loop would.
+     */
+    private static final class ManualPublisher implements Publisher<ByteBuffer> {
+        Subscriber<? super ByteBuffer> subscriber;
+        long requested = 0;
+        int sent = 0;
+        boolean cancelled = false;
+
+        @Override
+        public void subscribe(Subscriber<? super ByteBuffer> s) {
+            subscriber = s;
+            s.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                    requested += n;
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+
+        void emit() {
+            assertTrue(requested > sent, "Sent more than was requested");
+            subscriber.onNext(ByteBuffer.allocate(4).putInt(0, sent++));
+        }
+    }
+
+    private static final class RecordingSubscriber implements Subscriber<ByteBuffer> {
+        final long initialRequest;
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        Subscription subscription;
+        boolean completed = false;
+        Throwable error = null;
+
+        RecordingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            s.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(ByteBuffer buffer) {
+            buffers.add(buffer);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+
+        List<Integer> received() {
+            return buffers.stream().map(buffer -> buffer.getInt(0)).toList();
+        }
+    }
+
+    /**
+     * Records the first int of each buffer of audio sent, and holds everything up while stalled.
+     */
+    private static final class StallableTransport implements DeepgramAudioSender.Transport {
+        final List<Integer> sent = new CopyOnWriteArrayList<>();
+        volatile boolean stalled = true;
+        volatile boolean closeStreamSent = false;
+
+        @Override
+        public void send(ByteBuffer audio) {
+            sent.add(audio.getInt(audio.position()));
+        }
+
+        @Override
+        public void send(String message) {
+            closeStreamSent = true;
+        }
+
+        @Override
+        public long bufferedBytes() {
+            return stalled ? Long.MAX_VALUE : 0;
+        }
+    }
+
+    private static List<Integer> range(int from, int to) {
+        return IntStream.range(from, to).boxed().toList();
+    }
+
+    @Test
+    void slowBranchDoesNotHoldUpTheOthers() {
+        ManualPublisher upstream = new ManualPublisher();
+        AudioFanOut fanOut = new AudioFanOut(upstream, 2, 10);
+        RecordingSubscriber fast = new RecordingSubscriber(1000);
+        RecordingSubscriber slow = new RecordingSubscriber(5);
+        fanOut.branch(0).subscribe(fast);
+        fanOut.branch(1).subscribe(slow);
+        // As fast as the fastest branch wants
+        assertEquals(1000, upstream.requested);
+
+        for (int i = 0; i < 100; i++) {
+            upstream.emit();
+        }
+        assertEquals(range(0, 100), fast.received());
+        assertEquals(range(0, 5), slow.received());
+        // Each branch has its own copy
+        assertNotSame(fast.buffers.get(0), slow.buffers.get(0));
+
+        // Only the newest of what the slow branch didn't ask for is kept
+        slow.subscription.request(20);
+        assertEquals(1000, upstream.requested);
+        upstream.subscriber.onComplete();
+        assertEquals(List.of(0, 1, 2, 3, 4, 90, 91, 92, 93, 94, 95, 96, 97, 98, 99), slow.received());
+        assertTrue(fast.completed);
+        assertTrue(slow.completed);
+    }
+
+    @Test
+    void audioDroppedFromASlowBranchIsSkippedInItsTimeline() throws Exception {
+        ManualPublisher upstream = new ManualPublisher();
+        AudioFanOut fanOut = new AudioFanOut(upstream, 2, 2);
+        RecordingSubscriber fast = new RecordingSubscriber(1000);
+        StallableTransport transport = new StallableTransport();
+        StreamTimeline timeline = new StreamTimeline();
+        try (SessionScope scope = new SessionScope("fan-out-test")) {
+            // Our buffers are one 2-channel sample each, numbered by where they are in the call
+            DeepgramAudioSender slow = new DeepgramAudioSender(new CompletableFuture<>(), scope,
+                    DeepgramAudioSender.OverflowPolicy.BLOCK, 2, Linear16Encoder::new, timeline, null,
+                    new ReplayBuffer(16, 1), 4);
+            slow.connected(transport, 0);
+            fanOut.branch(0).subscribe(fast);
+            fanOut.branch(1).subscribe(slow);
+
+            for (int i = 0; i < 20; i++) {
+                upstream.emit();
+            }
+            transport.stalled = false;
+            upstream.subscriber.onComplete();
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (!transport.closeStreamSent) {
+                assertTrue(System.nanoTime() < deadline, "Timed out waiting for the slow branch");
+                Thread.sleep(5);
+            }
+        }
+
+        assertEquals(range(0, 20), fast.received());
+        assertTrue(transport.sent.size() < 20, "Sent " + transport.sent);
+        assertEquals(19, transport.sent.get(transport.sent.size() - 1));
+        for (int sentPosition = 0; sentPosition < transport.sent.size(); sentPosition++) {
+            double callSeconds = DeepgramStreamingClient.toCallSeconds(
+                    sentPosition / (double) TrackMerger.SAMPLE_RATE, 0, timeline);
+            assertEquals(transport.sent.get(sentPosition) / (double) TrackMerger.SAMPLE_RATE, callSeconds,
+                    "Sent " + transport.sent);
+        }
+    }
+
+    @Test
+    void backlogIsSentAsItsBranchAsksForIt() {
+        ManualPublisher upstream = new ManualPublisher();
+        AudioFanOut fanOut = new AudioFanOut(upstream, 2, 10);
+        RecordingSubscriber first = new RecordingSubscriber(4);
+        RecordingSubscriber second = new RecordingSubscriber(2);
+        fanOut.branch(0).subscribe(first);
+        fanOut.branch(1).subscribe(second);
+        assertEquals(4, upstream.requested);
+
+        for (int i = 0; i < 4; i++) {
+            upstream.emit();
+        }
+        upstream.subscriber.onComplete();
+        assertTrue(first.completed);
+        assertEquals(range(0, 2), second.received());
+        assertFalse(second.completed);
+
+        // Out of its backlog, without asking upstream for more
+        second.subscription.request(1);
+        assertEquals(range(0, 3), second.received());
+        second.subscription.request(1);
+        assertEquals(range(0, 4), second.received());
+        assertTrue(second.completed);
+        assertEquals(4, upstream.requested);
+    }
+
+    @Test
+    void upstreamWaitsForEveryBranchAndStopsWhenNoneAreLeft() {
+        ManualPublisher upstream = new ManualPublisher();
+        AudioFanOut fanOut = new AudioFanOut(upstream, 2, 10);
+        RecordingSubscriber subscriber = new RecordingSubscriber(10);
+        fanOut.branch(0).subscribe(subscriber);
+        assertEquals(null, upstream.subscriber);
+
+        // The other websocket failed before it opened
+        fanOut.abandon(1);
+        assertEquals(10, upstream.requested);
+        upstream.emit();
+        assertEquals(range(0, 1), subscriber.received());
+
+        RecordingSubscriber late = new RecordingSubscriber(10);
+        fanOut.branch(1).subscribe(late);
+        assertInstanceOf(IllegalStateException.class, late.error);
+
+        assertFalse(upstream.cancelled);
+        subscriber.subscription.cancel();
+        assertTrue(upstream.cancelled);
+    }
+}
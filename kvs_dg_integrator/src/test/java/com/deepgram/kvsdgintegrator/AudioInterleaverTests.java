@@ -0,0 +1,74 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AudioInterleaverTests {
+
+    @Test
+    void matchesByteWiseInterleaving() {
+        byte[] first = randomBytes(1024, 1);
+        byte[] second = randomBytes(1024, 2);
+
+        ByteBuffer out = ByteBuffer.allocate(2048);
+        AudioInterleaver.interleave(ByteBuffer.wrap(first), ByteBuffer.wrap(second), out);
+
+        assertEquals(2048, out.position());
+        assertArrayEquals(byteWiseInterleave(first, second), out.array());
+    }
+
+    @Test
+    void handlesOddSampleCountAndOffsets() {
+        byte[] first = randomBytes(14, 3);
+        byte[] second = randomBytes(14, 4);
+
+        // Start both inputs and the output part way into their buffers
+        ByteBuffer firstBuffer = ByteBuffer.allocate(20).position(6).put(first).position(6);
+        ByteBuffer secondBuffer = ByteBuffer.allocate(16).position(2).put(second).position(2);
+        ByteBuffer out = ByteBuffer.allocate(40).position(4);
+
+        AudioInterleaver.interleave(firstBuffer, secondBuffer, out);
+
+        assertEquals(0, firstBuffer.remaining());
+        assertEquals(0, secondBuffer.remaining());
+        assertEquals(32, out.position());
+        byte[] interleaved = new byte[28];
+        out.get(4, interleaved);
+        assertArrayEquals(byteWiseInterleave(first, second), interleaved);
+    }
+
+    @Test
+    void mismatchedChannelsThrow() {
+        assertThrows(IllegalArgumentException.class, () -> AudioInterleaver.interleave(
+                ByteBuffer.allocate(1024), ByteBuffer.allocate(1022), ByteBuffer.allocate(2048)));
+    }
+
+    @Test
+    void smallOutputBufferThrows() {
+        assertThrows(IllegalArgumentException.class, () -> AudioInterleaver.interleave(
+                ByteBuffer.allocate(1024), ByteBuffer.allocate(1024), ByteBuffer.allocate(2046)));
+    }
+
+    private static byte[] byteWiseInterleave(byte[] first, byte[] second) {
+        byte[] out = new byte[first.length * 2];
+        for (int i = 0; i < first.length / 2; i++) {
+            out[4 * i] = first[2 * i];
+            out[4 * i + 1] = first[2 * i + 1];
+            out[4 * i + 2] = second[2 * i];
+            out[4 * i + 3] = second[2 * i + 1];
+        }
+        return out;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
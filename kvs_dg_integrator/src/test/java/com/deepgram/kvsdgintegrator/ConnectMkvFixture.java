@@ -0,0 +1,44 @@
+package com.deepgram.kvsdgintegrator;
+
+/**
+ * A {@link ConnectMkvWriter} that can also write what the tests and load harness need: gaps in a track, elements the
+ * reader should skip, and a stream written a piece at a time.
+ */
+final class ConnectMkvFixture extends ConnectMkvWriter {
+    @Override
+    ConnectMkvFixture fragment(String contactId, String... trackNames) {
+        super.fragment(contactId, trackNames);
+        return this;
+    }
+
+    @Override
+    ConnectMkvFixture frame(int trackNumber, byte[] audio) {
+        super.frame(trackNumber, audio);
+        return this;
+    }
+
+    /**
+     * Skips ahead on a track, as if some of its frames were lost.
+     */
+    ConnectMkvFixture gap(int trackNumber, int millis) {
+        trackSamples.merge(fragmentTrackNames[trackNumber - 1], millis * 8L, Long::sum);
+        return this;
+    }
+
+    /**
+     * Adds an element that the Connect reader doesn't know about, to check that it's skipped.
+     */
+    ConnectMkvFixture voidElement(int length) {
+        element(0xEC, new byte[length]);
+        return this;
+    }
+
+    /**
+     * @return What's been written since the last call, for writing a stream a piece at a time
+     */
+    byte[] drain() {
+        byte[] bytes = out.toByteArray();
+        out.reset();
+        return bytes;
+    }
+}
@@ -0,0 +1,158 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectMkvFrameReaderTests {
+    private static final String FROM_CUSTOMER = KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName();
+    private static final String TO_CUSTOMER = KvsUtils.TrackName.AUDIO_TO_CUSTOMER.getName();
+
+    @Test
+    void readsFramesAndResolvesTrackNamesPerFragment() throws Exception {
+        // The second fragment numbers its tracks the other way round
+        byte[] mkv = new ConnectMkvFixture()
+                .fragment("contact", FROM_CUSTOMER, TO_CUSTOMER)
+                .frame(1, ConnectMkvFixture.audio(1024, 1))
+                .voidElement(100)
+                .frame(2, ConnectMkvFixture.audio(1024, 2))
+                .fragment("contact", TO_CUSTOMER, FROM_CUSTOMER)
+                .frame(2, ConnectMkvFixture.audio(1024, 3))
+                .frame(1, ConnectMkvFixture.audio(600, 4))
+                .toByteArray();
+
+        List<String> expected = List.of(
+                frameDescription(FROM_CUSTOMER, ConnectMkvFixture.audio(1024, 1)),
+                frameDescription(TO_CUSTOMER, ConnectMkvFixture.audio(1024, 2)),
+                frameDescription(FROM_CUSTOMER, ConnectMkvFixture.audio(1024, 3)),
+                frameDescription(TO_CUSTOMER, ConnectMkvFixture.audio(600, 4)));
+        assertEquals(expected, readAllFrames(new ByteArrayInputStream(mkv), "contact"));
+    }
+
+    @Test
+    void handlesElementsSplitAcrossReads() throws Exception {
+        byte[] mkv = new ConnectMkvFixture()
+                .fragment("contact", FROM_CUSTOMER, TO_CUSTOMER)
+                .frame(1, ConnectMkvFixture.audio(1024, 1))
+                .voidElement(200_000)
+                .frame(2, ConnectMkvFixture.audio(1024, 2))
+                .toByteArray();
+
+        List<String> frames = readAllFrames(new TrickleInputStream(mkv, 7), "contact");
+
+        assertEquals(List.of(
+                frameDescription(FROM_CUSTOMER, ConnectMkvFixture.audio(1024, 1)),
+                frameDescription(TO_CUSTOMER, ConnectMkvFixture.audio(1024, 2))), frames);
+    }
+
+    @Test
+    void stopsWhenContactIdChanges() throws Exception {
+        byte[] mkv = new ConnectMkvFixture()
+                .fragment("contact", FROM_CUSTOMER, TO_CUSTOMER)
+                .frame(1, ConnectMkvFixture.audio(1024, 1))
+                .fragment("next contact", FROM_CUSTOMER, TO_CUSTOMER)
+                .frame(1, ConnectMkvFixture.audio(1024, 2))
+                .toByteArray();
+
+        assertEquals(List.of(frameDescription(FROM_CUSTOMER, ConnectMkvFixture.audio(1024, 1))),
+                readAllFrames(new ByteArrayInputStream(mkv), "contact"));
+    }
+
+    @Test
+    void mapsLegacyTrackName() throws Exception {
+        byte[] mkv = new ConnectMkvFixture()
+                .fragment("contact", "Track_audio/L16")
+                .frame(1, ConnectMkvFixture.audio(1024, 1))
+                .toByteArray();
+
+        assertEquals(List.of(frameDescription(FROM_CUSTOMER, ConnectMkvFixture.audio(1024, 1))),
+                readAllFrames(new ByteArrayInputStream(mkv), "contact"));
+    }
+
+    @Test
+    void unrecognizedStreamKeepsProbedBytes() throws Exception {
+        byte[] mkv = new ConnectMkvFixture()
+                .fragment("contact", "Track_video", FROM_CUSTOMER)
+                .frame(1, ConnectMkvFixture.audio(1024, 1))
+                .toByteArray();
+        InputStream kvsInputStream = new TrickleInputStream(mkv, 50);
+
+        ConnectMkvFrameReader reader = new ConnectMkvFrameReader(kvsInputStream, new KvsContactTagProcessor("contact"));
+
+        assertFalse(reader.recognizesStream());
+        // The fallback parser must see the whole stream, starting with the bytes the probe read
+        assertArrayEquals(mkv, new SequenceInputStream(reader.getProbedBytes(), kvsInputStream).readAllBytes());
+    }
+
+    @Test
+    void passesFrameTimecodes() throws Exception {
+        byte[] mkv = new ConnectMkvFixture()
+                .fragment("contact", FROM_CUSTOMER, TO_CUSTOMER)
+                .frame(1, ConnectMkvFixture.audio(1024, 1))
+                .frame(1, ConnectMkvFixture.audio(1024, 2))
+                .frame(2, ConnectMkvFixture.audio(1024, 3))
+                .fragment("contact", FROM_CUSTOMER, TO_CUSTOMER)
+                .frame(1, ConnectMkvFixture.audio(1024, 4))
+                .toByteArray();
+        ConnectMkvFrameReader reader = new ConnectMkvFrameReader(
+                new ByteArrayInputStream(mkv), new KvsContactTagProcessor("contact"));
+        assertTrue(reader.recognizesStream());
+
+        List<Long> timecodes = new ArrayList<>();
+        MkvFrameReader.FrameConsumer consumer = (trackName, timecodeMillis, source, offset, length) ->
+                timecodes.add(timecodeMillis);
+        while (reader.readNextFrame(consumer)) {
+            // keep reading until the stream ends
+        }
+
+        // The second fragment's cluster starts at 128ms
+        assertEquals(List.of(0L, 64L, 0L, 128L), timecodes);
+    }
+
+    private static List<String> readAllFrames(InputStream kvsInputStream, String contactId) throws Exception {
+        ConnectMkvFrameReader reader = new ConnectMkvFrameReader(kvsInputStream, new KvsContactTagProcessor(contactId));
+        assertTrue(reader.recognizesStream());
+
+        List<String> frames = new ArrayList<>();
+        MkvFrameReader.FrameConsumer consumer = (trackName, timecodeMillis, source, offset, length) -> {
+            byte[] audio = new byte[length];
+            source.get(offset, audio);
+            frames.add(frameDescription(trackName, audio));
+        };
+        while (reader.readNextFrame(consumer)) {
+            // keep reading until the stream ends
+        }
+        return frames;
+    }
+
+    private static String frameDescription(String trackName, byte[] audio) {
+        return "%s %s bytes, hash %s".formatted(trackName, audio.length, Arrays.hashCode(audio));
+    }
+
+    /**
+     * Returns at most a few bytes from each read, like a slow network connection.
+     */
+    private static final class TrickleInputStream extends ByteArrayInputStream {
+        private final int maxReadLength;
+
+        TrickleInputStream(byte[] bytes, int maxReadLength) {
+            super(bytes);
+            this.maxReadLength = maxReadLength;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, maxReadLength));
+        }
+    }
+}
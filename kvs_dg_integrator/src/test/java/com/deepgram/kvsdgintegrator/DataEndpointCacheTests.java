@@ -0,0 +1,107 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DataEndpointCacheTests {
+
+    @Test
+    void lookupIsReusedWithinTtl() {
+        AtomicInteger lookups = new AtomicInteger();
+        AtomicLong now = new AtomicLong(0);
+        DataEndpointCache cache = new DataEndpointCache(
+                streamName -> "https://" + streamName + "/" + lookups.incrementAndGet(), 100, now::get);
+
+        assertEquals("https://stream/1", cache.get("stream"));
+        now.set(99);
+        assertEquals("https://stream/1", cache.get("stream"));
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+
+        now.set(100);
+        assertEquals("https://stream/2", cache.get("stream"));
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    void streamsAreCachedSeparately() {
+        DataEndpointCache cache = new DataEndpointCache(streamName -> "https://" + streamName, 100, () -> 0);
+
+        assertEquals("https://a", cache.get("a"));
+        assertEquals("https://b", cache.get("b"));
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    void failedLookupIsNotCached() {
+        AtomicInteger lookups = new AtomicInteger();
+        DataEndpointCache cache = new DataEndpointCache(streamName -> {
+            if (lookups.incrementAndGet() == 1) {
+                throw new IllegalStateException("throttled");
+            }
+            return "https://" + streamName;
+        }, 100, () -> 0);
+
+        assertThrows(IllegalStateException.class, () -> cache.get("stream"));
+        assertEquals("https://stream", cache.get("stream"));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void invalidateForcesLookup() {
+        AtomicInteger lookups = new AtomicInteger();
+        DataEndpointCache cache = new DataEndpointCache(
+                streamName -> "https://" + streamName + "/" + lookups.incrementAndGet(), 100, () -> 0);
+
+        cache.get("stream");
+        cache.invalidate("stream");
+        assertEquals("https://stream/2", cache.get("stream"));
+    }
+
+    @Test
+    void concurrentLookupsAreCoalesced() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        DataEndpointCache cache = new DataEndpointCache(streamName -> {
+            lookups.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "https://" + streamName;
+        }, TimeUnit.MINUTES.toNanos(1), System::nanoTime);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> cache.get("stream")));
+            }
+            Thread.sleep(100);
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertEquals("https://stream", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, lookups.get());
+        assertEquals(1, cache.misses());
+        assertEquals(7, cache.hits());
+    }
+}
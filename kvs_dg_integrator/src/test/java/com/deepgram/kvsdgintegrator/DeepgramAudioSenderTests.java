@@ -0,0 +1,257 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeepgramAudioSenderTests {
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int AUDIO_BYTES = 4;
+
+    private final SessionScope scope = new SessionScope("sender-test");
+    private final StallableTransport transport = new StallableTransport();
+    private final RecordingSubscription subscription = new RecordingSubscription();
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private final StreamTimeline timeline = new StreamTimeline();
+
+    @AfterEach
+    void closeScope() {
+        scope.close();
+    }
+
+    @Test
+    void blockPolicyOnlyRequestsWhatTheQueueHolds() throws Exception {
+        transport.stalled = true;
+        DeepgramAudioSender sender = subscribe(DeepgramAudioSender.OverflowPolicy.BLOCK);
+        assertEquals(QUEUE_CAPACITY, subscription.requested.get());
+
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            sender.onNext(audio(i));
+        }
+        Thread.sleep(50);
+        assertEquals(QUEUE_CAPACITY, subscription.requested.get());
+        assertTrue(transport.sent.isEmpty());
+
+        transport.stalled = false;
+        awaitUntil(() -> transport.sent.size() == QUEUE_CAPACITY);
+        awaitUntil(() -> subscription.requested.get() == 2 * QUEUE_CAPACITY);
+    }
+
+    @Test
+    void dropOldestKeepsTheNewestAudio() throws Exception {
+        transport.stalled = true;
+        DeepgramAudioSender sender = subscribe(DeepgramAudioSender.OverflowPolicy.DROP_OLDEST);
+
+        int delivered = 3 * QUEUE_CAPACITY;
+        for (int i = 0; i < delivered; i++) {
+            sender.onNext(audio(i));
+        }
+        assertEquals(QUEUE_CAPACITY + delivered, subscription.requested.get());
+
+        transport.stalled = false;
+        awaitUntil(() -> transport.sent.contains(delivered - 1));
+        // The sender may have taken one buffer before the websocket stalled, plus the queue's worth
+        assertTrue(transport.sent.size() <= QUEUE_CAPACITY + 1, "Sent " + transport.sent);
+    }
+
+    @Test
+    void droppedAudioIsSkippedInTheTimeline() throws Exception {
+        transport.stalled = true;
+        DeepgramAudioSender sender = subscribe(DeepgramAudioSender.OverflowPolicy.DROP_OLDEST);
+
+        // Each of our buffers is one sample, numbered by where it is in the call
+        for (int i = 0; i < 3 * QUEUE_CAPACITY; i++) {
+            sender.onNext(audio(i));
+        }
+        transport.stalled = false;
+        sender.onNext(audio(3 * QUEUE_CAPACITY));
+        sender.onComplete();
+        awaitUntil(() -> transport.closeStreamSent);
+
+        assertTrue(timeline.hasSkips());
+        for (int sentPosition = 0; sentPosition < transport.sent.size(); sentPosition++) {
+            double callSeconds = DeepgramStreamingClient.toCallSeconds(
+                    sentPosition / (double) TrackMerger.SAMPLE_RATE, 0, timeline);
+            assertEquals(transport.sent.get(sentPosition) / (double) TrackMerger.SAMPLE_RATE, callSeconds,
+                    "Sent " + transport.sent);
+        }
+    }
+
+    @Test
+    void failPolicyEndsTheSessionWhenTheQueueIsFull() {
+        transport.stalled = true;
+        DeepgramAudioSender sender = subscribe(DeepgramAudioSender.OverflowPolicy.FAIL);
+
+        for (int i = 0; i < QUEUE_CAPACITY + 2; i++) {
+            sender.onNext(audio(i));
+        }
+
+        assertThrows(ExecutionException.class, future::get);
+        assertTrue(subscription.cancelled.get());
+    }
+
+    @Test
+    void closesStreamAfterTheLastAudio() throws Exception {
+        DeepgramAudioSender sender = subscribe(DeepgramAudioSender.OverflowPolicy.BLOCK);
+        sender.onNext(audio(0));
+        sender.onNext(audio(1));
+        sender.onComplete();
+
+        awaitUntil(() -> transport.closeStreamSent);
+        assertEquals(List.of(0, 1), transport.sent);
+    }
+
+    @Test
+    void coalescesQueuedAudioWhileBacklogged() throws Exception {
+        transport.stalled = true;
+        DeepgramAudioSender sender = subscribe(DeepgramAudioSender.OverflowPolicy.BLOCK, 2 * AUDIO_BYTES);
+
+        sender.onNext(audio(0));
+        Thread.sleep(50);
+        for (int i = 1; i < QUEUE_CAPACITY; i++) {
+            sender.onNext(audio(i));
+        }
+        sender.onComplete();
+
+        transport.stalled = false;
+        awaitUntil(() -> transport.closeStreamSent);
+        // The sender had already taken buffer 0 when the websocket stalled, and the rest queued up behind it
+        assertEquals(List.of(0, 2), transport.sent);
+        assertEquals(List.of(2 * AUDIO_BYTES, 2 * AUDIO_BYTES), transport.sentBytes);
+        assertEquals(2 * QUEUE_CAPACITY, subscription.requested.get());
+    }
+
+    @Test
+    void skippedSilenceIsNotSentButIsRequestedAgain() throws Exception {
+        // Silence of more than 1ms (8 samples, as each of our buffers is 1 sample) is skipped
+        SilenceSuppressor suppressor = new SilenceSuppressor(timeline, 1, -45);
+        DeepgramAudioSender sender = new DeepgramAudioSender(future, scope, DeepgramAudioSender.OverflowPolicy.BLOCK,
+                QUEUE_CAPACITY, Linear16Encoder::new, timeline, suppressor, replayBuffer(), AUDIO_BYTES);
+        sender.connected(transport, 0);
+        sender.onSubscribe(subscription);
+
+        for (int i = 0; i < 12; i++) {
+            int delivered = i;
+            awaitUntil(() -> subscription.requested.get() > delivered);
+            sender.onNext(audio(0));
+        }
+        sender.onComplete();
+
+        awaitUntil(() -> transport.closeStreamSent);
+        assertEquals(8, transport.sent.size());
+        assertEquals(QUEUE_CAPACITY + 12, subscription.requested.get());
+    }
+
+    @Test
+    void reconnectingReplaysTheAudioAfterTheLastFinalResult() throws Exception {
+        DeepgramAudioSender sender = subscribe(DeepgramAudioSender.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 4; i++) {
+            sender.onNext(audio(i));
+        }
+        awaitUntil(() -> transport.sent.size() == 4);
+
+        sender.disconnected();
+        // Held in the queue while there's no websocket
+        sender.onNext(audio(4));
+        Thread.sleep(50);
+        assertEquals(4, transport.sent.size());
+
+        // Each of our buffers is one 1-sample chunk, and Deepgram has finalized the first two
+        StallableTransport reconnected = new StallableTransport();
+        assertEquals(2, sender.connected(reconnected, 2));
+        awaitUntil(() -> reconnected.sent.size() == 3);
+        assertEquals(List.of(2, 3, 4), reconnected.sent);
+
+        sender.onComplete();
+        awaitUntil(() -> reconnected.closeStreamSent);
+        // Ending again after another reconnect replays from the same place, then closes the stream again
+        sender.disconnected();
+        StallableTransport last = new StallableTransport();
+        assertEquals(3, sender.connected(last, 3));
+        awaitUntil(() -> last.closeStreamSent);
+        assertEquals(List.of(3, 4), last.sent);
+    }
+
+    private DeepgramAudioSender subscribe(DeepgramAudioSender.OverflowPolicy overflowPolicy) {
+        return subscribe(overflowPolicy, AUDIO_BYTES);
+    }
+
+    private DeepgramAudioSender subscribe(DeepgramAudioSender.OverflowPolicy overflowPolicy, int maxMessageBytes) {
+        DeepgramAudioSender sender = new DeepgramAudioSender(future, scope, overflowPolicy, QUEUE_CAPACITY,
+                Linear16Encoder::new, timeline, null, replayBuffer(), maxMessageBytes);
+        sender.connected(transport, 0);
+        sender.onSubscribe(subscription);
+        return sender;
+    }
+
+    private static ReplayBuffer replayBuffer() {
+        // Our buffers of audio are one 2-channel sample each
+        return new ReplayBuffer(16, 1);
+    }
+
+    private static ByteBuffer audio(int index) {
+        return ByteBuffer.allocate(AUDIO_BYTES).putInt(0, index);
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for condition");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Records what's sent, and reports a full socket buffer while stalled.
+     */
+    private static final class StallableTransport implements DeepgramAudioSender.Transport {
+        private final List<Integer> sent = new CopyOnWriteArrayList<>();
+        private final List<Integer> sentBytes = new CopyOnWriteArrayList<>();
+        private volatile boolean stalled = false;
+        private volatile boolean closeStreamSent = false;
+
+        @Override
+        public void send(ByteBuffer audio) {
+            sent.add(audio.getInt(audio.position()));
+            sentBytes.add(audio.remaining());
+        }
+
+        @Override
+        public void send(String message) {
+            closeStreamSent = true;
+        }
+
+        @Override
+        public long bufferedBytes() {
+            return stalled ? Long.MAX_VALUE : 0;
+        }
+    }
+
+    private static final class RecordingSubscription implements Subscription {
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        @Override
+        public void request(long n) {
+            requested.addAndGet(n);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DeepgramConnectionsTests {
+    private static final URI DEEPGRAM = URI.create("wss://api.deepgram.com/v1/listen");
+
+    @Test
+    void resolvesEachHostOnceWhileItsAddressIsFresh() throws UnknownHostException {
+        AtomicInteger lookups = new AtomicInteger();
+        DeepgramConnections.CachingDnsResolver resolver = new DeepgramConnections.CachingDnsResolver(
+                TimeUnit.MINUTES.toNanos(1), host -> {
+                    lookups.incrementAndGet();
+                    return InetAddress.getByAddress(host, new byte[]{10, 0, 0, 1});
+                });
+
+        resolver.resolve(DEEPGRAM);
+        InetAddress address = resolver.resolve(URI.create("wss://api.deepgram.com/v1/listen?model=nova"));
+
+        assertEquals(1, lookups.get());
+        assertEquals("api.deepgram.com", address.getHostName());
+    }
+
+    @Test
+    void staleAddressIsServedWhileItRefreshesAndKeptIfTheRefreshFails() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        DeepgramConnections.CachingDnsResolver resolver = new DeepgramConnections.CachingDnsResolver(0, host -> {
+            int lookup = lookups.incrementAndGet();
+            if (lookup == 2) {
+                throw new UnknownHostException(host);
+            }
+            return InetAddress.getByAddress(host, new byte[]{10, 0, 0, (byte) Math.min(lookup, 3)});
+        });
+
+        assertEquals(InetAddress.getByAddress(new byte[]{10, 0, 0, 1}), resolver.resolve(DEEPGRAM));
+        // Stale straight away, so this starts a refresh, which fails
+        assertEquals(InetAddress.getByAddress(new byte[]{10, 0, 0, 1}), resolver.resolve(DEEPGRAM));
+        awaitLookups(lookups, 2);
+        // The next refresh (and every one after) succeeds, and its address is served once it's in
+        InetAddress refreshed = InetAddress.getByAddress(new byte[]{10, 0, 0, 3});
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!resolver.resolve(DEEPGRAM).equals(refreshed) && System.nanoTime() < deadlineNanos) {
+            Thread.sleep(10);
+        }
+        assertEquals(refreshed, resolver.resolve(DEEPGRAM));
+    }
+
+    private static void awaitLookups(AtomicInteger lookups, int count) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (lookups.get() < count && System.nanoTime() < deadlineNanos) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, lookups.get());
+    }
+}
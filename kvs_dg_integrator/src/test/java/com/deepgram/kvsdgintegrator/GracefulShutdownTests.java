@@ -0,0 +1,24 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GracefulShutdownTests {
+    @Test
+    void drainWaitsForActiveSessionsToFinish() throws Exception {
+        AdmissionController controller = new AdmissionController(10, 0.9, 0.85);
+        AdmissionController.Slot slot = controller.tryAdmit();
+        CompletableFuture<Void> sessionEnds = CompletableFuture.runAsync(slot::close,
+                CompletableFuture.delayedExecutor(300, TimeUnit.MILLISECONDS));
+
+        assertTrue(GracefulShutdown.drain(controller, 10, 0));
+
+        assertTrue(sessionEnds.isDone());
+        assertNull(controller.tryAdmit());
+    }
+}
@@ -157,4 +157,77 @@ class IntegratorArgumentsTests {
                 }""";
         assertThrows(Exception.class, () -> IntegratorArguments.fromJson(json));
     }
+
+    @Test
+    void arrayOfDgParamsDeserializesToSeveralSets() throws JsonProcessingException {
+        IntegratorArguments actual = IntegratorArguments.fromJson(jsonWithDgParams("""
+                [{"model": "nova-2", "tag": ["first"]}, {"model": "nova-2", "language": ["es"]}]"""));
+        assertEquals(List.of(
+                        Map.of("model", List.of("nova-2"), "tag", List.of("first")),
+                        Map.of("model", List.of("nova-2"), "language", List.of("es"))),
+                actual.dgParamsSets());
+        assertEquals(Map.of("model", List.of("nova-2"), "tag", List.of("first")), actual.dgParams());
+
+        assertEquals(List.of(Map.of("model", List.of("nova"))),
+                IntegratorArguments.fromJson(jsonWithDgParams("{\"model\": \"nova\"}")).dgParamsSets());
+    }
+
+    @Test
+    void invalidArraysOfDgParamsThrow() {
+        assertThrows(Exception.class, () -> IntegratorArguments.fromJson(jsonWithDgParams("[]")));
+        assertThrows(Exception.class, () -> IntegratorArguments.fromJson(jsonWithDgParams("[\"nova\"]")));
+        assertThrows(Exception.class, () -> IntegratorArguments.fromJson(jsonWithDgParams("[{}, {}, {}, {}, {}]")));
+    }
+
+    @Test
+    void missingAudioChunkingUsesDefault() throws JsonProcessingException {
+        IntegratorArguments actual = IntegratorArguments.fromJson(jsonWithAudioChunking(null));
+        assertEquals(IntegratorArguments.AudioChunking.DEFAULT, actual.audioChunking());
+    }
+
+    @Test
+    void audioChunkingDeserializesCorrectly() throws JsonProcessingException {
+        assertEquals(new IntegratorArguments.AudioChunking(100, 100),
+                IntegratorArguments.fromJson(jsonWithAudioChunking("{ \"chunkMs\": 100 }")).audioChunking());
+        assertEquals(new IntegratorArguments.AudioChunking(20, 500),
+                IntegratorArguments.fromJson(jsonWithAudioChunking("{ \"chunkMs\": 20, \"maxChunkMs\": 500 }"))
+                        .audioChunking());
+    }
+
+    @Test
+    void audioChunkingOutOfRangeThrows() {
+        assertThrows(Exception.class, () -> IntegratorArguments.fromJson(jsonWithAudioChunking("{ \"chunkMs\": 10 }")));
+        assertThrows(Exception.class, () -> IntegratorArguments.fromJson(
+                jsonWithAudioChunking("{ \"chunkMs\": 100, \"maxChunkMs\": 50 }")));
+        assertThrows(Exception.class, () -> IntegratorArguments.fromJson(
+                jsonWithAudioChunking("{ \"chunkMs\": 100, \"maxChunkMs\": 1000 }")));
+    }
+
+    private static String jsonWithAudioChunking(String audioChunking) {
+        return """
+                {
+                    "contactId": "4a573372-1f28-4e26-b97b-XXXXXXXXXXX",
+                    "kvsStream": {
+                        "arn": "arn:aws:kinesisvideo::eu-west-2:111111111111:stream/instance-alias-contact-ddddddd-bbbb-dddd-eeee-ffffffffffff/9999999999999",
+                        "startFragmentNumber": "100"
+                    },
+                    "dgParams": {
+                        "model": "nova"
+                    },
+                    "enforceRealtime": true%s
+                }""".formatted(audioChunking == null ? "" : ",\n    \"audioChunking\": " + audioChunking);
+    }
+
+    private static String jsonWithDgParams(String dgParams) {
+        return """
+                {
+                    "contactId": "4a573372-1f28-4e26-b97b-XXXXXXXXXXX",
+                    "kvsStream": {
+                        "arn": "arn:aws:kinesisvideo::eu-west-2:111111111111:stream/instance-alias-contact-ddddddd-bbbb-dddd-eeee-ffffffffffff/9999999999999",
+                        "startFragmentNumber": "100"
+                    },
+                    "dgParams": %s,
+                    "enforceRealtime": true
+                }""".formatted(dgParams);
+    }
 }
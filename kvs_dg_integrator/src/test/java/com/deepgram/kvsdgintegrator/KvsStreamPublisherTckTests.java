@@ -0,0 +1,55 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.tck.PublisherVerification;
+import org.reactivestreams.tck.TestEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the Reactive Streams TCK against {@link KvsToDgStreamer.KvsStreamPublisher}, reading from a Connect-shaped MKV
+ * stream in memory. The TCK is a TestNG suite, which the JUnit platform runs through the TestNG engine.
+ */
+public class KvsStreamPublisherTckTests extends PublisherVerification<ByteBuffer> {
+    private static final String FROM_CUSTOMER = KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName();
+    private static final String TO_CUSTOMER = KvsUtils.TrackName.AUDIO_TO_CUSTOMER.getName();
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public KvsStreamPublisherTckTests() {
+        super(new TestEnvironment(500));
+    }
+
+    @Override
+    public Publisher<ByteBuffer> createPublisher(long elements) {
+        ConnectMkvFixture fixture = new ConnectMkvFixture();
+        for (int i = 0; i < elements; i++) {
+            if (i % 100 == 0) {
+                // Block timecodes are relative to their cluster, and only 16 bits
+                fixture.fragment("contact", FROM_CUSTOMER, TO_CUSTOMER);
+            }
+            fixture.frame(1, ConnectMkvFixture.audio(1024, i)).frame(2, ConnectMkvFixture.audio(1024, -i));
+        }
+        if (elements == 0) {
+            fixture.fragment("contact", FROM_CUSTOMER, TO_CUSTOMER);
+        }
+
+        ConnectMkvFrameReader reader = new ConnectMkvFrameReader(
+                new ByteArrayInputStream(fixture.toByteArray()), new KvsContactTagProcessor("contact"));
+        return new KvsToDgStreamer.KvsStreamPublisher(new TrackMerger(reader), false, executor);
+    }
+
+    @Override
+    public Publisher<ByteBuffer> createFailedPublisher() {
+        // Our publisher can only fail once it's asked to read from KVS
+        return null;
+    }
+
+    @Override
+    public long maxElementsFromPublisher() {
+        return 1024;
+    }
+}
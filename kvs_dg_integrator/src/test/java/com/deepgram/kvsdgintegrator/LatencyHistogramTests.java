@@ -0,0 +1,58 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTests {
+    @Test
+    void smallValuesAreExactAndLargerOnesWithinThreePercent() {
+        for (long value = 0; value < 64; value++) {
+            assertEquals(value, LatencyHistogram.highestValueIn(LatencyHistogram.bucketOf(value)));
+        }
+        for (long value = 64; value <= LatencyHistogram.MAX_VALUE; value = value * 3 / 2 + 7) {
+            long top = LatencyHistogram.highestValueIn(LatencyHistogram.bucketOf(value));
+            assertTrue(top >= value && top - value <= value * 0.032, value + " counted as " + top);
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE,
+                LatencyHistogram.highestValueIn(LatencyHistogram.bucketOf(LatencyHistogram.MAX_VALUE)));
+    }
+
+    @Test
+    void percentilesComeFromTheCounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10);
+        }
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(102, snapshot.getCount());
+        assertEquals(0, snapshot.getValueAtPercentile(0));
+        assertEquals(500, snapshot.getValueAtPercentile(50), 500 * 0.032);
+        assertEquals(990, snapshot.getValueAtPercentile(98), 990 * 0.032);
+        assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getMaxMillis());
+        assertEquals(0, LatencyHistogram.Snapshot.EMPTY.getValueAtPercentile(99));
+    }
+
+    @Test
+    void differenceBetweenSnapshotsIsWhatWasRecordedBetweenThem() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.record(2000);
+        LatencyHistogram.Snapshot earlier = histogram.snapshot();
+        histogram.record(10);
+        histogram.record(20);
+
+        LatencyHistogram.Snapshot since = histogram.snapshot().minus(earlier);
+        assertEquals(2, since.getCount());
+        assertEquals(30, since.getSumMillis());
+        assertEquals(20, since.getMaxMillis());
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().minus(earlier).getCount());
+    }
+}
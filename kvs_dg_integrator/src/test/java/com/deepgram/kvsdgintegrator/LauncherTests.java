@@ -0,0 +1,95 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LauncherTests {
+
+    @Test
+    void theSessionsQueryIsParsedIntoCaseInsensitiveParameters() {
+        assertEquals(Map.of(), Launcher.SessionsHandler.parseQuery(null));
+        assertEquals(Map.of("force", "true", "reason", "stuck call"),
+                Launcher.SessionsHandler.parseQuery("FORCE=true&reason=stuck%20call"));
+        assertEquals(Map.of("force", ""), Launcher.SessionsHandler.parseQuery("force"));
+        assertThrows(IllegalArgumentException.class, () -> Launcher.SessionsHandler.parseQuery("force=%zz"));
+
+        assertEquals(true, Launcher.SessionsHandler.parseBoolean("True"));
+        assertEquals(true, Launcher.SessionsHandler.parseBoolean("1"));
+        assertEquals(false, Launcher.SessionsHandler.parseBoolean("FALSE"));
+        assertEquals(false, Launcher.SessionsHandler.parseBoolean("0"));
+        assertNull(Launcher.SessionsHandler.parseBoolean("yes"));
+        assertNull(Launcher.SessionsHandler.parseBoolean(""));
+    }
+
+    @Test
+    void aSessionIsForcedWhateverTheQuerysCaseOrOtherParameters() throws IOException, InterruptedException {
+        AdmissionController controller = new AdmissionController(10, 0.9, 0.85);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        SessionManager sessionManager = new SessionManager((integratorArguments, scope) -> {
+            started.countDown();
+            // Stuck, and deaf to being stopped
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+        });
+        sessionManager.start(new IntegratorArguments(
+                "contact-1",
+                new IntegratorArguments.KvsStream("arn:aws:kinesisvideo:us-east-1:111111111111:stream/test/1", "100"),
+                Map.of(),
+                true), "request-1", controller.tryAdmit());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/sessions", new Launcher.SessionsHandler(sessionManager));
+        server.start();
+        try (HttpClient client = HttpClient.newHttpClient()) {
+            String sessionUrl = "http://localhost:%s/sessions/request-1".formatted(server.getAddress().getPort());
+
+            // Neither stopped nor forced
+            assertEquals(400, delete(client, sessionUrl + "?force=yes").statusCode());
+            // Sent by hand, since the client won't send a malformed URI. The server itself turns this one away, before
+            // the handler's own check sees it
+            assertEquals("HTTP/1.1 400", rawDelete(server, "/sessions/request-1?force=%zz").substring(0, 12));
+            assertEquals(SessionManager.State.STARTING, sessionManager.find("request-1").getFirst().state());
+
+            assertEquals(202, delete(client, sessionUrl + "?reason=stuck&FORCE=True").statusCode());
+            assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static String rawDelete(HttpServer server, String target) throws IOException {
+        try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+            socket.getOutputStream().write("DELETE %s HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                    .formatted(target).getBytes(StandardCharsets.US_ASCII));
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static HttpResponse<String> delete(HttpClient client, String url) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(URI.create(url)).DELETE().build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+}
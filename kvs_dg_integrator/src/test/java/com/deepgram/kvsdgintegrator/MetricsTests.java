@@ -0,0 +1,75 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsTests {
+    @Test
+    void prometheusHasOneHeaderPerMetricAndALabelPerTrack() {
+        String text = Metrics.toPrometheus();
+
+        assertEquals(1, text.lines().filter(line -> line.equals("# TYPE kvs_dg_frames_read_total counter")).count());
+        assertTrue(text.lines().anyMatch(line -> line.startsWith("kvs_dg_frames_read_total{track=\"AUDIO_FROM_CUSTOMER\"} ")));
+        assertTrue(text.lines().anyMatch(line -> line.startsWith("kvs_dg_frames_read_total{track=\"AUDIO_TO_CUSTOMER\"} ")));
+        assertTrue(text.contains("# TYPE kvs_dg_active_sessions gauge\n"));
+    }
+
+    @Test
+    void sessionGaugesAreLabelledWithTheContactAndRemovedWhenItCloses() {
+        try (Metrics.SessionMetrics session = Metrics.openSession("contact-\"1\"")) {
+            session.addSendQueueDepth(() -> 7);
+            session.recordProducerTimestamp(System.currentTimeMillis() - 2500);
+
+            String text = Metrics.toPrometheus();
+            assertTrue(text.contains("kvs_dg_send_queue_depth{contact_id=\"contact-\\\"1\\\"\"} 7\n"));
+            String lag = text.lines().filter(line -> line.startsWith("kvs_dg_lag_behind_live_seconds{")).findFirst()
+                    .orElseThrow();
+            double lagSeconds = Double.parseDouble(lag.substring(lag.lastIndexOf(' ') + 1));
+            assertTrue(lagSeconds >= 2.5 && lagSeconds < 10, lag);
+        }
+        assertFalse(Metrics.toPrometheus().contains("contact-"));
+    }
+
+    @Test
+    void emfLinesHaveTheIncreaseSinceTheLastLine() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        Metrics.toEmf(0);
+        Metrics.MESSAGES_SENT.add(3);
+        Metrics.PACING_SLEEP_NANOS.add(1_500_000_000L);
+
+        JsonNode line = mapper.readTree(Metrics.toEmf(1234));
+
+        assertEquals(1234, line.at("/_aws/Timestamp").asLong());
+        JsonNode definitions = line.at("/_aws/CloudWatchMetrics/0/Metrics");
+        assertTrue(definitions.findValuesAsText("Name").contains("MessagesSent"));
+        assertTrue(line.get("MessagesSent").asDouble() >= 3);
+        assertTrue(line.get("PacingSleepSeconds").asDouble() >= 1.5);
+        // Nothing has been sent since the last line
+        assertTrue(mapper.readTree(Metrics.toEmf(2345)).get("MessagesSent").asDouble() < 3);
+    }
+
+    @Test
+    void transcriptLatencyIsASummaryPerResultType() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        Metrics.toEmf(0);
+        Metrics.FINAL_RESULT_LATENCY.record(1500);
+
+        String text = Metrics.toPrometheus();
+        assertEquals(1, text.lines().filter(line -> line.equals("# TYPE kvs_dg_transcript_latency_seconds summary"))
+                .count());
+        assertTrue(text.lines().anyMatch(line -> line.startsWith(
+                "kvs_dg_transcript_latency_seconds{result=\"final\",quantile=\"0.99\"} ")));
+        assertTrue(text.lines().anyMatch(line -> line.startsWith(
+                "kvs_dg_transcript_latency_seconds_count{result=\"interim\"} ")));
+
+        JsonNode line = mapper.readTree(Metrics.toEmf(1234));
+        assertTrue(line.get("FinalResultLatencyP99Seconds").asDouble() >= 1.5);
+        // Only the latencies since the last line
+        assertFalse(mapper.readTree(Metrics.toEmf(2345)).has("FinalResultLatencyP99Seconds"));
+    }
+}
@@ -0,0 +1,79 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RealtimePacerTests {
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(64);
+
+    private final AtomicLong clock = new AtomicLong();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    @AfterEach
+    void shutDownTimer() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    void lateFramesDoNotAccumulateDrift() {
+        RealtimePacer.Schedule schedule = new RealtimePacer(1, clock::get, timer).newSchedule();
+
+        assertEquals(0, reserveAt(schedule, 0));
+        // 6ms late for the second slot, so the third slot is 6ms sooner than a full frame away
+        assertEquals(0, reserveAt(schedule, 70));
+        assertEquals(ms(53), reserveAt(schedule, 75));
+        assertEquals(ms(64), reserveAt(schedule, 128));
+    }
+
+    @Test
+    void restartsScheduleAfterStall() {
+        RealtimePacer.Schedule schedule = new RealtimePacer(1, clock::get, timer).newSchedule();
+
+        assertEquals(0, reserveAt(schedule, 0));
+        assertEquals(0, reserveAt(schedule, 1000));
+        // Rather than bursting through the slots we missed, the next frame is a frame after the late one
+        assertEquals(ms(64), reserveAt(schedule, 1000));
+    }
+
+    @Test
+    void catchesUpThenLocksToRealtime() {
+        RealtimePacer.Schedule schedule = new RealtimePacer(2, clock::get, timer).newSchedule();
+
+        // A backlog of frames is paced at twice realtime
+        assertEquals(0, reserveAt(schedule, 0));
+        assertEquals(ms(32), reserveAt(schedule, 0));
+        assertEquals(ms(64), reserveAt(schedule, 0));
+        assertFalse(schedule.isLive());
+
+        // Then KVS can't keep up with that rate for three frames in a row
+        assertEquals(0, reserveAt(schedule, 200));
+        assertEquals(0, reserveAt(schedule, 240));
+        assertEquals(0, reserveAt(schedule, 270));
+        assertTrue(schedule.isLive());
+        assertEquals(ms(58), reserveAt(schedule, 270));
+    }
+
+    @Test
+    void multiplierBelowOneThrows() {
+        assertThrows(IllegalArgumentException.class, () -> new RealtimePacer(0.5, clock::get, timer));
+    }
+
+    private long reserveAt(RealtimePacer.Schedule schedule, long nowMs) {
+        clock.set(ms(nowMs));
+        return schedule.reserveNextFrame(FRAME_NANOS);
+    }
+
+    private static long ms(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+}
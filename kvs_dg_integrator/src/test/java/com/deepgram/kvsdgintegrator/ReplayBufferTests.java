@@ -0,0 +1,74 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ReplayBufferTests {
+    private static final int CHUNK_SAMPLES = 4;
+
+    @Test
+    void replaysStartOnAChunkBoundary() {
+        ReplayBuffer buffer = new ReplayBuffer(4 * CHUNK_SAMPLES, CHUNK_SAMPLES);
+        append(buffer, 0, 3 * CHUNK_SAMPLES);
+
+        assertEquals(0, buffer.replayStart(0));
+        assertEquals(CHUNK_SAMPLES, buffer.replayStart(CHUNK_SAMPLES + 3));
+        // Nothing to replay once everything is finalized
+        assertEquals(3 * CHUNK_SAMPLES, buffer.replayStart(10 * CHUNK_SAMPLES));
+    }
+
+    @Test
+    void replaysAreClampedToTheOldestWholeChunk() {
+        ReplayBuffer buffer = new ReplayBuffer(4 * CHUNK_SAMPLES + 2, CHUNK_SAMPLES);
+        append(buffer, 0, 7 * CHUNK_SAMPLES);
+
+        // Samples 10 onwards are still buffered, so the oldest whole chunk starts at 12
+        assertEquals(3 * CHUNK_SAMPLES, buffer.replayStart(0));
+    }
+
+    @Test
+    void readsBackWhatWasAppendedAcrossTheWrap() {
+        ReplayBuffer buffer = new ReplayBuffer(3 * CHUNK_SAMPLES, CHUNK_SAMPLES);
+        append(buffer, 0, 5 * CHUNK_SAMPLES + 2);
+
+        long position = buffer.replayStart(0);
+        assertEquals(3 * CHUNK_SAMPLES, position);
+        List<Integer> samples = new ArrayList<>();
+        List<Integer> readSizes = new ArrayList<>();
+        ByteBuffer out = ByteBuffer.allocate(64);
+        while (position < buffer.getEndPosition()) {
+            int read = buffer.read(position, out.clear());
+            readSizes.add(read);
+            out.flip();
+            while (out.hasRemaining()) {
+                samples.add(out.getInt());
+            }
+            position += read;
+        }
+
+        // One chunk at a time, ending with the short last chunk
+        assertEquals(List.of(CHUNK_SAMPLES, CHUNK_SAMPLES, 2), readSizes);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 3 * CHUNK_SAMPLES; i < 5 * CHUNK_SAMPLES + 2; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, samples);
+    }
+
+    /**
+     * Appends 2-channel samples numbered from {@code first}, each sample being the 4-byte int of its number.
+     */
+    private static void append(ReplayBuffer buffer, int first, int count) {
+        ByteBuffer pcm = ByteBuffer.allocate(count * 4);
+        for (int i = 0; i < count; i++) {
+            pcm.putInt(first + i);
+        }
+        buffer.append(pcm.flip());
+        assertEquals(0, pcm.position());
+    }
+}
@@ -0,0 +1,131 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SessionCheckpointerTests {
+    private static final String ARN = "arn:aws:kinesisvideo:us-east-1:111111111111:stream/test/1";
+    private static final IntegratorArguments.KvsStream KVS_STREAM = new IntegratorArguments.KvsStream(ARN, "100");
+
+    @TempDir
+    Path tempDir;
+
+    private static final class MemoryCheckpointStore implements CheckpointStore {
+        final Map<String, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+        final List<String> saved = new ArrayList<>();
+
+        @Override
+        public Checkpoint load(String contactId) {
+            return checkpoints.get(contactId);
+        }
+
+        @Override
+        public void save(Checkpoint checkpoint) {
+            checkpoints.put(checkpoint.contactId(), checkpoint);
+            saved.add(checkpoint.fragmentNumber());
+        }
+
+        @Override
+        public void delete(String contactId) {
+            checkpoints.remove(contactId);
+        }
+    }
+
+    @Test
+    void checkpointsTheFirstFragmentNotFinalizedOnBothChannels() {
+        MemoryCheckpointStore store = new MemoryCheckpointStore();
+        // Only the first checkpoint is due straight away; the rest wait for the session to close
+        SessionCheckpointer checkpointer = SessionCheckpointer.resume(
+                store, "contact-1", KVS_STREAM, TimeUnit.HOURS.toNanos(1));
+        assertEquals("100", checkpointer.getStartFragmentNumber());
+        assertEquals(0, checkpointer.getCallOffsetMillis());
+        SessionCheckpointer.Stream stream = checkpointer.newStream();
+
+        // Fragments of 2 seconds
+        AtomicLong readPosition = new AtomicLong();
+        checkpointer.readFrom(readPosition::get);
+        for (int fragment = 0; fragment < 3; fragment++) {
+            readPosition.set(fragment * 16000L);
+            checkpointer.fragmentStarted(Integer.toString(100 + fragment));
+        }
+
+        stream.finalized(0, 2.5);
+        assertEquals(List.of(), store.saved);
+        stream.finalized(1, 2.1);
+        assertEquals(List.of("101"), store.saved);
+        assertEquals(2000, store.checkpoints.get("contact-1").callOffsetMillis());
+
+        stream.finalized(0, 4.0);
+        stream.finalized(1, 4.2);
+        assertEquals(List.of("101"), store.saved);
+        checkpointer.close();
+        assertEquals(List.of("101", "102"), store.saved);
+
+        // Started again, the contact picks up from there, with its results on the call's timeline
+        SessionCheckpointer resumed = SessionCheckpointer.resume(store, "contact-1", KVS_STREAM, 0);
+        assertEquals("102", resumed.getStartFragmentNumber());
+        assertEquals(4000, resumed.getCallOffsetMillis());
+        assertEquals(4.75, DeepgramStreamingClient.toCallSeconds(0.25, 0.5, 4.0, new StreamTimeline()));
+        // But not on another stream
+        SessionCheckpointer otherStream = SessionCheckpointer.resume(
+                store, "contact-1", new IntegratorArguments.KvsStream(ARN.replace("/1", "/2"), "200"), 0);
+        assertEquals("200", otherStream.getStartFragmentNumber());
+        assertEquals(0, otherStream.getCallOffsetMillis());
+
+        resumed.callEnded();
+        assertNull(store.load("contact-1"));
+    }
+
+    @Test
+    void checkpointsOnlyWhatEveryStreamHasFinalized() {
+        MemoryCheckpointStore store = new MemoryCheckpointStore();
+        SessionCheckpointer checkpointer = SessionCheckpointer.resume(store, "contact-1", KVS_STREAM, 0);
+        SessionCheckpointer.Stream fast = checkpointer.newStream();
+        SessionCheckpointer.Stream slow = checkpointer.newStream();
+
+        AtomicLong readPosition = new AtomicLong();
+        checkpointer.readFrom(readPosition::get);
+        for (int fragment = 0; fragment < 3; fragment++) {
+            readPosition.set(fragment * 16000L);
+            checkpointer.fragmentStarted(Integer.toString(100 + fragment));
+        }
+
+        fast.finalized(0, 4.5);
+        fast.finalized(1, 4.5);
+        assertEquals(List.of(), store.saved);
+        slow.finalized(0, 2.0);
+        slow.finalized(1, 3.0);
+        assertEquals(List.of("101"), store.saved);
+        slow.finalized(0, 4.0);
+        assertEquals(List.of("101"), store.saved);
+        slow.finalized(1, 4.0);
+        assertEquals(List.of("101", "102"), store.saved);
+    }
+
+    @Test
+    void fileStoreKeepsAFilePerContact() throws Exception {
+        FileCheckpointStore store = new FileCheckpointStore(tempDir.resolve("checkpoints"));
+        assertNull(store.load("contact-1"));
+
+        store.save(new CheckpointStore.Checkpoint("contact-1", ARN, "101", 2000, "2026-01-01T00:00:00Z"));
+        store.save(new CheckpointStore.Checkpoint("contact-1", ARN, "102", 4000, "2026-01-01T00:00:05Z"));
+        assertEquals(new CheckpointStore.Checkpoint("contact-1", ARN, "102", 4000, "2026-01-01T00:00:05Z"),
+                store.load("contact-1"));
+
+        store.delete("contact-1");
+        assertNull(store.load("contact-1"));
+        assertThrows(IllegalArgumentException.class, () -> store.load("../contact-1"));
+    }
+}
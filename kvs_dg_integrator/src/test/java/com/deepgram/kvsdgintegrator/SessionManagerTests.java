@@ -0,0 +1,88 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionManagerTests {
+
+    private static IntegratorArguments arguments(String contactId) {
+        return new IntegratorArguments(
+                contactId,
+                new IntegratorArguments.KvsStream("arn:aws:kinesisvideo:us-east-1:111111111111:stream/test/1", "100"),
+                Map.of(),
+                true);
+    }
+
+    @Test
+    void stoppedSessionsEndTheirAudioAndGiveUpTheirSlots() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(10, 0.9, 0.85);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch stopped = new CountDownLatch(1);
+        SessionManager sessionManager = new SessionManager((integratorArguments, scope) -> {
+            CountDownLatch ended = new CountDownLatch(1);
+            scope.onStop(ended::countDown);
+            started.countDown();
+            ended.await();
+            stopped.countDown();
+        });
+
+        sessionManager.start(arguments("contact-1"), "request-1", controller.tryAdmit());
+        sessionManager.start(arguments("contact-2"), "request-2", controller.tryAdmit());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertEquals(List.of("request-1", "request-2"),
+                sessionManager.list().stream().map(SessionManager.SessionInfo::requestId).toList());
+        // Found by request id or contact id
+        assertEquals("contact-2", sessionManager.find("request-2").getFirst().contactId());
+        assertEquals("request-1", sessionManager.find("contact-1").getFirst().requestId());
+        assertEquals(SessionManager.State.STARTING, sessionManager.find("contact-1").getFirst().state());
+        assertTrue(sessionManager.find("unknown").isEmpty());
+
+        List<SessionManager.SessionInfo> stopping = sessionManager.stop("contact-1", false);
+        assertEquals(SessionManager.State.STOPPING, stopping.getFirst().state());
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        awaitSessions(sessionManager, 1);
+        assertEquals(1, controller.getLoad().activeSessions());
+        assertEquals("request-2", sessionManager.list().getFirst().requestId());
+    }
+
+    @Test
+    void forcingASessionInterruptsIt() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(10, 0.9, 0.85);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        SessionManager sessionManager = new SessionManager((integratorArguments, scope) -> {
+            started.countDown();
+            // Stuck, and deaf to being stopped
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+        });
+
+        sessionManager.start(arguments("contact-1"), "request-1", controller.tryAdmit());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, sessionManager.stop("request-1", true).size());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        awaitSessions(sessionManager, 0);
+        assertEquals(0, controller.getLoad().activeSessions());
+    }
+
+    private static void awaitSessions(SessionManager sessionManager, int count) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sessionManager.list().size() != count && System.nanoTime() < deadlineNanos) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, sessionManager.list().size());
+    }
+}
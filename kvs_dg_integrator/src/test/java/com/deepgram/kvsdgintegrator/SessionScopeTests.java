@@ -0,0 +1,87 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionScopeTests {
+
+    @Test
+    void closeReleasesResourcesInReverseOrder() {
+        List<String> closed = new ArrayList<>();
+        try (SessionScope scope = new SessionScope("test")) {
+            scope.register(() -> closed.add("first"));
+            scope.register(() -> closed.add("second"));
+        }
+        assertEquals(List.of("second", "first"), closed);
+    }
+
+    @Test
+    void closeInterruptsRunningTasks() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        try (SessionScope scope = new SessionScope("test")) {
+            scope.execute(() -> {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+        }
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void tasksRunOnVirtualThreads() throws InterruptedException {
+        CountDownLatch ranOnVirtualThread = new CountDownLatch(1);
+        try (SessionScope scope = new SessionScope("test")) {
+            scope.execute(() -> {
+                if (Thread.currentThread().isVirtual()) {
+                    ranOnVirtualThread.countDown();
+                }
+            });
+            assertTrue(ranOnVirtualThread.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void activeSessionCountFollowsOpenScopes() {
+        int before = SessionScope.getActiveSessionCount();
+        SessionScope scope = new SessionScope("test");
+        assertEquals(before + 1, SessionScope.getActiveSessionCount());
+        scope.close();
+        scope.close();
+        assertEquals(before, SessionScope.getActiveSessionCount());
+    }
+
+    @Test
+    void registeringAfterCloseThrows() {
+        SessionScope scope = new SessionScope("test");
+        scope.close();
+        assertThrows(IllegalStateException.class, () -> scope.register(() -> {}));
+    }
+
+    @Test
+    void stopRunsTheStopHandlersOnceAndLateHandlersStraightAway() {
+        List<String> stopped = new ArrayList<>();
+        try (SessionScope scope = new SessionScope("test")) {
+            scope.onStop(() -> stopped.add("first"));
+            scope.stop();
+            scope.stop();
+            assertEquals(List.of("first"), stopped);
+
+            scope.onStop(() -> stopped.add("second"));
+            assertEquals(List.of("first", "second"), stopped);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SilenceSuppressorTests {
+    // 64ms chunks
+    private static final int CHUNK_SAMPLES = 512;
+
+    private final StreamTimeline timeline = new StreamTimeline();
+
+    @Test
+    void skipsSilenceOnlyAfterTheMinimumAndResumesOnSound() {
+        SilenceSuppressor suppressor = new SilenceSuppressor(timeline, 128, -45);
+
+        List<Boolean> skipped = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            skipped.add(suppressor.shouldSkip(chunk(0, 0)));
+        }
+        skipped.add(suppressor.shouldSkip(chunk(0, 3000)));
+        skipped.add(suppressor.shouldSkip(chunk(0, 0)));
+
+        // 128ms of silence is sent, then the rest is skipped until the agent speaks
+        assertEquals(List.of(false, false, true, true, true, false, false), skipped);
+    }
+
+    @Test
+    void quietNoiseCountsAsSilence() {
+        SilenceSuppressor suppressor = new SilenceSuppressor(timeline, 64, -45);
+
+        // About -50dBFS on one channel, and about -40dBFS on the other
+        assertFalse(suppressor.shouldSkip(chunk(100, 100)));
+        assertTrue(suppressor.shouldSkip(chunk(100, -100)));
+        assertFalse(suppressor.shouldSkip(chunk(100, 330)));
+    }
+
+    @Test
+    void timelineMapsDeepgramTimesToCallTimes() {
+        SilenceSuppressor suppressor = new SilenceSuppressor(timeline, 64, -45);
+        // Sent: 0-128ms. Skipped: 128-320ms. Sent: 320-448ms. Skipped: 448-576ms. Sent: 576ms on.
+        short[] customer = {3000, 0, 0, 0, 0, 3000, 0, 0, 0, 3000};
+        for (short sample : customer) {
+            suppressor.shouldSkip(chunk(sample, 0));
+        }
+
+        assertEquals(0.1, timeline.toCallSeconds(0.1), 1e-9);
+        assertEquals(0.15 + 0.192, timeline.toCallSeconds(0.15), 1e-9);
+        assertEquals(0.3 + 0.192 + 0.128, timeline.toCallSeconds(0.3), 1e-9);
+    }
+
+    @Test
+    void deepgramResultsAreMappedToCallTime() throws Exception {
+        timeline.recordSent(8000);
+        timeline.recordSkipped(16000);
+        TranscriptResult result = TranscriptResult.parse("""
+                {"type":"Results","start":1.5,"duration":1.0,"is_final":true,"channel":{"alternatives":[\
+                {"transcript":"hi there","words":[{"word":"hi","start":0.9,"end":1.1},\
+                {"word":"there","start":1.2,"end":1.4}]}]}}""");
+
+        TranscriptResult mapped = result.withTimes(
+                seconds -> DeepgramStreamingClient.toCallSeconds(seconds, 0, timeline));
+
+        assertEquals(3.5, mapped.start());
+        assertEquals(1.0, mapped.duration());
+        assertEquals(List.of(
+                new TranscriptResult.Word("hi", 0.9, 3.1, 0),
+                new TranscriptResult.Word("there", 3.2, 3.4, 0)), mapped.words());
+    }
+
+    @Test
+    void resultsOfALaterConnectionAreShiftedByWhereItsAudioStarts() {
+        timeline.recordSent(8000);
+        timeline.recordSkipped(16000);
+        timeline.recordSent(8000);
+
+        // The connection's audio starts half a second into the sent audio, before the skip
+        assertEquals(0.75, DeepgramStreamingClient.toCallSeconds(0.25, 0.5, timeline));
+        assertEquals(3.25, DeepgramStreamingClient.toCallSeconds(0.75, 0.5, timeline));
+    }
+
+    /**
+     * A 64ms chunk of little-endian interleaved audio, holding square waves of the given amplitudes.
+     */
+    private static ByteBuffer chunk(int firstAmplitude, int secondAmplitude) {
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SAMPLES * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < CHUNK_SAMPLES; i++) {
+            int sign = i % 2 == 0 ? 1 : -1;
+            chunk.putShort((short) (sign * firstAmplitude)).putShort((short) (sign * secondAmplitude));
+        }
+        return chunk.flip();
+    }
+}
@@ -0,0 +1,31 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StartupTraceTests {
+    @Test
+    void onlyTheFirstMarkOfEachPhaseCounts() throws InterruptedException {
+        StartupTrace trace = new StartupTrace(System.nanoTime());
+        long sessionsStarted = Metrics.SESSIONS_STARTED.get();
+
+        trace.mark(StartupTrace.Phase.DEEPGRAM_CONNECTED);
+        trace.mark(StartupTrace.Phase.GET_MEDIA);
+        Thread.sleep(20);
+        trace.mark(StartupTrace.Phase.FIRST_AUDIO_SENT);
+        trace.mark(StartupTrace.Phase.FIRST_AUDIO_SENT);
+        trace.mark(StartupTrace.Phase.GET_MEDIA);
+
+        Map<String, Long> millis = trace.toMillis();
+        // In the order of the phases, not of the marks, and only those marked
+        assertEquals(List.of("getMedia", "deepgramConnected", "firstAudioSent"), List.copyOf(millis.keySet()));
+        assertTrue(millis.get("getMedia") < 20);
+        assertTrue(millis.get("firstAudioSent") >= 20);
+        assertEquals(sessionsStarted + 1, Metrics.SESSIONS_STARTED.get());
+    }
+}
@@ -0,0 +1,263 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrackMergerTests {
+    private static final String FROM_CUSTOMER = KvsUtils.TrackName.AUDIO_FROM_CUSTOMER.getName();
+    private static final String TO_CUSTOMER = KvsUtils.TrackName.AUDIO_TO_CUSTOMER.getName();
+
+    @Test
+    void alignsTracksByTimecodeNotArrivalOrder() throws Exception {
+        FakeFrameReader reader = new FakeFrameReader(
+                new Frame(TO_CUSTOMER, 0, samples(512, 21)),
+                new Frame(TO_CUSTOMER, 64, samples(512, 22)),
+                new Frame(FROM_CUSTOMER, 0, samples(512, 11)),
+                new Frame(FROM_CUSTOMER, 64, samples(512, 12)));
+
+        short[][] channels = readAll(new TrackMerger(reader, 512, 4000), 2048);
+
+        assertArrayEquals(concat(samples(512, 11), samples(512, 12)), channels[0]);
+        assertArrayEquals(concat(samples(512, 21), samples(512, 22)), channels[1]);
+    }
+
+    @Test
+    void fillsGapsWithSilence() throws Exception {
+        FakeFrameReader reader = new FakeFrameReader(
+                new Frame(FROM_CUSTOMER, 0, samples(512, 11)),
+                new Frame(TO_CUSTOMER, 0, samples(512, 21)),
+                new Frame(TO_CUSTOMER, 64, samples(512, 22)),
+                new Frame(FROM_CUSTOMER, 128, samples(512, 13)),
+                new Frame(TO_CUSTOMER, 128, samples(512, 23)));
+
+        short[][] channels = readAll(new TrackMerger(reader, 512, 4000), 2048);
+
+        assertArrayEquals(concat(samples(512, 11), samples(512, 0), samples(512, 13)), channels[0]);
+        assertArrayEquals(concat(samples(512, 21), samples(512, 22), samples(512, 23)), channels[1]);
+    }
+
+    @Test
+    void rechunksOddSizedFrames() throws Exception {
+        // Timecodes are whole milliseconds, so 300 samples (37.5ms) rounds down
+        FakeFrameReader reader = new FakeFrameReader(
+                new Frame(FROM_CUSTOMER, 0, samples(300, 11)),
+                new Frame(TO_CUSTOMER, 0, samples(512, 21)),
+                new Frame(FROM_CUSTOMER, 37, samples(300, 12)),
+                new Frame(TO_CUSTOMER, 64, samples(88, 22)));
+
+        List<Integer> chunkSizes = new ArrayList<>();
+        short[][] channels = readAll(new TrackMerger(reader, 512, 4000), 2048, chunkSizes);
+
+        assertEquals(List.of(2048, 352), chunkSizes);
+        assertArrayEquals(concat(samples(300, 11), samples(300, 12)), channels[0]);
+        assertArrayEquals(concat(samples(512, 21), samples(88, 22)), channels[1]);
+    }
+
+    @Test
+    void stopsWaitingForStalledTrackAfterJitterWindow() throws Exception {
+        // A window of 128ms, so FROM_CUSTOMER can get 2 frames ahead
+        FakeFrameReader reader = new FakeFrameReader(
+                new Frame(FROM_CUSTOMER, 0, samples(512, 11)),
+                new Frame(FROM_CUSTOMER, 64, samples(512, 12)),
+                new Frame(FROM_CUSTOMER, 128, samples(512, 13)),
+                new Frame(TO_CUSTOMER, 0, samples(512, 21)),
+                new Frame(TO_CUSTOMER, 64, samples(512, 22)),
+                new Frame(FROM_CUSTOMER, 192, samples(512, 14)),
+                new Frame(TO_CUSTOMER, 128, samples(512, 23)),
+                new Frame(TO_CUSTOMER, 192, samples(512, 24)));
+        TrackMerger merger = new TrackMerger(reader, 512, 1024);
+
+        assertTrue(merger.nextChunk(ByteBuffer.allocate(2048)));
+        assertEquals(3, reader.framesRead, "First chunk should not wait for TO_CUSTOMER");
+
+        short[][] channels = readAll(merger, 2048);
+        // TO_CUSTOMER's first frame arrived after its channel was padded, so it's dropped
+        assertArrayEquals(concat(samples(512, 12), samples(512, 13), samples(512, 14)), channels[0]);
+        assertArrayEquals(concat(samples(512, 22), samples(512, 23), samples(512, 24)), channels[1]);
+    }
+
+    @Test
+    void dropsAStalledTracksLateFramesWithoutShiftingTheTimeline() throws Exception {
+        // TO_CUSTOMER stalls for 2 seconds, well past the jitter window and the largest gap we fill, then catches up at
+        // 2 frames for each of FROM_CUSTOMER's
+        int frames = 100;
+        int stallStart = 20;
+        int stallFrames = 32;
+        List<Frame> arrivals = new ArrayList<>();
+        List<Frame> lagging = new ArrayList<>();
+        for (int i = 0; i < frames; i++) {
+            arrivals.add(new Frame(FROM_CUSTOMER, i * 64L, samples(512, 1000 + i)));
+            lagging.add(new Frame(TO_CUSTOMER, i * 64L, samples(512, 2000 + i)));
+            boolean stalled = i >= stallStart && i < stallStart + stallFrames;
+            for (int caughtUp = 0; !stalled && caughtUp < 2 && !lagging.isEmpty(); caughtUp++) {
+                arrivals.add(lagging.removeFirst());
+            }
+        }
+        arrivals.addAll(lagging);
+
+        short[][] channels = readAll(
+                new TrackMerger(new FakeFrameReader(arrivals.toArray(Frame[]::new)), 512, 4000), 2048);
+
+        // No silence is put into the live track, and the late frames are dropped rather than played out of place
+        short[] expectedFromCustomer = new short[0];
+        for (int i = 0; i < frames; i++) {
+            expectedFromCustomer = concat(expectedFromCustomer, samples(512, 1000 + i));
+        }
+        assertArrayEquals(expectedFromCustomer, channels[0]);
+        assertEquals(channels[0].length, channels[1].length);
+        int silentSamples = 0;
+        for (int position = 0; position < channels[1].length; position++) {
+            short sample = channels[1][position];
+            if (sample == 0) {
+                silentSamples++;
+            } else {
+                assertEquals(2000 + position / 512, sample, "TO_CUSTOMER out of line at sample " + position);
+            }
+        }
+        // Its frames are dropped until it's back within the jitter window, which takes about as long again as the stall
+        assertTrue(silentSamples >= stallFrames * 512 && silentSamples <= 2 * stallFrames * 512,
+                "%s samples of silence for a stall of %s".formatted(silentSamples, stallFrames * 512));
+        assertEquals(2000 + frames - 1, channels[1][channels[1].length - 1]);
+    }
+
+    @Test
+    void carriesOnAcrossTimecodeDiscontinuity() throws Exception {
+        FakeFrameReader reader = new FakeFrameReader(
+                new Frame(FROM_CUSTOMER, 0, samples(512, 11)),
+                new Frame(TO_CUSTOMER, 0, samples(512, 21)),
+                new Frame(FROM_CUSTOMER, 600_064, samples(512, 12)),
+                new Frame(TO_CUSTOMER, 600_064, samples(512, 22)));
+
+        short[][] channels = readAll(new TrackMerger(reader, 512, 4000), 2048);
+
+        assertArrayEquals(concat(samples(512, 11), samples(512, 12)), channels[0]);
+        assertArrayEquals(concat(samples(512, 21), samples(512, 22)), channels[1]);
+    }
+
+    @Test
+    void carriesOnOnceBothTracksJumpBack() throws Exception {
+        FakeFrameReader reader = new FakeFrameReader(
+                new Frame(FROM_CUSTOMER, 600_000, samples(512, 11)),
+                new Frame(TO_CUSTOMER, 600_000, samples(512, 21)),
+                new Frame(FROM_CUSTOMER, 0, samples(512, 12)),
+                new Frame(TO_CUSTOMER, 0, samples(512, 22)),
+                new Frame(FROM_CUSTOMER, 64, samples(512, 13)),
+                new Frame(TO_CUSTOMER, 64, samples(512, 23)));
+
+        short[][] channels = readAll(new TrackMerger(reader, 512, 4000), 2048);
+
+        // FROM_CUSTOMER's first frame back could have been a late one, until TO_CUSTOMER jumped back too
+        assertArrayEquals(concat(samples(512, 11), samples(512, 0), samples(512, 13)), channels[0]);
+        assertArrayEquals(concat(samples(512, 21), samples(512, 22), samples(512, 23)), channels[1]);
+    }
+
+    @Test
+    void ignoresOtherTracks() throws Exception {
+        FakeFrameReader reader = new FakeFrameReader(
+                new Frame("Track_video", 0, samples(512, 99)),
+                new Frame(FROM_CUSTOMER, 0, samples(512, 11)),
+                new Frame(TO_CUSTOMER, 0, samples(512, 21)));
+
+        short[][] channels = readAll(new TrackMerger(reader, 512, 4000), 2048);
+
+        assertArrayEquals(samples(512, 11), channels[0]);
+        assertArrayEquals(samples(512, 21), channels[1]);
+    }
+
+    @Test
+    void endingEarlyHandsOutWhatIsMergedAndReadsNoMore() throws Exception {
+        FakeFrameReader reader = new FakeFrameReader(
+                new Frame(FROM_CUSTOMER, 0, samples(512, 11)),
+                new Frame(FROM_CUSTOMER, 64, samples(512, 12)),
+                new Frame(TO_CUSTOMER, 0, samples(512, 21)),
+                new Frame(TO_CUSTOMER, 64, samples(512, 22)));
+        TrackMerger merger = new TrackMerger(reader, 512, 4000);
+        assertTrue(merger.nextChunk(ByteBuffer.allocate(2048)));
+
+        merger.endEarly();
+        // FROM_CUSTOMER's second frame was read for the first chunk, so it's padded out to a last chunk
+        short[][] channels = readAll(merger, 2048);
+
+        assertEquals(3, reader.framesRead);
+        assertArrayEquals(samples(512, 12), channels[0]);
+        assertArrayEquals(samples(512, 0), channels[1]);
+    }
+
+    private static short[][] readAll(TrackMerger merger, int chunkBytes) throws Exception {
+        return readAll(merger, chunkBytes, new ArrayList<>());
+    }
+
+    /**
+     * Reads every chunk from the merger, and splits the interleaved audio back into its channels.
+     */
+    private static short[][] readAll(TrackMerger merger, int chunkBytes, List<Integer> chunkSizes) throws Exception {
+        List<Short> first = new ArrayList<>();
+        List<Short> second = new ArrayList<>();
+        ByteBuffer chunk = ByteBuffer.allocate(chunkBytes);
+        while (merger.nextChunk(chunk.clear())) {
+            chunk.flip();
+            chunkSizes.add(chunk.remaining());
+            while (chunk.hasRemaining()) {
+                first.add(chunk.getShort());
+                second.add(chunk.getShort());
+            }
+        }
+        return new short[][] {toArray(first), toArray(second)};
+    }
+
+    private static short[] samples(int count, int value) {
+        short[] samples = new short[count];
+        Arrays.fill(samples, (short) value);
+        return samples;
+    }
+
+    private static short[] concat(short[]... parts) {
+        List<Short> all = new ArrayList<>();
+        for (short[] part : parts) {
+            for (short sample : part) {
+                all.add(sample);
+            }
+        }
+        return toArray(all);
+    }
+
+    private static short[] toArray(List<Short> samples) {
+        short[] array = new short[samples.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = samples.get(i);
+        }
+        return array;
+    }
+
+    private record Frame(String trackName, long timecodeMillis, short[] samples) {
+    }
+
+    private static final class FakeFrameReader implements MkvFrameReader {
+        private final List<Frame> frames;
+        private int framesRead = 0;
+
+        FakeFrameReader(Frame... frames) {
+            this.frames = List.of(frames);
+        }
+
+        @Override
+        public boolean readNextFrame(FrameConsumer consumer) {
+            if (framesRead == frames.size()) {
+                return false;
+            }
+            Frame frame = frames.get(framesRead++);
+            ByteBuffer audio = ByteBuffer.allocate(frame.samples().length * 2);
+            audio.asShortBuffer().put(frame.samples());
+            consumer.onFrame(frame.trackName(), frame.timecodeMillis(), audio, 0, audio.capacity());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TranscriptLatencyTests {
+    private final LatencyHistogram taskInterims = new LatencyHistogram();
+    private final LatencyHistogram taskFinals = new LatencyHistogram();
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+    private final AtomicLong readPosition = new AtomicLong();
+    private final TranscriptLatency latency = new TranscriptLatency(taskInterims, taskFinals, clock::get);
+
+    @Test
+    void resultsAreTracedBackThroughTheFragmentTheirAudioIsIn() {
+        latency.readFrom(readPosition::get);
+        // Two-second fragments, the second produced a little late
+        latency.fragmentProduced(100_000);
+        readPosition.set(2 * TrackMerger.SAMPLE_RATE);
+        latency.fragmentProduced(102_500);
+
+        // Ends 1.5s into the first fragment
+        clock.set(101_800);
+        latency.resultReceived(false, 1.5);
+        // Ends 1s into the second
+        clock.set(104_500);
+        latency.resultReceived(true, 3.0);
+
+        assertEquals(1, latency.getInterimLatency().getCount());
+        // The sum is exact, where percentiles are rounded up to the top of their bucket
+        assertEquals(300, latency.getInterimLatency().getMeanMillis());
+        assertEquals(1, latency.getFinalLatency().getCount());
+        assertEquals(1000, latency.getFinalLatency().getMeanMillis());
+        assertEquals(1, taskInterims.snapshot().getCount());
+        assertEquals(1, taskFinals.snapshot().getCount());
+    }
+
+    @Test
+    void nothingIsMeasuredUntilTheSessionIsReading() {
+        latency.fragmentProduced(100_000);
+        latency.resultReceived(true, 0.5);
+        assertEquals(0, latency.getFinalLatency().getCount());
+
+        latency.readFrom(readPosition::get);
+        latency.resultReceived(true, 0.5);
+        assertEquals(0, latency.getFinalLatency().getCount());
+        assertEquals("none", TranscriptLatency.summarize(latency.getFinalLatency()));
+    }
+}
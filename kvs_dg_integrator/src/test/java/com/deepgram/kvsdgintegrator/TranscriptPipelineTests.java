@@ -0,0 +1,135 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TranscriptPipelineTests {
+    private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+
+    @Test
+    void interimResultsAreCoalescedPerChannel() throws Exception {
+        TranscriptPipeline pipeline = new TranscriptPipeline("contact", 0, recordingSink(), 10_000, 100);
+
+        pipeline.accept(result(0, false, "hel"));
+        pipeline.accept(result(1, false, "yes"));
+        pipeline.accept(result(0, false, "hello"));
+        pipeline.accept(result(1, true, "yes please"));
+        pipeline.accept(result(0, false, "hello the"));
+        pipeline.close();
+
+        awaitUntil(() -> batches.size() == 1);
+        // Finals in order, then the last interim of each channel that hasn't had a final since
+        assertEquals(List.of("yes please", "hello the"), batches.get(0));
+    }
+
+    @Test
+    void resultsAreDeliveredInBatches() throws Exception {
+        TranscriptPipeline pipeline = new TranscriptPipeline("contact", 0, recordingSink(), 50, 100);
+
+        pipeline.accept(result(0, true, "one"));
+        pipeline.accept(result(0, true, "two"));
+        awaitUntil(() -> batches.size() == 1);
+        pipeline.accept(result(0, true, "three"));
+        awaitUntil(() -> batches.size() == 2);
+
+        assertEquals(List.of(List.of("one", "two"), List.of("three")), batches);
+    }
+
+    @Test
+    void aSlowSinkNeverBlocksAndOnlyTheNewestResultsAreKept() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TranscriptSink stuckSink = (contactId, stream, results) -> {
+            release.await();
+            batches.add(transcripts(results));
+        };
+        TranscriptPipeline pipeline = new TranscriptPipeline("contact", 0, stuckSink, 0, 3);
+
+        pipeline.accept(result(0, true, "first"));
+        // Let the first delivery start and get stuck in the sink
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            pipeline.accept(result(0, true, "result " + i));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        release.countDown();
+        awaitUntil(() -> batches.size() == 2);
+        assertEquals(List.of("first"), batches.get(0));
+        assertEquals(List.of("result 997", "result 998", "result 999"), batches.get(1));
+    }
+
+    @Test
+    void aFailedBatchIsRetriedAheadOfLaterResults() throws Exception {
+        TranscriptSink flakySink = (contactId, stream, results) -> {
+            batches.add(transcripts(results));
+            if (batches.size() == 1) {
+                throw new Exception("Sink is down");
+            }
+        };
+        TranscriptPipeline pipeline = new TranscriptPipeline("contact", 0, flakySink, 0, 100, 500);
+
+        pipeline.accept(result(0, true, "retried"));
+        awaitUntil(() -> batches.size() == 1);
+        // Arrives while the pipeline is backing off, so it waits for the retry
+        pipeline.accept(result(0, true, "later"));
+        Thread.sleep(100);
+        assertEquals(1, batches.size());
+        awaitUntil(() -> batches.size() == 2);
+        assertEquals(List.of("retried", "later"), batches.get(1));
+    }
+
+    @Test
+    void aDeadSinkHoldsOnlyTheNewestResultsAndIsGivenUpOnOnceClosed() throws Exception {
+        TranscriptSink deadSink = (contactId, stream, results) -> {
+            batches.add(transcripts(results));
+            throw new Exception("Sink is down");
+        };
+        TranscriptPipeline pipeline = new TranscriptPipeline("contact", 0, deadSink, 0, 3, 10);
+
+        pipeline.accept(result(0, true, "first"));
+        awaitUntil(() -> !batches.isEmpty());
+        for (int i = 0; i < 5; i++) {
+            pipeline.accept(result(0, true, "result " + i));
+        }
+        pipeline.close();
+
+        awaitUntil(() -> batches.size() > 2);
+        assertEquals(List.of("result 2", "result 3", "result 4"), batches.get(batches.size() - 1));
+        // The retries stop, rather than going on for as long as the sink is down
+        int attempts;
+        do {
+            attempts = batches.size();
+            Thread.sleep(1000);
+        } while (batches.size() != attempts);
+        assertTrue(attempts < 20, "Tried " + attempts + " times");
+    }
+
+    private TranscriptSink recordingSink() {
+        return (contactId, stream, results) -> batches.add(transcripts(results));
+    }
+
+    private static List<String> transcripts(List<TranscriptResult> results) {
+        return results.stream().map(TranscriptResult::transcript).toList();
+    }
+
+    private static TranscriptResult result(int channel, boolean isFinal, String transcript) {
+        return new TranscriptResult(channel, 0, 1, isFinal, false, transcript, 1, List.of());
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for condition");
+            Thread.sleep(5);
+        }
+    }
+}
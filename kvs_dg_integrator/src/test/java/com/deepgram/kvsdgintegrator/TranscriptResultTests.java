@@ -0,0 +1,59 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TranscriptResultTests {
+    private static final String RESULT = """
+            {"type":"Results","channel_index":[1,2],"duration":1.25,"start":3.5,"is_final":true,\
+            "speech_final":false,"channel":{"alternatives":[{"transcript":"hello there","confidence":0.98,\
+            "words":[{"word":"hello","start":3.6,"end":3.9,"confidence":0.99,"punctuated_word":"Hello"},\
+            {"word":"there","start":4.0,"end":4.5,"confidence":0.97}]},{"transcript":"hollow there",\
+            "confidence":0.5,"words":[]}]},"metadata":{"request_id":"abc","model_info":{"name":"nova"}},\
+            "from_finalize":false}""";
+
+    @Test
+    void keepsTheFieldsWeNeedFromTheBestAlternative() throws Exception {
+        TranscriptResult result = TranscriptResult.parse(RESULT);
+
+        assertEquals(new TranscriptResult(1, 3.5, 1.25, true, false, "hello there", 0.98, List.of(
+                new TranscriptResult.Word("hello", 3.6, 3.9, 0.99),
+                new TranscriptResult.Word("there", 4.0, 4.5, 0.97))), result);
+    }
+
+    @Test
+    void otherMessagesAreNotResults() throws Exception {
+        assertNull(TranscriptResult.parse("""
+                {"type":"Metadata","transaction_key":"deprecated","channels":2,"models":["a"]}"""));
+        assertNull(TranscriptResult.parse("{\"type\":\"UtteranceEnd\",\"channel\":[0,2],\"last_word_end\":2.1}"));
+    }
+
+    @Test
+    void writesOneJsonObjectPerLine() throws Exception {
+        TranscriptResult interim = new TranscriptResult(0, 1, 0.5, false, false, "hi", 0.9, List.of());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        TranscriptResult.writeNdjson("contact-1", 1, List.of(TranscriptResult.parse(RESULT), interim), out);
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode first = mapper.readTree(lines[0]);
+        assertEquals("contact-1", first.get("contactId").asText());
+        assertEquals(1, first.get("stream").asInt());
+        assertEquals(1, first.get("channel").asInt());
+        assertTrue(first.get("isFinal").asBoolean());
+        assertEquals("there", first.get("words").get(1).get("word").asText());
+        assertFalse(mapper.readTree(lines[1]).get("isFinal").asBoolean());
+    }
+}
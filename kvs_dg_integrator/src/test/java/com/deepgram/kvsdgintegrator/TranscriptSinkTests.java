@@ -0,0 +1,70 @@
+package com.deepgram.kvsdgintegrator;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TranscriptSinkTests {
+    private static final List<TranscriptResult> RESULTS = List.of(
+            new TranscriptResult(0, 0, 1, true, true, "hello", 1, List.of()),
+            new TranscriptResult(1, 0, 1, true, true, "hi", 1, List.of()));
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void httpSinkPostsGzippedNdjson() throws Exception {
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        List<String> encodings = new CopyOnWriteArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/results", exchange -> {
+            encodings.add(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            try (InputStream body = new GZIPInputStream(exchange.getRequestBody())) {
+                bodies.add(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            exchange.sendResponseHeaders(exchange.getRequestURI().getQuery() == null ? 204 : 500, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            String base = "http://127.0.0.1:%s/results".formatted(server.getAddress().getPort());
+            new HttpTranscriptSink(URI.create(base)).deliver("contact-1", 0, RESULTS);
+            new HttpTranscriptSink(URI.create(base)).deliver("contact-2", 0, RESULTS.subList(0, 1));
+
+            assertEquals(List.of("gzip", "gzip"), encodings);
+            assertEquals(2, bodies.get(0).lines().count());
+            assertTrue(bodies.get(1).contains("\"contactId\":\"contact-2\""));
+            assertThrows(Exception.class,
+                    () -> new HttpTranscriptSink(URI.create(base + "?fail")).deliver("contact-1", 0, RESULTS));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void fileSinkAppendsALinePerResult() throws Exception {
+        Path file = tempDir.resolve("transcripts.ndjson");
+        TranscriptSink sink = new NdjsonFileTranscriptSink(file);
+
+        sink.deliver("contact-1", 0, RESULTS);
+        sink.deliver("contact-2", 0, RESULTS.subList(1, 2));
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(2).startsWith("{\"contactId\":\"contact-2\""));
+    }
+}
@@ -0,0 +1,18 @@
+package com.deepgram.kvsdgintegrator;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WarmerTests {
+    @Test
+    void warmupSessionsStreamTheirCallsAndLeaveNoTraceInTheMetrics() {
+        int activeSessions = SessionScope.getActiveSessionCount();
+
+        assertEquals(2, Warmer.warmUpSessions(2, 2));
+
+        assertEquals(activeSessions, SessionScope.getActiveSessionCount());
+        assertEquals(0, Metrics.SESSIONS_STARTED.get());
+        assertEquals(0, Metrics.AUDIO_BYTES_SENT.get());
+    }
+}
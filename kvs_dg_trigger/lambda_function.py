@@ -6,6 +6,9 @@ import requests
 import logging
 
 INTEGRATION_TAG = "dg_amazonconnect"
+# A full integrator task answers 503, and the load balancer will likely send a retry to another task
+INTEGRATOR_MAX_ATTEMPTS = 3
+INTEGRATOR_RETRY_DELAY_SECONDS = 0.2
 LOG_LEVELS = {
     "debug": logging.DEBUG,
     "info": logging.INFO,
@@ -48,6 +51,11 @@ def handler(event, context):
         "dgParams": dg_params,
         "enforceRealtime": enforce_realtime,
     }
+
+    audio_chunking = get_audio_chunking(contact_attrs)
+    if audio_chunking is not None:
+        integrator_payload["audioChunking"] = audio_chunking
+
     is_success = start_integrator_session(integrator_payload)
 
     return lambda_result(is_success)
@@ -60,6 +68,27 @@ def lambda_result(is_success):
     return {"lambdaResult": result_text}
 
 
+def get_audio_chunking(contact_attrs):
+    """
+    Reads the `dgintegrator_chunkms` and `dgintegrator_maxchunkms` contact attributes, which set how much audio
+    the integrator sends to Deepgram per message. Returns None if they aren't set or aren't numbers, in which case the
+    integrator uses its default.
+    """
+    if not isinstance(contact_attrs, Mapping):
+        return None
+
+    chunk_ms_attr = contact_attrs.get("dgintegrator_chunkms")
+    if chunk_ms_attr is None or not chunk_ms_attr.strip().isdigit():
+        return None
+    audio_chunking = {"chunkMs": int(chunk_ms_attr)}
+
+    max_chunk_ms_attr = contact_attrs.get("dgintegrator_maxchunkms")
+    if max_chunk_ms_attr is not None and max_chunk_ms_attr.strip().isdigit():
+        audio_chunking["maxChunkMs"] = int(max_chunk_ms_attr)
+
+    return audio_chunking
+
+
 def get_dg_params(contact_attrs, contact_id):
     """
     Takes in the dictionary of contact attributes and the contact id and returns the DG params. The
@@ -193,16 +222,24 @@ def make_integrator_request(integrator_domain, payload):
     url = f"http://{integrator_domain}/start-session"
     headers = {"Content-Type": "application/json"}
 
-    try:
-        response = requests.post(url, headers=headers, data=json.dumps(payload))
+    for attempt in range(1, INTEGRATOR_MAX_ATTEMPTS + 1):
+        try:
+            response = requests.post(url, headers=headers, data=json.dumps(payload))
+        except Exception as err:
+            logger.error(f"Error sending request to integrator: {err}")
+            return False
+
         if response.status_code == 200:
             logger.info("Successfully started integrator session.")
             return True
-        else:
-            logger.error(
-                f"Integrator responded with {response.status_code}: {response.text}"
+        if response.status_code == 503 and attempt < INTEGRATOR_MAX_ATTEMPTS:
+            logger.warning(
+                f"Integrator task is full (attempt {attempt} of {INTEGRATOR_MAX_ATTEMPTS}); retrying"
             )
-            return False
-    except Exception as err:
-        logger.error(f"Error sending request to integrator: {err}")
+            time.sleep(INTEGRATOR_RETRY_DELAY_SECONDS * attempt)
+            continue
+
+        logger.error(
+            f"Integrator responded with {response.status_code}: {response.text}"
+        )
         return False
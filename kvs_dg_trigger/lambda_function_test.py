@@ -1,4 +1,5 @@
 import unittest
+from unittest import mock
 import lambda_function
 
 
@@ -83,3 +84,31 @@ class TestGetDgParams(unittest.TestCase):
         actual_dg_params = lambda_function.get_dg_params(contact_attrs, contact_id)
 
         self.assertEqual(actual_dg_params, expected_dg_params)
+
+
+class TestMakeIntegratorRequest(unittest.TestCase):
+    @mock.patch("lambda_function.time.sleep")
+    @mock.patch("lambda_function.requests.post")
+    def test_retries_while_integrator_is_full(self, post, sleep):
+        post.side_effect = [
+            mock.Mock(status_code=503, text="Task is at capacity"),
+            mock.Mock(status_code=200, text=""),
+        ]
+
+        self.assertTrue(lambda_function.make_integrator_request("integrator", {}))
+        self.assertEqual(post.call_count, 2)
+
+    @mock.patch("lambda_function.time.sleep")
+    @mock.patch("lambda_function.requests.post")
+    def test_gives_up_after_max_attempts(self, post, sleep):
+        post.return_value = mock.Mock(status_code=503, text="Task is at capacity")
+
+        self.assertFalse(lambda_function.make_integrator_request("integrator", {}))
+        self.assertEqual(post.call_count, lambda_function.INTEGRATOR_MAX_ATTEMPTS)
+
+    @mock.patch("lambda_function.requests.post")
+    def test_does_not_retry_a_bad_request(self, post):
+        post.return_value = mock.Mock(status_code=400, text="Bad request")
+
+        self.assertFalse(lambda_function.make_integrator_request("integrator", {}))
+        self.assertEqual(post.call_count, 1)